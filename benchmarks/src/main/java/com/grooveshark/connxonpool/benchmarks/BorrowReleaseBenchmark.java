@@ -0,0 +1,146 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool.benchmarks;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import com.grooveshark.connxonpool.ConnectionPoolManager;
+import com.grooveshark.connxonpool.ConnectionProxy;
+import com.grooveshark.connxonpool.PoolProperties;
+import com.grooveshark.connxonpool.SimulatedDriver;
+
+/**
+ * Throughput and latency of {@link ConnectionPoolManager#getConnection()} followed by
+ * {@link java.sql.Connection#close()}, against the {@link SimulatedDriver} of the tests.
+ *
+ * <p>
+ * The simulated server is left at its defaults: connecting takes no time and nothing is dropped, so the benchmarks
+ * measure the pool alone and give the same results on any box.
+ * </p>
+ * <p>
+ * The pool is sized relative to the number of benchmark threads by {@link #connectionsPerThread}: below 1,
+ * threads queue up for connections; at 1 and above, each thread can find an idle connection. Both unfair and
+ * fair ({@link PoolProperties#setFair(boolean)}) hand out orders are measured. {@link #borrowReconnectRelease()}
+ * closes the physical connection before releasing it, so every borrow goes through the reconnect path.
+ * </p>
+ * <p>
+ * Run it at 1, 4, 16, 64 and 256 threads with {@link ThreadMatrix}, or pick the threads with
+ * <code>java -jar target/benchmarks.jar BorrowReleaseBenchmark -t 16</code>.
+ * </p>
+ *
+ * @author andy.compeer@gmail.com
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BorrowReleaseBenchmark {
+
+    /**
+     * Url of the simulated server of the benchmarks
+     */
+    private static final String URL = SimulatedDriver.URL_PREFIX + "benchmark";
+
+    /**
+     * Connections in the pool per benchmark thread
+     */
+    @Param({ "0.25", "1", "4" })
+    public double connectionsPerThread;
+
+    /**
+     * Fair hand out order, see {@link PoolProperties#setFair(boolean)}
+     */
+    @Param({ "false", "true" })
+    public boolean fair;
+
+    /**
+     * Stripes of idle connections, see {@link PoolProperties#setStripes(int)}
+     */
+    @Param({ "1", "8" })
+    public int stripes;
+
+    private ConnectionPoolManager pool;
+
+    @Setup(Level.Trial)
+    public void setup(BenchmarkParams params) throws SQLException {
+        int maxConnections = Math.max(1, (int) Math.round(params.getThreads() * this.connectionsPerThread));
+        PoolProperties props = poolProperties(maxConnections);
+        props.setFair(this.fair);
+        props.setStripes(this.stripes);
+        this.pool = new ConnectionPoolManager(props, URL, "benchmark", "benchmark");
+    }
+
+    /**
+     * Pool properties for a benchmark: a pool of maxConnections connections, all opened upfront,
+     * without any background task running next to the benchmark.
+     *
+     * @param maxConnections - size of the pool
+     * @return {@link PoolProperties}
+     */
+    static PoolProperties poolProperties(int maxConnections) {
+        PoolProperties props = new PoolProperties(true);
+        props.setDriverName(SimulatedDriver.class.getName());
+        props.setMaxConnections(maxConnections);
+        props.setInitialSize(maxConnections);
+        props.setRunReleaser(false);
+        props.setIdleTimeout(0);
+        props.setMaxLifetime(0);
+        props.setJmx(false);
+        return props;
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws SQLException {
+        this.pool.close();
+    }
+
+    @Benchmark
+    public void borrowRelease() throws SQLException {
+        Connection conn = this.pool.getConnection();
+        conn.close();
+    }
+
+    @Benchmark
+    public void borrowReconnectRelease() throws SQLException {
+        Connection conn = this.pool.getConnection();
+        // drop the physical connection, the next borrow of it reconnects
+        ConnectionProxy.getHandler(conn).getPooledConnection().getConnection().close();
+        conn.close();
+    }
+}
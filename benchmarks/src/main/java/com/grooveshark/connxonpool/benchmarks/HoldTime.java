@@ -0,0 +1,112 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool.benchmarks;
+
+import java.util.Random;
+
+/**
+ * Distribution of the time a {@link LoadGenerator} client holds a connection, in nanoseconds.
+ *
+ * <p>
+ * Parsed from <code>name:arguments</code> in milliseconds, see {@link #parse(String)}:
+ * </p>
+ * <ul>
+ * <li><code>constant:5</code>: always 5 ms</li>
+ * <li><code>uniform:1:10</code>: between 1 and 10 ms</li>
+ * <li><code>exponential:5</code>: 5 ms on average, most holds short and a few long ones</li>
+ * <li><code>lognormal:5:1</code>: median of 5 ms with a long tail, the larger the second argument the longer</li>
+ * </ul>
+ *
+ * @author andy.compeer@gmail.com
+ */
+public abstract class HoldTime {
+
+    private final String spec;
+
+    protected HoldTime(String spec) {
+        this.spec = spec;
+    }
+
+    /**
+     * Draws the next hold time
+     *
+     * @param random - random numbers of the calling thread
+     * @return nanoseconds
+     */
+    public abstract long nextNanos(Random random);
+
+    /**
+     * Parses a distribution
+     *
+     * @param spec - e.g. <code>exponential:5</code>
+     * @return {@link HoldTime}
+     * @throws IllegalArgumentException - if the distribution is unknown or its arguments are wrong
+     */
+    public static HoldTime parse(final String spec) {
+        String[] parts = spec.trim().split(":");
+        final double[] args = new double[parts.length - 1];
+        try {
+            for (int i = 1; i < parts.length; i++) {
+                args[i - 1] = Double.parseDouble(parts[i]) * 1000000;
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed hold time " + spec, e);
+        }
+        String name = parts[0];
+        if (name.equals("constant") && args.length == 1) {
+            return new HoldTime(spec) {
+                @Override
+                public long nextNanos(Random random) {
+                    return (long) args[0];
+                }
+            };
+        } else if (name.equals("uniform") && args.length == 2) {
+            return new HoldTime(spec) {
+                @Override
+                public long nextNanos(Random random) {
+                    return (long) (args[0] + random.nextDouble() * (args[1] - args[0]));
+                }
+            };
+        } else if (name.equals("exponential") && args.length == 1) {
+            return new HoldTime(spec) {
+                @Override
+                public long nextNanos(Random random) {
+                    return (long) (-args[0] * Math.log(1 - random.nextDouble()));
+                }
+            };
+        } else if (name.equals("lognormal") && args.length == 2) {
+            // the second argument is sigma, not a duration
+            final double sigma = args[1] / 1000000;
+            return new HoldTime(spec) {
+                @Override
+                public long nextNanos(Random random) {
+                    return (long) (args[0] * Math.exp(sigma * random.nextGaussian()));
+                }
+            };
+        }
+        throw new IllegalArgumentException("Unknown hold time " + spec
+            + ", expected constant:ms, uniform:min:max, exponential:mean or lognormal:median:sigma");
+    }
+
+    @Override
+    public String toString() {
+        return this.spec;
+    }
+}
@@ -0,0 +1,411 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool.benchmarks;
+
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import com.grooveshark.connxonpool.ConnectionPoolManager;
+import com.grooveshark.connxonpool.DaemonThreadFactory;
+import com.grooveshark.connxonpool.Histogram;
+import com.grooveshark.connxonpool.PoolProperties;
+
+/**
+ * Open loop load test of a {@link ConnectionPoolManager}, to pick <code>POOL_MAX_CONNECTIONS</code> and
+ * <code>POOL_MAX_WAIT</code> for a given traffic.
+ *
+ * <p>
+ * Clients arrive at a fixed rate (<code>LOAD_RATE</code> per second, evenly spaced or, with
+ * <code>LOAD_ARRIVALS=poisson</code>, at random), whether or not earlier clients got a connection, as real
+ * traffic does. Each client borrows a connection, runs <code>LOAD_QUERY</code> if any, holds the connection for a
+ * time drawn from <code>LOAD_HOLD</code> (see {@link HoldTime}) and closes it. Clients run on
+ * <code>LOAD_THREADS</code> threads; arrivals finding all of them busy queue up in the generator.
+ * </p>
+ * <p>
+ * The acquire latency of a client is measured from the time it was due to arrive, not from the time it called
+ * {@link ConnectionPoolManager#getConnection()}, so time spent queued behind a saturated pool is not left out
+ * (coordinated omission). The latency from the actual call is reported next to it; the gap between the two
+ * shows how far behind the clients fell. Clients timing out count with the time they waited.
+ * </p>
+ * <p>
+ * Every <code>LOAD_REPORT_INTERVAL</code> milliseconds a line shows the arrivals, timeouts and acquire latency of
+ * the interval, along with the size, busy, idle and waiting counts of the pool, also written to
+ * <code>LOAD_CSV</code> if set. A summary of the run, past the first <code>LOAD_WARMUP</code> seconds, is printed
+ * at the end.
+ * </p>
+ * <p>
+ * Settings are read from <code>load.properties</code> in the jar, then from the file given as first argument,
+ * then from <code>KEY=VALUE</code> arguments. <code>POOL_*</code> settings configure the pool, see
+ * {@link PoolProperties}. By default the pool connects to the {@link com.grooveshark.connxonpool.SimulatedDriver}:
+ * </p>
+ * <pre>
+ * java -cp target/benchmarks.jar com.grooveshark.connxonpool.benchmarks.LoadGenerator \
+ *     LOAD_RATE=2000 LOAD_HOLD=exponential:5 POOL_MAX_CONNECTIONS=16 POOL_MAX_WAIT=1000
+ * </pre>
+ *
+ * @author andy.compeer@gmail.com
+ */
+public class LoadGenerator {
+
+    public static final String DEFAULTS = "/load.properties";
+
+    private final Properties props;
+    private final String url;
+    private final String user;
+    private final String password;
+    private final double rate;
+    private final boolean poisson;
+    private final long durationNanos;
+    private final long warmupNanos;
+    private final HoldTime holdTime;
+    private final String query;
+    private final int threads;
+    private final long reportInterval;
+    private final String csv;
+
+    private ConnectionPoolManager pool;
+    private ThreadPoolExecutor clients;
+    private PrintWriter csvWriter;
+
+    /**
+     * Latencies of the run past the warm up, from the due arrival and from the actual call
+     */
+    private final Histogram corrected = new Histogram();
+    private final Histogram uncorrected = new Histogram();
+
+    /**
+     * Latencies of the current report interval, from the due arrival
+     */
+    private final AtomicReference<Histogram> interval = new AtomicReference<Histogram>(new Histogram());
+
+    private final AtomicLong arrivals = new AtomicLong(0);
+    private final AtomicLong timeouts = new AtomicLong(0);
+    private final AtomicLong errors = new AtomicLong(0);
+    private final AtomicLong measuredArrivals = new AtomicLong(0);
+    private final AtomicLong measuredTimeouts = new AtomicLong(0);
+    private final AtomicLong measuredErrors = new AtomicLong(0);
+
+    /**
+     * Pool size statistics past the warm up, only touched by the report thread
+     */
+    private long samples = 0;
+    private long sizeSum = 0;
+    private long busySum = 0;
+    private int maxSize = 0;
+    private int maxWaiting = 0;
+    private int maxQueued = 0;
+    private long lastArrivals = 0;
+    private long lastTimeouts = 0;
+    private long lastErrors = 0;
+
+    private volatile long start;
+
+    /**
+     * Constructor with the settings of the run
+     *
+     * @param props - <code>LOAD_*</code> and <code>POOL_*</code> settings
+     */
+    public LoadGenerator(Properties props) {
+        this.props = props;
+        this.url = props.getProperty("LOAD_URL");
+        this.user = props.getProperty("LOAD_USER", "");
+        this.password = props.getProperty("LOAD_PASSWORD", "");
+        this.rate = Double.parseDouble(props.getProperty("LOAD_RATE", "1000"));
+        this.poisson = props.getProperty("LOAD_ARRIVALS", "fixed").equalsIgnoreCase("poisson");
+        this.durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(props.getProperty("LOAD_DURATION", "60")));
+        this.warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(props.getProperty("LOAD_WARMUP", "10")));
+        this.holdTime = HoldTime.parse(props.getProperty("LOAD_HOLD", "exponential:5"));
+        String query = props.getProperty("LOAD_QUERY", "").trim();
+        this.query = query.length() == 0 ? null : query;
+        this.threads = Integer.parseInt(props.getProperty("LOAD_THREADS", "512"));
+        this.reportInterval = Long.parseLong(props.getProperty("LOAD_REPORT_INTERVAL", "1000"));
+        String csv = props.getProperty("LOAD_CSV", "").trim();
+        this.csv = csv.length() == 0 ? null : csv;
+        if (this.url == null || this.rate <= 0 || this.threads <= 0 || this.reportInterval <= 0) {
+            throw new IllegalArgumentException("LOAD_URL, LOAD_RATE, LOAD_THREADS and LOAD_REPORT_INTERVAL are required");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator(loadProperties(args));
+        generator.run();
+    }
+
+    /**
+     * Reads the defaults from the jar, then the file and <code>KEY=VALUE</code> arguments
+     */
+    static Properties loadProperties(String[] args) throws IOException {
+        Properties props = new Properties();
+        InputStream in = LoadGenerator.class.getResourceAsStream(DEFAULTS);
+        if (in != null) {
+            try {
+                props.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq > 0) {
+                props.setProperty(arg.substring(0, eq).trim(), arg.substring(eq + 1).trim());
+            } else {
+                in = new FileInputStream(arg);
+                try {
+                    props.load(in);
+                } finally {
+                    in.close();
+                }
+            }
+        }
+        return props;
+    }
+
+    /**
+     * Runs the load, prints the report and closes the pool
+     */
+    public void run() throws SQLException, IOException, InterruptedException {
+        this.pool = new ConnectionPoolManager(new PoolProperties(this.props), this.url, this.user, this.password);
+        this.clients = new ThreadPoolExecutor(this.threads, this.threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory("load-client"));
+        this.clients.prestartAllCoreThreads();
+        if (this.csv != null) {
+            this.csvWriter = new PrintWriter(new FileWriter(this.csv));
+            this.csvWriter.println("seconds,arrivals,timeouts,errors,p50_ms,p99_ms,max_ms,size,busy,idle,waiting,queued");
+        }
+        ScheduledThreadPoolExecutor reporter = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("load-report"));
+        System.out.println(this.settings());
+        System.out.println(String.format(Locale.ENGLISH, "%8s %9s %8s %6s %9s %9s %9s %5s %5s %5s %7s %7s",
+                "seconds", "arrivals", "timeouts", "errors", "p50(ms)", "p99(ms)", "max(ms)",
+                "size", "busy", "idle", "waiting", "queued"));
+        try {
+            this.start = System.nanoTime();
+            reporter.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    LoadGenerator.this.report();
+                }
+            }, this.reportInterval, this.reportInterval, TimeUnit.MILLISECONDS);
+            this.dispatch();
+            this.clients.shutdown();
+            // clients still waiting give up after POOL_MAX_WAIT
+            this.clients.awaitTermination(this.pool.getProps().getMaxWait() + 60000, TimeUnit.MILLISECONDS);
+        } finally {
+            reporter.shutdownNow();
+            this.clients.shutdownNow();
+            if (this.csvWriter != null) {
+                this.csvWriter.close();
+            }
+        }
+        System.out.println(this.summary());
+        this.pool.close();
+    }
+
+    /**
+     * Submits the clients at their due time, never waiting for earlier ones
+     */
+    private void dispatch() {
+        Random random = new Random(Long.parseLong(this.props.getProperty("LOAD_SEED", "42")));
+        double meanGap = TimeUnit.SECONDS.toNanos(1) / this.rate;
+        long end = this.start + this.durationNanos;
+        long warmupEnd = this.start + this.warmupNanos;
+        double due = this.start;
+        while (due < end) {
+            long dueNanos = (long) due;
+            long delay;
+            while ((delay = dueNanos - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(delay);
+            }
+            boolean measured = dueNanos >= warmupEnd;
+            this.arrivals.incrementAndGet();
+            if (measured) {
+                this.measuredArrivals.incrementAndGet();
+            }
+            this.clients.execute(new Client(dueNanos, measured));
+            due += this.poisson ? -meanGap * Math.log(1 - random.nextDouble()) : meanGap;
+        }
+    }
+
+    /**
+     * One client: borrow, query, hold, close
+     */
+    private class Client implements Runnable {
+
+        private final long due;
+        private final boolean measured;
+
+        Client(long due, boolean measured) {
+            this.due = due;
+            this.measured = measured;
+        }
+
+        @Override
+        public void run() {
+            LoadGenerator gen = LoadGenerator.this;
+            long called = System.nanoTime();
+            Connection conn;
+            try {
+                conn = gen.pool.getConnection();
+            } catch (SQLException e) {
+                boolean timedOut = e.getMessage() != null && e.getMessage().startsWith("Timed out");
+                (timedOut ? gen.timeouts : gen.errors).incrementAndGet();
+                if (this.measured) {
+                    (timedOut ? gen.measuredTimeouts : gen.measuredErrors).incrementAndGet();
+                }
+                if (timedOut) {
+                    this.record(called, System.nanoTime());
+                }
+                return;
+            }
+            this.record(called, System.nanoTime());
+            long holdEnd = System.nanoTime() + gen.holdTime.nextNanos(ThreadLocalRandom.current());
+            try {
+                if (gen.query != null) {
+                    Statement st = conn.createStatement();
+                    try {
+                        st.execute(gen.query);
+                    } finally {
+                        st.close();
+                    }
+                }
+                long delay;
+                while ((delay = holdEnd - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(delay);
+                }
+            } catch (SQLException e) {
+                gen.errors.incrementAndGet();
+                if (this.measured) {
+                    gen.measuredErrors.incrementAndGet();
+                }
+            } finally {
+                try {
+                    conn.close();
+                } catch (SQLException e) {
+                    gen.errors.incrementAndGet();
+                }
+            }
+        }
+
+        private void record(long called, long acquired) {
+            LoadGenerator gen = LoadGenerator.this;
+            gen.interval.get().record(acquired - this.due);
+            if (this.measured) {
+                gen.corrected.record(acquired - this.due);
+                gen.uncorrected.record(acquired - called);
+            }
+        }
+    }
+
+    /**
+     * Prints a line for the last interval, on the report thread
+     */
+    private void report() {
+        long now = System.nanoTime();
+        Histogram.Snapshot latency = this.interval.getAndSet(new Histogram()).snapshot();
+        long arrivals = this.arrivals.get();
+        long timeouts = this.timeouts.get();
+        long errors = this.errors.get();
+        int size = this.pool.getSize();
+        int busy = this.pool.getBusySize();
+        int idle = this.pool.getAvailableSize();
+        int waiting = this.pool.getWaiterCount();
+        int queued = this.clients.getQueue().size();
+        double seconds = (now - this.start) / 1e9;
+        String line = String.format(Locale.ENGLISH, "%8.1f %9d %8d %6d %9.3f %9.3f %9.3f %5d %5d %5d %7d %7d",
+                seconds, arrivals - this.lastArrivals, timeouts - this.lastTimeouts, errors - this.lastErrors,
+                millis(latency.getP50()), millis(latency.getP99()), millis(latency.getMax()),
+                size, busy, idle, waiting, queued);
+        System.out.println(line);
+        if (this.csvWriter != null) {
+            this.csvWriter.println(line.trim().replaceAll("\\s+", ","));
+            this.csvWriter.flush();
+        }
+        this.lastArrivals = arrivals;
+        this.lastTimeouts = timeouts;
+        this.lastErrors = errors;
+        if (now - this.start >= this.warmupNanos && now - this.start <= this.durationNanos) {
+            this.samples++;
+            this.sizeSum += size;
+            this.busySum += busy;
+            this.maxSize = Math.max(this.maxSize, size);
+            this.maxWaiting = Math.max(this.maxWaiting, waiting);
+            this.maxQueued = Math.max(this.maxQueued, queued);
+        }
+    }
+
+    private String settings() {
+        return String.format(Locale.ENGLISH,
+                "%s arrivals at %.0f/s for %ds (%ds warm up), hold %s%s, %d client threads%n"
+                + "pool %s: POOL_MAX_CONNECTIONS=%d POOL_INITIAL_SIZE=%d POOL_MAX_WAIT=%d POOL_MIN_IDLE=%d POOL_FAIR=%b",
+                this.poisson ? "poisson" : "fixed", this.rate, TimeUnit.NANOSECONDS.toSeconds(this.durationNanos),
+                TimeUnit.NANOSECONDS.toSeconds(this.warmupNanos), this.holdTime,
+                this.query == null ? "" : ", query " + this.query, this.threads, this.url,
+                this.pool.getProps().getMaxConnections(), this.pool.getProps().getInitialSize(),
+                this.pool.getProps().getMaxWait(), this.pool.getProps().getMinIdle(), this.pool.getProps().getFair());
+    }
+
+    private String summary() {
+        long arrivals = this.measuredArrivals.get();
+        long timeouts = this.measuredTimeouts.get();
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ENGLISH, "%nPast warm up: %d arrivals (%.0f/s), %d timeouts (%.3f%%), %d errors%n",
+                arrivals, arrivals / ((this.durationNanos - this.warmupNanos) / 1e9), timeouts,
+                arrivals == 0 ? 0.0 : 100.0 * timeouts / arrivals, this.measuredErrors.get()));
+        sb.append(String.format(Locale.ENGLISH, "%-40s %9s %9s %9s %9s %9s %9s%n",
+                "acquire latency (ms)", "p50", "p90", "p99", "p99.9", "p99.99", "max"));
+        sb.append(percentiles("from due arrival (corrected)", this.corrected.snapshot()));
+        sb.append(percentiles("from getConnection() call (uncorrected)", this.uncorrected.snapshot()));
+        sb.append(String.format(Locale.ENGLISH, "pool size mean %.1f max %d, busy mean %.1f, waiting max %d%n",
+                this.samples == 0 ? 0.0 : (double) this.sizeSum / this.samples, this.maxSize,
+                this.samples == 0 ? 0.0 : (double) this.busySum / this.samples, this.maxWaiting));
+        if (this.maxQueued > 0) {
+            sb.append(String.format(Locale.ENGLISH, "up to %d arrivals queued for a client thread, raise LOAD_THREADS"
+                    + " to have them wait in the pool, up to POOL_MAX_WAIT%n", this.maxQueued));
+        }
+        sb.append("pool metrics ").append(this.pool.getMetrics());
+        return sb.toString();
+    }
+
+    private static String percentiles(String name, Histogram.Snapshot s) {
+        return String.format(Locale.ENGLISH, "%-40s %9.3f %9.3f %9.3f %9.3f %9.3f %9.3f%n", name,
+                millis(s.getP50()), millis(s.getValueAtPercentile(90)), millis(s.getP99()),
+                millis(s.getP999()), millis(s.getValueAtPercentile(99.99)), millis(s.getMax()));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool.benchmarks;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.results.format.ResultFormatType;
+
+/**
+ * Runs the benchmarks at 1, 4, 16, 64 and 256 threads, writing one JSON result file per thread count,
+ * e.g. <code>jmh-16-threads.json</code>, to compare commits with.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar com.grooveshark.connxonpool.benchmarks.ThreadMatrix [benchmark regexp]
+ * </pre>
+ *
+ * @author andy.compeer@gmail.com
+ */
+public class ThreadMatrix {
+
+    public static final int[] THREADS = { 1, 4, 16, 64, 256 };
+
+    public static void main(String[] args) throws RunnerException {
+        String include = args.length > 0 ? args[0] : BorrowReleaseBenchmark.class.getSimpleName();
+        for (int threads : THREADS) {
+            ChainedOptionsBuilder options = new OptionsBuilder()
+                .include(include)
+                .threads(threads)
+                .resultFormat(ResultFormatType.JSON)
+                .result("jmh-" + threads + "-threads.json");
+            new Runner(options.build()).run();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Listener of a {@link ConnectionFuture}, called once the connection is acquired or could not be.
+ *
+ * Unless registered with an {@link java.util.concurrent.Executor}, callbacks are made on the thread completing
+ * the future: usually a {@link ConnectionCreator} thread of the pool, never the client releasing the connection,
+ * or the housekeeping thread on a time out. They need to be
+ * thread safe and should return quickly, handing any real work to the application's own threads.
+ *
+ * @author andy.compeer@gmail.com
+ */
+public interface AcquireListener {
+
+    /**
+     * Called with the connection acquired. The listener owns it and has to close it.
+     *
+     * @param connection - {@link java.sql.Connection} handle given out by the pool
+     */
+    public void acquired(Connection connection);
+
+    /**
+     * Called when no connection could be acquired: timed out, cancelled, pool closed or failed to connect.
+     *
+     * @param e - {@link java.sql.SQLException} describing the failure
+     */
+    public void failed(SQLException e);
+}
@@ -0,0 +1,214 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Circuit breaker around the physical connects of a {@link ConnectionPoolManager}.
+ *
+ * <p>
+ * While the breaker is closed, connects go through. Once {@link PoolConfiguration#getBreakerThreshold()} connects
+ * failed in a row, it opens: for {@link PoolConfiguration#getBreakerBackoff()} milliseconds, connects and clients
+ * that would wait for one fail right away with a {@link CircuitOpenException}, instead of each waiting on the
+ * database for a connect timeout. Once the time is up, the next connect goes through as a probe while the others
+ * still fail. If the probe connects, the breaker closes. If not, it opens again for twice as long, up to
+ * {@link PoolConfiguration#getBreakerMaxBackoff()} milliseconds, so a database coming back is not hit by a
+ * connect storm.
+ * </p>
+ *
+ * @author andy.compeer@gmail.com
+ */
+public class CircuitBreaker {
+
+    /**
+     * Logger
+     */
+    public static final Logger log = Logger.getLogger(CircuitBreaker.class);
+
+    /**
+     * States of the breaker
+     */
+    private static final int STATE_CLOSED = 0;
+    private static final int STATE_OPEN = 1;
+    private static final int STATE_PROBING = 2;
+
+    private final String name;
+
+    private final int threshold;
+
+    private final long backoff;
+
+    private final long maxBackoff;
+
+    private final AtomicInteger state = new AtomicInteger(STATE_CLOSED);
+
+    /**
+     * Connects failed in a row
+     */
+    private final AtomicInteger failures = new AtomicInteger(0);
+
+    /**
+     * Time in milliseconds the breaker stays open, doubled by every failed probe
+     */
+    private volatile long openFor;
+
+    /**
+     * {@link System#nanoTime()} of the next probe, while open
+     */
+    private volatile long retryAt;
+
+    /**
+     * Last connect failure
+     */
+    private volatile SQLException lastFailure;
+
+    /**
+     * Connects refused while open
+     */
+    private final AtomicLong rejected = new AtomicLong(0);
+
+    /**
+     * Constructor with the pool name and the settings of the breaker
+     *
+     * @param name - name of the pool, for logging
+     * @param threshold - connects failing in a row to open the breaker
+     * @param backoff - time in milliseconds the breaker first stays open
+     * @param maxBackoff - longest time in milliseconds the breaker stays open
+     */
+    public CircuitBreaker(String name, int threshold, long backoff, long maxBackoff) {
+        this.name = name;
+        this.threshold = threshold;
+        this.backoff = backoff;
+        this.maxBackoff = maxBackoff;
+        this.openFor = backoff;
+    }
+
+    /**
+     * Lets a connect go through, unless the breaker is open. Once the breaker has been open long
+     * enough, a single caller goes through as the probe.
+     *
+     * @return true if the caller is the probe, and has to report the outcome like any connect
+     * @throws CircuitOpenException - if the breaker is open
+     */
+    public boolean beforeConnect() throws CircuitOpenException {
+        int current = this.state.get();
+        if (current == STATE_CLOSED) {
+            return false;
+        }
+        if (current == STATE_OPEN && System.nanoTime() - this.retryAt >= 0
+                && this.state.compareAndSet(STATE_OPEN, STATE_PROBING)) {
+            log.info("Connection pool " + this.name + " probing the database after " + this.openFor + " ms");
+            return true;
+        }
+        throw this.rejection();
+    }
+
+    /**
+     * Fails if a client would wait for a connect the breaker refuses.
+     *
+     * @throws CircuitOpenException - if the breaker is open and not due for a probe
+     */
+    public void check() throws CircuitOpenException {
+        int current = this.state.get();
+        if (current == STATE_PROBING || (current == STATE_OPEN && System.nanoTime() - this.retryAt < 0)) {
+            throw this.rejection();
+        }
+    }
+
+    /**
+     * Reports a connect that succeeded, which closes the breaker
+     */
+    public void connected() {
+        if (this.failures.get() != 0) {
+            this.failures.set(0);
+        }
+        if (this.state.get() != STATE_CLOSED) {
+            this.state.set(STATE_CLOSED);
+            this.openFor = this.backoff;
+            log.info("Connection pool " + this.name + " connected to the database again, circuit breaker closed");
+        }
+    }
+
+    /**
+     * Reports a connect that failed, which opens the breaker after {@link PoolConfiguration#getBreakerThreshold()}
+     * failures in a row, or opens it again for longer after a failed probe.
+     *
+     * @param probe - true if {@link #beforeConnect()} returned true
+     * @param failure - why it failed, null if not known
+     */
+    public void failed(boolean probe, SQLException failure) {
+        if (failure != null) {
+            this.lastFailure = failure;
+        }
+        if (probe) {
+            this.openFor = Math.min(this.maxBackoff, this.openFor * 2);
+            this.retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.openFor);
+            this.state.set(STATE_OPEN);
+            log.warn("Connection pool " + this.name + " probe failed, circuit breaker open for " + this.openFor + " ms");
+        } else if (this.failures.incrementAndGet() >= this.threshold && this.state.get() == STATE_CLOSED) {
+            // set before opening, only read once open
+            this.retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.openFor);
+            if (this.state.compareAndSet(STATE_CLOSED, STATE_OPEN)) {
+                log.warn("Connection pool " + this.name + " failed to connect " + this.failures.get()
+                        + " times in a row, circuit breaker open for " + this.openFor + " ms", failure);
+            }
+        }
+    }
+
+    private CircuitOpenException rejection() {
+        this.rejected.incrementAndGet();
+        long wait = Math.max(0, TimeUnit.NANOSECONDS.toMillis(this.retryAt - System.nanoTime()));
+        return new CircuitOpenException("Connection pool " + this.name + " is not connecting to the database:"
+                + " circuit breaker open, next attempt in " + wait + " ms", "08001", this.lastFailure);
+    }
+
+    /**
+     * See if connects are refused
+     *
+     * @return true if the breaker is open or probing
+     */
+    public boolean isOpen() {
+        return this.state.get() != STATE_CLOSED;
+    }
+
+    /**
+     * Number of connects and clients refused while open
+     *
+     * @return long - rejections
+     */
+    public long getRejectedCount() {
+        return this.rejected.get();
+    }
+
+    /**
+     * Last connect failure
+     *
+     * @return {@link java.sql.SQLException}, null if none
+     */
+    public SQLException getLastFailure() {
+        return this.lastFailure;
+    }
+}
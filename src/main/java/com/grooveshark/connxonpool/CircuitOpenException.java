@@ -0,0 +1,39 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool;
+
+import java.sql.SQLTransientConnectionException;
+
+/**
+ * Exception thrown instead of connecting while the {@link CircuitBreaker} of a pool is open.
+ * The database is expected to be back later, so the failure is transient.
+ *
+ * @author andy.compeer@gmail.com
+ */
+
+public class CircuitOpenException extends SQLTransientConnectionException {
+
+
+    private static final long serialVersionUID = 3094528876350114372L;
+
+    public CircuitOpenException(String msg, String sqlState, Throwable cause) {
+        super(msg, sqlState, cause);
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket limiting the rate of physical connects.
+ *
+ * <p>
+ * Each {@link ConnectionPoolManager} with {@link PoolConfiguration#getConnectRate()} set has its own limiter, and
+ * all pools of the JVM share {@link #getGlobal()}, which does not limit anything until {@link #setRate(int, int)}
+ * is called. A connect needs a permit from both. Up to {@link #getBurst()} permits are handed out at once after a
+ * quiet period, then one every <code>1 / rate</code> seconds, so after a failover or a deploy the pools refill at
+ * a pace the database can take instead of all at once.
+ * </p>
+ * <p>
+ * Permits are reserved with a single compare-and-set on the time the next one is free, so callers queue up
+ * in the order they asked without taking a lock, and then sleep until their turn.
+ * </p>
+ *
+ * @author andy.compeer@gmail.com
+ */
+public class ConnectRateLimiter {
+
+    private static final ConnectRateLimiter GLOBAL = new ConnectRateLimiter(0, 1);
+
+    /**
+     * Limiter shared by all the pools of the JVM, unlimited until {@link #setRate(int, int)} is called
+     *
+     * @return {@link ConnectRateLimiter}
+     */
+    public static ConnectRateLimiter getGlobal() {
+        return GLOBAL;
+    }
+
+    /**
+     * Time in nanoseconds between two permits, 0 for no limit
+     */
+    private volatile long interval;
+
+    private volatile int burst;
+
+    /**
+     * {@link System#nanoTime()} the next permit is free, once the burst is used up
+     */
+    private final AtomicLong nextFree = new AtomicLong();
+
+    /**
+     * Connects that had to wait for a permit, and that were not let through within their wait
+     */
+    private final AtomicLong throttled = new AtomicLong(0);
+    private final AtomicLong refused = new AtomicLong(0);
+
+    /**
+     * Constructor with the rate and the burst
+     *
+     * @param rate - connects per second, 0 for no limit
+     * @param burst - connects let through at once after a quiet period, at least 1
+     */
+    public ConnectRateLimiter(int rate, int burst) {
+        this.setRate(rate, burst);
+    }
+
+    /**
+     * Changes the rate and the burst, starting with a full burst
+     *
+     * @param rate - connects per second, 0 for no limit
+     * @param burst - connects let through at once after a quiet period, at least 1
+     */
+    public void setRate(int rate, int burst) {
+        long interval = rate <= 0 ? 0 : TimeUnit.SECONDS.toNanos(1) / rate;
+        this.burst = Math.max(1, burst);
+        this.nextFree.set(System.nanoTime() - this.burst * interval);
+        this.interval = interval;
+    }
+
+    /**
+     * Reserves a permit, unless the caller would have to wait longer than it is willing to.
+     *
+     * @param maxWait - longest time in nanoseconds the caller waits
+     * @return time in nanoseconds to wait before connecting, -1 if no permit is free in time
+     */
+    long reserve(long maxWait) {
+        long interval = this.interval;
+        if (interval == 0) {
+            return 0;
+        }
+        while (true) {
+            long now = System.nanoTime();
+            long next = this.nextFree.get();
+            // permits not used while quiet are kept, up to the burst
+            long earliest = now - (this.burst - 1) * interval;
+            long slot = next - earliest < 0 ? earliest : next;
+            long wait = slot - now;
+            if (wait > maxWait) {
+                this.refused.incrementAndGet();
+                return -1;
+            }
+            if (this.nextFree.compareAndSet(next, slot + interval)) {
+                if (wait > 0) {
+                    this.throttled.incrementAndGet();
+                    return wait;
+                }
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Waits for a permit.
+     *
+     * @param timeout - longest time to wait
+     * @param unit - {@link java.util.concurrent.TimeUnit} of the timeout
+     * @return true once a permit is taken, false right away if none is free in time
+     * @throws InterruptedException - if interrupted while waiting
+     */
+    public boolean acquire(long timeout, TimeUnit unit) throws InterruptedException {
+        long wait = this.reserve(unit.toNanos(timeout));
+        if (wait < 0) {
+            return false;
+        }
+        TimeUnit.NANOSECONDS.sleep(wait);
+        return true;
+    }
+
+    /**
+     * Takes a permit only if one is free right away.
+     *
+     * @return true if a permit is taken
+     */
+    public boolean tryAcquire() {
+        return this.reserve(0) == 0;
+    }
+
+    /**
+     * See if connects are limited
+     *
+     * @return false if the rate is 0
+     */
+    public boolean isLimited() {
+        return this.interval != 0;
+    }
+
+    /**
+     * Connects let through at once after a quiet period
+     *
+     * @return int - burst
+     */
+    public int getBurst() {
+        return this.burst;
+    }
+
+    /**
+     * Number of connects that had to wait for a permit
+     *
+     * @return long - throttled connects
+     */
+    public long getThrottledCount() {
+        return this.throttled.get();
+    }
+
+    /**
+     * Number of connects given up as no permit was free within their wait
+     *
+     * @return long - refused connects
+     */
+    public long getRefusedCount() {
+        return this.refused.get();
+    }
+}
@@ -0,0 +1,391 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Opens physical connections for a {@link ConnectionPoolManager} in the background.
+ *
+ * <p>
+ * When a client finds no idle connection, it asks the creator for a new one with {@link #createAsync()}
+ * and waits for {@link PoolConfiguration#getMaxWait()} as usual, instead of connecting on its own thread.
+ * At most {@link PoolConfiguration#getCreatorThreads()} connections are opened at the same time, so a burst
+ * of clients does not turn into a burst of connects. A new connection is offered to the idle connections,
+ * which wakes up the client waiting the longest.
+ * </p>
+ * <p>
+ * The creator also keeps at least {@link PoolConfiguration#getMinIdle()} idle connections ahead of demand,
+ * see {@link #fillIdle()}, and opens the replacements of the connections retired by the {@link ConnectionEvictor},
+ * see {@link #renew(PooledConnection)}.
+ * </p>
+ * <p>
+ * With {@link PoolConfiguration#getVirtualThreads()} set, clients also hand their reconnects, validations and
+ * resets to platform threads of the creator with {@link #call(Callable, long, Runnable)} and park until they are
+ * done or their wait is up, so driver code never runs on the carrier thread of a virtual thread. These client
+ * threads are apart from the creator threads, so a client never queues behind a slow connect. A pool thread
+ * needing the same runs the task itself.
+ * </p>
+ *
+ * @author andy.compeer@gmail.com
+ */
+public class ConnectionCreator {
+
+    /**
+     * Logger
+     */
+    public static final Logger log = Logger.getLogger(ConnectionCreator.class);
+
+    /**
+     * Interval in milliseconds between two checks of {@link PoolConfiguration#getMinIdle()}
+     * on the {@link HousekeepingScheduler}
+     */
+    public static final long FILL_INTERVAL = 1000;
+
+    /**
+     * Set on the creator and client threads of all pools, see {@link #call(Callable, long, Runnable)}
+     */
+    private static final ThreadLocal<Boolean> CREATOR_THREAD = new ThreadLocal<Boolean>();
+
+    /**
+     * Parent {@link ConnectionPoolManager}
+     */
+    private final ConnectionPoolManager pool;
+
+    /**
+     * Threads opening the connections
+     */
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Threads running client calls, disconnects and deliveries to futures. A thread per task, started as needed:
+     * each task holds a connection of the pool, so there are never more than the connections of the pool.
+     */
+    private final ThreadPoolExecutor clientExecutor;
+
+    /**
+     * Number of connections requested and not opened yet
+     */
+    private final AtomicInteger pending = new AtomicInteger(0);
+
+    /**
+     * Flag to see if a {@link #fillIdle()} run is queued already
+     */
+    private final AtomicBoolean filling = new AtomicBoolean(false);
+
+    /**
+     * Last failure to open a connection, cleared by the next success
+     */
+    private volatile SQLException lastFailure;
+
+    /**
+     * Constructor with {@link ConnectionPoolManager} and the number of threads opening connections
+     *
+     * @param pool - parent pool
+     * @param threads - maximum number of connections opened at the same time
+     */
+    public ConnectionCreator(ConnectionPoolManager pool, int threads) {
+        this.pool = pool;
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), poolThreadFactory("connxonpool-creator"));
+        this.executor.allowCoreThreadTimeOut(true);
+        this.clientExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), poolThreadFactory("connxonpool-client"));
+    }
+
+    private static ThreadFactory poolThreadFactory(String name) {
+        return new DaemonThreadFactory(name) {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return super.newThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        CREATOR_THREAD.set(Boolean.TRUE);
+                        r.run();
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Requests a new connection, iff the size of the pool allows one more.
+     * Returns right away, the connection is offered to the pool once opened.
+     *
+     * @return true if a connection is on its way, false if the pool is full
+     */
+    public boolean createAsync() {
+        if (this.pool.isClosed() || !this.pool.reserveSize()) {
+            return false;
+        }
+        this.pending.incrementAndGet();
+        try {
+            this.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ConnectionCreator.this.create();
+                }
+            });
+        } catch (RuntimeException e) {
+            this.pending.decrementAndGet();
+            this.pool.releaseSize();
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * Requests as many connections as needed to have {@link PoolConfiguration#getMinIdle()}
+     * idle connections. Counting idle connections walks the pool, so it is done on the creator
+     * thread and at most one such request is queued at a time.
+     */
+    public void fillIdle() {
+        if (this.pool.getProps().getMinIdle() <= 0 || !this.filling.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            this.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ConnectionCreator.this.filling.set(false);
+                    int missing = ConnectionCreator.this.pool.getProps().getMinIdle()
+                        - ConnectionCreator.this.pool.getAvailableSize()
+                        - ConnectionCreator.this.pending.get();
+                    for (int i = 0; i < missing; i++) {
+                        if (!ConnectionCreator.this.createAsync()) {
+                            break;
+                        }
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            this.filling.set(false);
+            log.error("Cannot fill idle connections", e);
+        }
+    }
+
+    /**
+     * Opens a replacement for a connection retired by the {@link ConnectionEvictor} and swaps it in,
+     * see {@link ConnectionPoolManager#renewPooled(PooledConnection)}. Returns right away.
+     *
+     * @param pooled - connection to renew, marked with {@link PooledConnection#markRenewing()}
+     */
+    public void renew(final PooledConnection pooled) {
+        try {
+            this.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ConnectionCreator.this.pool.renewPooled(pooled);
+                }
+            });
+        } catch (RuntimeException e) {
+            pooled.clearRenewing();
+            log.error("Cannot renew a connection in the background", e);
+        }
+    }
+
+    /**
+     * Hands a connection claimed by an offering client to a waiting {@link ConnectionFuture}, see
+     * {@link ConnectionFuture#deliver()}. Returns right away. Deliveries run on the client threads, so they do not
+     * queue behind connects. Once the creator is shut down, the pool is closed and the future is failed on the
+     * calling thread.
+     *
+     * @param future - future that took a connection
+     */
+    public void deliver(final ConnectionFuture future) {
+        this.runAsync(new Runnable() {
+            @Override
+            public void run() {
+                future.deliver();
+            }
+        });
+    }
+
+    /**
+     * Runs a task on a client thread and returns right away, or runs it on the calling thread once the creator
+     * is shut down.
+     *
+     * @param task - task talking to the database, e.g. a disconnect
+     */
+    public void runAsync(Runnable task) {
+        try {
+            this.clientExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    /**
+     * Runs a task on a client thread and parks the calling thread until it is done, or until the deadline.
+     * If the creator is shut down, or the calling thread is a pool thread already, the task runs on the
+     * calling thread.
+     *
+     * <p>
+     * Once the deadline passes, or if the calling thread is interrupted, the caller gives up on the task and fails,
+     * but the task is not cut short: it runs to the end, and then runs abandoned, which hands back whatever the task
+     * was holding for the caller.
+     * </p>
+     *
+     * @param task - task talking to the database
+     * @param deadline - {@link System#nanoTime()} the caller stops waiting at
+     * @param abandoned - run after the task if the caller gave up on it, null if there is nothing to hand back
+     * @return result of the task
+     * @throws SQLTimeoutException - if the deadline passed before the task was done
+     * @throws SQLException - thrown by the task, or if interrupted
+     */
+    public <T> T call(final Callable<T> task, long deadline, final Runnable abandoned) throws SQLException {
+        if (CREATOR_THREAD.get() != null) {
+            return runInline(task);
+        }
+        // taken by the task once done, or by the caller giving up, whichever comes first
+        final AtomicBoolean settled = new AtomicBoolean(false);
+        Future<T> result;
+        try {
+            result = this.clientExecutor.submit(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    try {
+                        return task.call();
+                    } finally {
+                        if (!settled.compareAndSet(false, true) && abandoned != null) {
+                            abandoned.run();
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            return runInline(task);
+        }
+        boolean interrupted = false;
+        try {
+            while (true) {
+                long remaining = deadline - System.nanoTime();
+                try {
+                    if (remaining > 0) {
+                        return result.get(remaining, TimeUnit.NANOSECONDS);
+                    }
+                    if (settled.compareAndSet(false, true)) {
+                        throw new SQLTimeoutException("Timed out. Connection pool thread still busy with a "
+                                + "connection after the wait");
+                    }
+                    // done just now
+                    return result.get();
+                } catch (TimeoutException e) {
+                    // deadline checked again
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    if (settled.compareAndSet(false, true)) {
+                        throw new SQLException("Connection pool wait interrupted before a connection was checked");
+                    }
+                    // done just now, its result is taken on the next turn
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new SQLException(cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static <T> T runInline(Callable<T> task) throws SQLException {
+        try {
+            return task.call();
+        } catch (SQLException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new SQLException(e);
+        }
+    }
+
+    /**
+     * Opens a connection, room for which has been reserved in the pool.
+     */
+    private void create() {
+        try {
+            this.pool.createAndOffer();
+            this.lastFailure = null;
+        } catch (CircuitOpenException e) {
+            this.lastFailure = e;
+            if (log.isDebugEnabled()) {
+                log.debug("Not creating a connection in the background", e);
+            }
+        } catch (SQLException e) {
+            this.lastFailure = e;
+            log.error("Failed to create a connection in the background", e);
+        } finally {
+            this.pending.decrementAndGet();
+        }
+    }
+
+    /**
+     * Stops the creator threads once the requested connections are opened.
+     */
+    public void shutdown() {
+        this.executor.shutdown();
+        this.clientExecutor.shutdown();
+    }
+
+    /**
+     * Number of connections requested and not opened yet
+     *
+     * @return int - number of pending connections
+     */
+    public int getPendingCount() {
+        return this.pending.get();
+    }
+
+    /**
+     * Last failure to open a connection, if the last attempt failed
+     *
+     * @return {@link java.sql.SQLException} of the last attempt, null if it succeeded
+     */
+    public SQLException getLastFailure() {
+        return this.lastFailure;
+    }
+}
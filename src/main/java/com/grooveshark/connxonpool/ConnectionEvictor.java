@@ -0,0 +1,143 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool;
+
+import org.apache.log4j.Logger;
+import java.sql.SQLException;
+
+/**
+ * Periodically retires idle connections that have been idle for too long or have lived for too long.
+ *
+ * <p>
+ * A connection idle for more than {@link PoolConfiguration#getIdleTimeout()} is closed, as long as the pool keeps
+ * {@link PoolConfiguration#getMinIdle()} idle connections. The ones kept for {@link PoolConfiguration#getMinIdle()}
+ * and the ones older than {@link PoolConfiguration#getMaxLifetime()} are renewed instead: a new physical connection
+ * is opened by the {@link ConnectionCreator} while the old one stays available to the clients, and the old one is
+ * closed only once the new one is swapped in, so the capacity of the pool never dips and the evictor never waits
+ * for a connect. Idle connections are closed on a {@link ConnectionCreator} thread too, the evictor never waits
+ * for a disconnect either.
+ * Either way, the connection does not get closed by the database server while idle, e.g. by MySQL's
+ * <code>wait_timeout</code>, and clients do not have to reconnect it when borrowing it.
+ * </p>
+ * <p>
+ * Both limits are shortened by up to {@link #MAX_JITTER} of their value, by a random fraction drawn for every
+ * physical connection (see {@link PooledConnection#getJitter()}), so connections made together, e.g. when the
+ * pool warmed up, are not all retired in the same run. Busy connections are left alone, they are retired by
+ * a later run once released.
+ * </p>
+ * <p>
+ * Like the {@link ConnectionReleaser}, the evictor does not own a thread and is scheduled on the
+ * {@link HousekeepingScheduler} every {@link #getInterval(PoolConfiguration)} milliseconds.
+ * </p>
+ *
+ * @author andy.compeer@gmail.com
+ */
+public class ConnectionEvictor implements Runnable
+{
+    /**
+     * Largest fraction the idle timeout and the maximum lifetime of a connection are shortened by
+     */
+    public static final double MAX_JITTER = 0.1;
+
+    /**
+     * Bounds of the interval between two runs, in milliseconds
+     */
+    public static final long MIN_INTERVAL = 1000;
+    public static final long MAX_INTERVAL = 30000;
+
+    public static final Logger log = Logger.getLogger(ConnectionEvictor.class);
+
+    /**
+     * Parent {@link ConnectionPoolManager} that instantiates this {@link java.lang.Runnable}
+     * object.
+     */
+    private ConnectionPoolManager pool;
+
+    /**
+     * Constructor with {@link ConnectionPoolManager}
+     */
+    public ConnectionEvictor(ConnectionPoolManager pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Interval between two runs for the given properties: a quarter of the shortest enabled limit,
+     * within {@link #MIN_INTERVAL} and {@link #MAX_INTERVAL}.
+     *
+     * @param props - {@link PoolConfiguration} of the pool
+     * @return interval in milliseconds
+     */
+    public static long getInterval(PoolConfiguration props) {
+        long shortest = Long.MAX_VALUE;
+        if (props.getIdleTimeout() > 0) {
+            shortest = props.getIdleTimeout();
+        }
+        if (props.getMaxLifetime() > 0) {
+            shortest = Math.min(shortest, props.getMaxLifetime());
+        }
+        return Math.max(MIN_INTERVAL, Math.min(MAX_INTERVAL, shortest / 4));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run() {
+        // pool is closed, nothing to evict
+        if (this.pool.isClosed()) {
+            return;
+        }
+        PoolConfiguration props = this.pool.getProps();
+        long now = System.currentTimeMillis();
+        int idle = this.pool.getAvailableSize();
+        for (int i = 0; i < this.pool.getCapacity(); i++) {
+            PooledConnection pooled = this.pool.getPooledConnection(i);
+            if (pooled == null || pooled.getState() != PooledConnection.STATE_IDLE) {
+                continue;
+            }
+            double shorten = 1 - MAX_JITTER * pooled.getJitter();
+            boolean tooOld = props.getMaxLifetime() > 0
+                && now - pooled.getCreatedAt() >= (long) (props.getMaxLifetime() * shorten);
+            boolean tooIdle = props.getIdleTimeout() > 0
+                && now - pooled.getLastUsedAt() >= (long) (props.getIdleTimeout() * shorten);
+            if (!tooOld && !tooIdle) {
+                continue;
+            }
+            if (tooOld || idle <= props.getMinIdle()) {
+                // left to the clients while the replacement is opened
+                if (this.pool.requestRenew(pooled)) {
+                    log.debug("Connection renewal requested by ConnectionEvictor: " + pooled);
+                }
+                continue;
+            }
+            // take it away from the clients first
+            if (!pooled.claim()) {
+                continue;
+            }
+            try {
+                this.pool.evictPooled(pooled);
+                idle--;
+                log.debug("Idle connection closed by ConnectionEvictor: " + pooled);
+            } catch (SQLException e) {
+                log.error("Connection could not be retired", e);
+            }
+        }//for
+    }
+}
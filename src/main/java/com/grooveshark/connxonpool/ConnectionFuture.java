@@ -0,0 +1,397 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Pending result of {@link ConnectionPoolManager#acquireAsync()}, completed with a connection handle
+ * without any thread blocking for it.
+ *
+ * <p>
+ * A future that does not get a connection right away queues up in the {@link IdleConnectionStack} as a
+ * {@link IdleConnectionStack.Waiter}, in arrival order with the threads blocked in
+ * {@link ConnectionPoolManager#getConnection()}. The client releasing a connection only claims it for the future,
+ * which is then completed on a {@link ConnectionCreator} thread of the pool, or on the thread calling {@link #get()}
+ * if that comes first: validating or reconnecting the connection and calling the listeners never hold up the
+ * releasing client. After {@link PoolConfiguration#getMaxWait()} milliseconds, a task on the
+ * {@link HousekeepingScheduler} fails the future with the same time out as {@link ConnectionPoolManager#getConnection()}.
+ * </p>
+ * <p>
+ * Use {@link #addListener(AcquireListener)} to be called back, or the blocking {@link java.util.concurrent.Future}
+ * methods. A connection given to a future that nobody reads anymore is not returned to the pool: cancel the future
+ * instead, and close the connection if {@link #cancel(boolean)} returns false.
+ * </p>
+ *
+ * @author andy.compeer@gmail.com
+ */
+public class ConnectionFuture implements Future<Connection>, IdleConnectionStack.Waiter {
+
+    public static final Logger log = Logger.getLogger(ConnectionFuture.class);
+
+    /**
+     * States of a future: queued up or not yet, being worked on by a single thread, completed
+     */
+    private static final int STATE_PENDING = 0;
+    private static final int STATE_TAKEN = 1;
+    private static final int STATE_DONE = 2;
+
+    private static final AtomicIntegerFieldUpdater<ConnectionFuture> STATE_UPDATER =
+        AtomicIntegerFieldUpdater.newUpdater(ConnectionFuture.class, "state");
+
+    private static final AtomicReferenceFieldUpdater<ConnectionFuture, PooledConnection> HANDED_UPDATER =
+        AtomicReferenceFieldUpdater.newUpdater(ConnectionFuture.class, PooledConnection.class, "handed");
+
+    private final ConnectionPoolManager pool;
+
+    /**
+     * {@link System#nanoTime()} of the request and of its time out
+     */
+    private final long start;
+    private final long deadline;
+
+    /**
+     * Starts as {@link #STATE_TAKEN}, owned by the thread asking for the connection
+     */
+    private volatile int state = STATE_TAKEN;
+
+    /**
+     * Time out task on the {@link HousekeepingScheduler}, once queued up
+     */
+    private volatile ScheduledFuture<?> timeoutTask;
+
+    /**
+     * Connection claimed for the future by {@link #take(PooledConnection)}, until {@link #deliver()} hands it over
+     */
+    private volatile PooledConnection handed;
+
+    /**
+     * Outcome, published by {@link #done}
+     */
+    private Connection connection;
+    private SQLException failure;
+    private boolean cancelled;
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    /**
+     * Listeners to call once completed, null once called. Guarded by {@link #listenersLock}.
+     */
+    private List<Runnable> listeners = new ArrayList<Runnable>();
+
+    private final ReentrantLock listenersLock = new ReentrantLock();
+
+    /**
+     * Constructor with the pool and the time to wait for a connection
+     *
+     * @param pool - pool to acquire the connection from
+     * @param maxWait - time in milliseconds before the future times out
+     */
+    ConnectionFuture(ConnectionPoolManager pool, long maxWait) {
+        this.pool = pool;
+        this.start = System.nanoTime();
+        this.deadline = this.start + TimeUnit.MILLISECONDS.toNanos(maxWait);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isWaiting() {
+        return this.state == STATE_PENDING;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     * The connection is handed over later by {@link #deliver()}, on another thread.
+     * </p>
+     */
+    @Override
+    public boolean take(PooledConnection pooled) {
+        if (!STATE_UPDATER.compareAndSet(this, STATE_PENDING, STATE_TAKEN)) {
+            return false;
+        }
+        this.handed = pooled;
+        this.pool.deliverLater(this);
+        return true;
+    }
+
+    /**
+     * Hands the connection taken by {@link #take(PooledConnection)} to the client, validating or reconnecting it
+     * first, see {@link ConnectionPoolManager#deliver(ConnectionFuture, PooledConnection)}. Only the first call
+     * does, from a {@link ConnectionCreator} thread or the thread calling {@link #get()}.
+     */
+    void deliver() {
+        PooledConnection pooled = HANDED_UPDATER.getAndSet(this, null);
+        if (pooled != null) {
+            this.pool.deliver(this, pooled);
+        }
+    }
+
+    /**
+     * Queues up the future, owned by the calling thread, to wait for a connection,
+     * unless its time is up already.
+     *
+     * @param stack - idle connections of the pool
+     */
+    void await(IdleConnectionStack stack) {
+        long remaining = this.deadline - System.nanoTime();
+        if (remaining <= 0) {
+            this.pool.timedOut(this);
+            return;
+        }
+        this.state = STATE_PENDING;
+        stack.addWaiter(this);
+        // scheduled once queued up, so it cannot fire before; a task outliving the future finds it done
+        if (this.timeoutTask == null) {
+            this.timeoutTask = HousekeepingScheduler.getInstance().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    ConnectionFuture.this.expire();
+                }
+            }, remaining, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Times out the future, if still waiting. Called by the {@link HousekeepingScheduler}.
+     */
+    private void expire() {
+        if (STATE_UPDATER.compareAndSet(this, STATE_PENDING, STATE_TAKEN)) {
+            this.pool.timedOut(this);
+        }
+    }
+
+    /**
+     * Takes the future away from the queue, if still waiting
+     *
+     * @return true if the calling thread owns the future now and has to complete it
+     */
+    boolean claim() {
+        return STATE_UPDATER.compareAndSet(this, STATE_PENDING, STATE_TAKEN);
+    }
+
+    /**
+     * Completes the future with a connection, from the thread owning it
+     *
+     * @param connection - handle given out by the pool
+     */
+    void complete(Connection connection) {
+        this.connection = connection;
+        this.finish();
+    }
+
+    /**
+     * Fails the future, from the thread owning it
+     *
+     * @param failure - reason no connection was acquired
+     */
+    void fail(SQLException failure) {
+        this.failure = failure;
+        this.finish();
+    }
+
+    private void finish() {
+        this.state = STATE_DONE;
+        // purged with other cancelled tasks rather than purging the schedule on every completion
+        HousekeepingScheduler.getInstance().cancelLater(this.timeoutTask);
+        this.done.countDown();
+        List<Runnable> listeners;
+        this.listenersLock.lock();
+        try {
+            listeners = this.listeners;
+            this.listeners = null;
+        } finally {
+            this.listenersLock.unlock();
+        }
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Calls the listener once the future is completed, on the completing thread (a {@link ConnectionCreator}
+     * thread, the thread calling {@link #get()}, or the {@link HousekeepingScheduler} for a time out; so the
+     * listener must not block), or right away on the calling thread if completed already.
+     *
+     * @param listener - {@link AcquireListener} to call
+     */
+    public void addListener(AcquireListener listener) {
+        this.addListener(listener, null);
+    }
+
+    /**
+     * Calls the listener once the future is completed, on the given {@link java.util.concurrent.Executor}.
+     *
+     * @param listener - {@link AcquireListener} to call
+     * @param executor - executor to call the listener on, null to call it on the completing thread
+     */
+    public void addListener(final AcquireListener listener, final Executor executor) {
+        Runnable call = new Runnable() {
+            @Override
+            public void run() {
+                if (executor == null) {
+                    ConnectionFuture.this.notify(listener);
+                    return;
+                }
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        ConnectionFuture.this.notify(listener);
+                    }
+                });
+            }
+        };
+        this.listenersLock.lock();
+        try {
+            if (this.listeners != null) {
+                this.listeners.add(call);
+                return;
+            }
+        } finally {
+            this.listenersLock.unlock();
+        }
+        call.run();
+    }
+
+    private void notify(AcquireListener listener) {
+        try {
+            if (this.connection != null) {
+                listener.acquired(this.connection);
+            } else if (this.cancelled) {
+                listener.failed(new SQLException("Connection request cancelled"));
+            } else {
+                listener.failed(this.failure);
+            }
+        } catch (RuntimeException e) {
+            log.error("Acquire listener " + listener + " failed", e);
+        }
+    }
+
+    /**
+     * Cancels the request if no connection has been handed over yet.
+     *
+     * @param mayInterruptIfRunning - ignored, no thread is waiting
+     * @return false if the future is completed already, the caller owns the connection if any
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (!this.claim()) {
+            return false;
+        }
+        this.pool.cancelled(this);
+        this.cancelled = true;
+        this.finish();
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isCancelled() {
+        return this.done.getCount() == 0 && this.cancelled;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isDone() {
+        return this.done.getCount() == 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws ExecutionException - holding the {@link java.sql.SQLException} if no connection was acquired
+     */
+    @Override
+    public Connection get() throws InterruptedException, ExecutionException {
+        this.deliver();
+        this.done.await();
+        return this.result();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws ExecutionException - holding the {@link java.sql.SQLException} if no connection was acquired
+     */
+    @Override
+    public Connection get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        this.deliver();
+        if (!this.done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return this.result();
+    }
+
+    private Connection result() throws ExecutionException {
+        if (this.cancelled) {
+            throw new CancellationException();
+        }
+        if (this.failure != null) {
+            throw new ExecutionException(this.failure);
+        }
+        return this.connection;
+    }
+
+    /**
+     * {@link System#nanoTime()} when the connection was asked for
+     *
+     * @return start in nanoseconds
+     */
+    long getStart() {
+        return this.start;
+    }
+
+    /**
+     * {@link System#nanoTime()} when the future times out
+     *
+     * @return deadline in nanoseconds
+     */
+    long getDeadline() {
+        return this.deadline;
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionFuture[" + (this.isDone() ? (this.connection != null ? this.connection : "failed") : "pending") + "]";
+    }
+}
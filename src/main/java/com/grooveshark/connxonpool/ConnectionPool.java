@@ -21,6 +21,13 @@ public interface ConnectionPool {
      */
     Connection getConnection() throws SQLException;
 
+    /**
+     * Gets a connection from the pool without blocking the calling thread.
+     *
+     * @return a {@link ConnectionFuture} completed with a valid connection, or failed
+     */
+    ConnectionFuture acquireAsync();
+
     /**
      * Releases a connection back into the connection pool.
      *
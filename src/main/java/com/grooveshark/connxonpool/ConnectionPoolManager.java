@@ -21,15 +21,25 @@ package com.grooveshark.connxonpool;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
 import java.sql.DriverManager;
 import java.sql.Driver;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
 import java.util.Properties;
 import java.util.LinkedList;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 import org.apache.log4j.Logger;
 
@@ -45,16 +55,42 @@ import org.apache.log4j.Logger;
  * for {@link PoolProperties#maxWait} milliseconds and after which an {@link java.sql.SQLException} is thrown.
  * {@link #releaseConnection()} releases a connection only if it belongs to the pool, otherwise closes it.
  * </p>
+ * <p>
+ * Clients are given a {@link ConnectionProxy} handle of a {@link PooledConnection}, so closing the connection
+ * releases it to the pool, without closing the physical connection.
+ * </p>
+ * <p>
+ * Every pooled connection sits in its own slot of {@link #connections} and carries its own state, so
+ * borrowing, releasing and checking whether a connection belongs to the pool are constant time
+ * compare-and-set operations on that connection, without any lock shared by all the clients.
+ * </p>
  *
- * A {@link ConnectionReleaser} is used in order to make sure connections, closed by clients or
- * through some failures, are released/removed from {@link #busyConnections}, so the {@link #size} is not maxed out.
+ * A {@link ConnectionReleaser} is used in order to make sure busy connections, closed physically through
+ * some failures, are released/removed from the pool, so the {@link #size} is not maxed out. It runs on the
+ * {@link HousekeepingScheduler} shared by all pools.
+ *
+ * Each pool is registered as a JMX MBean, see {@link ConnectionPoolManagerMBean}.
+ *
+ * Clients only ever wait through {@code java.util.concurrent} locks and parking, never on a monitor,
+ * so they can run on virtual threads. See {@link PoolConfiguration#getVirtualThreads()} to keep the driver
+ * off their carrier threads as well.
  *
  * @author andy.compeer@gmail.com
  * @see java.sql.DriverManager#getConnection(java.lang.String, java.lang.String, java.lang.String)
  * @see java.sql.Driver#connect(java.lang.String, java.util.Properties)
  *
  */
-public class ConnectionPoolManager implements ConnectionPool {
+public class ConnectionPoolManager implements ConnectionPool, ConnectionPoolManagerMBean {
+
+    /**
+     * Number of pools created, to name pools without a {@link PoolConfiguration#getPoolName()}
+     */
+    private static final AtomicInteger POOL_COUNT = new AtomicInteger(0);
+
+    /**
+     * Domain of the JMX names of the pools
+     */
+    public static final String JMX_DOMAIN = "com.grooveshark.connxonpool";
 
     /**
      * URL with [host] [port] [database]
@@ -77,6 +113,22 @@ public class ConnectionPoolManager implements ConnectionPool {
      */
     private Driver driver;
 
+    /**
+     * {@link ValidationStrategy} checking connections idle for {@link PoolConfiguration#getValidationIdleThreshold()}
+     * before they are handed out, null if connections are not validated
+     */
+    private volatile ValidationStrategy validator;
+
+    /**
+     * Counters of the {@link StatementCache}s of all connections of this pool
+     */
+    private final StatementCache.Stats statementCacheStats = new StatementCache.Stats();
+
+    /**
+     * Acquire wait, hold time and connect time histograms of this pool
+     */
+    private final PoolMetrics metrics = new PoolMetrics();
+
     /**
      * Logger
      */
@@ -96,34 +148,144 @@ public class ConnectionPoolManager implements ConnectionPool {
     private AtomicBoolean closed = new AtomicBoolean(false);
 
     /**
-     * Thread safe list of connections currently used by the clients
+     * All connections owned by the pool, each one at its {@link PooledConnection#getIndex()} slot.
+     * Free slots are null. Busy and idle connections are told apart by their state.
+     */
+    private volatile AtomicReferenceArray<PooledConnection> connections;
+
+    /**
+     * Taken shared to change a slot of {@link #connections} and exclusive to replace {@link #connections}
+     * by a larger array in {@link #resize(int)}, so no change is lost while the slots are copied.
+     */
+    private final ReentrantReadWriteLock slotsLock = new ReentrantReadWriteLock();
+
+    /**
+     * Flag to see if borrowing is suspended, see {@link #suspend()}
+     */
+    private volatile boolean suspended = false;
+
+    /**
+     * Lock of {@link #resumed}
+     */
+    private final ReentrantLock suspendLock = new ReentrantLock();
+
+    /**
+     * Signalled when borrowing is resumed or the pool is closed, clients wait on it while borrowing is suspended
+     */
+    private final Condition resumed = this.suspendLock.newCondition();
+
+    /**
+     * Name of this pool, see {@link PoolConfiguration#getPoolName()}
+     */
+    private String name;
+
+    /**
+     * JMX name this pool is registered under, null if not registered
+     */
+    private ObjectName objectName;
+
+    /**
+     * Lock free stack of connections available to the clients, most recently released on top
      */
-    private BlockingQueue<Connection> busyConnections;
+    private IdleConnectionStack availableConnections;
 
     /**
-     * Thread safe list of connections available to the clients
+     * Connection released last by each thread, tried first by the same thread when
+     * {@link PoolConfiguration#getThreadAffinity()} is set.
      */
-    private BlockingQueue<Connection> availableConnections;
+    private final ThreadLocal<PooledConnection> lastReleased = new ThreadLocal<PooledConnection>();
 
     /**
      * A {@link Runnable} implementation that releases connections
-     * periodically. The time period between which it checks {@link #busyConnections}
+     * periodically. The time period between which it checks busy connections
      * for closed connections is specified by {@link PoolConfiguration#setReleaserInterval()}
      */
     private ConnectionReleaser releaser;
 
     /**
-     * Thread allocated with a {@link ConnectionReleaser} instance.
-     * Useful when closing the {@link ConnectionPoolManager} using {@link #close()} method
-     * to join it back and to make sure the thread is not alive and running as a daemon
+     * Schedule of the {@link ConnectionReleaser} on the {@link HousekeepingScheduler}.
+     * Cancelled when closing the {@link ConnectionPoolManager} using {@link #close()} method.
+     */
+    private ScheduledFuture<?> releaserTask;
+
+    /**
+     * Schedule of the {@link ConnectionEvictor} on the {@link HousekeepingScheduler}, if
+     * {@link PoolConfiguration#getIdleTimeout()} or {@link PoolConfiguration#getMaxLifetime()} is set.
+     */
+    private ScheduledFuture<?> evictorTask;
+
+    /**
+     * Reports connections held for longer than {@link PoolConfiguration#getLeakDetectionThreshold()}, null if
+     * the threshold is 0
+     */
+    private LeakDetector leakDetector;
+
+    /**
+     * Schedule of the {@link LeakDetector} on the {@link HousekeepingScheduler}
+     */
+    private ScheduledFuture<?> leakDetectorTask;
+
+    /**
+     * Refuses connects while the database is unreachable, null if {@link PoolConfiguration#getBreakerThreshold()} is 0
+     */
+    private CircuitBreaker breaker;
+
+    /**
+     * Limits the connects of this pool, null if {@link PoolConfiguration#getConnectRate()} is 0
+     */
+    private ConnectRateLimiter connectLimiter;
+
+    /**
+     * Sizes the pool to the acquire wait target, null if {@link PoolConfiguration#getAdaptiveSizing()} is not set
+     */
+    private PoolSizeController sizeController;
+
+    /**
+     * Schedule of the {@link PoolSizeController} on the {@link HousekeepingScheduler}
+     */
+    private ScheduledFuture<?> sizeControllerTask;
+
+    /**
+     * Opens connections in the background, if {@link PoolConfiguration#getCreatorThreads()} is more than 0.
+     * Otherwise connections are opened on the threads of the clients asking for them.
+     */
+    private ConnectionCreator creator;
+
+    /**
+     * Opens connections for {@link #acquireAsync()} when there is no {@link #creator}, created on first use
+     */
+    private volatile ConnectionCreator asyncCreator;
+
+    /**
+     * Taken to start and shut down the {@link #asyncCreator}
      */
-    private Thread releaserThread;
+    private final ReentrantLock asyncCreatorLock = new ReentrantLock();
+
+    /**
+     * Schedule of the {@link PoolConfiguration#getMinIdle()} check on the {@link HousekeepingScheduler}
+     */
+    private ScheduledFuture<?> fillIdleTask;
+
+    /**
+     * Opens the initial connections of this pool, see {@link #getWarmup()}
+     */
+    private PoolWarmup warmup;
 
     /**
      * Pool properties for this instance {@link ConnectionPoolManager}
      */
     private PoolConfiguration props;
 
+    /**
+     * {@link PoolRegistry} whose budget this pool opens connections within, null if the pool is on its own
+     */
+    private PoolRegistry registry;
+
+    /**
+     * Number of connections of this pool counted against the budget of the {@link #registry}
+     */
+    private final AtomicInteger budgeted = new AtomicInteger(0);
+
     /**
      * Constructor with a given {@link PoolConfiguration}
      *
@@ -170,14 +332,39 @@ public class ConnectionPoolManager implements ConnectionPool {
         this(new PoolProperties(true), url, user, pass);
     }
 
+    /**
+     * Constructor of a pool of a {@link PoolRegistry}, opening its connections within the budget of the registry
+     *
+     * @param props - {@link PoolConfiguration} defining pool properties
+     * @param url - url String used to make a {@link a java.sql.Connection}
+     * @param user - user String used to make a {@link a java.sql.Connection}
+     * @param pass - password String used to make a {@link a java.sql.Connection}
+     * @param registry - {@link PoolRegistry} the pool belongs to
+     * @throws SQLException - if the properties do not pass sanity check by {@link #propertiesCheck()}
+     *                        or failures occur while making a {@link java.sql.Connection}
+     */
+    ConnectionPoolManager(PoolConfiguration props, String url, String user, String pass, PoolRegistry registry)
+            throws SQLException {
+        this.props = props;
+        this.url = url;
+        this.user = user;
+        this.pass = pass;
+        this.registry = registry;
+        this.initializePool();
+    }
+
     /**
      * Initialize the pool with {@link PoolProperties#initialSize} of connections
-     * available to Clients and instantiate a {@link ConnectionReleaser} thread, if
+     * available to Clients and schedule a {@link ConnectionReleaser} on the {@link HousekeepingScheduler}, if
      * {@link PoolProperties#runReleaser} is set to true.
      *
      * {@link #availableConnections} is set to {@link PoolProperties#intialSize} and
      * {@link #size} is incremented.
      *
+     * The initial connections are opened by a {@link PoolWarmup}, in parallel if
+     * {@link PoolConfiguration#getWarmupThreads()} is more than 1. With {@link PoolConfiguration#getAsyncWarmup()}
+     * set, this method does not wait for them and failures to open them are only logged.
+     *
      * @throws SQLException - if the properties do not pass sanity check by {@link #propertiesCheck()}
      *                        or failures occur while making a {@link java.sql.Connection}
      */
@@ -189,23 +376,108 @@ public class ConnectionPoolManager implements ConnectionPool {
             throw new SQLException("Failed to initialize a Connection Pool", e);
         }
 
-        this.availableConnections =
-            new ArrayBlockingQueue<Connection>(this.props.getMaxConnections(), true);
-        this.busyConnections =
-            new ArrayBlockingQueue<Connection>(this.props.getMaxConnections(), false);
+        this.name = this.props.getPoolName();
+        if (this.name == null || this.name.trim().length() == 0) {
+            this.name = "connxonpool-" + POOL_COUNT.incrementAndGet();
+        }
+        this.availableConnections = new IdleConnectionStack(this.props.getFair(), this.props.getStripes());
+        this.connections =
+            new AtomicReferenceArray<PooledConnection>(this.props.getMaxConnections());
+        if (this.props.getLeakDetectionThreshold() > 0) {
+            this.leakDetector = new LeakDetector(this);
+        }
+        if (this.props.getBreakerThreshold() > 0) {
+            this.breaker = new CircuitBreaker(this.name, this.props.getBreakerThreshold(),
+                    this.props.getBreakerBackoff(), this.props.getBreakerMaxBackoff());
+        }
+        if (this.props.getConnectRate() > 0) {
+            this.connectLimiter = new ConnectRateLimiter(this.props.getConnectRate(), this.props.getConnectBurst());
+        }
 
-        for (int i = 0; i < this.props.getInitialSize(); i++) {
-            this.availableConnections.offer(this.createNewConnection());
-            this.size.addAndGet(1);
+        this.warmup = new PoolWarmup(this, this.props.getInitialSize(), this.props.getWarmupThreads());
+        this.warmup.start(this.props.getAsyncWarmup());
+        if (!this.props.getAsyncWarmup()) {
+            try {
+                this.warmup.awaitDone(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                this.close();
+                throw new SQLException("Connection pool warm up interrupted", e);
+            }
+            if (this.warmup.getFirstFailure() != null) {
+                this.close();
+                throw this.warmup.getFirstFailure();
+            }
         }
         if (this.props.getRunReleaser()) {
             releaser = new ConnectionReleaser(this);
-            releaser.setBusyConnections(this.busyConnections);
-            releaserThread = new Thread(releaser);
-            releaserThread.start();
+            releaserTask = HousekeepingScheduler.getInstance().scheduleWithFixedDelay(
+                    releaser, this.props.getReleaserInterval(), TimeUnit.MILLISECONDS);
         } else {
             log.info("Not running ConnectionReleaser");
         }
+        if (this.props.getIdleTimeout() > 0 || this.props.getMaxLifetime() > 0) {
+            evictorTask = HousekeepingScheduler.getInstance().scheduleWithFixedDelay(
+                    new ConnectionEvictor(this), ConnectionEvictor.getInterval(this.props), TimeUnit.MILLISECONDS);
+        }
+        if (this.leakDetector != null) {
+            leakDetectorTask = HousekeepingScheduler.getInstance().scheduleWithFixedDelay(
+                    this.leakDetector, LeakDetector.getInterval(this.props), TimeUnit.MILLISECONDS);
+        }
+        if (this.props.getAdaptiveSizing()) {
+            sizeController = new PoolSizeController(this);
+            this.setMaxConnections(sizeController.getStartSize());
+            sizeControllerTask = HousekeepingScheduler.getInstance().scheduleWithFixedDelay(
+                    sizeController, this.props.getSizingInterval(), TimeUnit.MILLISECONDS);
+        }
+        if (this.props.getCreatorThreads() > 0) {
+            creator = new ConnectionCreator(this, this.props.getCreatorThreads());
+            if (this.props.getMinIdle() > 0) {
+                creator.fillIdle();
+                fillIdleTask = HousekeepingScheduler.getInstance().scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        creator.fillIdle();
+                    }
+                }, ConnectionCreator.FILL_INTERVAL, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (this.props.getJmx()) {
+            this.registerMBean();
+        }
+    }
+
+    /**
+     * Registers this pool as a {@link ConnectionPoolManagerMBean} in the platform MBean server.
+     * A failure is logged, the pool works without it.
+     */
+    private void registerMBean() {
+        try {
+            ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=ConnectionPool,name=" + ObjectName.quote(this.name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new StandardMBean(this, ConnectionPoolManagerMBean.class), objectName);
+            this.objectName = objectName;
+        } catch (Exception e) {
+            log.warn("Failed to register connection pool " + this.name + " with JMX", e);
+        }
+    }
+
+    /**
+     * Unregisters this pool from the platform MBean server, if registered.
+     */
+    private void unregisterMBean() {
+        if (this.objectName == null) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(this.objectName)) {
+                server.unregisterMBean(this.objectName);
+            }
+        } catch (Exception e) {
+            log.warn("Failed to unregister connection pool " + this.name + " from JMX", e);
+        }
+        this.objectName = null;
     }
 
     /**
@@ -233,9 +505,18 @@ public class ConnectionPoolManager implements ConnectionPool {
                                                 ).newInstance();
         } catch (Exception e) {
             throw new PoolConfigurationException(
-                    "Driver " + this.props.getDriverName() + " cannot be loaded." +
+                    "Driver " + this.props.getDriverName() + " cannot be loaded. " +
                     "Make sure driver classpath is included.", e);
         }
+        this.validator = this.loadValidationStrategy();
+        if (this.props.getValidationIdleThreshold() < 0) {
+            log.warn("Validation idle threshold is set to less than 0. Setting it to default: " + PoolProperties.DEFAULT_VALIDATION_IDLE_THRESHOLD);
+            this.props.setValidationIdleThreshold(PoolProperties.DEFAULT_VALIDATION_IDLE_THRESHOLD);
+        }
+        if (this.props.getValidationTimeout() < 0) {
+            log.warn("Validation timeout is set to less than 0. Setting it to default: " + PoolProperties.DEFAULT_VALIDATION_TIMEOUT);
+            this.props.setValidationTimeout(PoolProperties.DEFAULT_VALIDATION_TIMEOUT);
+        }
         if (this.props.getMaxConnections() <= 0) {
             log.warn("Maximum connections in the properties is <= 0. Setting it to default: " + PoolProperties.DEFAULT_MAX_CONNECTIONS);
             this.props.setMaxConnections(PoolProperties.DEFAULT_MAX_CONNECTIONS);
@@ -253,6 +534,124 @@ public class ConnectionPoolManager implements ConnectionPool {
             this.props.setMaxWait(PoolProperties.DEFAULT_MAX_WAIT);
             this.props.setReleaserInterval(PoolProperties.DEFAULT_RELEASER_INTERVAL);
         }
+        if (this.props.getMinIdle() < 0 || this.props.getMinIdle() > this.props.getMaxConnections()) {
+            log.warn("Minimum idle connections is " + this.props.getMinIdle() + ". Setting it to default: " + PoolProperties.DEFAULT_MIN_IDLE);
+            this.props.setMinIdle(PoolProperties.DEFAULT_MIN_IDLE);
+        }
+        if (this.props.getIdleTimeout() < 0) {
+            log.warn("Idle timeout is set to less than 0. Setting it to default: " + PoolProperties.DEFAULT_IDLE_TIMEOUT);
+            this.props.setIdleTimeout(PoolProperties.DEFAULT_IDLE_TIMEOUT);
+        }
+        if (this.props.getLeakDetectionThreshold() < 0) {
+            log.warn("Leak detection threshold is set to less than 0. Setting it to default: " + PoolProperties.DEFAULT_LEAK_DETECTION_THRESHOLD);
+            this.props.setLeakDetectionThreshold(PoolProperties.DEFAULT_LEAK_DETECTION_THRESHOLD);
+        }
+        if (this.props.getLeakStackSampling() < 1) {
+            log.warn("Leak stack sampling is set to less than 1. Setting it to default: " + PoolProperties.DEFAULT_LEAK_STACK_SAMPLING);
+            this.props.setLeakStackSampling(PoolProperties.DEFAULT_LEAK_STACK_SAMPLING);
+        }
+        if (this.props.getMinConnections() < 1) {
+            log.warn("Minimum connections is set to less than 1. Setting it to default: " + PoolProperties.DEFAULT_MIN_CONNECTIONS);
+            this.props.setMinConnections(PoolProperties.DEFAULT_MIN_CONNECTIONS);
+        }
+        if (this.props.getAcquireWaitSlo() < 1) {
+            log.warn("Acquire wait SLO is set to less than 1. Setting it to default: " + PoolProperties.DEFAULT_ACQUIRE_WAIT_SLO);
+            this.props.setAcquireWaitSlo(PoolProperties.DEFAULT_ACQUIRE_WAIT_SLO);
+        }
+        if (this.props.getSizingInterval() < 1) {
+            log.warn("Sizing interval is set to less than 1. Setting it to default: " + PoolProperties.DEFAULT_SIZING_INTERVAL);
+            this.props.setSizingInterval(PoolProperties.DEFAULT_SIZING_INTERVAL);
+        }
+        if (this.props.getStripes() < 1) {
+            log.warn("Stripes is set to less than 1. Setting it to default: " + PoolProperties.DEFAULT_STRIPES);
+            this.props.setStripes(PoolProperties.DEFAULT_STRIPES);
+        }
+        if (this.props.getBreakerThreshold() < 0) {
+            log.warn("Breaker threshold is set to less than 0. Setting it to default: " + PoolProperties.DEFAULT_BREAKER_THRESHOLD);
+            this.props.setBreakerThreshold(PoolProperties.DEFAULT_BREAKER_THRESHOLD);
+        }
+        if (this.props.getBreakerBackoff() < 1) {
+            log.warn("Breaker backoff is set to less than 1. Setting it to default: " + PoolProperties.DEFAULT_BREAKER_BACKOFF);
+            this.props.setBreakerBackoff(PoolProperties.DEFAULT_BREAKER_BACKOFF);
+        }
+        if (this.props.getBreakerMaxBackoff() < this.props.getBreakerBackoff()) {
+            log.warn("Breaker maximum backoff is set to less than the breaker backoff. Setting it to: " + this.props.getBreakerBackoff());
+            this.props.setBreakerMaxBackoff(this.props.getBreakerBackoff());
+        }
+        if (this.props.getConnectRate() < 0) {
+            log.warn("Connect rate is set to less than 0. Setting it to default: " + PoolProperties.DEFAULT_CONNECT_RATE);
+            this.props.setConnectRate(PoolProperties.DEFAULT_CONNECT_RATE);
+        }
+        if (this.props.getConnectBurst() < 1) {
+            log.warn("Connect burst is set to less than 1. Setting it to default: " + PoolProperties.DEFAULT_CONNECT_BURST);
+            this.props.setConnectBurst(PoolProperties.DEFAULT_CONNECT_BURST);
+        }
+        if (this.props.getMaxLifetime() < 0) {
+            log.warn("Maximum lifetime is set to less than 0. Setting it to default: " + PoolProperties.DEFAULT_MAX_LIFETIME);
+            this.props.setMaxLifetime(PoolProperties.DEFAULT_MAX_LIFETIME);
+        }
+        if (this.props.getStatementCacheSize() < 0) {
+            log.warn("Statement cache size is set to less than 0. Setting it to default: " + PoolProperties.DEFAULT_STATEMENT_CACHE_SIZE);
+            this.props.setStatementCacheSize(PoolProperties.DEFAULT_STATEMENT_CACHE_SIZE);
+        }
+        if (this.props.getWarmupThreads() < 1) {
+            log.warn("Warm up threads is set to less than 1. Setting it to default: " + PoolProperties.DEFAULT_WARMUP_THREADS);
+            this.props.setWarmupThreads(PoolProperties.DEFAULT_WARMUP_THREADS);
+        }
+        if (this.props.getCreatorThreads() < 0) {
+            log.warn("Creator threads is set to less than 0. Setting it to default: " + PoolProperties.DEFAULT_CREATOR_THREADS);
+            this.props.setCreatorThreads(PoolProperties.DEFAULT_CREATOR_THREADS);
+        }
+        if (this.props.getMinIdle() > 0 && this.props.getCreatorThreads() == 0) {
+            log.warn("Minimum idle connections are created in the background. Setting creator threads to 1");
+            this.props.setCreatorThreads(1);
+        }
+        if (this.props.getVirtualThreads() && this.props.getCreatorThreads() == 0) {
+            log.warn("Connections are opened on platform threads for virtual threads. Setting creator threads to 1");
+            this.props.setCreatorThreads(1);
+        }
+    }
+
+    /**
+     * Makes the {@link ValidationStrategy} named by {@link PoolConfiguration#getValidation()}
+     *
+     * @return the strategy, null for {@link PoolProperties#VALIDATION_NONE}
+     * @throws PoolConfigurationException - if the strategy cannot be made
+     */
+    protected ValidationStrategy loadValidationStrategy() throws PoolConfigurationException {
+        String validation = this.props.getValidation();
+        if (validation == null || validation.trim().length() == 0
+                || PoolProperties.VALIDATION_NONE.equalsIgnoreCase(validation)) {
+            return null;
+        }
+        validation = validation.trim();
+        if (PoolProperties.VALIDATION_IS_VALID.equalsIgnoreCase(validation)) {
+            return new IsValidValidationStrategy();
+        }
+        if (PoolProperties.VALIDATION_PING.equalsIgnoreCase(validation)) {
+            return new PingValidationStrategy();
+        }
+        if (PoolProperties.VALIDATION_QUERY.equalsIgnoreCase(validation)) {
+            String query = this.props.getValidationQuery();
+            if (query == null || query.trim().length() == 0) {
+                throw new PoolConfigurationException("Validation query needs to be defined for validation " + validation);
+            }
+            return new QueryValidationStrategy(query);
+        }
+        try {
+            return (ValidationStrategy) Class.forName(
+                                                     validation,
+                                                     true,
+                                                     this.getClass().getClassLoader()
+                                                     ).getDeclaredConstructor().newInstance();
+        } catch (InvocationTargetException e) {
+            throw new PoolConfigurationException(
+                    "Validation strategy " + validation + " failed to initialize.", e.getCause());
+        } catch (Exception e) {
+            throw new PoolConfigurationException(
+                    "Validation strategy " + validation + " cannot be loaded. " +
+                    "Make sure it implements " + ValidationStrategy.class + " and is in the classpath.", e);
+        }
     }
 
     /**
@@ -260,38 +659,83 @@ public class ConnectionPoolManager implements ConnectionPool {
      *
      * <p>
      * When trying to get a connection, pool manager looks for an available valid connectioni and if available
-     * returns immediately. If not, tries to create a new connection if the {@link #size} has not exceeded the
+     * returns immediately. With {@link PoolConfiguration#getThreadAffinity()} set, the connection released last
+     * by the calling thread is tried first. If not, tries to create a new connection if the {@link #size} has not exceeded the
      * {@link PoolConfiguration#getMaxConnections()}. If unsuccessful, it waits for {@link PoolConfiguration#getMaxWait()}
-     * milliseconds and throws a timed out {@link java.sql.SQLException} if unsuccessful again.
+     * milliseconds and throws a timed out {@link java.sql.SQLException} if unsuccessful again. Waiting for a connect
+     * permit of the {@link ConnectRateLimiter}, to create or to reconnect a connection, counts towards that wait.
+     * </p>
+     * <p>
+     * With a {@link ConnectionCreator}, the new connection is requested from the creator instead, and the
+     * client waits for it, or for any other connection released meanwhile, for {@link PoolConfiguration#getMaxWait()}.
+     * </p>
+     * <p>
+     * While the {@link CircuitBreaker} is open, a client finding no idle connection fails right away with a
+     * {@link CircuitOpenException} instead.
      * </p>
      *
      */
     @Override
     public Connection getConnection() throws SQLException {
+        return this.getConnection(this.props.getMaxWait());
+    }
+
+    /**
+     * Gets a connection like {@link #getConnection()}, waiting for maxWait milliseconds instead of
+     * {@link PoolConfiguration#getMaxWait()}. Used by the {@link RoutingConnectionPool} to bound the wait for a replica.
+     *
+     * @param maxWait - time in milliseconds to wait for a connection
+     * @return {@link java.sql.Connection} handle
+     * @throws SQLException - if no connection is available after the wait, or the pool is closed
+     */
+    Connection getConnection(int maxWait) throws SQLException {
         if (this.isClosed()) {
             throw new SQLException("Connection pool is closed");
         }
+        long acquireStart = System.nanoTime();
+        // one deadline for the whole call: connect permits, reconnects and the wait get what is left of it
+        long deadline = acquireStart + TimeUnit.MILLISECONDS.toNanos(maxWait);
+        if (this.suspended) {
+            this.awaitResume(acquireStart, maxWait);
+        }
+        Connection conn = null;
+        if (this.props.getThreadAffinity()) {
+            conn = this.claimLastReleased(deadline);
+            if (conn != null) {
+                return this.acquired(conn, acquireStart);
+            }
+        }
         // Immediately return if a connection is available
-        Connection conn = this.waitAndGet(0);
+        conn = this.waitAndGet(deadline, false);
         if (conn != null) {
             // w00t!!
-            return conn;
+            return this.acquired(conn, acquireStart);
         } else {
             // Create a new connection iff pool-capacity not exceeded.
-            conn = this.createAndAdd();
+            if (this.creator != null) {
+                if (this.breaker != null) {
+                    this.breaker.check();
+                }
+                this.creator.createAsync();
+                this.creator.fillIdle();
+            } else {
+                conn = this.createAndAdd(remainingMillis(deadline));
+            }
             if (conn != null) {
-                return conn;
+                return this.acquired(conn, acquireStart);
             } else {
-                // Wait maxWait seconds for other threads to release a connection
-                long start = System.currentTimeMillis();
-                conn = this.waitAndGet(this.props.getMaxWait());
+                // Wait the rest of maxWait for other threads to release a connection
+                conn = this.waitAndGet(deadline, true);
                 if (conn == null) {
-                    if (System.currentTimeMillis() - start >= this.props.getMaxWait()) {
-                        if (log.isDebugEnabled()) {
-                            log.debug(this.capacityInfo("Timed out.", "\n"));
-                        }
-                        throw new SQLException("Timed out. No available connection after waiting for " + (this.props.getMaxWait()/1000) + " seconds.");
+                    if (this.isClosed()) {
+                        throw new SQLException("Connection pool is closed");
+                    }
+                    this.metrics.recordTimeout(System.nanoTime() - acquireStart);
+                    if (log.isDebugEnabled()) {
+                        log.debug(this.capacityInfo("Timed out.", "\n"));
                     }
+                    throw new SQLException("Timed out. No available connection after waiting for " + maxWait + " milliseconds.",
+                                           this.creator != null ? this.creator.getLastFailure() : null);
                 }
             }
         }
@@ -300,7 +744,37 @@ public class ConnectionPoolManager implements ConnectionPool {
             this.disconnect(conn);
             throw new SQLException("Connection pool is closed");
         } else {
-            return conn;
+            return this.acquired(conn, acquireStart);
+        }
+    }
+
+    /**
+     * Waits until borrowing is resumed, up to maxWait milliseconds.
+     *
+     * @param start - {@link System#nanoTime()} when the client asked for a connection
+     * @param maxWait - time in milliseconds to wait
+     * @throws SQLException - if borrowing is still suspended after the wait or the pool got closed
+     */
+    private void awaitResume(long start, int maxWait) throws SQLException {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(maxWait);
+        this.suspendLock.lock();
+        try {
+            while (this.suspended && !this.isClosed()) {
+                if (remaining <= 0) {
+                    this.metrics.recordTimeout(System.nanoTime() - start);
+                    throw new SQLException("Timed out. Connection pool is suspended");
+                }
+                try {
+                    remaining = this.resumed.awaitNanos(remaining);
+                } catch (InterruptedException e) {
+                    throw new SQLException("Connection pool wait interrupted while suspended");
+                }
+            }
+        } finally {
+            this.suspendLock.unlock();
+        }
+        if (this.isClosed()) {
+            throw new SQLException("Connection pool is closed");
         }
     }
 
@@ -308,156 +782,952 @@ public class ConnectionPoolManager implements ConnectionPool {
      * {@inheritDoc}
      *
      * <p>
-     * If the {@link ConnectionPoolManager} is closed or If {@link #busyConnections} does not
-     * contain the passed {@link java.sql.Connection}, just disconnects the connection and returns.
-     * If successfully removed, offers it to the {@link #availableConnections} and returns.
-     * Atomically decrements {@link #size} iff the connection is removed and not added to
-     * {@link #availableConnections}
+     * Like {@link #getConnection()}, an idle connection is handed out right away and a new one is opened if the
+     * pool is not full, but the caller never blocks: new connections are opened by the {@link ConnectionCreator}
+     * (a single creator thread is started for it if {@link PoolConfiguration#getCreatorThreads()} is 0) and the
+     * {@link ConnectionFuture} queues up for the next connection released. It fails after
+     * {@link PoolConfiguration#getMaxWait()} milliseconds, or right away if the pool is closed or suspended.
+     * </p>
+     * <p>
+     * Waiting requests take no thread, so any number of them can wait on a small pool.
      * </p>
-     *
      */
     @Override
-    public void releaseConnection(Connection connection) throws SQLException {
-        if (connection == null) {
-            return;
-        }
+    public ConnectionFuture acquireAsync() {
+        ConnectionFuture future = new ConnectionFuture(this, this.props.getMaxWait());
         if (this.isClosed()) {
-            this.disconnect(connection);
-            return;
-        }
-        boolean closeConnection = true;
-        if (this.busyConnections.remove(connection)) {
-            // Connection belongs to the pool. Decrement pool size
-            if (this.size.get() > this.props.getMaxConnections()) {
-                if (log.isDebugEnabled()) {
-                    log.debug(this.capacityInfo("Maximum connections size exceeded. Cannot release Connection[" + connection + "] to the pool. Closing it.", "\n"));
-                }
-                this.size.decrementAndGet();
-            } else if (!this.availableConnections.offer(connection)) {
-                // Capacity exceeded?
-                if (log.isDebugEnabled()) {
-                    log.debug(this.capacityInfo("Available connections size exceeded. Cannot release Connection[" + connection + "] to the pool. Closing it.", "\n"));
-                }
-                this.size.decrementAndGet();
-            } else {
-                if (log.isDebugEnabled()) {
-                    log.debug(this.capacityInfo("Fine. Released Connection[" + connection + "] to the pool.", "\n"));
-                }
-                // everything went fine. Connection released to the pool.
-                closeConnection = false;
-            }
+            future.fail(new SQLException("Connection pool is closed"));
+        } else if (this.suspended) {
+            this.metrics.recordTimeout(System.nanoTime() - future.getStart());
+            future.fail(new SQLException("Timed out. Connection pool is suspended"));
         } else {
-            if (log.isDebugEnabled()) {
-                log.debug(this.capacityInfo("Failed to release a connection (Does not belong to the pool). Connection [" + connection + "] will be closed", "\n"));
-            }
-        }
-        if (closeConnection) {
-            this.disconnect(connection);
+            this.tryAcquire(future, true);
         }
+        return future;
     }
 
     /**
-     * Wait for an available valid connection and return one, if any.
-     * If the connection is closed, try to reconnect it.
-     * Otherwise remove it from busy queue and
-     * return null, so the calling function can attempt to create a new one.
+     * Completes a future owned by the calling thread with an idle connection, if any, or queues it up.
      *
-     * @return {@link java.sql.Connection}
+     * @param future - {@link ConnectionFuture} owned by the calling thread
+     * @param create - true to open a new connection if the pool is not full
      */
-    protected Connection waitAndGet(int wait) throws SQLException {
-        Connection conn = null;
+    private void tryAcquire(ConnectionFuture future, boolean create) {
         try {
-            conn = this.availableConnections.poll(wait, TimeUnit.MILLISECONDS);
-        } catch (InterruptedException e) {
-            throw new SQLException("Connection pool wait interrupted before " + wait + " milliseconds");
-        }
-        boolean decrementIfNull = false;
-        if (conn != null && conn.isClosed()) {
-            decrementIfNull = true;
-            conn = this.reconnect(conn);
-            if (log.isDebugEnabled()) {
-                log.info("Reconnected: " + conn);
+            PooledConnection pooled;
+            while ((pooled = this.availableConnections.tryPoll()) != null) {
+                Connection conn = this.borrowPooled(pooled, future.getDeadline());
+                if (conn != null) {
+                    future.complete(this.acquired(conn, future.getStart()));
+                    return;
+                }
             }
-        }
-        if (!this.offerToBusy(conn)) {
-            conn = null;
-        } else {
-            if (log.isDebugEnabled()) {
-                log.debug(this.capacityInfo("Connection[" + conn + "] added to busy.", "\n"));
+            if (create) {
+                if (this.breaker != null) {
+                    this.breaker.check();
+                }
+                ConnectionCreator creator = this.creator != null ? this.creator : this.getAsyncCreator();
+                creator.createAsync();
+                creator.fillIdle();
             }
+        } catch (SQLException e) {
+            future.fail(e);
+            return;
         }
-        if (decrementIfNull && conn == null) {
-            this.size.decrementAndGet();
-        }
-        return conn;
+        future.await(this.availableConnections);
     }
 
     /**
-     *  Creates a new connection iff the {@link #size} has not exceeded
-     *  {@link PoolConfiguration#getMaxConnections} and tries to offer it
-     *  to {@link #busyConnections}.
-     *
-     * @return a new {@link java.sql.Connection}, null if unsuccessful
+     * Background creator for {@link #acquireAsync()}, when the pool has none
      */
-    protected Connection createAndAdd() throws SQLException {
-        if (this.size.get() >= this.props.getMaxConnections()) {
-            return null;
-        }
-        Connection conn = this.createNewConnection();
-        if (!this.offerToBusy(conn)) {
-            return null;
-        } else {
-            this.size.addAndGet(1);
-            return conn;
+    private ConnectionCreator getAsyncCreator() {
+        ConnectionCreator creator = this.asyncCreator;
+        if (creator == null) {
+            this.asyncCreatorLock.lock();
+            try {
+                creator = this.asyncCreator;
+                if (creator == null) {
+                    creator = new ConnectionCreator(this, 1);
+                    this.asyncCreator = creator;
+                }
+            } finally {
+                this.asyncCreatorLock.unlock();
+            }
         }
+        return creator;
     }
 
     /**
-     * Tries to offer a connection to {@link #busyConnections}.
-     * This happens only when a new connection is created or a connection is
-     * obtained from {@link #availableConnections} after polling.
+     * Completes a future that took a connection from the thread offering it, on a {@link ConnectionCreator}
+     * thread, see {@link ConnectionFuture#take(PooledConnection)}. Never blocks the offering thread.
      *
-     * @param conn A connection to be aded to busy queue.
-     * @return true if added to busy queue
+     * @param future - {@link ConnectionFuture} holding a claimed connection
      */
-    private boolean offerToBusy(Connection conn) throws SQLException  {
-        if (conn == null || conn.isClosed()) {
-            return false;
-        }
-        if (!this.busyConnections.offer(conn)) {
-            if (log.isDebugEnabled()) {
-                log.debug("Capacity exceeded!!");
-            }
-            return false;
+    void deliverLater(ConnectionFuture future) {
+        // a queued future has had the async creator started by tryAcquire, unless the pool has its own
+        ConnectionCreator creator = this.creator != null ? this.creator : this.asyncCreator;
+        if (creator != null) {
+            creator.deliver(future);
         } else {
-            return true;
+            future.deliver();
         }
     }
 
     /**
-     * Tries to reconnect using the {@link java.sql.Driver} {@link #driver}
-     * using the {@link PoolConfiguration#getURLProperties()}.
+     * Hands a connection claimed from the idle connections to a waiting future, validating or reconnecting it
+     * first. Runs on a {@link ConnectionCreator} thread, or on the client thread calling {@link ConnectionFuture#get()}.
+     * If the connection had to be removed, the future queues up again.
+     *
+     * @param future - {@link ConnectionFuture} owned by the calling thread
+     * @param pooled - claimed {@link PooledConnection}
+     */
+    void deliver(ConnectionFuture future, PooledConnection pooled) {
+        try {
+            Connection conn = this.borrowPooled(pooled, future.getDeadline());
+            if (conn == null) {
+                this.tryAcquire(future, true);
+            } else if (this.isClosed()) {
+                this.disconnect(conn);
+                future.fail(new SQLException("Connection pool is closed"));
+            } else {
+                future.complete(this.acquired(conn, future.getStart()));
+            }
+        } catch (SQLException e) {
+            future.fail(e);
+        }
+    }
+
+    /**
+     * Fails a future owned by the calling thread, once {@link PoolConfiguration#getMaxWait()} is up.
+     *
+     * @param future - {@link ConnectionFuture} that timed out
+     */
+    void timedOut(ConnectionFuture future) {
+        this.availableConnections.removeWaiter(future);
+        this.metrics.recordTimeout(System.nanoTime() - future.getStart());
+        if (log.isDebugEnabled()) {
+            log.debug(this.capacityInfo("Timed out.", "\n"));
+        }
+        ConnectionCreator creator = this.creator != null ? this.creator : this.asyncCreator;
+        future.fail(new SQLException("Timed out. No available connection after waiting for " + this.props.getMaxWait() + " milliseconds.",
+                                     creator != null ? creator.getLastFailure() : null));
+    }
+
+    /**
+     * Drops a cancelled future from the waiting clients
+     *
+     * @param future - {@link ConnectionFuture} cancelled by its client
+     */
+    void cancelled(ConnectionFuture future) {
+        this.availableConnections.removeWaiter(future);
+    }
+
+    /**
+     * Records the time a client spent getting a connection in the {@link PoolMetrics} of this pool.
+     *
+     * @param conn - connection given to the client
+     * @param start - {@link System#nanoTime()} when the client asked for it
+     * @return conn
+     */
+    private Connection acquired(Connection conn, long start) {
+        this.metrics.recordAcquire(System.nanoTime() - start);
+        return conn;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     * The connection is expected to be a handle given out by {@link #getConnection()}. Any other
+     * connection does not belong to the pool, so it is just disconnected. Releasing a handle that
+     * has already been closed or released does nothing.
+     * </p>
+     *
+     */
+    @Override
+    public void releaseConnection(Connection connection) throws SQLException {
+        if (connection == null) {
+            return;
+        }
+        ConnectionProxy handle = ConnectionProxy.getHandler(connection);
+        if (handle == null || handle.getPooledConnection().getPool() != this) {
+            if (log.isDebugEnabled()) {
+                log.debug(this.capacityInfo("Failed to release a connection (Does not belong to the pool). Connection [" + connection + "] will be closed", "\n"));
+            }
+            this.disconnect(connection);
+            return;
+        }
+        if (handle.close()) {
+            this.releasePooledConnection(handle.getPooledConnection());
+        }
+    }
+
+    /**
+     * Releases a {@link PooledConnection}, whose client handle has been closed, back into the pool.
+     *
+     * <p>
+     * If the {@link ConnectionPoolManager} is closed, just disconnects the connection and returns, see
+     * {@link #retirePooled(PooledConnection)}.
+     * If the connection is busy in this pool, marks it idle, offers it to the {@link #availableConnections}
+     * and returns. Atomically decrements {@link #size} iff the connection is removed and not added to
+     * {@link #availableConnections}
+     * </p>
+     * <p>
+     * With {@link PoolConfiguration#getThreadAffinity()} set, the connection is also remembered
+     * as the last one released by the calling thread.
+     * </p>
+     * <p>
+     * Before it is made available, the connection is reset for the next client, see {@link PooledConnection#reset()}.
+     * A connection that cannot be reset is removed from the pool. With {@link PoolConfiguration#getVirtualThreads()}
+     * set, a reset talking to the database runs on a {@link ConnectionCreator} client thread, and the client waits
+     * for it for {@link PoolConfiguration#getMaxWait()} milliseconds at most.
+     * </p>
+     *
+     * @param pooled - {@link PooledConnection} to return to the pool
+     */
+    protected void releasePooledConnection(final PooledConnection pooled) throws SQLException {
+        if (this.isClosed()) {
+            this.retirePooled(pooled);
+            return;
+        }
+        if (!this.isBusy(pooled)) {
+            if (log.isDebugEnabled()) {
+                log.debug(this.capacityInfo("Failed to release a connection (Not busy). Connection [" + pooled + "] left as is", "\n"));
+            }
+            return;
+        }
+        this.metrics.recordHold(System.nanoTime() - pooled.getBorrowedAt());
+        if (this.leakDetector != null) {
+            this.leakDetector.released(pooled);
+        }
+        // Connection belongs to the pool. Decrement pool size
+        if (this.size.get() > this.props.getMaxConnections()) {
+            if (log.isDebugEnabled()) {
+                log.debug(this.capacityInfo("Maximum connections size exceeded. Cannot release Connection[" + pooled + "] to the pool. Closing it.", "\n"));
+            }
+            this.removePooled(pooled);
+            return;
+        }
+        if (this.props.getThreadAffinity()) {
+            // not claimed by this thread until it is idle
+            this.lastReleased.set(pooled);
+        }
+        if (this.creator != null && this.props.getVirtualThreads() && pooled.needsReset()) {
+            try {
+                this.creator.call(new Callable<Void>() {
+                    @Override
+                    public Void call() throws SQLException {
+                        ConnectionPoolManager.this.makeAvailable(pooled);
+                        return null;
+                    }
+                }, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.props.getMaxWait()), null);
+            } catch (SQLTimeoutException e) {
+                log.warn("Connection[" + pooled + "] still being reset after " + this.props.getMaxWait()
+                        + " milliseconds, released once done");
+            }
+        } else {
+            this.makeAvailable(pooled);
+        }
+    }
+
+    /**
+     * Resets a released connection and offers it to the idle connections. With {@link PoolConfiguration#getVirtualThreads()}
+     * set, runs on a {@link ConnectionCreator} client thread if the reset talks to the database.
+     *
+     * @param pooled - busy {@link PooledConnection} whose handle is closed
+     */
+    private void makeAvailable(PooledConnection pooled) throws SQLException {
+        if (!this.resetPooled(pooled)) {
+            return;
+        }
+        pooled.touch();
+        pooled.setState(PooledConnection.STATE_IDLE);
+        this.availableConnections.offer(pooled);
+        if (log.isDebugEnabled()) {
+            log.debug(this.capacityInfo("Fine. Released Connection[" + pooled + "] to the pool.", "\n"));
+        }
+    }
+
+    /**
+     * Resets a released connection for the next client. A connection closed meanwhile is left as is,
+     * it gets a new physical connection when borrowed.
+     *
+     * @param pooled - busy {@link PooledConnection} whose handle is closed
+     * @return true if the connection can go back to the pool, false if it had to be removed
+     */
+    private boolean resetPooled(PooledConnection pooled) throws SQLException {
+        try {
+            if (!pooled.isPhysicallyClosed()) {
+                pooled.reset();
+            }
+            return true;
+        } catch (SQLException e) {
+            log.warn("Failed to reset Connection[" + pooled + "] on release, removing it from the pool", e);
+            this.removePooled(pooled);
+            return false;
+        }
+    }
+
+    /**
+     * Check if a connection is currently given out by this pool.
+     *
+     * @param pooled - connection to check
+     * @return true if the connection is in its slot of this pool and busy
+     */
+    protected boolean isBusy(PooledConnection pooled) {
+        return pooled.getState() == PooledConnection.STATE_BUSY && this.owns(pooled);
+    }
+
+    /**
+     * Check if a connection is in its slot of this pool.
+     *
+     * @param pooled - connection to check
+     * @return true if the connection belongs to this pool
+     */
+    private boolean owns(PooledConnection pooled) {
+        int index = pooled.getIndex();
+        return pooled.getPool() == this && index >= 0 && this.connections.get(index) == pooled;
+    }
+
+    /**
+     * Puts a new physical connection in a free slot of {@link #connections}.
+     * Room for it must have been made in {@link #size} already.
+     *
+     * @param conn - new physical connection
+     * @return the busy {@link PooledConnection} of the connection
+     */
+    private PooledConnection addPooled(Connection conn) {
+        PooledConnection pooled = new PooledConnection(this, conn);
+        while (true) {
+            this.slotsLock.readLock().lock();
+            try {
+                AtomicReferenceArray<PooledConnection> connections = this.connections;
+                for (int i = 0; i < connections.length(); i++) {
+                    if (connections.get(i) == null && connections.compareAndSet(i, null, pooled)) {
+                        pooled.setIndex(i);
+                        return pooled;
+                    }
+                }
+            } finally {
+                this.slotsLock.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Removes a connection from the pool, decrements {@link #size} and disconnects it. With
+     * {@link PoolConfiguration#getVirtualThreads()} set, the disconnect runs on a {@link ConnectionCreator}
+     * client thread, without waiting for it.
+     *
+     * @param pooled - connection to remove
+     */
+    protected void removePooled(PooledConnection pooled) throws SQLException {
+        this.removePooled(pooled, this.props.getVirtualThreads() ? this.creator : null);
+    }
+
+    /**
+     * Removes a connection retired by the {@link ConnectionEvictor}. The disconnect runs on a
+     * {@link ConnectionCreator} client thread, like renewals do (a single creator thread is started for it if
+     * {@link PoolConfiguration#getCreatorThreads()} is 0), so a slow close does not hold up the
+     * {@link HousekeepingScheduler} thread shared by all the pools.
+     *
+     * @param pooled - connection to remove, claimed by the evictor
+     */
+    void evictPooled(PooledConnection pooled) throws SQLException {
+        this.removePooled(pooled, this.creator != null ? this.creator : this.getAsyncCreator());
+    }
+
+    /**
+     * Removes a connection from the pool, decrements {@link #size} and disconnects it
+     *
+     * @param pooled - connection to remove
+     * @param creator - {@link ConnectionCreator} running the disconnect, null to disconnect on the calling thread
+     */
+    private void removePooled(PooledConnection pooled, ConnectionCreator creator) throws SQLException {
+        pooled.setState(PooledConnection.STATE_REMOVED);
+        int index = pooled.getIndex();
+        boolean removed;
+        this.slotsLock.readLock().lock();
+        try {
+            removed = index >= 0 && this.connections.compareAndSet(index, pooled, null);
+        } finally {
+            this.slotsLock.readLock().unlock();
+        }
+        if (removed) {
+            this.releaseSize();
+        }
+        final Connection conn = pooled.getConnection();
+        if (creator != null) {
+            creator.runAsync(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        ConnectionPoolManager.this.disconnect(conn);
+                    } catch (SQLException e) {
+                        log.debug("Failed to close a removed connection", e);
+                    }
+                }
+            });
+        } else {
+            this.disconnect(conn);
+        }
+    }
+
+    /**
+     * Disconnects a connection of a closed pool and frees its slot. Its room in the budget of the {@link PoolRegistry}
+     * is given back only now, so the budget keeps counting the connections borrowed when the pool was closed.
+     * {@link #size} is left as is, the pool does not open connections anymore.
+     *
+     * @param pooled - connection to retire
+     */
+    private void retirePooled(PooledConnection pooled) throws SQLException {
+        pooled.setState(PooledConnection.STATE_REMOVED);
+        int index = pooled.getIndex();
+        boolean removed;
+        this.slotsLock.readLock().lock();
+        try {
+            removed = index >= 0 && pooled.getPool() == this && this.connections.compareAndSet(index, pooled, null);
+        } finally {
+            this.slotsLock.readLock().unlock();
+        }
+        if (removed) {
+            this.releaseBudget();
+        }
+        this.disconnect(pooled.getConnection());
+    }
+
+    /**
+     * Claims the connection released last by the calling thread, if it is still idle,
+     * and returns a handle of it.
+     *
+     * @param deadline - {@link System#nanoTime()} the client stops waiting at
+     * @return {@link java.sql.Connection} handle of a {@link PooledConnection}, null if not available
+     */
+    protected Connection claimLastReleased(long deadline) throws SQLException {
+        PooledConnection pooled = this.lastReleased.get();
+        if (pooled == null || !pooled.claim()) {
+            return null;
+        }
+        return this.borrowPooled(pooled, deadline);
+    }
+
+    /**
+     * Wait for an available valid connection and return a handle of it, if any.
+     * If the connection is closed or not valid, try to reconnect it.
+     * Otherwise remove it from the pool and try the next available connection, until
+     * the wait is over. Returns null then, so the calling function can attempt to create a new one.
+     *
+     * @return {@link java.sql.Connection} handle of a {@link PooledConnection}
+     */
+    protected Connection waitAndGet(int wait) throws SQLException {
+        return this.waitAndGet(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(wait), true);
+    }
+
+    /**
+     * Like {@link #waitAndGet(int)}, up to a deadline. Reconnecting a connection only waits for a connect permit
+     * until the deadline, even if the client does not wait for a released connection.
+     *
+     * @param deadline - {@link System#nanoTime()} the client stops waiting at
+     * @param wait - false to only take an idle connection
+     * @return {@link java.sql.Connection} handle of a {@link PooledConnection}
+     */
+    private Connection waitAndGet(long deadline, boolean wait) throws SQLException {
+        while (true) {
+            long remaining = wait ? Math.max(0, deadline - System.nanoTime()) : 0;
+            PooledConnection pooled = null;
+            try {
+                pooled = this.availableConnections.poll(remaining, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                throw new SQLException("Connection pool wait interrupted before "
+                        + TimeUnit.NANOSECONDS.toMillis(remaining) + " milliseconds");
+            }
+            if (pooled == null) {
+                return null;
+            }
+            Connection conn = this.borrowPooled(pooled, deadline);
+            if (conn != null) {
+                return conn;
+            }
+        }
+    }
+
+    /**
+     * Time left until a deadline
+     *
+     * @param deadline - {@link System#nanoTime()} of the deadline
+     * @return milliseconds left, 0 once passed
+     */
+    private static long remainingMillis(long deadline) {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+    }
+
+    /**
+     * Hands out a handle of a claimed {@link PooledConnection}, reconnecting it if it is closed
+     * or fails validation (see {@link #validate(PooledConnection)}).
+     * If it cannot be reconnected, it is removed from the pool and {@link #size} is decremented.
+     * With {@link PoolConfiguration#getVirtualThreads()} set, a client timing out while its connection is
+     * checked on a {@link ConnectionCreator} client thread gets null, and the connection goes back to the pool.
+     *
+     * @param pooled - {@link PooledConnection} claimed for the calling client
+     * @param deadline - {@link System#nanoTime()} the client stops waiting at, bounding the wait for a reconnect
+     * @return {@link java.sql.Connection} handle, null if the connection had to be removed
+     */
+    private Connection borrowPooled(final PooledConnection pooled, final long deadline) throws SQLException {
+        if (this.creator != null && this.props.getVirtualThreads()
+                && (pooled.isPhysicallyClosed() || this.isValidationDue(pooled))) {
+            try {
+                this.creator.call(new Callable<Void>() {
+                    @Override
+                    public Void call() throws SQLException {
+                        ConnectionPoolManager.this.checkPooled(pooled, deadline);
+                        return null;
+                    }
+                }, deadline, new Runnable() {
+                    @Override
+                    public void run() {
+                        ConnectionPoolManager.this.giveBack(pooled);
+                    }
+                });
+            } catch (SQLTimeoutException e) {
+                // the client timed out, it is told so by the caller
+                return null;
+            }
+        } else {
+            this.checkPooled(pooled, deadline);
+        }
+        if (pooled.isPhysicallyClosed()) {
+            this.removePooled(pooled);
+            return null;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug(this.capacityInfo("Connection[" + pooled + "] is busy.", "\n"));
+        }
+        return pooled.borrow();
+    }
+
+    /**
+     * Makes a claimed connection available again once checked, if the client it was claimed for gave up
+     * on it meanwhile. Runs on a {@link ConnectionCreator} client thread.
+     *
+     * @param pooled - {@link PooledConnection} claimed for a client that timed out
+     */
+    private void giveBack(PooledConnection pooled) {
+        try {
+            if (this.isClosed()) {
+                this.retirePooled(pooled);
+            } else if (pooled.isPhysicallyClosed()) {
+                this.removePooled(pooled);
+            } else {
+                pooled.setState(PooledConnection.STATE_IDLE);
+                this.availableConnections.offer(pooled);
+            }
+        } catch (SQLException e) {
+            log.warn("Failed to give back Connection[" + pooled + "] checked for a client that timed out", e);
+        }
+    }
+
+    /**
+     * Reconnects a claimed {@link PooledConnection} if it is closed or fails validation.
+     * Runs on a {@link ConnectionCreator} client thread with {@link PoolConfiguration#getVirtualThreads()} set.
+     *
+     * @param pooled - {@link PooledConnection} claimed for the calling client
+     * @param deadline - {@link System#nanoTime()} the client stops waiting at
+     */
+    private void checkPooled(PooledConnection pooled, long deadline) throws SQLException {
+        if (pooled.isPhysicallyClosed() || !this.validate(pooled)) {
+            pooled.renew(this.reconnect(pooled.getConnection(), remainingMillis(deadline)));
+            if (log.isDebugEnabled()) {
+                log.info("Reconnected: " + pooled);
+            }
+        }
+    }
+
+    /**
+     * Validates a claimed connection with the {@link ValidationStrategy} of this pool, if it has been
+     * idle for at least {@link PoolConfiguration#getValidationIdleThreshold()} milliseconds.
+     * Connections released more recently are taken as valid without a round-trip to the database.
+     *
+     * @param pooled - {@link PooledConnection} claimed for the calling client
+     * @return false if the connection failed validation
+     */
+    protected boolean validate(PooledConnection pooled) {
+        ValidationStrategy validator = this.validator;
+        if (validator == null || !this.isValidationDue(pooled)) {
+            return true;
+        }
+        try {
+            if (validator.isValid(pooled.getConnection(), this.props.getValidationTimeout())) {
+                return true;
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("Connection[" + pooled + "] failed validation by " + validator);
+            }
+        } catch (SQLException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Connection[" + pooled + "] failed validation by " + validator, e);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks if a connection has been idle long enough to be validated, see {@link #validate(PooledConnection)}
+     *
+     * @param pooled - {@link PooledConnection} claimed for the calling client
+     * @return true if there is a {@link ValidationStrategy} and the connection needs it
+     */
+    private boolean isValidationDue(PooledConnection pooled) {
+        return this.validator != null
+            && System.currentTimeMillis() - pooled.getLastUsedAt() >= this.props.getValidationIdleThreshold();
+    }
+
+    /**
+     *  Creates a new busy connection iff the {@link #size} has not exceeded
+     *  {@link PoolConfiguration#getMaxConnections}.
+     *
+     * @param maxWait - longest time in milliseconds to wait for a connect permit
+     * @return a handle of a new {@link java.sql.Connection}, null if unsuccessful
+     */
+    protected Connection createAndAdd(long maxWait) throws SQLException {
+        if (!this.reserveSize()) {
+            return null;
+        }
+        Connection conn = null;
+        try {
+            if (this.acquireConnectPermit(maxWait)) {
+                conn = this.createNewConnection();
+            }
+        } finally {
+            if (conn == null) {
+                this.releaseSize();
+            }
+        }
+        if (conn == null) {
+            return null;
+        }
+        return this.addPooled(conn).borrow();
+    }
+
+    /**
+     * Opens a new connection and makes it available to the clients.
+     * Room for it must have been made with {@link #reserveSize()}, which is given back if it fails.
+     * Used by the {@link ConnectionCreator}.
+     */
+    protected void createAndOffer() throws SQLException {
+        Connection conn = null;
+        try {
+            // connects queue up on the creator threads, so none waits longer than a client would
+            if (!this.acquireConnectPermit(this.props.getMaxWait())) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Not creating a connection, no connect permit within " + this.props.getMaxWait() + " ms");
+                }
+                return;
+            }
+            conn = this.createNewConnection();
+        } finally {
+            if (conn == null) {
+                this.releaseSize();
+            }
+        }
+        PooledConnection pooled = this.addPooled(conn);
+        if (this.isClosed()) {
+            this.retirePooled(pooled);
+            return;
+        }
+        pooled.setState(PooledConnection.STATE_IDLE);
+        this.availableConnections.offer(pooled);
+    }
+
+    /**
+     * Asks for a replacement of a connection retired by the {@link ConnectionEvictor}, opened in the background
+     * by the {@link ConnectionCreator} (a single creator thread is started for it if
+     * {@link PoolConfiguration#getCreatorThreads()} is 0). The connection stays available to the clients meanwhile.
+     *
+     * @param pooled - {@link PooledConnection} to renew
+     * @return false if a replacement is being opened already
+     */
+    boolean requestRenew(PooledConnection pooled) {
+        if (this.isClosed() || !pooled.markRenewing()) {
+            return false;
+        }
+        ConnectionCreator creator = this.creator != null ? this.creator : this.getAsyncCreator();
+        creator.renew(pooled);
+        return true;
+    }
+
+    /**
+     * Opens a new physical connection for a {@link PooledConnection} and swaps it in, if the connection is still
+     * idle once the new one is open. The connection is only claimed for the swap, so the idle connections of the
+     * pool do not dip while connecting. The old physical connection is closed after the swap. If the connection
+     * has been borrowed meanwhile, the new one goes into a spare slot of the pool, if any, and is closed otherwise,
+     * and the connection is renewed by a later run of the evictor. Runs on a {@link ConnectionCreator} thread.
+     *
+     * @param pooled - {@link PooledConnection} marked with {@link PooledConnection#markRenewing()}
+     */
+    void renewPooled(PooledConnection pooled) {
+        Connection conn = null;
+        try {
+            // a creator thread is not held up for a permit, the evictor tries again
+            if (!this.isClosed() && this.acquireConnectPermit(0)) {
+                conn = this.createNewConnection();
+            }
+        } catch (SQLException e) {
+            log.error("Failed to renew Connection[" + pooled + "], keeping it", e);
+        } finally {
+            pooled.clearRenewing();
+        }
+        if (conn == null) {
+            return;
+        }
+        try {
+            if (pooled.claim()) {
+                Connection old = pooled.getConnection();
+                pooled.renew(conn);
+                if (this.isClosed()) {
+                    this.retirePooled(pooled);
+                } else {
+                    pooled.setState(PooledConnection.STATE_IDLE);
+                    this.availableConnections.offer(pooled);
+                }
+                this.disconnect(old);
+            } else if (!this.isClosed() && this.reserveSize()) {
+                PooledConnection spare = this.addPooled(conn);
+                spare.setState(PooledConnection.STATE_IDLE);
+                this.availableConnections.offer(spare);
+            } else {
+                this.disconnect(conn);
+            }
+        } catch (SQLException e) {
+            log.error("Failed to close the connection replaced for Connection[" + pooled + "]", e);
+        }
+    }
+
+    /**
+     * Atomically increments {@link #size} iff it has not reached
+     * {@link PoolConfiguration#getMaxConnections}, and the budget of the {@link PoolRegistry}, if any, allows one more.
+     *
+     * @return true if room was made for a new connection
+     */
+    boolean reserveSize() {
+        if (this.size.get() >= this.props.getMaxConnections() || !this.reserveBudget()) {
+            return false;
+        }
+        int n;
+        do {
+            n = this.size.get();
+            if (n >= this.props.getMaxConnections()) {
+                this.releaseBudget();
+                return false;
+            }
+        } while (!this.size.compareAndSet(n, n + 1));
+        return true;
+    }
+
+    /**
+     * Gives back room made with {@link #reserveSize()}, for a connection that could not be opened or was removed.
+     */
+    void releaseSize() {
+        this.size.decrementAndGet();
+        this.releaseBudget();
+    }
+
+    private boolean reserveBudget() {
+        if (this.registry == null) {
+            return true;
+        }
+        if (!this.registry.reserve()) {
+            return false;
+        }
+        this.budgeted.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Gives back a connection to the budget, once it is closed or could not be opened
+     */
+    private void releaseBudget() {
+        if (this.registry == null) {
+            return;
+        }
+        int n;
+        do {
+            n = this.budgeted.get();
+            if (n <= 0) {
+                return;
+            }
+        } while (!this.budgeted.compareAndSet(n, n - 1));
+        this.registry.release(1);
+    }
+
+    /**
+     * See if the pool opens connections in the background, i.e. has creator threads configured
+     * or started by {@link #acquireAsync()}, so {@link #createForWaiters()} can serve its waiting clients
+     *
+     * @return true if a {@link ConnectionCreator} is running
+     */
+    boolean createsInBackground() {
+        return this.creator != null || this.asyncCreator != null;
+    }
+
+    /**
+     * Requests a new connection in the background for the waiting clients, see {@link PoolRegistry}.
+     * A pool configured without creator threads does not get one started for it.
+     *
+     * @return true if a connection is on its way
+     */
+    boolean createForWaiters() {
+        ConnectionCreator creator = this.creator != null ? this.creator : this.asyncCreator;
+        return creator != null && creator.createAsync();
+    }
+
+    /**
+     * Closes an idle connection to make room in the budget for another pool, see {@link PoolRegistry}
+     *
+     * @return true if a connection was closed
+     */
+    boolean reclaimIdle() {
+        PooledConnection pooled = this.availableConnections.poll();
+        if (pooled == null) {
+            return false;
+        }
+        try {
+            this.removePooled(pooled);
+        } catch (SQLException e) {
+            log.debug("Failed to close a reclaimed connection", e);
+        }
+        return true;
+    }
+
+    /**
+     * Number of connections requested from the {@link ConnectionCreator} and not opened yet
+     *
+     * @return int - pending connections
+     */
+    int getPendingCount() {
+        ConnectionCreator creator = this.creator != null ? this.creator : this.asyncCreator;
+        return creator == null ? 0 : creator.getPendingCount();
+    }
+
+    /**
+     * Tries to reconnect using the {@link java.sql.Driver} {@link #driver}
+     * using the {@link PoolConfiguration#getURLProperties()}.
      *
      * This is so that pool manager doesn't have to poll again for a connection.
      *
+     * The connect permit and the {@link CircuitBreaker} are checked before the old connection is closed, so it is
+     * closed right before connecting rather than ahead of a wait for a permit. A refused reconnect closes it too,
+     * as it is not usable.
+     *
      * @param conn Connection that needs to be closed
-     * @return a new {@link java.sql.Connection}
+     * @param maxWait - longest time in milliseconds to wait for a connect permit
+     * @return a new {@link java.sql.Connection}, null if the reconnect failed or was refused
      */
-    protected Connection reconnect(Connection conn) throws SQLException {
-        this.disconnect(conn);
+    protected Connection reconnect(Connection conn, long maxWait) throws SQLException {
+        if (this.driver == null) {
+            this.disconnect(conn);
+            return null;
+        }
+        CircuitBreaker breaker = this.breaker;
+        boolean probe = false;
+        try {
+            if (!this.acquireConnectPermit(maxWait)) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Not reconnecting, no connect permit within " + maxWait + " ms");
+                }
+                this.disconnect(conn);
+                return null;
+            }
+            probe = breaker != null && breaker.beforeConnect();
+        } catch (SQLException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Not reconnecting", e);
+            }
+            this.disconnect(conn);
+            return null;
+        }
+        try {
+            this.disconnect(conn);
+        } catch (SQLException e) {
+            // the probe, if any, still has to be reported
+            log.debug("Failed to close a connection before reconnecting", e);
+        }
         conn = null;
-        if (this.driver != null) {
-            this.props.updateURLProperties(this.user, this.pass);
-            try {
-                conn = this.driver.connect(this.url, this.props.getURLProperties());
-            } catch (SQLException e) {
-                log.error("Failed to reconnect", e);
+        this.props.updateURLProperties(this.user, this.pass);
+        long start = System.nanoTime();
+        SQLException failure = null;
+        try {
+            conn = this.driver.connect(this.url, this.props.getURLProperties());
+        } catch (SQLException e) {
+            failure = e;
+            log.error("Failed to reconnect", e);
+        } catch (RuntimeException e) {
+            failure = new SQLException("Driver failed to reconnect: " + e, "08001", e);
+            log.error("Failed to reconnect", e);
+        } finally {
+            // reported for anything but a connection, or a failed probe would keep the breaker from closing
+            if (breaker != null) {
+                if (conn != null) {
+                    breaker.connected();
+                } else {
+                    breaker.failed(probe, failure);
+                }
             }
-            return conn;
+            this.metrics.recordConnect(System.nanoTime() - start, conn == null);
+        }
+        if (conn != null) {
+            this.metrics.recordReconnected();
         }
         return conn;
     }
 
+    /**
+     * Waits for a permit to connect from the {@link ConnectRateLimiter} of this pool, if any, and from
+     * {@link ConnectRateLimiter#getGlobal()}. Connects refused by the {@link CircuitBreaker} fail first,
+     * so they do not use up permits.
+     *
+     * @param maxWait - longest time in milliseconds to wait
+     * @return true once permitted, false right away if no permit is free within the wait
+     * @throws SQLException - if the breaker is open, or interrupted while waiting
+     */
+    private boolean acquireConnectPermit(long maxWait) throws SQLException {
+        if (this.breaker != null) {
+            this.breaker.check();
+        }
+        ConnectRateLimiter global = ConnectRateLimiter.getGlobal();
+        if (this.connectLimiter == null && !global.isLimited()) {
+            return true;
+        }
+        long maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWait);
+        long wait = 0;
+        if (this.connectLimiter != null && (wait = this.connectLimiter.reserve(maxWaitNanos)) < 0) {
+            return false;
+        }
+        // a permit of the pool left unused here is lost, which only slows down the pool
+        long globalWait = global.reserve(maxWaitNanos);
+        if (globalWait < 0) {
+            return false;
+        }
+        wait = Math.max(wait, globalWait);
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Connection pool wait interrupted before a connect permit");
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the {@link ConnectRateLimiter} of this pool
+     *
+     * @return connectLimiter - null if {@link PoolConfiguration#getConnectRate()} is 0
+     */
+    public ConnectRateLimiter getConnectLimiter() {
+        return this.connectLimiter;
+    }
+
     /**
      * Disconnect a connection.
      *
@@ -479,14 +1749,43 @@ public class ConnectionPoolManager implements ConnectionPool {
      * @throws {@link java.sql.SQLException} if failure occurs while trying to get a connection.
      */
     protected Connection createNewConnection() throws SQLException {
-        return DriverManager.getConnection(this.url, this.user, this.pass);
+        CircuitBreaker breaker = this.breaker;
+        boolean probe = breaker != null && breaker.beforeConnect();
+        long start = System.nanoTime();
+        boolean failed = true;
+        SQLException failure = null;
+        try {
+            Connection conn = DriverManager.getConnection(this.url, this.user, this.pass);
+            failed = false;
+            return conn;
+        } catch (SQLException e) {
+            failure = e;
+            throw e;
+        } catch (RuntimeException e) {
+            failure = new SQLException("Driver failed to connect: " + e, "08001", e);
+            throw e;
+        } finally {
+            // reported for anything but a connection, or a failed probe would keep the breaker from closing
+            if (breaker != null) {
+                if (failed) {
+                    breaker.failed(probe, failure);
+                } else {
+                    breaker.connected();
+                }
+            }
+            this.metrics.recordConnect(System.nanoTime() - start, failed);
+            if (!failed) {
+                this.metrics.recordCreated();
+            }
+        }
     }
 
     /**
-     * Closes all available connections and clears all connections owned by this pool.
+     * Closes all available connections. Connections borrowed from this pool are closed as their clients
+     * release them, and keep their room in the budget of the {@link PoolRegistry}, if any, until then.
      *
      * If {@link ConnectionReleaser} is set to run using {@link PoolConfiguration#setRunReleaser}
-     * this method waits for {@link #releaserThread} to join here, so it's not stranded.
+     * this method cancels {@link #releaserTask}, so it's not left on the {@link HousekeepingScheduler}.
      */
     public void close() throws SQLException {
         if (this.isClosed()) {
@@ -494,38 +1793,243 @@ public class ConnectionPoolManager implements ConnectionPool {
         }
         this.closed.set(true);
         this.size.set(this.props.getMaxConnections());
+        if (this.registry != null) {
+            // the budget is given back connection by connection, as they are disconnected
+            this.registry.closed(this);
+        }
+        this.unregisterMBean();
+        this.suspendLock.lock();
+        try {
+            this.resumed.signalAll();
+        } finally {
+            this.suspendLock.unlock();
+        }
 
-        if (this.props.getRunReleaser() && this.releaserThread != null && this.releaserThread.isAlive()) {
-            log.debug("Waiting for Releaser to join");
-            try {
-                this.releaserThread.join();
-            } catch (InterruptedException e) {
-                log.error(e);
+        if (this.releaserTask != null) {
+            HousekeepingScheduler.getInstance().cancel(this.releaserTask);
+            log.debug("Releaser cancelled");
+        }
+        HousekeepingScheduler.getInstance().cancel(this.evictorTask);
+        HousekeepingScheduler.getInstance().cancel(this.leakDetectorTask);
+        HousekeepingScheduler.getInstance().cancel(this.sizeControllerTask);
+        HousekeepingScheduler.getInstance().cancel(this.fillIdleTask);
+        if (this.creator != null) {
+            this.creator.shutdown();
+        }
+        this.asyncCreatorLock.lock();
+        try {
+            if (this.asyncCreator != null) {
+                this.asyncCreator.shutdown();
+            }
+        } finally {
+            this.asyncCreatorLock.unlock();
+        }
+        for (IdleConnectionStack.Waiter waiter : this.availableConnections.drainWaiters()) {
+            ConnectionFuture future = (ConnectionFuture) waiter;
+            if (future.claim()) {
+                future.fail(new SQLException("Connection pool is closed"));
             }
-            log.debug("Releaser joined");
         }
 
-        BlockingQueue<Connection> pooledConnections = this.availableConnections;
-        if (pooledConnections.size() == 0) {
-            pooledConnections = busyConnections;
+        PooledConnection pooled;
+        while ((pooled = this.availableConnections.poll()) != null) {
+            this.retirePooled(pooled);
         }
-        while (pooledConnections.size() > 0) {
-            Connection conn = null;
-            try {
-                conn = pooledConnections.poll(1, TimeUnit.SECONDS);
-            } catch (InterruptedException e) {
-                if (log.isDebugEnabled()) {
-                    log.debug(this.capacityInfo("Cannot close connection pool. Interrupted. Exception:\n" + e.getMessage(), "\n"));
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     * With {@link PoolConfiguration#getAdaptiveSizing()} set, this sets the largest size the {@link PoolSizeController}
+     * grows the pool to, and only shrinks the pool if it is over the new ceiling.
+     * </p>
+     */
+    @Override
+    public void resize(int maxConnections) throws SQLException {
+        if (maxConnections <= 0) {
+            throw new PoolConfigurationException("Maximum connections needs to be more than 0, not " + maxConnections);
+        }
+        if (this.sizeController != null) {
+            maxConnections = this.sizeController.setCeiling(maxConnections);
+        }
+        this.setMaxConnections(maxConnections);
+    }
+
+    /**
+     * Changes the maximum number of connections, see {@link #resize(int)}. Used by the {@link PoolSizeController}.
+     *
+     * @param maxConnections - new maximum, more than 0
+     * @throws SQLException - if the pool is closed
+     */
+    void setMaxConnections(int maxConnections) throws SQLException {
+        if (this.isClosed()) {
+            throw new SQLException("Connection pool is closed");
+        }
+        this.slotsLock.writeLock().lock();
+        try {
+            AtomicReferenceArray<PooledConnection> connections = this.connections;
+            if (maxConnections > connections.length()) {
+                AtomicReferenceArray<PooledConnection> larger =
+                    new AtomicReferenceArray<PooledConnection>(maxConnections);
+                for (int i = 0; i < connections.length(); i++) {
+                    larger.set(i, connections.get(i));
                 }
-                throw new SQLException("Cannot close Connection Pool. Interrupted.", e);
+                this.connections = larger;
             }
-            if (pooledConnections == this.availableConnections) {
-                this.disconnect(conn);
-                if (pooledConnections.size() == 0) {
-                    pooledConnections = busyConnections;
-                }
+            this.props.setMaxConnections(maxConnections);
+        } finally {
+            this.slotsLock.writeLock().unlock();
+        }
+        if (this.props.getMinIdle() > maxConnections) {
+            this.props.setMinIdle(maxConnections);
+        }
+        // idle connections over the new maximum go now, busy ones when released
+        PooledConnection pooled;
+        while (this.size.get() > maxConnections && (pooled = this.availableConnections.poll()) != null) {
+            this.removePooled(pooled);
+        }
+        log.info(this.capacityInfo("Resized connection pool " + this.name + ".", "\n"));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int evictIdle() throws SQLException {
+        int evicted = 0;
+        for (int i = 0; i < this.getCapacity(); i++) {
+            PooledConnection pooled = this.getPooledConnection(i);
+            if (pooled != null && pooled.claim()) {
+                this.removePooled(pooled);
+                evicted++;
             }
         }
+        log.info("Evicted " + evicted + " idle connections from connection pool " + this.name);
+        return evicted;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void suspend() {
+        this.suspended = true;
+        log.info("Suspended connection pool " + this.name);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void resume() {
+        this.suspendLock.lock();
+        try {
+            this.suspended = false;
+            this.resumed.signalAll();
+        } finally {
+            this.suspendLock.unlock();
+        }
+        log.info("Resumed connection pool " + this.name);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isSuspended() {
+        return this.suspended;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getWaiterCount() {
+        return this.availableConnections.getWaiterCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getMaxConnections() {
+        return this.props.getMaxConnections();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getCreatedCount() {
+        return this.metrics.getCreated();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getReconnectedCount() {
+        return this.metrics.getReconnected();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getTimedOutCount() {
+        return this.metrics.getTimeouts();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getLeakCount() {
+        return this.leakDetector == null ? 0 : this.leakDetector.getLeakCount();
+    }
+
+    /**
+     * Returns the {@link LeakDetector} of this pool
+     *
+     * @return leakDetector - null if {@link PoolConfiguration#getLeakDetectionThreshold()} is 0
+     */
+    public LeakDetector getLeakDetector() {
+        return this.leakDetector;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isBreakerOpen() {
+        return this.breaker != null && this.breaker.isOpen();
+    }
+
+    /**
+     * Returns the {@link CircuitBreaker} of this pool
+     *
+     * @return breaker - null if {@link PoolConfiguration#getBreakerThreshold()} is 0
+     */
+    public CircuitBreaker getBreaker() {
+        return this.breaker;
+    }
+
+    /**
+     * Returns the {@link PoolSizeController} of this pool
+     *
+     * @return sizeController - null if {@link PoolConfiguration#getAdaptiveSizing()} is not set
+     */
+    public PoolSizeController getSizeController() {
+        return this.sizeController;
     }
 
     /**
@@ -537,6 +2041,35 @@ public class ConnectionPoolManager implements ConnectionPool {
         return this.props;
     }
 
+    /**
+     * Returns the {@link ValidationStrategy} of this pool
+     *
+     * @return validator - null if connections are not validated
+     */
+    public ValidationStrategy getValidationStrategy() {
+        return this.validator;
+    }
+
+    /**
+     * Sets the {@link ValidationStrategy} of this pool, replacing the one named by
+     * {@link PoolConfiguration#getValidation()}
+     *
+     * @param validator - strategy to use, null to stop validating connections
+     */
+    public void setValidationStrategy(ValidationStrategy validator) {
+        this.validator = validator;
+    }
+
+    /**
+     * Returns the {@link PoolWarmup} opening the initial connections of this pool,
+     * to follow its progress when {@link PoolConfiguration#getAsyncWarmup()} is set.
+     *
+     * @return warmup - warm up of this pool
+     */
+    public PoolWarmup getWarmup() {
+        return this.warmup;
+    }
+
     /**
      * Returns the url used by this pool to make a {@link java.sql.Connection}
      *
@@ -581,6 +2114,7 @@ public class ConnectionPoolManager implements ConnectionPool {
      *
      * @return size - Thread safe read on the {@link #size size} of the pool
      */
+    @Override
     public int getSize() {
         return this.size.get();
     }
@@ -591,6 +2125,7 @@ public class ConnectionPoolManager implements ConnectionPool {
      *
      * @return true if the connection pool has been closed
      */
+    @Override
     public boolean isClosed() {
         return this.closed.get();
     }
@@ -600,8 +2135,9 @@ public class ConnectionPoolManager implements ConnectionPool {
      *
      * @return int - number of busy connections
      */
+    @Override
     public int getBusySize() {
-        return this.busyConnections.size();
+        return this.countState(PooledConnection.STATE_BUSY);
     }
 
     /**
@@ -609,27 +2145,64 @@ public class ConnectionPoolManager implements ConnectionPool {
      *
      * @return int number of available connections
      */
+    @Override
     public int getAvailableSize() {
-        return this.availableConnections.size();
+        return this.countState(PooledConnection.STATE_IDLE);
+    }
+
+    /**
+     * Counts the connections of this pool in the given state, walking all the slots.
+     *
+     * @param state - {@link PooledConnection} state to count
+     * @return int number of connections in the state
+     */
+    private int countState(int state) {
+        int count = 0;
+        for (int i = 0; i < this.connections.length(); i++) {
+            PooledConnection pooled = this.connections.get(i);
+            if (pooled != null && pooled.getState() == state) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Number of slots for connections in this pool
+     *
+     * @return int - number of slots
+     */
+    public int getCapacity() {
+        return this.connections.length();
+    }
+
+    /**
+     * Returns the connection in a slot of this pool
+     *
+     * @param index - slot index, from 0 to {@link #getCapacity()} - 1
+     * @return {@link PooledConnection} in the slot, null if the slot is free
+     */
+    public PooledConnection getPooledConnection(int index) {
+        return this.connections.get(index);
     }
 
     /**
      * Check if a connection belongs to a pool
      *
-     * @param Connection - connection to check
+     * @param Connection - connection handle to check
      * @return boolean true if the connection belongs to the pool
      */
     public boolean containsConnection(Connection connection) {
-        if (this.busyConnections.contains(connection)) {
-            return true;
-        } else if (this.availableConnections.contains(connection))  {
-            return true;
+        ConnectionProxy handle = ConnectionProxy.getHandler(connection);
+        if (handle == null) {
+            return false;
         }
-        return false;
+        PooledConnection pooled = handle.getPooledConnection();
+        return pooled.getState() != PooledConnection.STATE_REMOVED && this.owns(pooled);
     }
 
     /**
-     * Returns the capacity info: {@link #availableConnections}, {@link #busyConnections},
+     * Returns the capacity info: number of available connections, busy connections,
      * {@link PoolConfiguration#getMaxConnections()} and the current size of the pool {@link #size}
      *
      * Life saver!! (Helped a lot in debugging test issues)
@@ -637,6 +2210,26 @@ public class ConnectionPoolManager implements ConnectionPool {
     public String capacityInfo(String prefix, String delimiter) {
         return prefix + delimiter +
             "\tCurrent Capacity: " + this.size.get() + "; Specified Capacity: " + this.props.getMaxConnections() + delimiter +
-            "\tAvailable Connections: " + this.availableConnections.size() + "; Busy Connections: " + this.busyConnections.size();
+            "\tAvailable Connections: " + this.getAvailableSize() + "; Busy Connections: " + this.getBusySize() +
+            (this.props.getStatementCacheSize() > 0 ? delimiter + "\t" + this.statementCacheStats : "");
+    }
+
+    /**
+     * Returns the metrics of this pool: acquire wait, hold time and connect time histograms and timeout counts.
+     * Take a {@link Histogram#snapshot()} to read percentiles.
+     *
+     * @return {@link PoolMetrics} of this pool
+     */
+    public PoolMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Returns the hit, miss and eviction counters of the {@link StatementCache}s of this pool
+     *
+     * @return {@link StatementCache.Stats} of this pool
+     */
+    public StatementCache.Stats getStatementCacheStats() {
+        return this.statementCacheStats;
     }
 }
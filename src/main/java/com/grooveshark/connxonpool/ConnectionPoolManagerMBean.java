@@ -0,0 +1,158 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool;
+
+import java.sql.SQLException;
+
+/**
+ * JMX management interface of a {@link ConnectionPoolManager}, registered as
+ * <code>com.grooveshark.connxonpool:type=ConnectionPool,name=</code>{@link PoolConfiguration#getPoolName()}
+ * when {@link PoolConfiguration#getJmx()} is set.
+ *
+ * <p>
+ * Attributes are read without building any string, so saturation can be watched from a JMX console
+ * without turning on debug logging. Operations let operators resize the pool, drop its idle connections
+ * and hold off clients during an incident, without restarting.
+ * </p>
+ *
+ * @author andy.compeer@gmail.com
+ */
+public interface ConnectionPoolManagerMBean {
+
+    /**
+     * Name of the pool, see {@link PoolConfiguration#getPoolName()}
+     *
+     * @return name of the pool
+     */
+    public String getName();
+
+    /**
+     * Number of connections owned by the pool, busy and idle
+     *
+     * @return int - size of the pool
+     */
+    public int getSize();
+
+    /**
+     * Number of connections given out to clients
+     *
+     * @return int - busy connections
+     */
+    public int getBusySize();
+
+    /**
+     * Number of idle connections
+     *
+     * @return int - available connections
+     */
+    public int getAvailableSize();
+
+    /**
+     * Number of clients waiting for a connection to be released
+     *
+     * @return int - waiting clients
+     */
+    public int getWaiterCount();
+
+    /**
+     * Maximum number of connections, see {@link #resize(int)}
+     *
+     * @return int - {@link PoolConfiguration#getMaxConnections()}
+     */
+    public int getMaxConnections();
+
+    /**
+     * Number of physical connections opened since the pool was created, reconnects aside
+     *
+     * @return long - created connections
+     */
+    public long getCreatedCount();
+
+    /**
+     * Number of physical connections reconnected since the pool was created
+     *
+     * @return long - reconnected connections
+     */
+    public long getReconnectedCount();
+
+    /**
+     * Number of clients that timed out waiting for a connection since the pool was created
+     *
+     * @return long - timeouts
+     */
+    public long getTimedOutCount();
+
+    /**
+     * Number of borrows held for longer than the leak detection threshold since the pool was created,
+     * see {@link LeakDetector}
+     *
+     * @return long - leaks, 0 if leaks are not detected
+     */
+    public long getLeakCount();
+
+    /**
+     * See if connects are refused while the database is unreachable, see {@link CircuitBreaker}
+     *
+     * @return true if the breaker is open, false if closed or there is no breaker
+     */
+    public boolean isBreakerOpen();
+
+    /**
+     * See if borrowing is suspended, see {@link #suspend()}
+     *
+     * @return true if suspended
+     */
+    public boolean isSuspended();
+
+    /**
+     * See if the pool is closed
+     *
+     * @return true if closed
+     */
+    public boolean isClosed();
+
+    /**
+     * Changes the maximum number of connections. When shrinking, idle connections over the new
+     * maximum are closed right away and busy ones once released.
+     *
+     * @param maxConnections - new maximum, more than 0
+     * @throws SQLException - if the maximum is not valid or the pool is closed
+     */
+    public void resize(int maxConnections) throws SQLException;
+
+    /**
+     * Closes all idle connections of the pool, e.g. after a database failover. Busy connections are left alone.
+     *
+     * @return int - number of connections closed
+     * @throws SQLException - if closing a connection fails
+     */
+    public int evictIdle() throws SQLException;
+
+    /**
+     * Suspends borrowing. Clients asking for a connection wait until {@link #resume()}, up to
+     * {@link PoolConfiguration#getMaxWait()}. Connections can still be released.
+     */
+    public void suspend();
+
+    /**
+     * Resumes borrowing and wakes up the clients waiting for it
+     */
+    public void resume();
+}
@@ -0,0 +1,256 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Client handle of a {@link PooledConnection}, given out by {@link ConnectionPoolManager#getConnection()}.
+ *
+ * <p>
+ * Every call on the {@link java.sql.Connection} proxy is delegated to the physical connection,
+ * except {@link java.sql.Connection#close()}, which releases the physical connection back to
+ * the pool using {@link ConnectionPoolManager#releaseConnection(Connection)} and leaves it open.
+ * With a {@link StatementCache}, {@link java.sql.Connection#prepareStatement} is served from the cache.
+ * Once closed, the handle cannot be used anymore, even though the physical connection lives on
+ * and may have been borrowed by another client.
+ * </p>
+ * <p>
+ * Statements made through the handle are tracked and closed when the handle is released, if the client
+ * left them open, and changes to the auto-commit, read only and isolation settings are reported to the
+ * {@link PooledConnection}, which restores them, see {@link PooledConnection#reset()}. The physical connection
+ * is never handed out: {@link java.sql.Connection#unwrap(Class)} only unwraps to the handle itself.
+ * </p>
+ *
+ * @author andy.compeer@gmail.com
+ */
+public class ConnectionProxy implements InvocationHandler {
+
+    /**
+     * Interfaces of the proxies. {@link java.lang.reflect.Proxy} creates their class once
+     * and reuses it for every handle.
+     */
+    private static final Class<?>[] PROXY_INTERFACES = new Class<?>[] { Connection.class };
+
+    /**
+     * Pooled connection this handle was given out for
+     */
+    private final PooledConnection pooled;
+
+    /**
+     * {@link java.sql.Connection} proxy given to the client
+     */
+    private final Connection proxy;
+
+    /**
+     * Atomic flag to see if this handle is closed
+     */
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    /**
+     * Statements made through this handle, closed ones are dropped as more are added.
+     * Only touched by the client holding the handle, and by {@link #closeStatements()} once it is closed.
+     */
+    private volatile List<Statement> statements;
+
+    /**
+     * Constructor with the {@link PooledConnection} being borrowed
+     *
+     * @param pooled - {@link PooledConnection} this handle delegates to
+     */
+    public ConnectionProxy(PooledConnection pooled) {
+        this.pooled = pooled;
+        this.proxy = (Connection) Proxy.newProxyInstance(ConnectionProxy.class.getClassLoader(), PROXY_INTERFACES, this);
+    }
+
+    /**
+     * Returns the handler of a connection, if the connection is a handle given out by a pool.
+     *
+     * @param connection - connection to look at
+     * @return {@link ConnectionProxy} of the connection, null if it is not a pooled handle
+     */
+    public static ConnectionProxy getHandler(Connection connection) {
+        if (connection != null && Proxy.isProxyClass(connection.getClass())) {
+            // a driver may hand out proxies as well, only the handler tells them apart
+            InvocationHandler handler = Proxy.getInvocationHandler(connection);
+            if (handler instanceof ConnectionProxy) {
+                return (ConnectionProxy) handler;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        if (name.equals("close")) {
+            this.pooled.getPool().releaseConnection(this.proxy);
+            return null;
+        } else if (name.equals("isClosed")) {
+            return this.isClosed() || this.pooled.isPhysicallyClosed();
+        } else if (name.equals("equals")) {
+            return proxy == args[0];
+        } else if (name.equals("hashCode")) {
+            return System.identityHashCode(proxy);
+        } else if (name.equals("toString")) {
+            return this.pooled.toString();
+        }
+        if (this.isClosed()) {
+            throw new SQLException("Connection has already been closed and released to the pool");
+        }
+        if (name.equals("unwrap")) {
+            if (((Class<?>) args[0]).isInstance(proxy)) {
+                return proxy;
+            }
+            throw new SQLException("Connection handle of the pool does not unwrap to " + args[0]);
+        } else if (name.equals("isWrapperFor")) {
+            return ((Class<?>) args[0]).isInstance(proxy);
+        } else if (name.equals("setAutoCommit")) {
+            this.pooled.markDirty(PooledConnection.DIRTY_AUTO_COMMIT);
+        } else if (name.equals("setReadOnly")) {
+            this.pooled.markDirty(PooledConnection.DIRTY_READ_ONLY);
+        } else if (name.equals("setTransactionIsolation")) {
+            this.pooled.markDirty(PooledConnection.DIRTY_ISOLATION);
+        }
+        Object result;
+        StatementCache cache = this.pooled.getStatementCache();
+        if (cache != null && name.equals("prepareStatement") && StatementCache.isCacheable(method)) {
+            result = cache.prepare(this.pooled.getConnection(), this.proxy, args);
+        } else {
+            try {
+                result = method.invoke(this.pooled.getConnection(), args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+        if (result instanceof Statement) {
+            this.track((Statement) result);
+        }
+        return result;
+    }
+
+    /**
+     * Keeps a statement made through this handle, to close it on release if the client does not
+     */
+    private void track(Statement stmt) throws SQLException {
+        if (this.statements == null) {
+            this.statements = new ArrayList<Statement>();
+        } else if (this.statements.size() >= 16 && (this.statements.size() & 15) == 0) {
+            // a client making statements in a loop and closing them does not grow the list
+            for (int i = this.statements.size() - 1; i >= 0; i--) {
+                if (this.statements.get(i).isClosed()) {
+                    this.statements.remove(i);
+                }
+            }
+        }
+        this.statements.add(stmt);
+    }
+
+    /**
+     * Tells whether the client left statements made through this handle open.
+     *
+     * @return true if {@link #closeStatements()} has statements to close
+     */
+    boolean hasOpenStatements() {
+        List<Statement> statements = this.statements;
+        if (statements == null) {
+            return false;
+        }
+        for (Statement stmt : statements) {
+            try {
+                if (!stmt.isClosed()) {
+                    return true;
+                }
+            } catch (SQLException e) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Closes the statements made through this handle and left open by the client.
+     * Cached statements go back to the {@link StatementCache}.
+     */
+    void closeStatements() {
+        List<Statement> statements = this.statements;
+        if (statements == null) {
+            return;
+        }
+        this.statements = null;
+        for (Statement stmt : statements) {
+            try {
+                if (!stmt.isClosed()) {
+                    stmt.close();
+                }
+            } catch (SQLException e) {
+                PooledConnection.log.debug("Failed to close a statement left open on " + this.pooled, e);
+            }
+        }
+    }
+
+    /**
+     * Closes this handle. The physical connection is not touched.
+     *
+     * @return true if this call closed the handle, false if it was closed already
+     */
+    public boolean close() {
+        return this.closed.compareAndSet(false, true);
+    }
+
+    /**
+     * See if this handle is closed.
+     *
+     * @return true if the handle has been closed
+     */
+    public boolean isClosed() {
+        return this.closed.get();
+    }
+
+    /**
+     * Returns the {@link PooledConnection} this handle was given out for
+     *
+     * @return pooled connection
+     */
+    public PooledConnection getPooledConnection() {
+        return this.pooled;
+    }
+
+    /**
+     * Returns the {@link java.sql.Connection} proxy given to the client
+     *
+     * @return proxy
+     */
+    public Connection getProxy() {
+        return this.proxy;
+    }
+}
@@ -20,17 +20,20 @@
 package com.grooveshark.connxonpool;
 
 import org.apache.log4j.Logger;
-import java.sql.Connection;
 import java.sql.SQLException;
-import java.util.concurrent.BlockingQueue;
 
 /**
  * Periodically checks if busy connections are closed and if so, releases them into the pool.
  *
  * <p>
- * When the clients that already have connections from the pool, close their physical connections
- * without releasing it to the pool, this basically reduces the total number of pooled connections,
- * so when other clients request for a connection, they do not time out.
+ * Clients closing their connection handles release them to the pool right away. When the physical
+ * connection of a busy connection gets closed through some failure, the releaser closes the client
+ * handle and releases the connection, so when other clients request for a connection, they do not time out.
+ * </p>
+ * <p>
+ * The releaser does not own a thread. {@link ConnectionPoolManager} schedules it on the
+ * {@link HousekeepingScheduler} every {@link PoolConfiguration#getReleaserInterval()} milliseconds
+ * and each {@link #run()} checks every busy connection once.
  * </p>
  *
  * @author andy.compeer@gmail.com
@@ -44,36 +47,6 @@ public class ConnectionReleaser implements Runnable
      */
     private ConnectionPoolManager pool;
 
-    /**
-     * {@link PoolConfiguration} owned by the parent {@link ConnectionPoolManager}
-     */
-    private PoolConfiguration props;
-
-    /**
-     * {@link ConnectionPoolManager#busyConnections} owned by the parent {@link ConnectionPoolManager}
-     */
-    private BlockingQueue<Connection> busyConnections;
-
-    /**
-     * Interval time in milliseconds needed by {@link ConnectionReleaser} to check
-     * for closed busy connections.
-     * This value is set to {@link PoolConfiguration#getReleaserInterval()} value.
-     * Can be modified to have more granularity or less
-     * @example
-     * <code>this.timeBetweenRuns = 3 * this.props.getReleaserInterval();<code>
-     */
-    private long timeBetweenRuns;
-
-    /**
-     * Unix epoch timestamp obtained by <code> System.currentTimeMillis() </code>
-     */
-    private long lastRun;
-
-    /**
-     * If this thread needs to be returned.
-     */
-    private boolean shouldClose = false;
-
     public static final Logger log = Logger.getLogger(ConnectionReleaser.class);
 
     /**
@@ -81,15 +54,6 @@ public class ConnectionReleaser implements Runnable
      */
     public ConnectionReleaser(ConnectionPoolManager pool) {
         this.pool = pool;
-        this.props = this.pool.getProps();
-    }
-
-    /**
-     * Busy connections are set by {@link ConnectionPoolManager}
-     * when starting this thread.
-     */
-    public void setBusyConnections(BlockingQueue<Connection> busyConnections) {
-        this.busyConnections = busyConnections;
     }
 
     /**
@@ -97,33 +61,24 @@ public class ConnectionReleaser implements Runnable
      */
     @Override
     public void run() {
-        this.lastRun = System.currentTimeMillis();
-        this.timeBetweenRuns = this.props.getReleaserInterval();
-        log.debug("Time between runs: " + this.timeBetweenRuns);
-        while (!this.shouldClose) {
-            // pool is closed, join pool manager
-            if (this.pool.isClosed()) {
-               return;
+        // pool is closed, nothing to release
+        if (this.pool.isClosed()) {
+            return;
+        }
+        for (int i = 0; i < this.pool.getCapacity(); i++) {
+            PooledConnection pooled = this.pool.getPooledConnection(i);
+            if (pooled == null || pooled.getState() != PooledConnection.STATE_BUSY) {
+                continue;
             }
-            if(((System.currentTimeMillis() - this.lastRun) > this.timeBetweenRuns)) {
-                // make sure busy connections exist
-                if (this.busyConnections != null && this.busyConnections.size() > 0) {
-                    for (int i = 0; i < this.busyConnections.size(); i++) {
-                        // just a peek
-                        Connection conn = this.busyConnections.peek();
-                        try {
-                            // if connection is closed, release it
-                            if (conn != null && conn.isClosed()) {
-                                this.pool.releaseConnection(conn);
-                                log.debug("Connection Released by ConnectionReleaser: " + conn);
-                            }
-                        } catch (SQLException e) {
-                            log.error("Connection could not be released to the pool", e);
-                        }
-                    }//for
-                    this.lastRun = System.currentTimeMillis();
+            try {
+                // if connection is closed, take it away from the client and release it
+                if (pooled.isPhysicallyClosed() && pooled.closeHandle()) {
+                    this.pool.releasePooledConnection(pooled);
+                    log.debug("Connection Released by ConnectionReleaser: " + pooled);
                 }
+            } catch (SQLException e) {
+                log.error("Connection could not be released to the pool", e);
             }
-        }//while
+        }//for
     }
 }
@@ -0,0 +1,55 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link java.util.concurrent.ThreadFactory} of named daemon threads, used by the pool's
+ * background executors, so they never keep the JVM from exiting.
+ *
+ * @author andy.compeer@gmail.com
+ */
+public class DaemonThreadFactory implements ThreadFactory {
+
+    private final String name;
+
+    private final AtomicInteger count = new AtomicInteger(0);
+
+    /**
+     * Constructor with the name prefix of the threads
+     *
+     * @param name - threads are named name-1, name-2, ...
+     */
+    public DaemonThreadFactory(String name) {
+        this.name = name;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, this.name + "-" + this.count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    }
+}
@@ -0,0 +1,251 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of durations in nanoseconds, with a fixed number of buckets.
+ *
+ * <p>
+ * {@link #record(long)} increments one bucket and a few counters with atomic operations and does not
+ * allocate, so it can be called on every borrow. Buckets are log-linear: every power of 2 is split into
+ * {@link #SUB_BUCKETS} equal buckets, so a percentile is reported within about 3% of its value, from
+ * nanoseconds up to centuries, in {@value #BUCKETS} buckets.
+ * </p>
+ * <p>
+ * {@link #snapshot()} copies the buckets, so percentiles are computed without stopping the recording threads.
+ * The difference of two snapshots, see {@link Snapshot#since(Snapshot)}, gives percentiles over a sliding window.
+ * </p>
+ *
+ * @author andy.compeer@gmail.com
+ */
+public class Histogram {
+
+    /**
+     * Number of bits of a value kept past its highest bit
+     */
+    private static final int SUB_BUCKET_BITS = 5;
+
+    /**
+     * Number of buckets per power of 2
+     */
+    public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Number of buckets
+     */
+    public static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong(0);
+    private final AtomicLong sum = new AtomicLong(0);
+    private final AtomicLong max = new AtomicLong(0);
+
+    /**
+     * Records a duration
+     *
+     * @param nanos - duration in nanoseconds, negative values are recorded as 0
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        this.counts.incrementAndGet(bucketOf(nanos));
+        this.count.incrementAndGet();
+        this.sum.addAndGet(nanos);
+        long current;
+        while (nanos > (current = this.max.get())) {
+            if (this.max.compareAndSet(current, nanos)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Number of recorded durations
+     *
+     * @return long - count
+     */
+    public long getCount() {
+        return this.count.get();
+    }
+
+    /**
+     * Copies the current state of this histogram
+     *
+     * @return {@link Snapshot} to compute percentiles from
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = this.counts.get(i);
+            total += copy[i];
+        }
+        return new Snapshot(copy, total, this.sum.get(), this.max.get());
+    }
+
+    /**
+     * Index of the bucket holding a value
+     */
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int highest = 63 - Long.numberOfLeadingZeros(value);
+        int shift = highest - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Highest value held by a bucket
+     */
+    static long highestOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        long lowest = (1L << (shift + SUB_BUCKET_BITS)) | (sub << shift);
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * Point in time copy of a {@link Histogram}
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        /**
+         * Value below or at which the given percentage of the recorded durations fall
+         *
+         * @param percentile - between 0 and 100, e.g. 99.9
+         * @return nanoseconds, 0 if nothing was recorded
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (this.count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * this.count);
+            rank = Math.max(1, rank);
+            long seen = 0;
+            for (int i = 0; i < this.counts.length; i++) {
+                seen += this.counts[i];
+                if (seen >= rank) {
+                    return Math.min(highestOf(i), this.max);
+                }
+            }
+            return this.max;
+        }
+
+        /**
+         * Number of recorded durations
+         *
+         * @return long - count
+         */
+        public long getCount() {
+            return this.count;
+        }
+
+        /**
+         * Sum of the recorded durations
+         *
+         * @return nanoseconds
+         */
+        public long getSum() {
+            return this.sum;
+        }
+
+        /**
+         * Mean of the recorded durations
+         *
+         * @return nanoseconds, 0 if nothing was recorded
+         */
+        public long getMean() {
+            return this.count == 0 ? 0 : this.sum / this.count;
+        }
+
+        /**
+         * Longest recorded duration
+         *
+         * @return nanoseconds
+         */
+        public long getMax() {
+            return this.max;
+        }
+
+        public long getP50() {
+            return this.getValueAtPercentile(50);
+        }
+
+        public long getP99() {
+            return this.getValueAtPercentile(99);
+        }
+
+        public long getP999() {
+            return this.getValueAtPercentile(99.9);
+        }
+
+        /**
+         * Durations recorded between an earlier snapshot of the same histogram and this one. Its maximum is
+         * the highest value of the last bucket recorded to, as the longest duration in between is not known.
+         *
+         * @param earlier - snapshot taken before this one
+         * @return {@link Snapshot} of the durations recorded in between
+         */
+        public Snapshot since(Snapshot earlier) {
+            long[] counts = new long[this.counts.length];
+            long count = 0;
+            int last = -1;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = Math.max(0, this.counts[i] - earlier.counts[i]);
+                count += counts[i];
+                if (counts[i] > 0) {
+                    last = i;
+                }
+            }
+            long max = last < 0 ? 0 : Math.min(highestOf(last), this.max);
+            return new Snapshot(counts, count, Math.max(0, this.sum - earlier.sum), max);
+        }
+
+        /**
+         * Count, mean, p50, p99, p999 and max, in microseconds
+         */
+        @Override
+        public String toString() {
+            return "count=" + this.count + " mean=" + (this.getMean() / 1000) + "us p50=" + (this.getP50() / 1000)
+                + "us p99=" + (this.getP99() / 1000) + "us p999=" + (this.getP999() / 1000)
+                + "us max=" + (this.max / 1000) + "us";
+        }
+    }
+}
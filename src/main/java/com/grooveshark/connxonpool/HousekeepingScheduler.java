@@ -0,0 +1,173 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Single housekeeping thread shared by all {@link ConnectionPoolManager} instances in the JVM.
+ *
+ * <p>
+ * Periodic pool maintenance, such as the {@link ConnectionReleaser}, is registered here as a task
+ * with a deadline instead of running in a thread per pool. The thread sleeps until the next task is
+ * due, so a process with many pools spends next to no CPU on housekeeping. Tasks must be short and
+ * must not block, as they all run one after another on the same daemon thread.
+ * </p>
+ *
+ * @author andy.compeer@gmail.com
+ */
+public class HousekeepingScheduler {
+
+    /**
+     * Logger
+     */
+    public static final Logger log = Logger.getLogger(HousekeepingScheduler.class);
+
+    private static final HousekeepingScheduler INSTANCE = new HousekeepingScheduler();
+
+    /**
+     * Number of tasks cancelled with {@link #cancelLater} and left in the schedule that triggers a purge
+     */
+    public static final int PURGE_THRESHOLD = 1000;
+
+    /**
+     * Executor backing the scheduler, a single daemon thread
+     */
+    private final ScheduledThreadPoolExecutor executor;
+
+    /**
+     * Tasks cancelled with {@link #cancelLater} since the last purge, and whether a purge is queued
+     */
+    private final AtomicInteger cancelled = new AtomicInteger(0);
+    private final AtomicBoolean purging = new AtomicBoolean(false);
+
+    private HousekeepingScheduler() {
+        this.executor = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("connxonpool-housekeeping"));
+    }
+
+    /**
+     * Returns the scheduler shared by all pools
+     *
+     * @return the {@link HousekeepingScheduler}
+     */
+    public static HousekeepingScheduler getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Runs a task periodically, with the given delay between the end of a run and the start of the next.
+     * A failing run is logged and does not stop the following runs.
+     *
+     * @param task - task to run
+     * @param delay - delay between runs
+     * @param unit - {@link java.util.concurrent.TimeUnit} of the delay
+     * @return future to {@link #cancel} the task with
+     */
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable task, long delay, TimeUnit unit) {
+        return this.executor.scheduleWithFixedDelay(new LoggingTask(task), delay, delay, unit);
+    }
+
+    /**
+     * Runs a task once, after the given delay.
+     *
+     * @param task - task to run
+     * @param delay - delay before running the task
+     * @param unit - {@link java.util.concurrent.TimeUnit} of the delay
+     * @return future to {@link #cancel} the task with
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return this.executor.schedule(new LoggingTask(task), delay, unit);
+    }
+
+    /**
+     * Cancels a task and drops it from the schedule right away.
+     *
+     * @param future - future returned when scheduling the task, may be null
+     */
+    public void cancel(ScheduledFuture<?> future) {
+        if (future != null && future.cancel(false)) {
+            this.executor.purge();
+        }
+    }
+
+    /**
+     * Cancels a task, leaving it in the schedule until the next purge rather than purging the schedule right away.
+     * Meant for tasks cancelled at a high rate, such as the time outs of {@link ConnectionFuture}s: once
+     * {@link #PURGE_THRESHOLD} tasks are cancelled, the schedule is purged on the housekeeping thread,
+     * so cancelled tasks, and what they hold on to, do not pile up until their deadline.
+     *
+     * @param future - future returned when scheduling the task, may be null
+     */
+    public void cancelLater(ScheduledFuture<?> future) {
+        if (future == null || !future.cancel(false)) {
+            return;
+        }
+        if (this.cancelled.incrementAndGet() >= PURGE_THRESHOLD && this.purging.compareAndSet(false, true)) {
+            try {
+                this.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        HousekeepingScheduler.this.cancelled.set(0);
+                        HousekeepingScheduler.this.purging.set(false);
+                        HousekeepingScheduler.this.executor.purge();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                this.purging.set(false);
+            }
+        }
+    }
+
+    /**
+     * Number of tasks waiting for their deadline
+     *
+     * @return int - number of scheduled tasks
+     */
+    public int getTaskCount() {
+        return this.executor.getQueue().size();
+    }
+
+    /**
+     * Logs anything thrown by a task, so a periodic task keeps running.
+     */
+    private static final class LoggingTask implements Runnable {
+        private final Runnable task;
+
+        private LoggingTask(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            try {
+                this.task.run();
+            } catch (Throwable t) {
+                log.error("Housekeeping task " + this.task + " failed", t);
+            }
+        }
+    }
+}
@@ -0,0 +1,549 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock free LIFO stack of idle {@link PooledConnection}s available to the clients.
+ *
+ * <p>
+ * {@link #offer} and {@link #poll()} are single compare-and-set operations on the top of the stack,
+ * so borrowing and releasing never take a lock. The most recently released connection is handed out
+ * first, which keeps a small set of connections hot and lets the ones at the bottom stay idle.
+ * </p>
+ * <p>
+ * A connection in the stack may have been claimed by some other means, e.g. by the thread that released
+ * it last (see {@link PoolConfiguration#getThreadAffinity()}). {@link #poll()} skips such connections, as
+ * their {@link PooledConnection#claim()} fails. A connection is never pushed twice, so the stack holds at
+ * most one node per connection.
+ * </p>
+ * <p>
+ * Clients only block in {@link #poll(long, TimeUnit)} when the stack is empty. They queue up in arrival order
+ * and a connection offered while clients are waiting never goes on the stack: the offering thread claims it
+ * and hands it directly to the client waiting the longest, so a client arriving meanwhile cannot take it and
+ * the waiting client does not have to compete for it once awake. The first waiting client spins for a while
+ * before parking, up to {@link #MAX_SPIN_NANOS}. How long is adapted to the waits seen lately, so connections
+ * released within microseconds are taken without a park and unpark, and clients waiting longer do not burn CPU.
+ * </p>
+ * <p>
+ * By default a client arriving while others are waiting may still take a connection lying on the stack,
+ * e.g. one offered just before they queued up. A fair stack (see {@link PoolConfiguration#getFair()}) hands
+ * connections out strictly in arrival order: clients queue up behind the waiting ones and never take
+ * connections from the stack while others are waiting.
+ * </p>
+ * <p>
+ * Clients not willing to block register a {@link Waiter} with {@link #addWaiter(Waiter)} instead. Waiters queue
+ * up with the parked threads, in the same arrival order, and are handed a connection by the thread offering it.
+ * </p>
+ * <p>
+ * A striped stack (see {@link PoolConfiguration#getStripes()}) is made of several stacks, each with its own top
+ * on its own cache line. A thread pushes on and pops from the stripe of its thread id, and only pops from the
+ * next stripes when its own is empty, so threads on different cores mostly touch different stripes. Clients
+ * still wait in a single queue once all stripes are empty, so how many connections are handed out and how
+ * long clients wait is the same as with a single stack.
+ * </p>
+ *
+ * @author andy.compeer@gmail.com
+ */
+public class IdleConnectionStack {
+
+    /**
+     * Stack node. A new node is created for every push, so a node is never
+     * reused while another thread may still be looking at it.
+     */
+    private static final class Node {
+        private final PooledConnection pooled;
+        private Node next;
+
+        private Node(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+    }
+
+    /**
+     * Top of a stripe, padded so that the tops of two stripes are not on the same cache line
+     */
+    @SuppressWarnings("unused")
+    private static final class Stripe extends AtomicReference<Node> {
+        private static final long serialVersionUID = 1L;
+
+        private long p1, p2, p3, p4, p5, p6, p7;
+    }
+
+    /**
+     * Client waiting for a connection without a thread of its own, see {@link #addWaiter(Waiter)}
+     */
+    public interface Waiter {
+
+        /**
+         * See if the waiter still wants a connection
+         *
+         * @return false once served, timed out or cancelled
+         */
+        public boolean isWaiting();
+
+        /**
+         * Hands a claimed connection to the waiter, on the thread offering it. Must not block.
+         *
+         * @param pooled - connection in {@link PooledConnection#STATE_BUSY}
+         * @return true if the waiter took the connection, false if it is not waiting anymore
+         */
+        public boolean take(PooledConnection pooled);
+    }
+
+    /**
+     * Thread waiting in {@link #poll(long, TimeUnit)}, handed a connection directly by the thread offering it
+     */
+    private static final class ThreadWaiter implements Waiter {
+        private static final int WAITING = 0;
+        private static final int TAKEN = 1;
+        private static final int CANCELLED = 2;
+
+        private static final AtomicIntegerFieldUpdater<ThreadWaiter> STATE_UPDATER =
+            AtomicIntegerFieldUpdater.newUpdater(ThreadWaiter.class, "state");
+
+        private final Thread thread = Thread.currentThread();
+        private volatile int state = WAITING;
+        private volatile PooledConnection handed;
+
+        @Override
+        public boolean isWaiting() {
+            return this.state == WAITING;
+        }
+
+        @Override
+        public boolean take(PooledConnection pooled) {
+            if (!STATE_UPDATER.compareAndSet(this, WAITING, TAKEN)) {
+                return false;
+            }
+            this.handed = pooled;
+            LockSupport.unpark(this.thread);
+            return true;
+        }
+
+        /**
+         * Stops waiting, unless a connection has been handed over already
+         *
+         * @return true if cancelled, false if a connection was taken
+         */
+        private boolean cancel() {
+            return STATE_UPDATER.compareAndSet(this, WAITING, CANCELLED);
+        }
+
+        /**
+         * Stops waiting and wakes up the thread, see {@link IdleConnectionStack#drainWaiters()}
+         */
+        private void wakeUp() {
+            if (this.cancel()) {
+                LockSupport.unpark(this.thread);
+            }
+        }
+
+        private boolean isCancelled() {
+            return this.state == CANCELLED;
+        }
+
+        /**
+         * Connection taken, once the thread handing it over has set it
+         */
+        private PooledConnection awaitHanded() {
+            PooledConnection pooled;
+            while ((pooled = this.handed) == null) {
+                Thread.yield();
+            }
+            return pooled;
+        }
+    }
+
+    /**
+     * Longest time in nanoseconds the first waiting client spins before parking. About the cost of
+     * a park and unpark, beyond which spinning saves nothing. No spinning on a single processor.
+     */
+    public static final long MAX_SPIN_NANOS = Runtime.getRuntime().availableProcessors() > 1 ? 50000 : 0;
+
+    /**
+     * Tops of the stripes, the most recently offered connections
+     */
+    private final Stripe[] stripes;
+
+    /**
+     * Threads waiting in {@link #poll(long, TimeUnit)} and {@link Waiter}s, in arrival order
+     */
+    private final ConcurrentLinkedQueue<Waiter> waiters = new ConcurrentLinkedQueue<Waiter>();
+
+    /**
+     * Time in nanoseconds the first waiting client spins before parking, doubled when a client got a connection
+     * within {@link #MAX_SPIN_NANOS} and halved when it had to wait longer
+     */
+    private volatile long spinNanos = MAX_SPIN_NANOS / 4;
+
+    /**
+     * Flag to see if connections are handed out in arrival order
+     */
+    private final boolean fair;
+
+    /**
+     * Constructor of an unfair stack
+     */
+    public IdleConnectionStack() {
+        this(false);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param fair - true if connections are handed out to the waiting clients in arrival order
+     */
+    public IdleConnectionStack(boolean fair) {
+        this(fair, 1);
+    }
+
+    /**
+     * Constructor of a striped stack
+     *
+     * @param fair - true if connections are handed out to the waiting clients in arrival order
+     * @param stripes - number of stripes, at least 1
+     */
+    public IdleConnectionStack(boolean fair, int stripes) {
+        this.fair = fair;
+        this.stripes = new Stripe[Math.max(1, stripes)];
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Stripe of the calling thread
+     *
+     * @return index of the stripe
+     */
+    private int home() {
+        int count = this.stripes.length;
+        return count == 1 ? 0 : (int) (Thread.currentThread().getId() % count);
+    }
+
+    /**
+     * Hands an idle connection to the client waiting the longest, if any, or pushes it on top of the stack.
+     *
+     * @param pooled - connection to be made available, already in {@link PooledConnection#STATE_IDLE}
+     * @return false if the connection is in the stack already
+     */
+    public boolean offer(PooledConnection pooled) {
+        if (!this.waiters.isEmpty() && !pooled.isQueued() && pooled.claim()) {
+            if (this.handOff(pooled)) {
+                return true;
+            }
+            pooled.setState(PooledConnection.STATE_IDLE);
+        }
+        boolean pushed = this.push(pooled);
+        // a client may have queued up after the hand off found nobody waiting
+        this.signalWaiter();
+        return pushed;
+    }
+
+    /**
+     * Pushes an idle connection on top of the stripe of the calling thread, without waking up anyone
+     */
+    private boolean push(PooledConnection pooled) {
+        if (!pooled.markQueued()) {
+            return false;
+        }
+        Node node = new Node(pooled);
+        Stripe stripe = this.stripes[this.home()];
+        Node top;
+        do {
+            top = stripe.get();
+            node.next = top;
+        } while (!stripe.compareAndSet(top, node));
+        return true;
+    }
+
+    /**
+     * Pops and claims the most recently offered idle connection without waiting,
+     * whether other threads are waiting or not. Looks at the stripe of the calling
+     * thread first, then at the next ones.
+     *
+     * @return a connection in {@link PooledConnection#STATE_BUSY}, null if the stack is empty
+     */
+    public PooledConnection poll() {
+        int count = this.stripes.length;
+        int index = this.home();
+        for (int i = 0; i < count; i++) {
+            PooledConnection pooled = this.poll(this.stripes[index]);
+            if (pooled != null) {
+                return pooled;
+            }
+            if (++index == count) {
+                index = 0;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Pops and claims the most recently offered idle connection of a stripe
+     *
+     * @return a connection in {@link PooledConnection#STATE_BUSY}, null if the stripe is empty
+     */
+    private PooledConnection poll(Stripe stripe) {
+        while (true) {
+            Node top;
+            do {
+                top = stripe.get();
+                if (top == null) {
+                    return null;
+                }
+            } while (!stripe.compareAndSet(top, top.next));
+            top.pooled.clearQueued();
+            if (top.pooled.claim()) {
+                return top.pooled;
+            }
+            // claimed elsewhere, drop it
+        }
+    }
+
+    /**
+     * See if all stripes are empty
+     */
+    private boolean isEmpty() {
+        for (Stripe stripe : this.stripes) {
+            if (stripe.get() != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Pops and claims the most recently offered idle connection without waiting. In a fair stack,
+     * returns null while other clients are waiting, like {@link #poll(long, TimeUnit)} with a timeout of 0.
+     *
+     * @return a connection in {@link PooledConnection#STATE_BUSY}, null if none is available to the caller
+     */
+    public PooledConnection tryPoll() {
+        return this.fair && !this.waiters.isEmpty() ? null : this.poll();
+    }
+
+    /**
+     * Queues up a {@link Waiter}, to be handed the next connection offered once the clients that arrived
+     * before it are served. If a connection is idle already, it is handed over right away.
+     *
+     * @param waiter - waiter to queue up
+     */
+    public void addWaiter(Waiter waiter) {
+        this.waiters.add(waiter);
+        // a connection may have been offered before we queued up
+        if (!this.isEmpty()) {
+            this.signalWaiter();
+        }
+    }
+
+    /**
+     * Drops a {@link Waiter} from the queue, e.g. once it timed out
+     *
+     * @param waiter - waiter to drop
+     * @return true if it was queued
+     */
+    public boolean removeWaiter(Waiter waiter) {
+        return this.waiters.remove(waiter);
+    }
+
+    /**
+     * Drops all waiting clients from the queue, e.g. once the pool is closed. The threads waiting in
+     * {@link #poll(long, TimeUnit)} wake up and get no connection, the other {@link Waiter}s are returned
+     * for the caller to fail.
+     *
+     * @return the {@link Waiter}s dropped, other than threads, in arrival order
+     */
+    public List<Waiter> drainWaiters() {
+        List<Waiter> drained = new ArrayList<Waiter>();
+        for (Waiter waiter : this.waiters) {
+            if (this.waiters.remove(waiter)) {
+                if (waiter instanceof ThreadWaiter) {
+                    ((ThreadWaiter) waiter).wakeUp();
+                } else {
+                    drained.add(waiter);
+                }
+            }
+        }
+        return drained;
+    }
+
+    /**
+     * Pops and claims the most recently offered idle connection, waiting up to the given time
+     * for one to be handed over if the stack is empty. In a fair stack, the calling thread queues up
+     * behind the threads already waiting, even with a timeout of 0. A thread interrupted just as
+     * it is handed a connection returns it, with its interrupt status set. A thread woken up by
+     * {@link #drainWaiters()} returns null before its time is up.
+     *
+     * @param timeout - time to wait
+     * @param unit - {@link java.util.concurrent.TimeUnit} of the timeout
+     * @return a connection, null if none was offered in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public PooledConnection poll(long timeout, TimeUnit unit) throws InterruptedException {
+        boolean queueUp = this.fair && !this.waiters.isEmpty();
+        PooledConnection pooled = queueUp ? null : this.poll();
+        long nanos = unit.toNanos(timeout);
+        if (pooled != null || nanos <= 0) {
+            return pooled;
+        }
+        long start = System.nanoTime();
+        long deadline = start + nanos;
+        ThreadWaiter waiter = new ThreadWaiter();
+        // serves us right away if a connection was offered before we queued up
+        this.addWaiter(waiter);
+        pooled = this.spin(waiter, start, deadline);
+        while (pooled == null) {
+            if (waiter.isCancelled()) {
+                // woken up by drainWaiters()
+                return null;
+            }
+            long remaining = deadline - System.nanoTime();
+            boolean interrupted = Thread.interrupted();
+            if (remaining <= 0 || interrupted) {
+                if (waiter.cancel()) {
+                    this.waiters.remove(waiter);
+                    if (interrupted) {
+                        throw new InterruptedException();
+                    }
+                    return null;
+                }
+                // handed a connection meanwhile
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                pooled = waiter.awaitHanded();
+                break;
+            }
+            LockSupport.parkNanos(this, remaining);
+            pooled = waiter.handed;
+        }
+        this.adaptSpin(System.nanoTime() - start);
+        return pooled;
+    }
+
+    /**
+     * Spins for a connection to be handed to the waiter, while it is the first waiting client,
+     * for {@link #spinNanos} at most.
+     *
+     * @return the connection handed over, null if none was within the spin
+     */
+    private PooledConnection spin(ThreadWaiter waiter, long start, long deadline) {
+        long end = Math.min(deadline, start + this.spinNanos);
+        for (int i = 1; ; i++) {
+            PooledConnection pooled = waiter.handed;
+            if (pooled != null) {
+                return pooled;
+            }
+            if (this.waiters.peek() != waiter) {
+                return null;
+            }
+            if ((i & 63) == 0 && System.nanoTime() - end >= 0) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Adapts {@link #spinNanos} to the time a client waited for a connection to be handed over:
+     * spin longer if it would have got it by spinning, shorter otherwise.
+     *
+     * @param waited - time in nanoseconds the client waited
+     */
+    private void adaptSpin(long waited) {
+        long spinNanos = this.spinNanos;
+        if (waited <= MAX_SPIN_NANOS) {
+            this.spinNanos = Math.min(MAX_SPIN_NANOS, spinNanos * 2 + 1000);
+        } else if (spinNanos > 0) {
+            this.spinNanos = spinNanos / 2;
+        }
+    }
+
+    /**
+     * Hands idle connections from the stack to the waiting clients, longest waiting first,
+     * until either of them runs out.
+     */
+    private void signalWaiter() {
+        while (!this.waiters.isEmpty()) {
+            PooledConnection pooled = this.poll();
+            if (pooled == null) {
+                return;
+            }
+            if (!this.handOff(pooled)) {
+                // nobody took it, check again once it is back on the stack
+                pooled.setState(PooledConnection.STATE_IDLE);
+                this.push(pooled);
+            }
+        }
+    }
+
+    /**
+     * Hands a claimed connection to the client waiting the longest, skipping the ones
+     * that stopped waiting.
+     *
+     * @param pooled - connection in {@link PooledConnection#STATE_BUSY}
+     * @return true if a client took it, false if nobody is waiting
+     */
+    private boolean handOff(PooledConnection pooled) {
+        Waiter waiter;
+        while ((waiter = this.waiters.peek()) != null) {
+            // another thread may be serving the same waiter, only the one removing it does
+            if (this.waiters.remove(waiter) && waiter.take(pooled)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * See if connections are handed out in arrival order
+     *
+     * @return true if the stack is fair
+     */
+    public boolean isFair() {
+        return this.fair;
+    }
+
+    /**
+     * Number of stripes of the stack
+     *
+     * @return int - number of stripes, 1 if not striped
+     */
+    public int getStripeCount() {
+        return this.stripes.length;
+    }
+
+    /**
+     * Number of threads and {@link Waiter}s waiting for a connection to be offered
+     *
+     * @return int - number of waiting clients
+     */
+    public int getWaiterCount() {
+        return this.waiters.size();
+    }
+}
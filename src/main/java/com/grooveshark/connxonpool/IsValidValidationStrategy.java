@@ -0,0 +1,45 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * {@link ValidationStrategy} using the JDBC4 {@link java.sql.Connection#isValid(int)}, which lets the driver
+ * check the connection the cheapest way it knows. Needs a JDBC4 driver.
+ *
+ * @author andy.compeer@gmail.com
+ */
+public class IsValidValidationStrategy implements ValidationStrategy {
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isValid(Connection conn, int timeout) throws SQLException {
+        return conn.isValid(timeout);
+    }
+
+    @Override
+    public String toString() {
+        return "isValid";
+    }
+}
@@ -0,0 +1,187 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Periodically reports connections held by clients for longer than {@link PoolConfiguration#getLeakDetectionThreshold()}.
+ *
+ * <p>
+ * A client that never closes its connection keeps it busy forever: the {@link ConnectionReleaser} only takes back
+ * connections whose physical connection got closed. The detector logs a warning for every borrow held past the
+ * threshold, once, with the thread that borrowed the connection and, when known, the stack trace of the borrow.
+ * A leaked connection released later on is logged too. The connection is left to the client, as it may just be slow.
+ * </p>
+ * <p>
+ * Capturing a stack trace costs microseconds, too much to pay on every borrow. Only one borrow in
+ * {@link PoolConfiguration#getLeakStackSampling()} of every connection records its call site. A leak reported without
+ * a call site makes the detector record the call site of every borrow from then on, so the next leak from the same
+ * code is reported with it; meanwhile, the current stack of the borrowing thread is logged instead.
+ * </p>
+ * <p>
+ * Like the {@link ConnectionEvictor}, the detector does not own a thread and is scheduled on the
+ * {@link HousekeepingScheduler} every {@link #getInterval(PoolConfiguration)} milliseconds.
+ * </p>
+ *
+ * @author andy.compeer@gmail.com
+ */
+public class LeakDetector implements Runnable
+{
+    /**
+     * Bounds of the interval between two runs, in milliseconds
+     */
+    public static final long MIN_INTERVAL = 500;
+    public static final long MAX_INTERVAL = 30000;
+
+    public static final Logger log = Logger.getLogger(LeakDetector.class);
+
+    /**
+     * Parent {@link ConnectionPoolManager}
+     */
+    private final ConnectionPoolManager pool;
+
+    /**
+     * One borrow in this many records its call site
+     */
+    private final int sampling;
+
+    /**
+     * Set once a leak has been reported without a call site, every borrow records its call site from then on
+     */
+    private volatile boolean captureAll = false;
+
+    /**
+     * Number of borrows reported as leaked
+     */
+    private final AtomicLong leakCount = new AtomicLong(0);
+
+    /**
+     * Constructor with {@link ConnectionPoolManager}
+     */
+    public LeakDetector(ConnectionPoolManager pool) {
+        this.pool = pool;
+        this.sampling = Math.max(1, pool.getProps().getLeakStackSampling());
+    }
+
+    /**
+     * Interval between two runs for the given properties: half the leak detection threshold,
+     * within {@link #MIN_INTERVAL} and {@link #MAX_INTERVAL}.
+     *
+     * @param props - {@link PoolConfiguration} of the pool
+     * @return interval in milliseconds
+     */
+    public static long getInterval(PoolConfiguration props) {
+        return Math.max(MIN_INTERVAL, Math.min(MAX_INTERVAL, props.getLeakDetectionThreshold() / 2));
+    }
+
+    /**
+     * Call site of a borrow, if it is to be recorded. Called on every borrow.
+     *
+     * @param borrowCount - number of times the connection has been borrowed
+     * @return {@link java.lang.Throwable} holding the stack trace of the borrow, null if not recorded
+     */
+    Throwable captureSite(int borrowCount) {
+        if (this.captureAll || borrowCount % this.sampling == 0) {
+            return new Throwable("Connection borrowed here");
+        }
+        return null;
+    }
+
+    /**
+     * Logs the release of a connection reported as leaked. Called on every release.
+     *
+     * @param pooled - {@link PooledConnection} being released
+     */
+    void released(PooledConnection pooled) {
+        if (pooled.isLeakReported()) {
+            log.info("Connection reported as leaked released to pool " + this.pool.getName() + " after "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - pooled.getBorrowedAt()) + " ms: " + pooled);
+        }
+        pooled.returned();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run() {
+        // pool is closed, nothing is leaking
+        if (this.pool.isClosed()) {
+            return;
+        }
+        long threshold = TimeUnit.MILLISECONDS.toNanos(this.pool.getProps().getLeakDetectionThreshold());
+        long now = System.nanoTime();
+        for (int i = 0; i < this.pool.getCapacity(); i++) {
+            PooledConnection pooled = this.pool.getPooledConnection(i);
+            if (pooled == null || pooled.getState() != PooledConnection.STATE_BUSY || !pooled.isHandedOut()
+                    || pooled.isLeakReported() || now - pooled.getBorrowedAt() < threshold) {
+                continue;
+            }
+            pooled.setLeakReported();
+            this.leakCount.incrementAndGet();
+            this.report(pooled, now);
+        }//for
+    }
+
+    private void report(PooledConnection pooled, long now) {
+        Thread borrower = pooled.getBorrower();
+        String message = "Connection leak detected in pool " + this.pool.getName() + ": " + pooled
+            + " borrowed " + TimeUnit.NANOSECONDS.toMillis(now - pooled.getBorrowedAt()) + " ms ago by thread "
+            + (borrower == null ? "unknown" : borrower.getName());
+        Throwable site = pooled.getBorrowSite();
+        if (site != null) {
+            log.warn(message, site);
+            return;
+        }
+        if (!this.captureAll) {
+            this.captureAll = true;
+            message += ". Call site of the borrow not sampled, recording the call site of every borrow from now on";
+        }
+        if (borrower != null && borrower.isAlive()) {
+            Throwable current = new Throwable("Borrowing thread is currently here");
+            current.setStackTrace(borrower.getStackTrace());
+            log.warn(message, current);
+        } else {
+            log.warn(message + ". Borrowing thread has terminated");
+        }
+    }
+
+    /**
+     * Whether the call site of every borrow is recorded, after a leak was reported without one
+     *
+     * @return true if every borrow records its call site
+     */
+    public boolean isCapturingAll() {
+        return this.captureAll;
+    }
+
+    /**
+     * Number of borrows reported as leaked
+     *
+     * @return long - leaks
+     */
+    public long getLeakCount() {
+        return this.leakCount.get();
+    }
+}
@@ -0,0 +1,48 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool;
+
+/**
+ * {@link ValidationStrategy} using the lightweight ping of MySQL Connector/J.
+ *
+ * <p>
+ * Connector/J does not send a query starting with {@link #PING_QUERY} to the server. It sends a
+ * COM_PING packet instead, which is not parsed or executed, and returns an empty result. Other drivers
+ * run it as the plain <code>SELECT 1</code> it is, which still validates the connection.
+ * </p>
+ *
+ * @author andy.compeer@gmail.com
+ */
+public class PingValidationStrategy extends QueryValidationStrategy {
+
+    /**
+     * Query recognized by Connector/J as a ping
+     */
+    public static final String PING_QUERY = "/* ping */ SELECT 1";
+
+    public PingValidationStrategy() {
+        super(PING_QUERY);
+    }
+
+    @Override
+    public String toString() {
+        return "ping";
+    }
+}
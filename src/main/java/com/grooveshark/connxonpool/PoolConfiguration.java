@@ -151,6 +151,469 @@ public interface PoolConfiguration {
      */
     public boolean getRunReleaser();
 
+    /**
+     * Number of threads opening connections in the background, i.e., the maximum number
+     * of connections being opened at the same time. When 0, a client finding no idle
+     * connection opens a new one on its own thread.
+     *
+     * @param - creatorThreads for this pool
+     */
+    public void setCreatorThreads(int creatorThreads);
+
+    /**
+     * Number of threads opening connections in the background, i.e., the maximum number
+     * of connections being opened at the same time. When 0, a client finding no idle
+     * connection opens a new one on its own thread.
+     *
+     * @return - number of creator threads of this pool
+     */
+    public int getCreatorThreads();
+
+    /**
+     * Minimum number of idle connections the pool keeps ahead of demand, opening
+     * new ones in the background when the idle connections drop below it.
+     * Needs {@link #getCreatorThreads()} to be more than 0.
+     *
+     * @param - minIdle for this pool
+     */
+    public void setMinIdle(int minIdle);
+
+    /**
+     * Minimum number of idle connections the pool keeps ahead of demand, opening
+     * new ones in the background when the idle connections drop below it.
+     * Needs {@link #getCreatorThreads()} to be more than 0.
+     *
+     * @return - minimum number of idle connections of this pool
+     */
+    public int getMinIdle();
+
+    /**
+     * Number of threads opening the {@link #getInitialSize()} connections in parallel
+     * when a {@link ConnectionPoolManager} is instantiated. 1 opens them one after another.
+     *
+     * @param - warmupThreads for this pool
+     */
+    public void setWarmupThreads(int warmupThreads);
+
+    /**
+     * Number of threads opening the {@link #getInitialSize()} connections in parallel
+     * when a {@link ConnectionPoolManager} is instantiated. 1 opens them one after another.
+     *
+     * @return - number of warm up threads of this pool
+     */
+    public int getWarmupThreads();
+
+    /**
+     * Specifies whether a {@link ConnectionPoolManager} being instantiated should return
+     * without waiting for its {@link #getInitialSize()} connections to be opened.
+     * See {@link ConnectionPoolManager#getWarmup()} to follow the warm up.
+     *
+     * @param - asyncWarmup boolean value. True if the initial connections are opened in the background.
+     */
+    public void setAsyncWarmup(boolean asyncWarmup);
+
+    /**
+     * Specifies whether a {@link ConnectionPoolManager} being instantiated should return
+     * without waiting for its {@link #getInitialSize()} connections to be opened.
+     * See {@link ConnectionPoolManager#getWarmup()} to follow the warm up.
+     *
+     * @return - boolean value. True if the initial connections are opened in the background.
+     */
+    public boolean getAsyncWarmup();
+
+    /**
+     * Time in milliseconds after which an idle connection is closed, as long as the pool keeps
+     * {@link #getMinIdle()} idle connections, which are renewed instead. 0 keeps idle connections forever.
+     *
+     * @param - idleTimeout in milliseconds
+     */
+    public void setIdleTimeout(long idleTimeout);
+
+    /**
+     * Time in milliseconds after which an idle connection is closed, as long as the pool keeps
+     * {@link #getMinIdle()} idle connections, which are renewed instead. 0 keeps idle connections forever.
+     *
+     * @return - idle timeout in milliseconds
+     */
+    public long getIdleTimeout();
+
+    /**
+     * Time in milliseconds after which a connection is replaced by a new one, once idle.
+     * Should be shorter than any time limit imposed by the database, e.g. MySQL's <code>wait_timeout</code>.
+     * 0 keeps connections forever.
+     *
+     * @param - maxLifetime in milliseconds
+     */
+    public void setMaxLifetime(long maxLifetime);
+
+    /**
+     * Time in milliseconds after which a connection is replaced by a new one, once idle.
+     * Should be shorter than any time limit imposed by the database, e.g. MySQL's <code>wait_timeout</code>.
+     * 0 keeps connections forever.
+     *
+     * @return - maximum lifetime in milliseconds
+     */
+    public long getMaxLifetime();
+
+    /**
+     * {@link ValidationStrategy} checking connections idle for {@link #getValidationIdleThreshold()}
+     * before handing them out: <code>none</code>, <code>isValid</code>, <code>ping</code>,
+     * <code>query</code> (runs {@link #getValidationQuery()}) or the class name of a custom strategy.
+     *
+     * @param - validation strategy name
+     */
+    public void setValidation(String validation);
+
+    /**
+     * {@link ValidationStrategy} checking connections idle for {@link #getValidationIdleThreshold()}
+     * before handing them out: <code>none</code>, <code>isValid</code>, <code>ping</code>,
+     * <code>query</code> (runs {@link #getValidationQuery()}) or the class name of a custom strategy.
+     *
+     * @return - validation strategy name
+     */
+    public String getValidation();
+
+    /**
+     * Query run by the <code>query</code> {@link #getValidation()} strategy
+     *
+     * @param - validationQuery, e.g. <code>SELECT 1</code>
+     */
+    public void setValidationQuery(String validationQuery);
+
+    /**
+     * Query run by the <code>query</code> {@link #getValidation()} strategy
+     *
+     * @return - validation query
+     */
+    public String getValidationQuery();
+
+    /**
+     * Time in milliseconds a connection needs to have been idle to be validated before being handed out.
+     * Connections released more recently are handed out without validation. 0 validates on every borrow.
+     *
+     * @param - validationIdleThreshold in milliseconds
+     */
+    public void setValidationIdleThreshold(long validationIdleThreshold);
+
+    /**
+     * Time in milliseconds a connection needs to have been idle to be validated before being handed out.
+     * Connections released more recently are handed out without validation. 0 validates on every borrow.
+     *
+     * @return - validation idle threshold in milliseconds
+     */
+    public long getValidationIdleThreshold();
+
+    /**
+     * Maximum time in seconds a validation waits for the database
+     *
+     * @param - validationTimeout in seconds
+     */
+    public void setValidationTimeout(int validationTimeout);
+
+    /**
+     * Maximum time in seconds a validation waits for the database
+     *
+     * @return - validation timeout in seconds
+     */
+    public int getValidationTimeout();
+
+    /**
+     * Maximum number of {@link java.sql.PreparedStatement}s cached per physical connection, see
+     * {@link StatementCache}. 0 does not cache statements.
+     *
+     * @param - statementCacheSize for this pool
+     */
+    public void setStatementCacheSize(int statementCacheSize);
+
+    /**
+     * Maximum number of {@link java.sql.PreparedStatement}s cached per physical connection, see
+     * {@link StatementCache}. 0 does not cache statements.
+     *
+     * @return - statement cache size of this pool
+     */
+    public int getStatementCacheSize();
+
+    /**
+     * Name of the pool, used for its JMX name. Pools without a name are named <code>connxonpool-N</code>.
+     *
+     * @param - poolName for this pool
+     */
+    public void setPoolName(String poolName);
+
+    /**
+     * Name of the pool, used for its JMX name. Pools without a name are named <code>connxonpool-N</code>.
+     *
+     * @return - name of this pool
+     */
+    public String getPoolName();
+
+    /**
+     * Specifies whether the pool is registered as a JMX MBean, see {@link ConnectionPoolManagerMBean}.
+     *
+     * @param - jmx boolean value. True if the pool should be registered.
+     */
+    public void setJmx(boolean jmx);
+
+    /**
+     * Specifies whether the pool is registered as a JMX MBean, see {@link ConnectionPoolManagerMBean}.
+     *
+     * @return - boolean value. True if the pool is registered.
+     */
+    public boolean getJmx();
+
+    /**
+     * Specifies whether connections are handed out in the order clients asked for them. When not set,
+     * a client may take a connection released while others were waiting, which gives more throughput
+     * but longer worst case waits. See {@link IdleConnectionStack}.
+     *
+     * @param - fair boolean value. True if clients are served in arrival order.
+     */
+    public void setFair(boolean fair);
+
+    /**
+     * Specifies whether connections are handed out in the order clients asked for them. When not set,
+     * a client may take a connection released while others were waiting, which gives more throughput
+     * but longer worst case waits. See {@link IdleConnectionStack}.
+     *
+     * @return - boolean value. True if clients are served in arrival order.
+     */
+    public boolean getFair();
+
+    /**
+     * Time in milliseconds a client can hold a connection before the {@link LeakDetector} reports it
+     * as leaked, with the call site of the borrow if recorded. 0 does not detect leaks.
+     *
+     * @param - leakDetectionThreshold in milliseconds
+     */
+    public void setLeakDetectionThreshold(long leakDetectionThreshold);
+
+    /**
+     * Time in milliseconds a client can hold a connection before the {@link LeakDetector} reports it
+     * as leaked, with the call site of the borrow if recorded. 0 does not detect leaks.
+     *
+     * @return - leak detection threshold in milliseconds
+     */
+    public long getLeakDetectionThreshold();
+
+    /**
+     * One borrow in this many records its call site for the {@link LeakDetector}. 1 records every borrow,
+     * which costs a stack trace per borrow.
+     *
+     * @param - leakStackSampling for this pool
+     */
+    public void setLeakStackSampling(int leakStackSampling);
+
+    /**
+     * One borrow in this many records its call site for the {@link LeakDetector}. 1 records every borrow,
+     * which costs a stack trace per borrow.
+     *
+     * @return - leak stack sampling of this pool
+     */
+    public int getLeakStackSampling();
+
+    /**
+     * Specifies whether clients of this pool run on virtual threads. The pool then never blocks a client
+     * while holding a monitor, and physical connects run on the {@link #getCreatorThreads()} platform threads,
+     * while reconnects, validations, resets and disconnects run on separate platform threads of the creator, so a
+     * driver blocking on a monitor pins a platform thread rather than a carrier thread. Clients park for these
+     * up to {@link #getMaxWait()} milliseconds. Needs at least one creator thread.
+     *
+     * @param - virtualThreads boolean value. True if clients run on virtual threads.
+     */
+    public void setVirtualThreads(boolean virtualThreads);
+
+    /**
+     * Specifies whether clients of this pool run on virtual threads. The pool then never blocks a client
+     * while holding a monitor, and physical connects run on the {@link #getCreatorThreads()} platform threads,
+     * while reconnects, validations, resets and disconnects run on separate platform threads of the creator, so a
+     * driver blocking on a monitor pins a platform thread rather than a carrier thread. Clients park for these
+     * up to {@link #getMaxWait()} milliseconds. Needs at least one creator thread.
+     *
+     * @return - boolean value. True if clients run on virtual threads.
+     */
+    public boolean getVirtualThreads();
+
+    /**
+     * Specifies whether the pool sizes itself: a {@link PoolSizeController} moves {@link #getMaxConnections()}
+     * between {@link #getMinConnections()} and the configured maximum connections, to the smallest size keeping
+     * the p99 acquire wait under {@link #getAcquireWaitSlo()}.
+     *
+     * @param - adaptiveSizing boolean value. True if the pool sizes itself.
+     */
+    public void setAdaptiveSizing(boolean adaptiveSizing);
+
+    /**
+     * Specifies whether the pool sizes itself: a {@link PoolSizeController} moves {@link #getMaxConnections()}
+     * between {@link #getMinConnections()} and the configured maximum connections, to the smallest size keeping
+     * the p99 acquire wait under {@link #getAcquireWaitSlo()}.
+     *
+     * @return - boolean value. True if the pool sizes itself.
+     */
+    public boolean getAdaptiveSizing();
+
+    /**
+     * Smallest size the {@link PoolSizeController} shrinks the pool to, with
+     * {@link #getAdaptiveSizing()} set.
+     *
+     * @param - minConnections for this pool
+     */
+    public void setMinConnections(int minConnections);
+
+    /**
+     * Smallest size the {@link PoolSizeController} shrinks the pool to, with
+     * {@link #getAdaptiveSizing()} set.
+     *
+     * @return - minimum number of connections of this pool
+     */
+    public int getMinConnections();
+
+    /**
+     * Target of the p99 time in milliseconds clients wait for a connection, kept by the
+     * {@link PoolSizeController} with {@link #getAdaptiveSizing()} set.
+     *
+     * @param - acquireWaitSlo in milliseconds
+     */
+    public void setAcquireWaitSlo(long acquireWaitSlo);
+
+    /**
+     * Target of the p99 time in milliseconds clients wait for a connection, kept by the
+     * {@link PoolSizeController} with {@link #getAdaptiveSizing()} set.
+     *
+     * @return - p99 acquire wait target in milliseconds
+     */
+    public long getAcquireWaitSlo();
+
+    /**
+     * Interval in milliseconds between two runs of the {@link PoolSizeController}, with
+     * {@link #getAdaptiveSizing()} set. The controller looks at the last {@link PoolSizeController#WINDOW}
+     * intervals.
+     *
+     * @param - sizingInterval in milliseconds
+     */
+    public void setSizingInterval(long sizingInterval);
+
+    /**
+     * Interval in milliseconds between two runs of the {@link PoolSizeController}, with
+     * {@link #getAdaptiveSizing()} set. The controller looks at the last {@link PoolSizeController#WINDOW}
+     * intervals.
+     *
+     * @return - sizing interval in milliseconds
+     */
+    public long getSizingInterval();
+
+    /**
+     * Number of stripes the idle connections are split into, see {@link IdleConnectionStack}.
+     * Threads mostly borrow and release on the stripe of their thread id, which scales
+     * better on many cores. 1 keeps a single stack.
+     *
+     * @param - stripes number of stripes
+     */
+    public void setStripes(int stripes);
+
+    /**
+     * Number of stripes the idle connections are split into, see {@link IdleConnectionStack}.
+     * Threads mostly borrow and release on the stripe of their thread id, which scales
+     * better on many cores. 1 keeps a single stack.
+     *
+     * @return - number of stripes
+     */
+    public int getStripes();
+
+    /**
+     * Number of connects failing in a row that open the {@link CircuitBreaker} of the pool.
+     * 0 does not use a breaker.
+     *
+     * @param - breakerThreshold number of failed connects
+     */
+    public void setBreakerThreshold(int breakerThreshold);
+
+    /**
+     * Number of connects failing in a row that open the {@link CircuitBreaker} of the pool.
+     * 0 does not use a breaker.
+     *
+     * @return - number of failed connects, 0 if there is no breaker
+     */
+    public int getBreakerThreshold();
+
+    /**
+     * Time in milliseconds the {@link CircuitBreaker} stays open before it lets a connect
+     * through to probe the database.
+     *
+     * @param - breakerBackoff in milliseconds
+     */
+    public void setBreakerBackoff(long breakerBackoff);
+
+    /**
+     * Time in milliseconds the {@link CircuitBreaker} stays open before it lets a connect
+     * through to probe the database.
+     *
+     * @return - breaker backoff in milliseconds
+     */
+    public long getBreakerBackoff();
+
+    /**
+     * Longest time in milliseconds the {@link CircuitBreaker} stays open, as the backoff
+     * doubles after every failed probe.
+     *
+     * @param - breakerMaxBackoff in milliseconds
+     */
+    public void setBreakerMaxBackoff(long breakerMaxBackoff);
+
+    /**
+     * Longest time in milliseconds the {@link CircuitBreaker} stays open, as the backoff
+     * doubles after every failed probe.
+     *
+     * @return - maximum breaker backoff in milliseconds
+     */
+    public long getBreakerMaxBackoff();
+
+    /**
+     * Number of physical connects per second this pool makes at most, see {@link ConnectRateLimiter}.
+     * Connects over the rate wait for their turn. 0 does not limit the pool.
+     *
+     * @param - connectRate connects per second
+     */
+    public void setConnectRate(int connectRate);
+
+    /**
+     * Number of physical connects per second this pool makes at most, see {@link ConnectRateLimiter}.
+     * Connects over the rate wait for their turn. 0 does not limit the pool.
+     *
+     * @return - connects per second, 0 if not limited
+     */
+    public int getConnectRate();
+
+    /**
+     * Number of physical connects made at once after a quiet period, with {@link #getConnectRate()} set.
+     *
+     * @param - connectBurst number of connects
+     */
+    public void setConnectBurst(int connectBurst);
+
+    /**
+     * Number of physical connects made at once after a quiet period, with {@link #getConnectRate()} set.
+     *
+     * @return - number of connects
+     */
+    public int getConnectBurst();
+
+    /**
+     * Specifies whether each thread should first try to get back the connection
+     * it released last, before looking into the connections shared by all threads.
+     *
+     * @param - threadAffinity boolean value. True if connections should be
+     * bound to the threads releasing them.
+     */
+    public void setThreadAffinity(boolean threadAffinity);
+
+    /**
+     * Specifies whether each thread should first try to get back the connection
+     * it released last, before looking into the connections shared by all threads.
+     *
+     * @return - boolean value. True if connections are bound to the threads releasing them.
+     */
+    public boolean getThreadAffinity();
+
     /**
      * {@link java.util.Properties} required by the {@link ConnectionPoolManager}
      * to reconnect using {@link java.sql.Driver} and get a valid {@link java.sql.Connection}.
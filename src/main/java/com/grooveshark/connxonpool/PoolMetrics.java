@@ -0,0 +1,166 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics of a {@link ConnectionPoolManager}, see {@link ConnectionPoolManager#getMetrics()}.
+ *
+ * <p>
+ * Durations are recorded in {@link Histogram}s, without locking or allocating, on the threads of the clients:
+ * </p>
+ * <ul>
+ * <li>{@link #getAcquireWait()}: time spent in {@link ConnectionPoolManager#getConnection()}, timeouts included</li>
+ * <li>{@link #getHoldTime()}: time from a borrow to the release of the connection</li>
+ * <li>{@link #getConnectTime()}: time spent making a physical connection, new ones and reconnects</li>
+ * </ul>
+ * <p>
+ * Snapshots of the histograms give p50/p99/p999 on demand, e.g. to size {@link PoolConfiguration#getMaxConnections()}
+ * from the hold times and the rate of borrows.
+ * </p>
+ *
+ * @author andy.compeer@gmail.com
+ */
+public class PoolMetrics {
+
+    private final Histogram acquireWait = new Histogram();
+    private final Histogram holdTime = new Histogram();
+    private final Histogram connectTime = new Histogram();
+    private final AtomicLong timeouts = new AtomicLong(0);
+    private final AtomicLong connectFailures = new AtomicLong(0);
+    private final AtomicLong created = new AtomicLong(0);
+    private final AtomicLong reconnected = new AtomicLong(0);
+
+    /**
+     * Records the time a client spent in {@link ConnectionPoolManager#getConnection()}
+     *
+     * @param nanos - duration in nanoseconds
+     */
+    public void recordAcquire(long nanos) {
+        this.acquireWait.record(nanos);
+    }
+
+    /**
+     * Records a client timing out in {@link ConnectionPoolManager#getConnection()}
+     *
+     * @param nanos - time waited in nanoseconds
+     */
+    public void recordTimeout(long nanos) {
+        this.acquireWait.record(nanos);
+        this.timeouts.incrementAndGet();
+    }
+
+    /**
+     * Records the time a connection was held by a client
+     *
+     * @param nanos - duration in nanoseconds
+     */
+    public void recordHold(long nanos) {
+        this.holdTime.record(nanos);
+    }
+
+    /**
+     * Records the time spent making a physical connection
+     *
+     * @param nanos - duration in nanoseconds
+     * @param failed - true if no connection was made
+     */
+    public void recordConnect(long nanos, boolean failed) {
+        this.connectTime.record(nanos);
+        if (failed) {
+            this.connectFailures.incrementAndGet();
+        }
+    }
+
+    /**
+     * Counts a new physical connection
+     */
+    public void recordCreated() {
+        this.created.incrementAndGet();
+    }
+
+    /**
+     * Counts a physical connection reconnected
+     */
+    public void recordReconnected() {
+        this.reconnected.incrementAndGet();
+    }
+
+    public Histogram getAcquireWait() {
+        return this.acquireWait;
+    }
+
+    public Histogram getHoldTime() {
+        return this.holdTime;
+    }
+
+    public Histogram getConnectTime() {
+        return this.connectTime;
+    }
+
+    /**
+     * Number of clients that timed out waiting for a connection
+     *
+     * @return long - timeouts
+     */
+    public long getTimeouts() {
+        return this.timeouts.get();
+    }
+
+    /**
+     * Number of failures to make a physical connection
+     *
+     * @return long - connect failures
+     */
+    public long getConnectFailures() {
+        return this.connectFailures.get();
+    }
+
+    /**
+     * Number of physical connections opened, reconnects aside
+     *
+     * @return long - created connections
+     */
+    public long getCreated() {
+        return this.created.get();
+    }
+
+    /**
+     * Number of physical connections reconnected
+     *
+     * @return long - reconnected connections
+     */
+    public long getReconnected() {
+        return this.reconnected.get();
+    }
+
+    /**
+     * Snapshots of all histograms and the counters, one per line
+     */
+    @Override
+    public String toString() {
+        return "Acquire Wait: " + this.acquireWait.snapshot() + "\n" +
+            "Hold Time: " + this.holdTime.snapshot() + "\n" +
+            "Connect Time: " + this.connectTime.snapshot() + "\n" +
+            "Timeouts: " + this.getTimeouts() + "; Connect Failures: " + this.getConnectFailures() +
+            "; Created: " + this.getCreated() + "; Reconnected: " + this.getReconnected();
+    }
+}
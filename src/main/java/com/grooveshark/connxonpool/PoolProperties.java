@@ -44,6 +44,38 @@ public class PoolProperties implements PoolConfiguration {
     public static final int DEFAULT_MAX_WAIT = 30000; // 30 seconds
     public static final int DEFAULT_RELEASER_INTERVAL = 20000; // 20 seconds
     public static final boolean DEFAULT_RUN_RELEASER = true;
+    public static final boolean DEFAULT_THREAD_AFFINITY = false;
+    public static final int DEFAULT_CREATOR_THREADS = 0;
+    public static final int DEFAULT_MIN_IDLE = 0;
+    public static final int DEFAULT_WARMUP_THREADS = 1;
+    public static final boolean DEFAULT_ASYNC_WARMUP = false;
+    public static final long DEFAULT_IDLE_TIMEOUT = 0; // kept forever
+    public static final long DEFAULT_MAX_LIFETIME = 0; // kept forever
+    public static final String VALIDATION_NONE = "none";
+    public static final String VALIDATION_IS_VALID = "isValid";
+    public static final String VALIDATION_PING = "ping";
+    public static final String VALIDATION_QUERY = "query";
+    public static final String DEFAULT_VALIDATION = VALIDATION_NONE;
+    public static final String DEFAULT_VALIDATION_QUERY = "SELECT 1";
+    public static final long DEFAULT_VALIDATION_IDLE_THRESHOLD = 1000; // 1 second
+    public static final int DEFAULT_VALIDATION_TIMEOUT = 5; // 5 seconds
+    public static final int DEFAULT_STATEMENT_CACHE_SIZE = 0;
+    public static final String DEFAULT_POOL_NAME = "";
+    public static final boolean DEFAULT_JMX = true;
+    public static final boolean DEFAULT_FAIR = false;
+    public static final long DEFAULT_LEAK_DETECTION_THRESHOLD = 0;
+    public static final int DEFAULT_LEAK_STACK_SAMPLING = 100;
+    public static final boolean DEFAULT_VIRTUAL_THREADS = false;
+    public static final boolean DEFAULT_ADAPTIVE_SIZING = false;
+    public static final int DEFAULT_MIN_CONNECTIONS = 1;
+    public static final long DEFAULT_ACQUIRE_WAIT_SLO = 10; // 10 milliseconds
+    public static final long DEFAULT_SIZING_INTERVAL = 5000; // 5 seconds
+    public static final int DEFAULT_STRIPES = 1;
+    public static final int DEFAULT_BREAKER_THRESHOLD = 0;
+    public static final long DEFAULT_BREAKER_BACKOFF = 1000; // 1 second
+    public static final long DEFAULT_BREAKER_MAX_BACKOFF = 60000; // 1 minute
+    public static final int DEFAULT_CONNECT_RATE = 0;
+    public static final int DEFAULT_CONNECT_BURST = 10;
 
 
     /**
@@ -57,6 +89,34 @@ public class PoolProperties implements PoolConfiguration {
     private volatile int maxWait;
     private volatile int releaserInterval;
     private volatile boolean runReleaser;
+    private volatile boolean threadAffinity;
+    private volatile int creatorThreads;
+    private volatile int minIdle;
+    private volatile int warmupThreads;
+    private volatile boolean asyncWarmup;
+    private volatile long idleTimeout;
+    private volatile long maxLifetime;
+    private volatile String validation;
+    private volatile String validationQuery;
+    private volatile long validationIdleThreshold;
+    private volatile int validationTimeout;
+    private volatile int statementCacheSize;
+    private volatile String poolName;
+    private volatile boolean jmx;
+    private volatile boolean fair;
+    private volatile long leakDetectionThreshold;
+    private volatile int leakStackSampling;
+    private volatile boolean virtualThreads;
+    private volatile boolean adaptiveSizing;
+    private volatile int minConnections;
+    private volatile long acquireWaitSlo;
+    private volatile long sizingInterval;
+    private volatile int stripes;
+    private volatile int breakerThreshold;
+    private volatile long breakerBackoff;
+    private volatile long breakerMaxBackoff;
+    private volatile int connectRate;
+    private volatile int connectBurst;
     private volatile Properties URLProperties;
 
     /**
@@ -180,6 +240,455 @@ public class PoolProperties implements PoolConfiguration {
     public boolean getRunReleaser() {
         return this.runReleaser;
     }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setCreatorThreads(int creatorThreads) {
+        this.creatorThreads = creatorThreads;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getCreatorThreads() {
+        return this.creatorThreads;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setMinIdle(int minIdle) {
+        this.minIdle = minIdle;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getMinIdle() {
+        return this.minIdle;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setWarmupThreads(int warmupThreads) {
+        this.warmupThreads = warmupThreads;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getWarmupThreads() {
+        return this.warmupThreads;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setAsyncWarmup(boolean asyncWarmup) {
+        this.asyncWarmup = asyncWarmup;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean getAsyncWarmup() {
+        return this.asyncWarmup;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getIdleTimeout() {
+        return this.idleTimeout;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setMaxLifetime(long maxLifetime) {
+        this.maxLifetime = maxLifetime;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getMaxLifetime() {
+        return this.maxLifetime;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setValidation(String validation) {
+        this.validation = validation;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getValidation() {
+        return this.validation;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setValidationQuery(String validationQuery) {
+        this.validationQuery = validationQuery;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getValidationQuery() {
+        return this.validationQuery;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setValidationIdleThreshold(long validationIdleThreshold) {
+        this.validationIdleThreshold = validationIdleThreshold;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getValidationIdleThreshold() {
+        return this.validationIdleThreshold;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setValidationTimeout(int validationTimeout) {
+        this.validationTimeout = validationTimeout;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getValidationTimeout() {
+        return this.validationTimeout;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setStatementCacheSize(int statementCacheSize) {
+        this.statementCacheSize = statementCacheSize;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getStatementCacheSize() {
+        return this.statementCacheSize;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setPoolName(String poolName) {
+        this.poolName = poolName;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getPoolName() {
+        return this.poolName;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setJmx(boolean jmx) {
+        this.jmx = jmx;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean getJmx() {
+        return this.jmx;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setFair(boolean fair) {
+        this.fair = fair;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean getFair() {
+        return this.fair;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setLeakDetectionThreshold(long leakDetectionThreshold) {
+        this.leakDetectionThreshold = leakDetectionThreshold;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getLeakDetectionThreshold() {
+        return this.leakDetectionThreshold;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setLeakStackSampling(int leakStackSampling) {
+        this.leakStackSampling = leakStackSampling;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getLeakStackSampling() {
+        return this.leakStackSampling;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean getVirtualThreads() {
+        return this.virtualThreads;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setAdaptiveSizing(boolean adaptiveSizing) {
+        this.adaptiveSizing = adaptiveSizing;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean getAdaptiveSizing() {
+        return this.adaptiveSizing;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setMinConnections(int minConnections) {
+        this.minConnections = minConnections;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getMinConnections() {
+        return this.minConnections;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setAcquireWaitSlo(long acquireWaitSlo) {
+        this.acquireWaitSlo = acquireWaitSlo;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getAcquireWaitSlo() {
+        return this.acquireWaitSlo;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setSizingInterval(long sizingInterval) {
+        this.sizingInterval = sizingInterval;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getSizingInterval() {
+        return this.sizingInterval;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setStripes(int stripes) {
+        this.stripes = stripes;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getStripes() {
+        return this.stripes;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setBreakerThreshold(int breakerThreshold) {
+        this.breakerThreshold = breakerThreshold;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getBreakerThreshold() {
+        return this.breakerThreshold;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setBreakerBackoff(long breakerBackoff) {
+        this.breakerBackoff = breakerBackoff;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getBreakerBackoff() {
+        return this.breakerBackoff;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setBreakerMaxBackoff(long breakerMaxBackoff) {
+        this.breakerMaxBackoff = breakerMaxBackoff;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getBreakerMaxBackoff() {
+        return this.breakerMaxBackoff;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setConnectRate(int connectRate) {
+        this.connectRate = connectRate;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getConnectRate() {
+        return this.connectRate;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setConnectBurst(int connectBurst) {
+        this.connectBurst = connectBurst;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getConnectBurst() {
+        return this.connectBurst;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setThreadAffinity(boolean threadAffinity) {
+        this.threadAffinity = threadAffinity;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean getThreadAffinity() {
+        return this.threadAffinity;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -221,6 +730,34 @@ public class PoolProperties implements PoolConfiguration {
         this.maxWait = DEFAULT_MAX_WAIT;
         this.releaserInterval = DEFAULT_RELEASER_INTERVAL;
         this.runReleaser = DEFAULT_RUN_RELEASER;
+        this.threadAffinity = DEFAULT_THREAD_AFFINITY;
+        this.creatorThreads = DEFAULT_CREATOR_THREADS;
+        this.minIdle = DEFAULT_MIN_IDLE;
+        this.warmupThreads = DEFAULT_WARMUP_THREADS;
+        this.asyncWarmup = DEFAULT_ASYNC_WARMUP;
+        this.idleTimeout = DEFAULT_IDLE_TIMEOUT;
+        this.maxLifetime = DEFAULT_MAX_LIFETIME;
+        this.validation = DEFAULT_VALIDATION;
+        this.validationQuery = DEFAULT_VALIDATION_QUERY;
+        this.validationIdleThreshold = DEFAULT_VALIDATION_IDLE_THRESHOLD;
+        this.validationTimeout = DEFAULT_VALIDATION_TIMEOUT;
+        this.statementCacheSize = DEFAULT_STATEMENT_CACHE_SIZE;
+        this.poolName = DEFAULT_POOL_NAME;
+        this.jmx = DEFAULT_JMX;
+        this.fair = DEFAULT_FAIR;
+        this.leakDetectionThreshold = DEFAULT_LEAK_DETECTION_THRESHOLD;
+        this.leakStackSampling = DEFAULT_LEAK_STACK_SAMPLING;
+        this.virtualThreads = DEFAULT_VIRTUAL_THREADS;
+        this.adaptiveSizing = DEFAULT_ADAPTIVE_SIZING;
+        this.minConnections = DEFAULT_MIN_CONNECTIONS;
+        this.acquireWaitSlo = DEFAULT_ACQUIRE_WAIT_SLO;
+        this.sizingInterval = DEFAULT_SIZING_INTERVAL;
+        this.stripes = DEFAULT_STRIPES;
+        this.breakerThreshold = DEFAULT_BREAKER_THRESHOLD;
+        this.breakerBackoff = DEFAULT_BREAKER_BACKOFF;
+        this.breakerMaxBackoff = DEFAULT_BREAKER_MAX_BACKOFF;
+        this.connectRate = DEFAULT_CONNECT_RATE;
+        this.connectBurst = DEFAULT_CONNECT_BURST;
     }
 
     /**
@@ -239,6 +776,59 @@ public class PoolProperties implements PoolConfiguration {
                 props.getProperty("POOL_RELEASER_INTERVAL", "" + DEFAULT_RELEASER_INTERVAL));
         this.runReleaser = Boolean.parseBoolean(
                 props.getProperty("POOL_RUN_RELEASER", (DEFAULT_RUN_RELEASER?"true":"false")));
+        this.threadAffinity = Boolean.parseBoolean(
+                props.getProperty("POOL_THREAD_AFFINITY", (DEFAULT_THREAD_AFFINITY?"true":"false")));
+        this.creatorThreads = Integer.parseInt(
+                props.getProperty("POOL_CREATOR_THREADS", "" + DEFAULT_CREATOR_THREADS));
+        this.minIdle = Integer.parseInt(
+                props.getProperty("POOL_MIN_IDLE", "" + DEFAULT_MIN_IDLE));
+        this.warmupThreads = Integer.parseInt(
+                props.getProperty("POOL_WARMUP_THREADS", "" + DEFAULT_WARMUP_THREADS));
+        this.asyncWarmup = Boolean.parseBoolean(
+                props.getProperty("POOL_ASYNC_WARMUP", (DEFAULT_ASYNC_WARMUP?"true":"false")));
+        this.idleTimeout = Long.parseLong(
+                props.getProperty("POOL_IDLE_TIMEOUT", "" + DEFAULT_IDLE_TIMEOUT));
+        this.maxLifetime = Long.parseLong(
+                props.getProperty("POOL_MAX_LIFETIME", "" + DEFAULT_MAX_LIFETIME));
+        this.validation = props.getProperty("POOL_VALIDATION", DEFAULT_VALIDATION);
+        this.validationQuery = props.getProperty("POOL_VALIDATION_QUERY", DEFAULT_VALIDATION_QUERY);
+        this.validationIdleThreshold = Long.parseLong(
+                props.getProperty("POOL_VALIDATION_IDLE_THRESHOLD", "" + DEFAULT_VALIDATION_IDLE_THRESHOLD));
+        this.validationTimeout = Integer.parseInt(
+                props.getProperty("POOL_VALIDATION_TIMEOUT", "" + DEFAULT_VALIDATION_TIMEOUT));
+        this.statementCacheSize = Integer.parseInt(
+                props.getProperty("POOL_STATEMENT_CACHE_SIZE", "" + DEFAULT_STATEMENT_CACHE_SIZE));
+        this.poolName = props.getProperty("POOL_NAME", DEFAULT_POOL_NAME);
+        this.jmx = Boolean.parseBoolean(
+                props.getProperty("POOL_JMX", (DEFAULT_JMX?"true":"false")));
+        this.fair = Boolean.parseBoolean(
+                props.getProperty("POOL_FAIR", (DEFAULT_FAIR?"true":"false")));
+        this.leakDetectionThreshold = Long.parseLong(
+                props.getProperty("POOL_LEAK_DETECTION_THRESHOLD", "" + DEFAULT_LEAK_DETECTION_THRESHOLD));
+        this.leakStackSampling = Integer.parseInt(
+                props.getProperty("POOL_LEAK_STACK_SAMPLING", "" + DEFAULT_LEAK_STACK_SAMPLING));
+        this.virtualThreads = Boolean.parseBoolean(
+                props.getProperty("POOL_VIRTUAL_THREADS", (DEFAULT_VIRTUAL_THREADS?"true":"false")));
+        this.adaptiveSizing = Boolean.parseBoolean(
+                props.getProperty("POOL_ADAPTIVE_SIZING", (DEFAULT_ADAPTIVE_SIZING?"true":"false")));
+        this.minConnections = Integer.parseInt(
+                props.getProperty("POOL_MIN_CONNECTIONS", "" + DEFAULT_MIN_CONNECTIONS));
+        this.acquireWaitSlo = Long.parseLong(
+                props.getProperty("POOL_ACQUIRE_WAIT_SLO", "" + DEFAULT_ACQUIRE_WAIT_SLO));
+        this.sizingInterval = Long.parseLong(
+                props.getProperty("POOL_SIZING_INTERVAL", "" + DEFAULT_SIZING_INTERVAL));
+        this.stripes = Integer.parseInt(
+                props.getProperty("POOL_STRIPES", "" + DEFAULT_STRIPES));
+        this.breakerThreshold = Integer.parseInt(
+                props.getProperty("POOL_BREAKER_THRESHOLD", "" + DEFAULT_BREAKER_THRESHOLD));
+        this.breakerBackoff = Long.parseLong(
+                props.getProperty("POOL_BREAKER_BACKOFF", "" + DEFAULT_BREAKER_BACKOFF));
+        this.breakerMaxBackoff = Long.parseLong(
+                props.getProperty("POOL_BREAKER_MAX_BACKOFF", "" + DEFAULT_BREAKER_MAX_BACKOFF));
+        this.connectRate = Integer.parseInt(
+                props.getProperty("POOL_CONNECT_RATE", "" + DEFAULT_CONNECT_RATE));
+        this.connectBurst = Integer.parseInt(
+                props.getProperty("POOL_CONNECT_BURST", "" + DEFAULT_CONNECT_BURST));
     }
 
 }
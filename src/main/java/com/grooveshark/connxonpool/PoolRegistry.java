@@ -0,0 +1,429 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Pools of a JVM, one per url and user, sharing a budget of connections.
+ *
+ * <p>
+ * {@link #getPool(String, String, String, PoolConfiguration)} creates the pool of a url and user on first use and
+ * returns the same pool afterwards. All pools run their housekeeping on the single {@link HousekeepingScheduler}
+ * thread. Each pool stays within its own {@link PoolConfiguration#getMaxConnections()}, and together they stay within
+ * the budget of the registry, e.g. the database's <code>max_connections</code> less some room for other clients.
+ * </p>
+ * <p>
+ * A pool that cannot open a connection because the budget is used up asks the registry to rebalance. The registry
+ * then closes idle connections of pools nobody is waiting on, and opens connections in the background for the pools
+ * with waiting clients, most waiting clients first. Only pools opening connections in the background, i.e. with
+ * {@link PoolConfiguration#getCreatorThreads()} set or used through {@link ConnectionPoolManager#acquireAsync()}, are
+ * served this way; the clients of the other pools wait for a connection released to their pool. It also rebalances every {@link #REBALANCE_INTERVAL} milliseconds,
+ * on the {@link HousekeepingScheduler}. Connections thus move to the pools that need them, instead of being fixed
+ * per pool.
+ * </p>
+ *
+ * @author andy.compeer@gmail.com
+ */
+public class PoolRegistry {
+
+    /**
+     * Logger
+     */
+    public static final Logger log = Logger.getLogger(PoolRegistry.class);
+
+    /**
+     * Interval in milliseconds between two periodic rebalances
+     */
+    public static final long REBALANCE_INTERVAL = 1000;
+
+    /**
+     * Key of a pool
+     */
+    private static final class Key {
+        private final String url;
+        private final String user;
+
+        private Key(String url, String user) {
+            this.url = url;
+            this.user = user;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return (this.url == null ? other.url == null : this.url.equals(other.url))
+                && (this.user == null ? other.user == null : this.user.equals(other.user));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (this.url == null ? 0 : this.url.hashCode()) + (this.user == null ? 0 : this.user.hashCode());
+        }
+    }
+
+    private final ConcurrentHashMap<Key, ConnectionPoolManager> pools = new ConcurrentHashMap<Key, ConnectionPoolManager>();
+
+    /**
+     * Taken to create a pool, so a url and user never get two
+     */
+    private final ReentrantLock createLock = new ReentrantLock();
+
+    /**
+     * Maximum number of connections of all pools, 0 for no budget
+     */
+    private volatile int maxConnections;
+
+    /**
+     * Number of connections of all pools, opened or being opened
+     */
+    private final AtomicInteger used = new AtomicInteger(0);
+
+    /**
+     * Flag to see if a rebalance is queued already
+     */
+    private final AtomicBoolean rebalanceQueued = new AtomicBoolean(false);
+
+    /**
+     * Schedule of the periodic rebalance on the {@link HousekeepingScheduler}
+     */
+    private final ScheduledFuture<?> rebalanceTask;
+
+    private volatile boolean closed = false;
+
+    /**
+     * Constructor of a registry without a budget
+     */
+    public PoolRegistry() {
+        this.maxConnections = 0;
+        this.rebalanceTask = this.scheduleRebalance();
+    }
+
+    /**
+     * Constructor with the budget of connections
+     *
+     * @param maxConnections - maximum number of connections of all pools, 0 for no budget
+     * @throws PoolConfigurationException - if the budget is less than 0
+     */
+    public PoolRegistry(int maxConnections) throws PoolConfigurationException {
+        if (maxConnections < 0) {
+            throw new PoolConfigurationException("Maximum connections needs to be 0 or more, not " + maxConnections);
+        }
+        this.maxConnections = maxConnections;
+        this.rebalanceTask = this.scheduleRebalance();
+    }
+
+    private ScheduledFuture<?> scheduleRebalance() {
+        return HousekeepingScheduler.getInstance().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                PoolRegistry.this.rebalance();
+            }
+        }, REBALANCE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the pool of a url and user, creating it with the given configuration if there is none yet.
+     * The configuration is used by the new pool only, so every pool needs one of its own.
+     *
+     * @param url - url String used to make a {@link java.sql.Connection}
+     * @param user - user String used to make a {@link java.sql.Connection}
+     * @param pass - password String used to make a {@link java.sql.Connection}
+     * @param props - {@link PoolConfiguration} of the pool, if it is created
+     * @return the {@link ConnectionPoolManager} of the url and user
+     * @throws SQLException - if the registry is closed or the pool cannot be created
+     */
+    public ConnectionPoolManager getPool(String url, String user, String pass, PoolConfiguration props) throws SQLException {
+        Key key = new Key(url, user);
+        ConnectionPoolManager pool = this.pools.get(key);
+        if (pool != null) {
+            return pool;
+        }
+        this.createLock.lock();
+        try {
+            if (this.closed) {
+                throw new SQLException("Pool registry is closed");
+            }
+            pool = this.pools.get(key);
+            if (pool == null) {
+                pool = new ConnectionPoolManager(props, url, user, pass, this);
+                this.pools.put(key, pool);
+                log.info("Registered connection pool " + pool.getName() + " for " + user + " at " + url);
+            }
+            return pool;
+        } finally {
+            this.createLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the pool of a url and user, creating it with the given {@link java.util.Properties} if there is none yet
+     *
+     * @param url - url String used to make a {@link java.sql.Connection}
+     * @param user - user String used to make a {@link java.sql.Connection}
+     * @param pass - password String used to make a {@link java.sql.Connection}
+     * @param props - {@link java.util.Properties} of the pool, if it is created
+     * @return the {@link ConnectionPoolManager} of the url and user
+     * @throws SQLException - if the registry is closed or the pool cannot be created
+     */
+    public ConnectionPoolManager getPool(String url, String user, String pass, Properties props) throws SQLException {
+        Key key = new Key(url, user);
+        ConnectionPoolManager pool = this.pools.get(key);
+        return pool != null ? pool : this.getPool(url, user, pass, new PoolProperties(props));
+    }
+
+    /**
+     * Looks up the pool of a url and user
+     *
+     * @param url - url of the pool
+     * @param user - user of the pool
+     * @return the {@link ConnectionPoolManager}, null if there is none
+     */
+    public ConnectionPoolManager getPool(String url, String user) {
+        return this.pools.get(new Key(url, user));
+    }
+
+    /**
+     * Pools of this registry
+     *
+     * @return unmodifiable collection of the pools
+     */
+    public Collection<ConnectionPoolManager> getPools() {
+        return Collections.unmodifiableCollection(this.pools.values());
+    }
+
+    /**
+     * Closes the pool of a url and user and drops it from the registry
+     *
+     * @param url - url of the pool
+     * @param user - user of the pool
+     * @return true if there was a pool
+     * @throws SQLException - if closing the pool fails
+     */
+    public boolean closePool(String url, String user) throws SQLException {
+        ConnectionPoolManager pool = this.pools.get(new Key(url, user));
+        if (pool == null) {
+            return false;
+        }
+        pool.close();
+        return true;
+    }
+
+    /**
+     * Closes all pools and stops rebalancing
+     *
+     * @throws SQLException - first failure to close a pool, once all are closed
+     */
+    public void close() throws SQLException {
+        this.createLock.lock();
+        try {
+            this.closed = true;
+        } finally {
+            this.createLock.unlock();
+        }
+        HousekeepingScheduler.getInstance().cancel(this.rebalanceTask);
+        SQLException failure = null;
+        for (ConnectionPoolManager pool : this.pools.values()) {
+            try {
+                pool.close();
+            } catch (SQLException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Drops a closed pool, called by the pool
+     *
+     * @param pool - pool being closed
+     */
+    void closed(ConnectionPoolManager pool) {
+        this.pools.remove(new Key(pool.getUrl(), pool.getUser()), pool);
+        log.info("Unregistered connection pool " + pool.getName());
+    }
+
+    /**
+     * Takes room for a connection out of the budget. If the budget is used up, queues a rebalance.
+     *
+     * @return true if a connection can be opened
+     */
+    boolean reserve() {
+        int max = this.maxConnections;
+        if (max <= 0) {
+            this.used.incrementAndGet();
+            return true;
+        }
+        int n;
+        do {
+            n = this.used.get();
+            if (n >= max) {
+                this.requestRebalance();
+                return false;
+            }
+        } while (!this.used.compareAndSet(n, n + 1));
+        return true;
+    }
+
+    /**
+     * Gives back room for connections to the budget, as they are closed
+     *
+     * @param count - number of connections closed or not opened
+     */
+    void release(int count) {
+        this.used.addAndGet(-count);
+    }
+
+    /**
+     * Queues a rebalance on the {@link HousekeepingScheduler}, unless one is queued already
+     */
+    void requestRebalance() {
+        if (!this.closed && this.rebalanceQueued.compareAndSet(false, true)) {
+            try {
+                HousekeepingScheduler.getInstance().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        PoolRegistry.this.rebalance();
+                    }
+                }, 0, TimeUnit.MILLISECONDS);
+            } catch (RuntimeException e) {
+                this.rebalanceQueued.set(false);
+                log.error("Cannot queue a rebalance", e);
+            }
+        }
+    }
+
+    /**
+     * Opens connections for the pools with waiting clients, most waiting clients first, closing idle connections
+     * of pools nobody is waiting on when the budget is used up.
+     */
+    void rebalance() {
+        this.rebalanceQueued.set(false);
+        if (this.closed) {
+            return;
+        }
+        List<ConnectionPoolManager> starved = new ArrayList<ConnectionPoolManager>();
+        for (ConnectionPoolManager pool : this.pools.values()) {
+            if (!pool.isClosed() && pool.getWaiterCount() > 0 && pool.createsInBackground()) {
+                starved.add(pool);
+            }
+        }
+        if (starved.isEmpty()) {
+            return;
+        }
+        Collections.sort(starved, new Comparator<ConnectionPoolManager>() {
+            @Override
+            public int compare(ConnectionPoolManager a, ConnectionPoolManager b) {
+                return b.getWaiterCount() - a.getWaiterCount();
+            }
+        });
+        for (ConnectionPoolManager pool : starved) {
+            int wanted = pool.getWaiterCount() - pool.getPendingCount();
+            for (int i = 0; i < wanted && pool.getSize() < pool.getMaxConnections(); i++) {
+                if (this.isUsedUp() && !this.reclaimIdle()) {
+                    return;
+                }
+                if (!pool.createForWaiters()) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private boolean isUsedUp() {
+        int max = this.maxConnections;
+        return max > 0 && this.used.get() >= max;
+    }
+
+    /**
+     * Closes an idle connection of the pool with the most idle connections nobody is waiting on
+     *
+     * @return true if a connection was closed
+     */
+    private boolean reclaimIdle() {
+        ConnectionPoolManager donor = null;
+        int most = 0;
+        for (ConnectionPoolManager pool : this.pools.values()) {
+            if (pool.isClosed() || pool.getWaiterCount() > 0) {
+                continue;
+            }
+            int idle = pool.getAvailableSize();
+            if (idle > most) {
+                most = idle;
+                donor = pool;
+            }
+        }
+        return donor != null && donor.reclaimIdle();
+    }
+
+    /**
+     * Maximum number of connections of all pools
+     *
+     * @return int - budget, 0 if none
+     */
+    public int getMaxConnections() {
+        return this.maxConnections;
+    }
+
+    /**
+     * Changes the maximum number of connections of all pools. Connections over a smaller budget
+     * are not closed, pools open no new ones until they are under it.
+     *
+     * @param maxConnections - budget, 0 for none
+     * @throws PoolConfigurationException - if the budget is less than 0
+     */
+    public void setMaxConnections(int maxConnections) throws PoolConfigurationException {
+        if (maxConnections < 0) {
+            throw new PoolConfigurationException("Maximum connections needs to be 0 or more, not " + maxConnections);
+        }
+        this.maxConnections = maxConnections;
+        this.requestRebalance();
+    }
+
+    /**
+     * Number of connections of all pools, opened or being opened
+     *
+     * @return int - connections counted against the budget
+     */
+    public int getUsedConnections() {
+        return this.used.get();
+    }
+}
@@ -0,0 +1,263 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Sizes a {@link ConnectionPoolManager} to the smallest number of connections keeping the p99 time clients wait for
+ * a connection under {@link PoolConfiguration#getAcquireWaitSlo()}, see {@link PoolConfiguration#getAdaptiveSizing()}.
+ *
+ * <p>
+ * Every {@link PoolConfiguration#getSizingInterval()} milliseconds, the controller snapshots the
+ * {@link PoolMetrics} of the pool and the number of busy connections, and keeps the last {@link #WINDOW} intervals.
+ * It moves {@link PoolConfiguration#getMaxConnections()} between {@link PoolConfiguration#getMinConnections()} and
+ * its ceiling, the maximum connections configured or last set with {@link ConnectionPoolManager#resize(int)}.
+ * </p>
+ * <p>
+ * The pool grows fast and shrinks slowly, so it does not oscillate:
+ * </p>
+ * <ul>
+ * <li>It grows by half when the p99 acquire wait of the last interval is over the target while the pool is full.
+ * Waits while the pool is not full come from slow connects, which more connections would not help.</li>
+ * <li>It shrinks by a quarter at most, only after the p99 acquire wait stayed under half the target for a window,
+ * and not below the busy connections needed over the window: the peak sampled and one and a half times the average,
+ * computed from the hold times. The more a connect costs compared to the target, the longer the pool has to stay
+ * quiet before it shrinks, up to {@link #MAX_QUIET_WINDOWS} windows, as connections closed too early are paid for
+ * again on the next peak.</li>
+ * </ul>
+ * <p>
+ * Like the {@link ConnectionEvictor}, the controller does not own a thread and is scheduled on the
+ * {@link HousekeepingScheduler}.
+ * </p>
+ *
+ * @author andy.compeer@gmail.com
+ */
+public class PoolSizeController implements Runnable {
+
+    /**
+     * Logger
+     */
+    public static final Logger log = Logger.getLogger(PoolSizeController.class);
+
+    /**
+     * Number of intervals in the sliding window
+     */
+    public static final int WINDOW = 6;
+
+    /**
+     * Most windows the pool has to stay quiet before it shrinks, however costly a connect
+     */
+    public static final int MAX_QUIET_WINDOWS = 10;
+
+    /**
+     * Connections kept over the average busy connections of the window
+     */
+    private static final double HEADROOM = 1.5;
+
+    /**
+     * Parent {@link ConnectionPoolManager}
+     */
+    private final ConnectionPoolManager pool;
+
+    /**
+     * p99 acquire wait target in nanoseconds
+     */
+    private final long sloNanos;
+
+    /**
+     * Bounds of the size of the pool
+     */
+    private volatile int floor;
+    private volatile int ceiling;
+
+    /**
+     * Samples of the last {@link #WINDOW} intervals and the one before, indexed by sample count
+     */
+    private final Histogram.Snapshot[] waits = new Histogram.Snapshot[WINDOW + 1];
+    private final Histogram.Snapshot[] holds = new Histogram.Snapshot[WINDOW + 1];
+    private final long[] times = new long[WINDOW + 1];
+    private final int[] busy = new int[WINDOW + 1];
+
+    /**
+     * Number of samples taken
+     */
+    private int samples = 0;
+
+    /**
+     * Number of intervals in a row the p99 acquire wait stayed under half the target, at the current size
+     */
+    private int quietIntervals = 0;
+
+    private final AtomicLong grows = new AtomicLong(0);
+    private final AtomicLong shrinks = new AtomicLong(0);
+
+    /**
+     * Constructor with {@link ConnectionPoolManager}, whose current maximum connections is the ceiling
+     *
+     * @param pool - pool to size
+     */
+    public PoolSizeController(ConnectionPoolManager pool) {
+        this.pool = pool;
+        PoolConfiguration props = pool.getProps();
+        this.sloNanos = TimeUnit.MILLISECONDS.toNanos(props.getAcquireWaitSlo());
+        this.ceiling = props.getMaxConnections();
+        this.floor = Math.min(props.getMinConnections(), this.ceiling);
+    }
+
+    /**
+     * Size the pool starts at: its initial size, within the bounds
+     *
+     * @return int - starting maximum connections
+     */
+    public int getStartSize() {
+        return Math.max(this.floor, Math.min(this.ceiling, this.pool.getProps().getInitialSize()));
+    }
+
+    /**
+     * Sets the ceiling, e.g. when the pool is resized through JMX
+     *
+     * @param ceiling - largest size the pool may grow to
+     * @return the size the pool should have now, i.e. its current size if within the new ceiling
+     */
+    public int setCeiling(int ceiling) {
+        this.ceiling = ceiling;
+        this.floor = Math.min(this.pool.getProps().getMinConnections(), ceiling);
+        return Math.min(ceiling, this.pool.getProps().getMaxConnections());
+    }
+
+    @Override
+    public void run() {
+        if (this.pool.isClosed()) {
+            return;
+        }
+        try {
+            this.adjust();
+        } catch (SQLException e) {
+            log.error("Failed to size connection pool " + this.pool.getName(), e);
+        }
+    }
+
+    /**
+     * Takes a sample and grows or shrinks the pool if needed
+     */
+    void adjust() throws SQLException {
+        int latest = this.samples % this.times.length;
+        PoolMetrics metrics = this.pool.getMetrics();
+        this.waits[latest] = metrics.getAcquireWait().snapshot();
+        this.holds[latest] = metrics.getHoldTime().snapshot();
+        this.times[latest] = System.nanoTime();
+        this.busy[latest] = this.pool.getBusySize();
+        this.samples++;
+        if (this.samples < 2) {
+            return;
+        }
+        int max = this.pool.getProps().getMaxConnections();
+        int previous = (this.samples - 2) % this.times.length;
+        long p99 = this.waits[latest].since(this.waits[previous]).getP99();
+        if (p99 > this.sloNanos) {
+            this.quietIntervals = 0;
+            boolean full = this.pool.getSize() >= max || this.pool.getWaiterCount() > 0;
+            if (full && max < this.ceiling) {
+                this.resize(Math.min(this.ceiling, max + Math.max(1, max / 2)), max,
+                        "p99 acquire wait " + TimeUnit.NANOSECONDS.toMicros(p99) + "us over the target");
+                this.grows.incrementAndGet();
+            }
+            return;
+        }
+        if (p99 * 2 > this.sloNanos) {
+            this.quietIntervals = 0;
+            return;
+        }
+        this.quietIntervals++;
+        if (this.quietIntervals < this.getQuietIntervalsNeeded() || max <= this.floor) {
+            return;
+        }
+        int oldest = (this.samples - 1 - WINDOW) % this.times.length;
+        double windowNanos = this.times[latest] - this.times[oldest];
+        double averageBusy = this.holds[latest].since(this.holds[oldest]).getSum() / windowNanos;
+        int peakBusy = 0;
+        for (int i = 0; i < this.busy.length; i++) {
+            peakBusy = Math.max(peakBusy, this.busy[i]);
+        }
+        int needed = Math.max(this.floor, Math.max(peakBusy, (int) Math.ceil(averageBusy * HEADROOM)));
+        if (needed < max) {
+            this.resize(Math.max(needed, max - Math.max(1, max / 4)), max,
+                    "p99 acquire wait under half the target, " + peakBusy + " connections busy at most");
+            this.shrinks.incrementAndGet();
+        }
+    }
+
+    /**
+     * Number of quiet intervals needed before shrinking: a window, plus a window for every time
+     * a connect takes the acquire wait target, up to {@link #MAX_QUIET_WINDOWS} windows
+     */
+    private int getQuietIntervalsNeeded() {
+        long connectP99 = this.pool.getMetrics().getConnectTime().snapshot().getP99();
+        long windows = 1 + Math.min(MAX_QUIET_WINDOWS - 1, connectP99 / Math.max(1, this.sloNanos));
+        return (int) windows * WINDOW;
+    }
+
+    private void resize(int size, int max, String reason) throws SQLException {
+        this.quietIntervals = 0;
+        this.pool.setMaxConnections(size);
+        log.info("Sized connection pool " + this.pool.getName() + " from " + max + " to " + size + ": " + reason);
+    }
+
+    /**
+     * Smallest size the pool shrinks to
+     *
+     * @return int - floor
+     */
+    public int getFloor() {
+        return this.floor;
+    }
+
+    /**
+     * Largest size the pool grows to
+     *
+     * @return int - ceiling
+     */
+    public int getCeiling() {
+        return this.ceiling;
+    }
+
+    /**
+     * Number of times the pool was grown
+     *
+     * @return long - grows
+     */
+    public long getGrowCount() {
+        return this.grows.get();
+    }
+
+    /**
+     * Number of times the pool was shrunk
+     *
+     * @return long - shrinks
+     */
+    public long getShrinkCount() {
+        return this.shrinks.get();
+    }
+}
@@ -0,0 +1,335 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool;
+
+import java.sql.SQLException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Opens the {@link PoolConfiguration#getInitialSize()} connections of a {@link ConnectionPoolManager}.
+ *
+ * <p>
+ * With {@link PoolConfiguration#getWarmupThreads()} more than 1, the initial connections are opened in
+ * parallel by that many threads. With {@link PoolConfiguration#getAsyncWarmup()} set, the pool does not wait
+ * for them to be opened, so its constructor returns right away and clients can use the pool meanwhile.
+ * Progress can be followed with a {@link WarmupListener} or waited for with {@link #awaitReady}, e.g. to let
+ * traffic in only once N connections are ready.
+ * </p>
+ *
+ * @author andy.compeer@gmail.com
+ */
+public class PoolWarmup {
+
+    /**
+     * Logger
+     */
+    public static final Logger log = Logger.getLogger(PoolWarmup.class);
+
+    /**
+     * Pool being warmed up
+     */
+    private final ConnectionPoolManager pool;
+
+    /**
+     * Number of connections to open
+     */
+    private final int target;
+
+    /**
+     * Number of threads opening the connections
+     */
+    private final int threads;
+
+    private final CopyOnWriteArrayList<WarmupListener> listeners = new CopyOnWriteArrayList<WarmupListener>();
+
+    /**
+     * Guards the counters below and signals their changes
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition progress = this.lock.newCondition();
+
+    private int ready = 0;
+    private int failed = 0;
+    private int skipped = 0;
+    private boolean fired = false;
+    private SQLException firstFailure;
+
+    /**
+     * Constructor with the pool and its warm up properties
+     *
+     * @param pool - pool to warm up
+     * @param target - number of connections to open
+     * @param threads - number of threads opening them
+     */
+    public PoolWarmup(ConnectionPoolManager pool, int target, int threads) {
+        this.pool = pool;
+        this.target = target;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Starts opening the connections. With a single thread and no asynchronous warm up,
+     * they are opened one after another on the calling thread, stopping at the first failure.
+     *
+     * @param async - true if the calling thread should not be used
+     */
+    public void start(boolean async) {
+        if (!async && this.threads == 1) {
+            for (int i = 0; i < this.target; i++) {
+                this.openOne();
+                if (this.getFailedCount() > 0) {
+                    this.skip(this.target - i - 1);
+                    break;
+                }
+            }
+            return;
+        }
+        int poolThreads = Math.min(this.threads, Math.max(1, this.target));
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(poolThreads, poolThreads, 0, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory("connxonpool-warmup"));
+        for (int i = 0; i < this.target; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    PoolWarmup.this.openOne();
+                }
+            });
+        }
+        executor.shutdown();
+        if (this.target == 0) {
+            this.skip(0);
+        }
+    }
+
+    /**
+     * Opens one initial connection, unless the pool is closed or already full. Anything thrown counts
+     * as a failed open, so the warm up is always done in the end.
+     */
+    private void openOne() {
+        if (this.pool.isClosed() || !this.pool.reserveSize()) {
+            this.skip(1);
+            return;
+        }
+        try {
+            this.pool.createAndOffer();
+        } catch (Throwable t) {
+            log.error("Failed to open an initial connection", t);
+            SQLException e = t instanceof SQLException
+                ? (SQLException) t : new SQLException("Failed to open an initial connection", t);
+            this.lock.lock();
+            try {
+                this.failed++;
+                if (this.firstFailure == null) {
+                    this.firstFailure = e;
+                }
+                this.progress.signalAll();
+            } finally {
+                this.lock.unlock();
+            }
+            this.fireIfDone();
+            return;
+        }
+        int readyNow;
+        this.lock.lock();
+        try {
+            readyNow = ++this.ready;
+            this.progress.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+        for (WarmupListener listener : this.listeners) {
+            listener.connectionReady(this.pool, readyNow, this.target);
+        }
+        this.fireIfDone();
+    }
+
+    /**
+     * Counts connections that will not be opened.
+     */
+    private void skip(int count) {
+        this.lock.lock();
+        try {
+            this.skipped += count;
+            this.progress.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+        this.fireIfDone();
+    }
+
+    /**
+     * Tells the listeners the warm up is done, the first time it is.
+     */
+    private void fireIfDone() {
+        int readyNow;
+        int failedNow;
+        this.lock.lock();
+        try {
+            if (this.fired || !this.isDoneLocked()) {
+                return;
+            }
+            this.fired = true;
+            readyNow = this.ready;
+            failedNow = this.failed;
+        } finally {
+            this.lock.unlock();
+        }
+        for (WarmupListener listener : this.listeners) {
+            listener.warmupDone(this.pool, readyNow, failedNow);
+        }
+    }
+
+    /**
+     * Adds a listener. If the warm up is done already, it is told so right away.
+     *
+     * @param listener - {@link WarmupListener} to add
+     */
+    public void addListener(WarmupListener listener) {
+        this.listeners.add(listener);
+        if (this.isDone() && this.listeners.remove(listener)) {
+            listener.warmupDone(this.pool, this.getReadyCount(), this.getFailedCount());
+        }
+    }
+
+    /**
+     * Waits until at least the given number of connections is ready, or the warm up is done.
+     *
+     * @param count - number of ready connections to wait for
+     * @param timeout - maximum time to wait
+     * @param unit - {@link java.util.concurrent.TimeUnit} of the timeout
+     * @return true if at least count connections are ready
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitReady(int count, long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        this.lock.lock();
+        try {
+            while (this.ready < count && !this.isDoneLocked()) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = this.progress.awaitNanos(nanos);
+            }
+            return this.ready >= count;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the warm up is done.
+     *
+     * @param timeout - maximum time to wait
+     * @param unit - {@link java.util.concurrent.TimeUnit} of the timeout
+     * @return true if the warm up is done
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitDone(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        this.lock.lock();
+        try {
+            while (!this.isDoneLocked()) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = this.progress.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private boolean isDoneLocked() {
+        return this.ready + this.failed + this.skipped >= this.target;
+    }
+
+    /**
+     * See if no more initial connections will be opened
+     *
+     * @return true if the warm up is done
+     */
+    public boolean isDone() {
+        this.lock.lock();
+        try {
+            return this.isDoneLocked();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Number of initial connections opened so far
+     *
+     * @return int - number of ready connections
+     */
+    public int getReadyCount() {
+        this.lock.lock();
+        try {
+            return this.ready;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Number of initial connections that could not be opened
+     *
+     * @return int - number of failures
+     */
+    public int getFailedCount() {
+        this.lock.lock();
+        try {
+            return this.failed;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * First failure to open an initial connection
+     *
+     * @return {@link java.sql.SQLException}, null if none failed
+     */
+    public SQLException getFirstFailure() {
+        this.lock.lock();
+        try {
+            return this.firstFailure;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Number of initial connections to open
+     *
+     * @return int - {@link PoolConfiguration#getInitialSize()}
+     */
+    public int getTarget() {
+        return this.target;
+    }
+}
@@ -0,0 +1,560 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A physical {@link java.sql.Connection} owned by a {@link ConnectionPoolManager}.
+ *
+ * <p>
+ * Clients never see this object or the physical connection directly. Every time the
+ * connection is borrowed, {@link #borrow()} hands out a new {@link ConnectionProxy} handle,
+ * whose {@link java.sql.Connection#close()} returns the still open physical connection
+ * to the pool instead of closing it.
+ * </p>
+ * <p>
+ * The {@link #getState() state} of the connection tells whether it is idle, busy or removed from the pool.
+ * A client claims an idle connection with a single compare-and-set on the state, wherever it found the
+ * connection, so the same connection can safely be reachable from the {@link IdleConnectionStack} and
+ * from a thread that released it last.
+ * </p>
+ * <p>
+ * The auto-commit, read only and transaction isolation settings of the physical connection are recorded when
+ * it is made. A client changing them through its handle marks them dirty, and {@link #reset()} rolls back what
+ * the client left uncommitted and restores them before the connection goes back to the pool, so the next client
+ * gets the connection as it was made.
+ * </p>
+ *
+ * @author andy.compeer@gmail.com
+ */
+public class PooledConnection {
+
+    /**
+     * States of a pooled connection
+     */
+    public static final int STATE_REMOVED = -1;
+    public static final int STATE_IDLE = 0;
+    public static final int STATE_BUSY = 1;
+
+    /**
+     * Settings of the physical connection changed by the client, see {@link #markDirty(int)}
+     */
+    public static final int DIRTY_AUTO_COMMIT = 1;
+    public static final int DIRTY_READ_ONLY = 2;
+    public static final int DIRTY_ISOLATION = 4;
+
+    /**
+     * Logger
+     */
+    public static final Logger log = Logger.getLogger(PooledConnection.class);
+
+    private static final AtomicIntegerFieldUpdater<PooledConnection> STATE_UPDATER =
+        AtomicIntegerFieldUpdater.newUpdater(PooledConnection.class, "state");
+
+    private static final AtomicIntegerFieldUpdater<PooledConnection> QUEUED_UPDATER =
+        AtomicIntegerFieldUpdater.newUpdater(PooledConnection.class, "queued");
+
+    private static final AtomicIntegerFieldUpdater<PooledConnection> RENEWING_UPDATER =
+        AtomicIntegerFieldUpdater.newUpdater(PooledConnection.class, "renewing");
+
+    /**
+     * {@link ConnectionPoolManager} this connection belongs to
+     */
+    private final ConnectionPoolManager pool;
+
+    /**
+     * Physical connection made by the {@link java.sql.Driver}.
+     * Replaced when the pool has to {@link ConnectionPoolManager#reconnect} it.
+     */
+    private volatile Connection connection;
+
+    /**
+     * Handle given to the client that currently borrowed this connection, if any.
+     */
+    private volatile ConnectionProxy handle;
+
+    /**
+     * One of {@link #STATE_IDLE}, {@link #STATE_BUSY} or {@link #STATE_REMOVED}.
+     * A new connection is busy, as it is created for a client or to be released into the pool.
+     */
+    private volatile int state = STATE_BUSY;
+
+    /**
+     * 1 while this connection is in the {@link IdleConnectionStack}, 0 otherwise
+     */
+    private volatile int queued = 0;
+
+    /**
+     * 1 while a replacement of the physical connection is being opened, see {@link ConnectionEvictor}
+     */
+    private volatile int renewing = 0;
+
+    /**
+     * Slot of this connection in the pool, see {@link ConnectionPoolManager#getPooledConnection(int)}
+     */
+    private volatile int index = -1;
+
+    /**
+     * Time in milliseconds the physical connection was made
+     */
+    private volatile long createdAt;
+
+    /**
+     * Time in milliseconds this connection was last released into the pool
+     */
+    private volatile long lastUsedAt;
+
+    /**
+     * Random fraction in [0, 1) drawn for every physical connection, spreading the retirement
+     * of connections made at the same time, see {@link ConnectionEvictor}
+     */
+    private volatile double jitter;
+
+    /**
+     * {@link System#nanoTime()} of the last {@link #borrow()}
+     */
+    private volatile long borrowedAt;
+
+    /**
+     * Thread of the last {@link #borrow()}, kept while borrowed, if leaks are detected
+     */
+    private volatile Thread borrower;
+
+    /**
+     * Call site of the last {@link #borrow()}, if recorded by the {@link LeakDetector}
+     */
+    private volatile Throwable borrowSite;
+
+    /**
+     * Set once the {@link LeakDetector} reported the current borrow
+     */
+    private volatile boolean leakReported;
+
+    /**
+     * Number of borrows, starting at a random offset so connections do not record
+     * their call sites on the same borrows. Only touched by the client claiming the connection.
+     */
+    private int borrowCount;
+
+    /**
+     * Settings of the physical connection when it was made. The isolation is -1 if it could not be read.
+     */
+    private volatile boolean defaultAutoCommit = true;
+    private volatile boolean defaultReadOnly = false;
+    private volatile int defaultIsolation = -1;
+
+    /**
+     * {@link #DIRTY_AUTO_COMMIT}, {@link #DIRTY_READ_ONLY} and {@link #DIRTY_ISOLATION} bits of the settings
+     * changed during the current borrow
+     */
+    private volatile int dirty = 0;
+
+    /**
+     * Prepared statements of the physical connection, null if {@link PoolConfiguration#getStatementCacheSize()} is 0
+     */
+    private final StatementCache statementCache;
+
+    /**
+     * Constructor with the owning pool and a physical connection
+     *
+     * @param pool - {@link ConnectionPoolManager} owning the connection
+     * @param connection - physical {@link java.sql.Connection}
+     */
+    public PooledConnection(ConnectionPoolManager pool, Connection connection) {
+        this.pool = pool;
+        this.connection = connection;
+        this.created();
+        this.borrowCount = (int) (Math.random() * Math.max(1, pool.getProps().getLeakStackSampling()));
+        int cacheSize = pool.getProps().getStatementCacheSize();
+        this.statementCache = cacheSize > 0 ? new StatementCache(cacheSize, pool.getStatementCacheStats()) : null;
+    }
+
+    /**
+     * Resets the age of this connection, for a newly made physical connection.
+     */
+    private void created() {
+        this.createdAt = System.currentTimeMillis();
+        this.lastUsedAt = this.createdAt;
+        this.jitter = Math.random();
+        this.dirty = 0;
+        Connection conn = this.connection;
+        if (conn == null) {
+            return;
+        }
+        try {
+            this.defaultAutoCommit = conn.getAutoCommit();
+            this.defaultReadOnly = conn.isReadOnly();
+            this.defaultIsolation = conn.getTransactionIsolation();
+        } catch (SQLException e) {
+            // restored to the JDBC defaults then, and the isolation is left as is
+            log.debug("Failed to read the settings of Connection[" + conn + "]", e);
+        }
+    }
+
+    /**
+     * Hands out a new client handle for this connection. Any handle given out
+     * before is expected to have been closed already.
+     *
+     * @return a {@link java.sql.Connection} proxy which releases this connection to the pool on close
+     */
+    public Connection borrow() {
+        ConnectionProxy handle = new ConnectionProxy(this);
+        this.borrowedAt = System.nanoTime();
+        LeakDetector leakDetector = this.pool.getLeakDetector();
+        if (leakDetector != null) {
+            this.borrower = Thread.currentThread();
+            this.borrowSite = leakDetector.captureSite(++this.borrowCount);
+            this.leakReported = false;
+        }
+        this.handle = handle;
+        return handle.getProxy();
+    }
+
+    /**
+     * Records that the client changed a setting of the physical connection, to be restored by {@link #reset()}
+     *
+     * @param bit - {@link #DIRTY_AUTO_COMMIT}, {@link #DIRTY_READ_ONLY} or {@link #DIRTY_ISOLATION}
+     */
+    void markDirty(int bit) {
+        if ((this.dirty & bit) == 0) {
+            this.dirty |= bit;
+        }
+    }
+
+    /**
+     * Makes the physical connection ready for the next client, once the handle is closed: closes the statements
+     * the client left open, rolls back an open transaction, and restores the settings recorded when the
+     * connection was made. Only settings changed through the handle are restored, so an unchanged connection
+     * does not cost a round-trip to the database.
+     *
+     * @throws SQLException - if the connection cannot be reset, it must not be handed out again then
+     */
+    public void reset() throws SQLException {
+        ConnectionProxy handle = this.handle;
+        if (handle != null) {
+            handle.closeStatements();
+        }
+        Connection conn = this.connection;
+        int dirty = this.dirty;
+        if (conn == null) {
+            return;
+        }
+        if (((dirty & DIRTY_AUTO_COMMIT) != 0 || !this.defaultAutoCommit) && !conn.getAutoCommit()) {
+            conn.rollback();
+        }
+        if ((dirty & DIRTY_AUTO_COMMIT) != 0) {
+            conn.setAutoCommit(this.defaultAutoCommit);
+        }
+        if ((dirty & DIRTY_READ_ONLY) != 0) {
+            conn.setReadOnly(this.defaultReadOnly);
+        }
+        if ((dirty & DIRTY_ISOLATION) != 0 && this.defaultIsolation != -1) {
+            conn.setTransactionIsolation(this.defaultIsolation);
+        }
+        this.dirty = 0;
+    }
+
+    /**
+     * Tells whether {@link #reset()} has to talk to the database: the client changed settings, left statements
+     * open, or the connection does not auto-commit by default, so a transaction may be open.
+     *
+     * @return false if the reset has nothing to do
+     */
+    boolean needsReset() {
+        if (this.dirty != 0 || !this.defaultAutoCommit) {
+            return true;
+        }
+        ConnectionProxy handle = this.handle;
+        return handle != null && handle.hasOpenStatements();
+    }
+
+    /**
+     * Claims this connection for a client, if it is idle.
+     *
+     * @return true if the connection was idle and is busy now
+     */
+    public boolean claim() {
+        return STATE_UPDATER.compareAndSet(this, STATE_IDLE, STATE_BUSY);
+    }
+
+    /**
+     * Atomically sets the state of this connection, if it is in the expected state.
+     *
+     * @param expect - state the connection is expected to be in
+     * @param update - new state
+     * @return true if the state was changed
+     */
+    public boolean compareAndSetState(int expect, int update) {
+        return STATE_UPDATER.compareAndSet(this, expect, update);
+    }
+
+    /**
+     * Returns the state of this connection
+     *
+     * @return state - {@link #STATE_IDLE}, {@link #STATE_BUSY} or {@link #STATE_REMOVED}
+     */
+    public int getState() {
+        return this.state;
+    }
+
+    /**
+     * Sets the state of this connection
+     *
+     * @param state - {@link #STATE_IDLE}, {@link #STATE_BUSY} or {@link #STATE_REMOVED}
+     */
+    public void setState(int state) {
+        this.state = state;
+    }
+
+    /**
+     * Marks this connection as queued in the {@link IdleConnectionStack}
+     *
+     * @return true if it was not queued already
+     */
+    boolean markQueued() {
+        return QUEUED_UPDATER.compareAndSet(this, 0, 1);
+    }
+
+    /**
+     * Marks this connection as taken off the {@link IdleConnectionStack}
+     */
+    void clearQueued() {
+        this.queued = 0;
+    }
+
+    /**
+     * See if this connection is queued in the {@link IdleConnectionStack}
+     *
+     * @return true if a node of the stack holds it
+     */
+    boolean isQueued() {
+        return this.queued == 1;
+    }
+
+    /**
+     * Marks this connection as having a replacement opened for it
+     *
+     * @return true if no replacement was being opened already
+     */
+    boolean markRenewing() {
+        return RENEWING_UPDATER.compareAndSet(this, 0, 1);
+    }
+
+    /**
+     * Marks the replacement of this connection as opened or given up
+     */
+    void clearRenewing() {
+        this.renewing = 0;
+    }
+
+    /**
+     * Closes the handle currently given out, so that the client holding it
+     * cannot use or release this connection anymore.
+     *
+     * @return true if the handle was open and got closed by this call
+     */
+    public boolean closeHandle() {
+        ConnectionProxy handle = this.handle;
+        return handle != null && handle.close();
+    }
+
+    /**
+     * Check if a client holds an open handle of this connection.
+     *
+     * @return true if the handle given out last is still open
+     */
+    public boolean isHandedOut() {
+        ConnectionProxy handle = this.handle;
+        return handle != null && !handle.isClosed();
+    }
+
+    /**
+     * Check if the physical connection is closed.
+     *
+     * @return true if the physical connection is closed or missing
+     */
+    public boolean isPhysicallyClosed() throws SQLException {
+        Connection conn = this.connection;
+        return conn == null || conn.isClosed();
+    }
+
+    /**
+     * Returns the slot of this connection in the pool
+     *
+     * @return index - slot index, -1 if not added to the pool yet
+     */
+    public int getIndex() {
+        return this.index;
+    }
+
+    /**
+     * Sets the slot of this connection in the pool
+     *
+     * @param index - slot index
+     */
+    void setIndex(int index) {
+        this.index = index;
+    }
+
+    /**
+     * Returns the {@link ConnectionPoolManager} owning this connection
+     *
+     * @return pool - owning pool
+     */
+    public ConnectionPoolManager getPool() {
+        return this.pool;
+    }
+
+    /**
+     * Returns the physical connection
+     *
+     * @return connection - physical {@link java.sql.Connection}
+     */
+    public Connection getConnection() {
+        return this.connection;
+    }
+
+    /**
+     * Replaces the physical connection, after a reconnect.
+     *
+     * @param connection - new physical {@link java.sql.Connection}
+     */
+    public void setConnection(Connection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * Replaces the physical connection with a brand new one, resetting the age of this connection
+     * and dropping the statements cached for the previous one.
+     *
+     * @param connection - new physical {@link java.sql.Connection}
+     */
+    public void renew(Connection connection) {
+        if (this.statementCache != null) {
+            this.statementCache.clear();
+        }
+        this.connection = connection;
+        this.created();
+    }
+
+    /**
+     * Returns the cache of prepared statements of the physical connection
+     *
+     * @return {@link StatementCache}, null if statements are not cached
+     */
+    public StatementCache getStatementCache() {
+        return this.statementCache;
+    }
+
+    /**
+     * Records that this connection has just been released into the pool
+     */
+    void touch() {
+        this.lastUsedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the time the physical connection was made
+     *
+     * @return createdAt - time in milliseconds
+     */
+    public long getCreatedAt() {
+        return this.createdAt;
+    }
+
+    /**
+     * Returns the time this connection was last released into the pool
+     *
+     * @return lastUsedAt - time in milliseconds
+     */
+    public long getLastUsedAt() {
+        return this.lastUsedAt;
+    }
+
+    /**
+     * Returns when this connection was last borrowed
+     *
+     * @return borrowedAt - {@link System#nanoTime()} of the last borrow
+     */
+    public long getBorrowedAt() {
+        return this.borrowedAt;
+    }
+
+    /**
+     * Returns the thread that borrowed this connection last, if leaks are detected
+     *
+     * @return borrower - null once released
+     */
+    public Thread getBorrower() {
+        return this.borrower;
+    }
+
+    /**
+     * Returns the call site of the last borrow, if recorded by the {@link LeakDetector}
+     *
+     * @return borrowSite - {@link java.lang.Throwable} with the stack trace of the borrow, null if not recorded
+     */
+    public Throwable getBorrowSite() {
+        return this.borrowSite;
+    }
+
+    /**
+     * Check if the current borrow has been reported by the {@link LeakDetector}
+     *
+     * @return true if reported as leaked
+     */
+    public boolean isLeakReported() {
+        return this.leakReported;
+    }
+
+    /**
+     * Marks the current borrow as reported by the {@link LeakDetector}
+     */
+    void setLeakReported() {
+        this.leakReported = true;
+    }
+
+    /**
+     * Forgets the borrowing thread and call site, once released
+     */
+    void returned() {
+        this.borrower = null;
+        this.borrowSite = null;
+    }
+
+    /**
+     * Returns the random fraction drawn for the physical connection
+     *
+     * @return jitter - in [0, 1)
+     */
+    public double getJitter() {
+        return this.jitter;
+    }
+
+    @Override
+    public String toString() {
+        return "Pooled[" + this.connection + "]";
+    }
+}
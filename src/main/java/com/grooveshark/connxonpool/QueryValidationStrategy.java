@@ -0,0 +1,80 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * {@link ValidationStrategy} running a query, the connection is usable if the query succeeds.
+ * Use a query as cheap as possible, e.g. <code>SELECT 1</code>.
+ *
+ * @author andy.compeer@gmail.com
+ */
+public class QueryValidationStrategy implements ValidationStrategy {
+
+    /**
+     * Query run on the connection
+     */
+    private final String query;
+
+    /**
+     * Constructor with the validation query
+     *
+     * @param query - query to run
+     */
+    public QueryValidationStrategy(String query) {
+        this.query = query;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isValid(Connection conn, int timeout) throws SQLException {
+        Statement stmt = conn.createStatement();
+        try {
+            if (timeout > 0) {
+                stmt.setQueryTimeout(timeout);
+            }
+            ResultSet rs = stmt.executeQuery(this.query);
+            rs.close();
+            return true;
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Returns the validation query
+     *
+     * @return query - query run on the connection
+     */
+    public String getQuery() {
+        return this.query;
+    }
+
+    @Override
+    public String toString() {
+        return "query[" + this.query + "]";
+    }
+}
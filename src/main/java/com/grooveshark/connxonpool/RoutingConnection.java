@@ -0,0 +1,259 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Client handle of a {@link RoutingConnectionPool}, borrowing from the primary or from a replica on first use.
+ *
+ * <p>
+ * Until a connection is needed, {@link java.sql.Connection#setReadOnly(boolean)},
+ * {@link java.sql.Connection#setAutoCommit(boolean)} and {@link java.sql.Connection#setTransactionIsolation(int)}
+ * are only recorded. The first other call borrows a connection, from a replica if the handle is read only and from
+ * the primary otherwise, and applies the recorded settings to it. From then on, every call is delegated to the
+ * borrowed handle, {@link java.sql.Connection#setReadOnly(boolean)} included, and
+ * {@link java.sql.Connection#close()} releases it to its pool.
+ * </p>
+ * <p>
+ * Like any {@link java.sql.Connection}, a handle is meant to be used by one thread at a time.
+ * </p>
+ *
+ * @author andy.compeer@gmail.com
+ */
+public class RoutingConnection implements InvocationHandler {
+
+    /**
+     * Interfaces of the proxies. {@link java.lang.reflect.Proxy} creates their class once
+     * and reuses it for every handle.
+     */
+    private static final Class<?>[] PROXY_INTERFACES = new Class<?>[] { Connection.class };
+
+    /**
+     * Pool routing this handle
+     */
+    private final RoutingConnectionPool pool;
+
+    /**
+     * {@link java.sql.Connection} proxy given to the client
+     */
+    private final Connection proxy;
+
+    /**
+     * Atomic flag to see if this handle is closed
+     */
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    /**
+     * Borrowed handle, null until first use
+     */
+    private volatile Connection target;
+
+    /**
+     * Replica the handle was borrowed from, null for the primary
+     */
+    private volatile RoutingConnectionPool.Replica replica;
+
+    /**
+     * Whether the handle borrows from a replica, until first use
+     */
+    private boolean readOnly;
+
+    /**
+     * Settings recorded until first use, null if not set
+     */
+    private Boolean autoCommit;
+    private Integer transactionIsolation;
+
+    /**
+     * Constructor with the {@link RoutingConnectionPool} and whether the handle starts read only
+     *
+     * @param pool - pool routing the handle
+     * @param readOnly - true to borrow from a replica
+     */
+    RoutingConnection(RoutingConnectionPool pool, boolean readOnly) {
+        this.pool = pool;
+        this.readOnly = readOnly;
+        this.proxy = (Connection) Proxy.newProxyInstance(RoutingConnection.class.getClassLoader(), PROXY_INTERFACES, this);
+    }
+
+    /**
+     * Returns the handler of a connection, if the connection is a handle given out by a {@link RoutingConnectionPool}.
+     *
+     * @param connection - connection to look at
+     * @return {@link RoutingConnection} of the connection, null if it is not a routing handle
+     */
+    public static RoutingConnection getHandler(Connection connection) {
+        if (connection != null && Proxy.isProxyClass(connection.getClass())) {
+            InvocationHandler handler = Proxy.getInvocationHandler(connection);
+            if (handler instanceof RoutingConnection) {
+                return (RoutingConnection) handler;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        if (name.equals("close")) {
+            this.close();
+            return null;
+        } else if (name.equals("isClosed")) {
+            Connection borrowed = this.target;
+            return this.isClosed() || (borrowed != null && borrowed.isClosed());
+        } else if (name.equals("equals")) {
+            return proxy == args[0];
+        } else if (name.equals("hashCode")) {
+            return System.identityHashCode(proxy);
+        } else if (name.equals("toString")) {
+            Connection borrowed = this.target;
+            return borrowed != null ? borrowed.toString() : "RoutingConnection[unused, readOnly=" + this.readOnly + "]";
+        }
+        if (this.isClosed()) {
+            throw new SQLException("Connection has already been closed and released to the pool");
+        }
+        if (this.target == null) {
+            if (name.equals("setReadOnly")) {
+                this.readOnly = ((Boolean) args[0]).booleanValue();
+                return null;
+            } else if (name.equals("isReadOnly")) {
+                return this.readOnly;
+            } else if (name.equals("setAutoCommit")) {
+                this.autoCommit = (Boolean) args[0];
+                return null;
+            } else if (name.equals("getAutoCommit") && this.autoCommit != null) {
+                return this.autoCommit;
+            } else if (name.equals("setTransactionIsolation")) {
+                this.transactionIsolation = (Integer) args[0];
+                return null;
+            } else if (name.equals("getTransactionIsolation") && this.transactionIsolation != null) {
+                return this.transactionIsolation;
+            }
+            this.borrow();
+        }
+        try {
+            return method.invoke(this.target, args);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            RoutingConnectionPool.Replica from = this.replica;
+            if (from != null && cause instanceof SQLException && RoutingConnectionPool.isConnectionFailure((SQLException) cause)) {
+                this.pool.markDown(from, (SQLException) cause);
+            }
+            throw cause;
+        }
+    }
+
+    /**
+     * Borrows a connection for this handle and applies the recorded settings
+     */
+    void borrow() throws SQLException {
+        if (this.readOnly) {
+            this.pool.borrowRead(this);
+        } else {
+            this.pool.borrowWrite(this);
+        }
+        Connection borrowed = this.target;
+        try {
+            if (this.readOnly) {
+                borrowed.setReadOnly(true);
+            }
+            if (this.autoCommit != null) {
+                borrowed.setAutoCommit(this.autoCommit.booleanValue());
+            }
+            if (this.transactionIsolation != null) {
+                borrowed.setTransactionIsolation(this.transactionIsolation.intValue());
+            }
+        } catch (SQLException e) {
+            this.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Sets the handle borrowed for this routing handle
+     *
+     * @param target - handle given out by the primary or the replica
+     * @param replica - replica the handle was borrowed from, null for the primary
+     */
+    void bind(Connection target, RoutingConnectionPool.Replica replica) {
+        this.replica = replica;
+        this.target = target;
+    }
+
+    /**
+     * Closes this handle, releasing the borrowed connection if any
+     *
+     * @throws SQLException - if the borrowed connection cannot be released
+     */
+    public void close() throws SQLException {
+        if (!this.closed.compareAndSet(false, true)) {
+            return;
+        }
+        Connection borrowed = this.target;
+        if (borrowed == null) {
+            return;
+        }
+        RoutingConnectionPool.Replica from = this.replica;
+        try {
+            borrowed.close();
+        } finally {
+            if (from != null) {
+                this.pool.returned(from);
+            }
+        }
+    }
+
+    /**
+     * See if this handle is closed.
+     *
+     * @return true if the handle has been closed
+     */
+    public boolean isClosed() {
+        return this.closed.get();
+    }
+
+    /**
+     * See if this handle borrowed from a replica.
+     *
+     * @return true if the handle is routed to a replica, false if to the primary or not used yet
+     */
+    public boolean isOnReplica() {
+        return this.replica != null;
+    }
+
+    /**
+     * Returns the {@link java.sql.Connection} proxy given to the client
+     *
+     * @return proxy
+     */
+    public Connection getProxy() {
+        return this.proxy;
+    }
+}
@@ -0,0 +1,411 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * {@link ConnectionPool} sending writes to a primary {@link ConnectionPoolManager} and reads to replica pools.
+ *
+ * <p>
+ * {@link #getReadConnection()} borrows from the replica with the fewest connections handed out by this pool.
+ * {@link #getConnection()} returns a {@link RoutingConnection} borrowing on first use: from a replica if
+ * {@link java.sql.Connection#setReadOnly(boolean)} has been called with true before, from the primary otherwise.
+ * Code marking its read transactions read only is thus routed without any other change.
+ * </p>
+ * <p>
+ * A replica is given {@link #getSlowThreshold()} milliseconds to hand out a connection, instead of the maximum wait of
+ * its pool, so a read tries every replica and then the primary within about that much per replica. A replica whose
+ * pool fails to hand out a connection, takes longer than {@link #getSlowThreshold()} milliseconds to hand one out
+ * (e.g. connecting), or whose connection fails a call on the handle with a connection error (SQL state
+ * <code>08</code>), is taken out of rotation. After {@link #getRetryInterval()} milliseconds, a single read is
+ * sent to it again, and it is back in rotation once a read gets a connection in time. Reads go to the primary while
+ * no replica is in rotation.
+ * </p>
+ * <p>
+ * {@link #acquireAsync()} is served by the primary.
+ * </p>
+ *
+ * @author andy.compeer@gmail.com
+ */
+public class RoutingConnectionPool implements ConnectionPool {
+
+    /**
+     * Logger
+     */
+    public static final Logger log = Logger.getLogger(RoutingConnectionPool.class);
+
+    public static final long DEFAULT_RETRY_INTERVAL = 5000; // 5 seconds
+    public static final long DEFAULT_SLOW_THRESHOLD = 1000; // 1 second
+
+    /**
+     * Replica pool and its state in this pool
+     */
+    static final class Replica {
+        private final ConnectionPoolManager pool;
+
+        /**
+         * Number of connections handed out and not closed yet
+         */
+        private final AtomicInteger outstanding = new AtomicInteger(0);
+
+        /**
+         * {@link System#nanoTime()} it was taken out of rotation or last tried since, 0 if in rotation
+         */
+        private final AtomicLong downSince = new AtomicLong(0);
+
+        private Replica(ConnectionPoolManager pool) {
+            this.pool = pool;
+        }
+    }
+
+    private final ConnectionPoolManager primary;
+
+    private final Replica[] replicas;
+
+    /**
+     * Rotates the first replica looked at, so ties are spread
+     */
+    private final AtomicInteger next = new AtomicInteger(0);
+
+    private volatile long retryInterval = DEFAULT_RETRY_INTERVAL;
+
+    private volatile long slowThreshold = DEFAULT_SLOW_THRESHOLD;
+
+    /**
+     * Read connections handed out by replicas and by the primary
+     */
+    private final AtomicLong replicaReads = new AtomicLong(0);
+    private final AtomicLong primaryReads = new AtomicLong(0);
+
+    /**
+     * Constructor with the primary and the replica pools
+     *
+     * @param primary - pool of the primary, taking writes
+     * @param replicas - pools of the replicas, taking reads
+     * @throws PoolConfigurationException - if the primary is missing
+     */
+    public RoutingConnectionPool(ConnectionPoolManager primary, ConnectionPoolManager... replicas)
+            throws PoolConfigurationException {
+        if (primary == null) {
+            throw new PoolConfigurationException("A routing pool needs a primary pool");
+        }
+        this.primary = primary;
+        this.replicas = new Replica[replicas.length];
+        for (int i = 0; i < replicas.length; i++) {
+            this.replicas[i] = new Replica(replicas[i]);
+        }
+    }
+
+    /**
+     * Gets a connection borrowing from the primary, or from a replica if set read only before first use.
+     *
+     * @return {@link RoutingConnection} handle
+     */
+    @Override
+    public Connection getConnection() throws SQLException {
+        return new RoutingConnection(this, false).getProxy();
+    }
+
+    /**
+     * Gets a connection from the replica with the fewest connections handed out, or from the primary
+     * if no replica is in rotation.
+     *
+     * @return {@link RoutingConnection} handle, read only
+     */
+    public Connection getReadConnection() throws SQLException {
+        RoutingConnection handle = new RoutingConnection(this, true);
+        handle.borrow();
+        return handle.getProxy();
+    }
+
+    /**
+     * Gets a connection from the primary without blocking the calling thread.
+     *
+     * @return {@link ConnectionFuture} of the primary
+     */
+    @Override
+    public ConnectionFuture acquireAsync() {
+        return this.primary.acquireAsync();
+    }
+
+    /**
+     * Releases a connection given out by this pool, the primary or a replica.
+     *
+     * @param connection the connection to return to the pool
+     */
+    @Override
+    public void releaseConnection(Connection connection) throws SQLException {
+        if (connection == null) {
+            return;
+        }
+        RoutingConnection routed = RoutingConnection.getHandler(connection);
+        if (routed != null) {
+            routed.close();
+            return;
+        }
+        ConnectionProxy handle = ConnectionProxy.getHandler(connection);
+        if (handle != null) {
+            handle.getPooledConnection().getPool().releaseConnection(connection);
+            return;
+        }
+        this.primary.releaseConnection(connection);
+    }
+
+    /**
+     * Borrows a read connection for a handle, from a replica in rotation or else from the primary.
+     * Each replica tried is waited for {@link #getSlowThreshold()} milliseconds at most.
+     *
+     * @param handle - handle to bind the connection to
+     */
+    void borrowRead(RoutingConnection handle) throws SQLException {
+        for (int i = 0; i < this.replicas.length; i++) {
+            Replica replica = this.pickReplica();
+            if (replica == null) {
+                break;
+            }
+            replica.outstanding.incrementAndGet();
+            long start = System.nanoTime();
+            Connection connection;
+            try {
+                connection = replica.pool.getConnection((int) Math.min(Integer.MAX_VALUE, this.slowThreshold));
+            } catch (SQLException e) {
+                replica.outstanding.decrementAndGet();
+                this.markDown(replica, e);
+                continue;
+            }
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (elapsed > this.slowThreshold) {
+                this.markDown(replica, "took " + elapsed + " ms to hand out a connection");
+            } else if (replica.downSince.get() != 0) {
+                replica.downSince.set(0);
+                log.info("Replica " + replica.pool.getName() + " is back in rotation");
+            }
+            handle.bind(connection, replica);
+            this.replicaReads.incrementAndGet();
+            return;
+        }
+        handle.bind(this.primary.getConnection(), null);
+        this.primaryReads.incrementAndGet();
+    }
+
+    /**
+     * Borrows a write connection for a handle, from the primary
+     *
+     * @param handle - handle to bind the connection to
+     */
+    void borrowWrite(RoutingConnection handle) throws SQLException {
+        handle.bind(this.primary.getConnection(), null);
+    }
+
+    /**
+     * Picks the replica in rotation with the fewest connections handed out. A replica out of rotation
+     * for {@link #getRetryInterval()} is picked instead, by a single thread, to try it again.
+     *
+     * @return replica, null if none is in rotation
+     */
+    private Replica pickReplica() {
+        int count = this.replicas.length;
+        if (count == 0) {
+            return null;
+        }
+        long now = System.nanoTime();
+        long retryNanos = TimeUnit.MILLISECONDS.toNanos(this.retryInterval);
+        int first = (this.next.getAndIncrement() & Integer.MAX_VALUE) % count;
+        Replica best = null;
+        int fewest = Integer.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            Replica replica = this.replicas[(first + i) % count];
+            long since = replica.downSince.get();
+            if (since != 0) {
+                if (now - since >= retryNanos && replica.downSince.compareAndSet(since, now)) {
+                    return replica;
+                }
+                continue;
+            }
+            int outstanding = replica.outstanding.get();
+            if (outstanding < fewest) {
+                best = replica;
+                fewest = outstanding;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Called once a handle borrowed from a replica is closed
+     *
+     * @param replica - replica the handle was borrowed from
+     */
+    void returned(Replica replica) {
+        replica.outstanding.decrementAndGet();
+    }
+
+    /**
+     * Takes a replica out of rotation after a failure
+     *
+     * @param replica - failing replica
+     * @param e - failure
+     */
+    void markDown(Replica replica, SQLException e) {
+        this.markDown(replica, e.getMessage());
+    }
+
+    private void markDown(Replica replica, String reason) {
+        long now = System.nanoTime();
+        // 0 means in rotation
+        if (replica.downSince.getAndSet(now == 0 ? 1 : now) == 0) {
+            log.warn("Replica " + replica.pool.getName() + " taken out of rotation for "
+                    + this.retryInterval + " ms: " + reason);
+        }
+    }
+
+    /**
+     * See if a failure is a connection error, with an SQL state of class <code>08</code>
+     *
+     * @param e - failure to look at
+     * @return true if the connection failed
+     */
+    static boolean isConnectionFailure(SQLException e) {
+        String state = e.getSQLState();
+        return state != null && state.startsWith("08");
+    }
+
+    /**
+     * Closes the primary and the replica pools.
+     */
+    public void close() throws SQLException {
+        SQLException failure = null;
+        List<ConnectionPoolManager> all = new ArrayList<ConnectionPoolManager>(this.getReplicas());
+        all.add(0, this.primary);
+        for (ConnectionPoolManager pool : all) {
+            try {
+                pool.close();
+            } catch (SQLException e) {
+                log.error("Failed to close pool " + pool.getName(), e);
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Time in milliseconds a replica stays out of rotation before it is tried again.
+     *
+     * @return long - retry interval
+     */
+    public long getRetryInterval() {
+        return this.retryInterval;
+    }
+
+    /**
+     * Sets the time in milliseconds a replica stays out of rotation before it is tried again.
+     *
+     * @param retryInterval - retry interval
+     */
+    public void setRetryInterval(long retryInterval) {
+        this.retryInterval = retryInterval;
+    }
+
+    /**
+     * Time in milliseconds a replica may take to hand out a connection before it is taken out of rotation.
+     *
+     * @return long - slow threshold
+     */
+    public long getSlowThreshold() {
+        return this.slowThreshold;
+    }
+
+    /**
+     * Sets the time in milliseconds a replica may take to hand out a connection before it is taken out of rotation,
+     * also the longest a read waits for a replica.
+     *
+     * @param slowThreshold - slow threshold
+     */
+    public void setSlowThreshold(long slowThreshold) {
+        this.slowThreshold = slowThreshold;
+    }
+
+    /**
+     * Returns the pool of the primary
+     *
+     * @return {@link ConnectionPoolManager}
+     */
+    public ConnectionPoolManager getPrimary() {
+        return this.primary;
+    }
+
+    /**
+     * Returns the pools of the replicas
+     *
+     * @return list of {@link ConnectionPoolManager}
+     */
+    public List<ConnectionPoolManager> getReplicas() {
+        List<ConnectionPoolManager> pools = new ArrayList<ConnectionPoolManager>(this.replicas.length);
+        for (Replica replica : this.replicas) {
+            pools.add(replica.pool);
+        }
+        return Collections.unmodifiableList(pools);
+    }
+
+    /**
+     * Get number of replicas in rotation
+     *
+     * @return int - number of replicas taking reads
+     */
+    public int getReplicasInRotation() {
+        int count = 0;
+        for (Replica replica : this.replicas) {
+            if (replica.downSince.get() == 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get number of read connections handed out by the replicas
+     *
+     * @return long - reads routed to replicas
+     */
+    public long getReplicaReads() {
+        return this.replicaReads.get();
+    }
+
+    /**
+     * Get number of read connections handed out by the primary, for lack of a replica in rotation
+     *
+     * @return long - reads routed to the primary
+     */
+    public long getPrimaryReads() {
+        return this.primaryReads.get();
+    }
+}
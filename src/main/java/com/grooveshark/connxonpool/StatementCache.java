@@ -0,0 +1,440 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Bounded cache of {@link java.sql.PreparedStatement}s of a physical connection, see
+ * {@link PoolConfiguration#getStatementCacheSize()}.
+ *
+ * <p>
+ * Statements are keyed by their SQL text, result set type, concurrency and holdability. A client calling
+ * {@link java.sql.Connection#prepareStatement} on its handle is given a cached statement if there is one,
+ * taken out of the cache while the client uses it. Closing it puts it back in the cache instead of closing it,
+ * with its parameters cleared and the max rows, fetch size, query timeout, fetch direction, max field size and escape
+ * processing the client changed restored to their values when the statement was prepared, so the next client
+ * preparing the same SQL does not inherit them. When the cache is full, the least recently used statement is closed.
+ * </p>
+ * <p>
+ * Statements belong to the physical connection they were prepared on, so the cache is cleared when
+ * a {@link PooledConnection} gets a new physical connection. Statements given out before are closed
+ * when they are given back.
+ * </p>
+ *
+ * @author andy.compeer@gmail.com
+ */
+public class StatementCache {
+
+    /**
+     * Logger
+     */
+    public static final Logger log = Logger.getLogger(StatementCache.class);
+
+    /**
+     * Interfaces of the proxies. {@link java.lang.reflect.Proxy} creates their class once
+     * and reuses it for every statement given out.
+     */
+    private static final Class<?>[] PROXY_INTERFACES = new Class<?>[] { PreparedStatement.class };
+
+    /**
+     * Counters shared by the caches of all connections of a pool
+     */
+    public static final class Stats {
+        private final AtomicLong hits = new AtomicLong(0);
+        private final AtomicLong misses = new AtomicLong(0);
+        private final AtomicLong evictions = new AtomicLong(0);
+
+        /**
+         * Number of statements served from a cache
+         *
+         * @return long - cache hits
+         */
+        public long getHits() {
+            return this.hits.get();
+        }
+
+        /**
+         * Number of statements prepared on the connection, as none was cached
+         *
+         * @return long - cache misses
+         */
+        public long getMisses() {
+            return this.misses.get();
+        }
+
+        /**
+         * Number of cached statements closed to make room for others
+         *
+         * @return long - cache evictions
+         */
+        public long getEvictions() {
+            return this.evictions.get();
+        }
+
+        @Override
+        public String toString() {
+            return "Statement Cache Hits: " + this.getHits() + "; Misses: " + this.getMisses()
+                + "; Evictions: " + this.getEvictions();
+        }
+    }
+
+    /**
+     * Maximum number of statements in the cache
+     */
+    private final int maxSize;
+
+    /**
+     * Counters of the pool
+     */
+    private final Stats stats;
+
+    /**
+     * Cached statements, least recently used first. Guarded by {@link #lock}.
+     */
+    private final LinkedHashMap<Key, PreparedStatement> statements;
+
+    /**
+     * Lock of the cache, never held while talking to the database
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Statement evicted by the last put, closed once the lock is released. Guarded by {@link #lock}.
+     */
+    private PreparedStatement evicted;
+
+    /**
+     * Incremented by {@link #clear()}, so statements of a previous physical connection are not cached again
+     */
+    private int generation = 0;
+
+    /**
+     * Constructor with the size of the cache and the counters of the pool
+     *
+     * @param maxSize - maximum number of cached statements
+     * @param stats - {@link Stats} of the pool
+     */
+    public StatementCache(int maxSize, Stats stats) {
+        this.maxSize = maxSize;
+        this.stats = stats;
+        this.statements = new LinkedHashMap<Key, PreparedStatement>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, PreparedStatement> eldest) {
+                if (this.size() <= StatementCache.this.maxSize) {
+                    return false;
+                }
+                StatementCache.this.stats.evictions.incrementAndGet();
+                StatementCache.this.evicted = eldest.getValue();
+                return true;
+            }
+        };
+    }
+
+    /**
+     * See if a {@link java.sql.Connection#prepareStatement} method can be served from the cache,
+     * i.e., if it only takes the SQL text and optionally the result set type, concurrency and holdability.
+     *
+     * @param method - prepareStatement method called by the client
+     * @return true if the statement can be cached
+     */
+    public static boolean isCacheable(Method method) {
+        int count = method.getParameterTypes().length;
+        return count == 1 || count == 3 || count == 4;
+    }
+
+    /**
+     * Returns a cached statement for the given prepareStatement arguments, or prepares a new one.
+     *
+     * @param conn - physical {@link java.sql.Connection} to prepare the statement on
+     * @param handle - client handle of the connection, returned by {@link java.sql.Statement#getConnection()}
+     * @param args - arguments of a {@link #isCacheable cacheable} prepareStatement call
+     * @return {@link java.sql.PreparedStatement} whose close gives it back to the cache
+     */
+    public PreparedStatement prepare(Connection conn, Connection handle, Object[] args) throws SQLException {
+        Key key = new Key(args);
+        PreparedStatement stmt;
+        int generation;
+        this.lock.lock();
+        try {
+            stmt = this.statements.remove(key);
+            generation = this.generation;
+        } finally {
+            this.lock.unlock();
+        }
+        if (stmt != null) {
+            this.stats.hits.incrementAndGet();
+        } else {
+            this.stats.misses.incrementAndGet();
+            stmt = key.prepare(conn);
+        }
+        CachedStatement handler = new CachedStatement(key, stmt, handle, generation);
+        return (PreparedStatement) Proxy.newProxyInstance(StatementCache.class.getClassLoader(), PROXY_INTERFACES, handler);
+    }
+
+    /**
+     * Puts a statement given out by {@link #prepare} back in the cache, unless it was prepared
+     * before the last {@link #clear()} or the same statement is cached already. Parameters, a batch the client
+     * did not execute and warnings are cleared first, or the statement is closed if they cannot be.
+     */
+    private void giveBack(Key key, PreparedStatement stmt, int generation) {
+        try {
+            stmt.clearParameters();
+            stmt.clearBatch();
+            stmt.clearWarnings();
+        } catch (SQLException e) {
+            closeQuietly(stmt);
+            return;
+        }
+        PreparedStatement evicted;
+        this.lock.lock();
+        try {
+            if (generation != this.generation || this.statements.containsKey(key)) {
+                evicted = stmt;
+            } else {
+                this.statements.put(key, stmt);
+                evicted = this.evicted;
+                this.evicted = null;
+            }
+        } finally {
+            this.lock.unlock();
+        }
+        if (evicted != null) {
+            closeQuietly(evicted);
+        }
+    }
+
+    /**
+     * Closes all cached statements, e.g. when the physical connection is replaced.
+     */
+    public void clear() {
+        List<PreparedStatement> dropped;
+        this.lock.lock();
+        try {
+            this.generation++;
+            dropped = new ArrayList<PreparedStatement>(this.statements.values());
+            this.statements.clear();
+        } finally {
+            this.lock.unlock();
+        }
+        for (PreparedStatement stmt : dropped) {
+            closeQuietly(stmt);
+        }
+    }
+
+    /**
+     * Number of statements in the cache
+     *
+     * @return int - cached statements
+     */
+    public int size() {
+        this.lock.lock();
+        try {
+            return this.statements.size();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private static void closeQuietly(PreparedStatement stmt) {
+        try {
+            stmt.close();
+        } catch (SQLException e) {
+            log.debug("Failed to close a cached statement", e);
+        }
+    }
+
+    /**
+     * SQL text, result set type, concurrency and holdability of a statement.
+     * -1 stands for the driver default of the connection.
+     */
+    private static final class Key {
+        private final String sql;
+        private final int type;
+        private final int concurrency;
+        private final int holdability;
+
+        private Key(Object[] args) {
+            this.sql = (String) args[0];
+            this.type = args.length > 1 ? ((Integer) args[1]).intValue() : -1;
+            this.concurrency = args.length > 2 ? ((Integer) args[2]).intValue() : -1;
+            this.holdability = args.length > 3 ? ((Integer) args[3]).intValue() : -1;
+        }
+
+        private PreparedStatement prepare(Connection conn) throws SQLException {
+            if (this.holdability != -1) {
+                return conn.prepareStatement(this.sql, this.type, this.concurrency, this.holdability);
+            } else if (this.type != -1) {
+                return conn.prepareStatement(this.sql, this.type, this.concurrency);
+            }
+            return conn.prepareStatement(this.sql);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return this.type == other.type && this.concurrency == other.concurrency
+                && this.holdability == other.holdability && this.sql.equals(other.sql);
+        }
+
+        @Override
+        public int hashCode() {
+            return ((this.sql.hashCode() * 31 + this.type) * 31 + this.concurrency) * 31 + this.holdability;
+        }
+    }
+
+    /**
+     * Client side of a cached statement. Delegates to the cached statement until closed.
+     */
+    private final class CachedStatement implements InvocationHandler {
+        private final Key key;
+        private final PreparedStatement stmt;
+        private final Connection handle;
+        private final int generation;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        /**
+         * Settings of the statement before the client changed them, null if not changed
+         */
+        private Integer maxRows;
+        private Integer fetchSize;
+        private Integer queryTimeout;
+        private Integer fetchDirection;
+        private Integer maxFieldSize;
+        private boolean escapeProcessing;
+
+        private CachedStatement(Key key, PreparedStatement stmt, Connection handle, int generation) {
+            this.key = key;
+            this.stmt = stmt;
+            this.handle = handle;
+            this.generation = generation;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("close")) {
+                if (this.closed.compareAndSet(false, true)) {
+                    if (this.restore()) {
+                        StatementCache.this.giveBack(this.key, this.stmt, this.generation);
+                    } else {
+                        closeQuietly(this.stmt);
+                    }
+                }
+                return null;
+            } else if (name.equals("isClosed")) {
+                return this.closed.get() || this.stmt.isClosed();
+            } else if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("toString")) {
+                return "Cached[" + this.stmt + "]";
+            }
+            if (this.closed.get()) {
+                throw new SQLException("Statement has already been closed");
+            }
+            if (name.equals("getConnection")) {
+                return this.handle;
+            }
+            if (name.startsWith("set") && args != null && args.length == 1) {
+                this.save(name);
+            }
+            try {
+                return method.invoke(this.stmt, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        /**
+         * Remembers the value of a setting the client is about to change, the first time it does.
+         * A cached statement always has the values it was prepared with.
+         */
+        private void save(String setter) throws SQLException {
+            if ((setter.equals("setMaxRows") || setter.equals("setLargeMaxRows")) && this.maxRows == null) {
+                this.maxRows = Integer.valueOf(this.stmt.getMaxRows());
+            } else if (setter.equals("setFetchSize") && this.fetchSize == null) {
+                this.fetchSize = Integer.valueOf(this.stmt.getFetchSize());
+            } else if (setter.equals("setQueryTimeout") && this.queryTimeout == null) {
+                this.queryTimeout = Integer.valueOf(this.stmt.getQueryTimeout());
+            } else if (setter.equals("setFetchDirection") && this.fetchDirection == null) {
+                this.fetchDirection = Integer.valueOf(this.stmt.getFetchDirection());
+            } else if (setter.equals("setMaxFieldSize") && this.maxFieldSize == null) {
+                this.maxFieldSize = Integer.valueOf(this.stmt.getMaxFieldSize());
+            } else if (setter.equals("setEscapeProcessing")) {
+                this.escapeProcessing = true;
+            }
+        }
+
+        /**
+         * Restores the settings changed by the client, before the statement goes back to the cache
+         *
+         * @return false if they could not be restored, the statement must not be cached then
+         */
+        private boolean restore() {
+            try {
+                if (this.maxRows != null) {
+                    this.stmt.setMaxRows(this.maxRows.intValue());
+                }
+                if (this.fetchSize != null) {
+                    this.stmt.setFetchSize(this.fetchSize.intValue());
+                }
+                if (this.queryTimeout != null) {
+                    this.stmt.setQueryTimeout(this.queryTimeout.intValue());
+                }
+                if (this.fetchDirection != null) {
+                    this.stmt.setFetchDirection(this.fetchDirection.intValue());
+                }
+                if (this.maxFieldSize != null) {
+                    this.stmt.setMaxFieldSize(this.maxFieldSize.intValue());
+                }
+                if (this.escapeProcessing) {
+                    // no getter, on by default
+                    this.stmt.setEscapeProcessing(true);
+                }
+                return true;
+            } catch (SQLException e) {
+                log.debug("Failed to restore the settings of a cached statement", e);
+                return false;
+            }
+        }
+    }
+}
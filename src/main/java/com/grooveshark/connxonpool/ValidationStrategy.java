@@ -0,0 +1,56 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Checks whether a pooled {@link java.sql.Connection} is still usable before it is handed out to a client.
+ *
+ * <p>
+ * {@link java.sql.Connection#isClosed()} only tells whether the connection was closed on this side, it does not
+ * catch a socket the database or the network dropped. A strategy makes a round-trip to the database instead, so
+ * {@link ConnectionPoolManager} only validates connections idle for at least
+ * {@link PoolConfiguration#getValidationIdleThreshold()} milliseconds. Connections released just before are
+ * handed out without any round-trip.
+ * </p>
+ * <p>
+ * Provided strategies are {@link IsValidValidationStrategy}, {@link PingValidationStrategy} and
+ * {@link QueryValidationStrategy}. A custom one needs a public no-argument constructor to be set by class
+ * name with {@link PoolConfiguration#setValidation(String)}, or can be given to
+ * {@link ConnectionPoolManager#setValidationStrategy(ValidationStrategy)}. Strategies are shared by all
+ * clients of a pool, so they need to be thread safe.
+ * </p>
+ *
+ * @author andy.compeer@gmail.com
+ */
+public interface ValidationStrategy {
+
+    /**
+     * Checks a connection.
+     *
+     * @param conn - physical {@link java.sql.Connection} to check, not closed
+     * @param timeout - maximum time in seconds to wait for the database, 0 for no limit
+     * @return true if the connection is usable
+     * @throws SQLException - if checking fails, the connection is then taken as not usable
+     */
+    public boolean isValid(Connection conn, int timeout) throws SQLException;
+}
@@ -0,0 +1,49 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool;
+
+/**
+ * Listener of the progress of a {@link PoolWarmup}.
+ *
+ * Callbacks are made on the threads opening the initial connections, so they
+ * need to be thread safe and should return quickly.
+ *
+ * @author andy.compeer@gmail.com
+ */
+public interface WarmupListener {
+
+    /**
+     * Called every time an initial connection is opened and available to the clients.
+     *
+     * @param pool - pool being warmed up
+     * @param ready - number of initial connections opened so far
+     * @param target - number of initial connections to open, {@link PoolConfiguration#getInitialSize()}
+     */
+    public void connectionReady(ConnectionPoolManager pool, int ready, int target);
+
+    /**
+     * Called once, when no more initial connections will be opened.
+     *
+     * @param pool - pool being warmed up
+     * @param ready - number of initial connections opened
+     * @param failed - number of initial connections that could not be opened
+     */
+    public void warmupDone(ConnectionPoolManager pool, int ready, int failed);
+}
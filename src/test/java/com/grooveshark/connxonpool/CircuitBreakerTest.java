@@ -0,0 +1,149 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.BeforeClass;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Unit tests for CircuitBreaker.
+ */
+public class CircuitBreakerTest
+{
+    public static final Logger log = Logger.getLogger(CircuitBreakerTest.class);
+
+    @BeforeClass
+    public static void testSetup() throws SQLException, IOException {
+        log.info("-----------------------------------");
+        log.info("-      CIRCUIT BREAKER TEST       -");
+        log.info("-----------------------------------");
+        SetupHelper.getProperties();
+    }
+
+    private static void assertRejected(CircuitBreaker breaker) {
+        try {
+            breaker.beforeConnect();
+            fail("Connect let through an open circuit breaker");
+        } catch (CircuitOpenException e) {
+            assertEquals("08001", e.getSQLState());
+        }
+    }
+
+    /**
+     * Waits until the breaker lets a probe through, and returns how long it took since it opened
+     *
+     * @param opened - {@link System#nanoTime()} before the breaker opened
+     */
+    private static long awaitProbe(CircuitBreaker breaker, long opened) throws InterruptedException {
+        while (true) {
+            try {
+                assertTrue(breaker.beforeConnect());
+                return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - opened);
+            } catch (CircuitOpenException e) {
+                Thread.sleep(5);
+            }
+        }
+    }
+
+    /**
+     * The breaker opens after the threshold, lets a single probe through once the backoff is up,
+     * and closes once the probe connects.
+     */
+    @Test(timeout = 10000)
+    public void openProbeCloseTest() throws Exception {
+        log.info("Starting openProbeCloseTest()");
+        CircuitBreaker breaker = new CircuitBreaker("breaker_test", 2, 100, 1000);
+        SQLException failure = new SQLException("Communications link failure", "08S01");
+        assertFalse(breaker.beforeConnect());
+        breaker.failed(false, failure);
+        assertFalse(breaker.isOpen());
+        // a success resets the count
+        breaker.connected();
+        breaker.failed(false, failure);
+        assertFalse(breaker.isOpen());
+        long opened = System.nanoTime();
+        breaker.failed(false, failure);
+        assertTrue(breaker.isOpen());
+        assertTrue(breaker.getLastFailure() == failure);
+        assertRejected(breaker);
+        try {
+            breaker.check();
+            fail("Client let wait on an open circuit breaker");
+        } catch (CircuitOpenException e) {
+            assertTrue(e.getCause() == failure);
+        }
+        long waited = awaitProbe(breaker, opened);
+        assertTrue("waited " + waited, waited >= 100);
+        // a single probe at a time
+        assertRejected(breaker);
+        try {
+            breaker.check();
+            fail("Client let wait on a probing circuit breaker");
+        } catch (CircuitOpenException e) {
+        }
+        breaker.connected();
+        assertFalse(breaker.isOpen());
+        assertFalse(breaker.beforeConnect());
+        breaker.check();
+        assertTrue(breaker.getRejectedCount() >= 4);
+        log.info("Finished openProbeCloseTest()");
+    }
+
+    /**
+     * Every failed probe doubles the backoff, up to the maximum, and a probe that connects brings it back.
+     */
+    @Test(timeout = 10000)
+    public void backoffDoublingTest() throws Exception {
+        log.info("Starting backoffDoublingTest()");
+        CircuitBreaker breaker = new CircuitBreaker("breaker_test", 1, 100, 300);
+        long opened = System.nanoTime();
+        breaker.failed(false, null);
+        assertTrue(breaker.isOpen());
+        long waited = awaitProbe(breaker, opened);
+        assertTrue("waited " + waited, waited >= 100 && waited < 190);
+        opened = System.nanoTime();
+        breaker.failed(true, null);
+        waited = awaitProbe(breaker, opened);
+        assertTrue("waited " + waited, waited >= 200 && waited < 290);
+        opened = System.nanoTime();
+        breaker.failed(true, null);
+        // capped, not 400
+        waited = awaitProbe(breaker, opened);
+        assertTrue("waited " + waited, waited >= 300 && waited < 390);
+        breaker.connected();
+        opened = System.nanoTime();
+        breaker.failed(false, null);
+        waited = awaitProbe(breaker, opened);
+        assertTrue("waited " + waited, waited >= 100 && waited < 190);
+        breaker.connected();
+        log.info("Finished backoffDoublingTest()");
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.BeforeClass;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertEquals;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Unit tests for ConnectRateLimiter.
+ */
+public class ConnectRateLimiterTest
+{
+    public static final Logger log = Logger.getLogger(ConnectRateLimiterTest.class);
+
+    @BeforeClass
+    public static void testSetup() throws SQLException, IOException {
+        log.info("-----------------------------------");
+        log.info("-      CONNECT RATE LIMITER TEST  -");
+        log.info("-----------------------------------");
+        SetupHelper.getProperties();
+    }
+
+    /**
+     * The burst goes through at once, then permits are handed out one interval apart.
+     */
+    @Test(timeout = 10000)
+    public void pacingTest() throws Exception {
+        log.info("Starting pacingTest()");
+        ConnectRateLimiter limiter = new ConnectRateLimiter(20, 3);
+        assertTrue(limiter.isLimited());
+        long start = System.nanoTime();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(limiter.acquire(0, TimeUnit.MILLISECONDS));
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 40);
+        assertEquals(0, limiter.getThrottledCount());
+        // 50 ms apart after the burst
+        start = System.nanoTime();
+        for (int i = 0; i < 4; i++) {
+            assertTrue(limiter.acquire(1000, TimeUnit.MILLISECONDS));
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("took " + elapsed, elapsed >= 190);
+        assertEquals(4, limiter.getThrottledCount());
+        // permits not used while quiet add up to the burst again
+        Thread.sleep(200);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(limiter.tryAcquire());
+        }
+        assertFalse(limiter.tryAcquire());
+        log.info("Finished pacingTest()");
+    }
+
+    /**
+     * A caller not willing to wait for the next permit is refused right away, and does not use up a permit.
+     */
+    @Test(timeout = 10000)
+    public void refusalTest() throws Exception {
+        log.info("Starting refusalTest()");
+        ConnectRateLimiter limiter = new ConnectRateLimiter(5, 1);
+        assertTrue(limiter.tryAcquire());
+        long start = System.nanoTime();
+        assertFalse(limiter.acquire(100, TimeUnit.MILLISECONDS));
+        assertFalse(limiter.tryAcquire());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 50);
+        assertEquals(2, limiter.getRefusedCount());
+        // the next permit is still 200 ms after the first
+        assertTrue(limiter.acquire(300, TimeUnit.MILLISECONDS));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("took " + elapsed, elapsed >= 180 && elapsed < 300);
+        // no limit
+        limiter.setRate(0, 1);
+        assertFalse(limiter.isLimited());
+        for (int i = 0; i < 100; i++) {
+            assertTrue(limiter.tryAcquire());
+        }
+        log.info("Finished refusalTest()");
+    }
+}
@@ -0,0 +1,238 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.After;
+import org.junit.BeforeClass;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Unit tests for ConnectionCreator.
+ */
+public class ConnectionCreatorTest
+{
+    private static final String URL = SimulatedDriver.URL_PREFIX + "creator_test";
+    private ConnectionPoolManager poolManager;
+    private ConnectionCreator creator;
+    public static final Logger log = Logger.getLogger(ConnectionCreatorTest.class);
+
+    @BeforeClass
+    public static void testSetup() throws SQLException, IOException {
+        log.info("-----------------------------------");
+        log.info("-      CONNECTION CREATOR TEST    -");
+        log.info("-----------------------------------");
+        SetupHelper.getProperties();
+    }
+
+    @Before
+    public void setup() throws SQLException {
+        Properties props = new Properties();
+        props.putAll(SetupHelper.setupProperties);
+        props.setProperty("POOL_INITIAL_SIZE", "1");
+        props.setProperty("POOL_MAX_CONNECTIONS", "2");
+        props.setProperty("POOL_RUN_RELEASER", "false");
+        props.setProperty("POOL_JMX", "false");
+        this.poolManager = new ConnectionPoolManager(props, URL, SetupHelper.testUser, SetupHelper.testPass);
+        this.creator = new ConnectionCreator(this.poolManager, 1);
+    }
+
+    @After
+    public void teardown() throws SQLException {
+        this.creator.shutdown();
+        this.poolManager.close();
+        SimulatedDriver.getServer("creator_test").reset();
+    }
+
+    /**
+     * A pool thread calling the creator runs the task itself instead of waiting for another pool thread.
+     */
+    @Test(timeout = 5000)
+    public void callFromCreatorThreadTest() throws SQLException {
+        log.info("Starting callFromCreatorThreadTest()");
+        final Thread caller = Thread.currentThread();
+        String thread = this.creator.call(new Callable<String>() {
+            @Override
+            public String call() throws SQLException {
+                assertTrue(Thread.currentThread() != caller);
+                final Thread outer = Thread.currentThread();
+                return ConnectionCreatorTest.this.creator.call(new Callable<String>() {
+                    @Override
+                    public String call() {
+                        return Thread.currentThread() == outer ? "inline" : "queued";
+                    }
+                }, System.nanoTime() + TimeUnit.SECONDS.toNanos(1), null);
+            }
+        }, System.nanoTime() + TimeUnit.SECONDS.toNanos(1), null);
+        assertEquals("inline", thread);
+        log.info("Finished callFromCreatorThreadTest()");
+    }
+
+    /**
+     * Pool in virtual-thread mode with a single creator thread, validating every borrow
+     */
+    private ConnectionPoolManager virtualPool(int maxWait) throws SQLException {
+        Properties props = new Properties();
+        props.putAll(SetupHelper.setupProperties);
+        props.setProperty("POOL_INITIAL_SIZE", "1");
+        props.setProperty("POOL_MAX_CONNECTIONS", "2");
+        props.setProperty("POOL_CREATOR_THREADS", "1");
+        props.setProperty("POOL_VIRTUAL_THREADS", "true");
+        props.setProperty("POOL_MAX_WAIT", "" + maxWait);
+        props.setProperty("POOL_VALIDATION", PoolProperties.VALIDATION_IS_VALID);
+        props.setProperty("POOL_VALIDATION_IDLE_THRESHOLD", "0");
+        props.setProperty("POOL_RUN_RELEASER", "false");
+        props.setProperty("POOL_JMX", "false");
+        return new ConnectionPoolManager(props, URL, SetupHelper.testUser, SetupHelper.testPass);
+    }
+
+    /**
+     * In virtual-thread mode, validating a released connection for a waiting client does not queue behind
+     * a slow connect on the creator thread.
+     */
+    @Test(timeout = 10000)
+    public void virtualBorrowWithinMaxWaitTest() throws Exception {
+        log.info("Starting virtualBorrowWithinMaxWaitTest()");
+        final ConnectionPoolManager pool = this.virtualPool(500);
+        try {
+            Connection first = pool.getConnection();
+            SimulatedDriver.getServer("creator_test").setConnectLatency(3000);
+            final AtomicReference<Connection> borrowed = new AtomicReference<Connection>();
+            final AtomicLong waited = new AtomicLong();
+            Thread client = new Thread() {
+                @Override
+                public void run() {
+                    long start = System.currentTimeMillis();
+                    try {
+                        // asks the creator for a connection, which takes 3 s
+                        borrowed.set(pool.getConnection());
+                    } catch (SQLException e) {
+                        log.error(e);
+                    }
+                    waited.set(System.currentTimeMillis() - start);
+                }
+            };
+            client.start();
+            Thread.sleep(100);
+            long start = System.currentTimeMillis();
+            first.close();
+            assertTrue(System.currentTimeMillis() - start < 200);
+            client.join(5000);
+            assertTrue("waited " + waited.get(), waited.get() < 500);
+            assertTrue(borrowed.get() != null);
+            borrowed.get().close();
+            start = System.currentTimeMillis();
+            pool.close();
+            assertTrue(System.currentTimeMillis() - start < 500);
+        } finally {
+            pool.close();
+        }
+        log.info("Finished virtualBorrowWithinMaxWaitTest()");
+    }
+
+    /**
+     * In virtual-thread mode, a client whose connection takes longer than maxWait to reconnect times out,
+     * and the connection goes back to the pool once reconnected.
+     */
+    @Test(timeout = 10000)
+    public void virtualReconnectTimeoutTest() throws Exception {
+        log.info("Starting virtualReconnectTimeoutTest()");
+        ConnectionPoolManager pool = this.virtualPool(300);
+        try {
+            SimulatedServer server = SimulatedDriver.getServer("creator_test");
+            Connection first = pool.getConnection();
+            first.close();
+            server.breakConnections();
+            server.setConnectLatency(800);
+            long start = System.currentTimeMillis();
+            try {
+                pool.getConnection();
+                fail("Reconnected within the wait");
+            } catch (SQLException e) {
+                assertTrue(e.getMessage().startsWith("Timed out"));
+            }
+            long elapsed = System.currentTimeMillis() - start;
+            assertTrue("waited " + elapsed, elapsed >= 290 && elapsed < 600);
+            Thread.sleep(900);
+            // the reconnected one, and the one the creator opened for the client meanwhile
+            assertEquals(2, pool.getSize());
+            assertEquals(2, pool.getAvailableSize());
+            server.setConnectLatency(0);
+            Connection conn = pool.getConnection();
+            conn.close();
+        } finally {
+            pool.close();
+        }
+        log.info("Finished virtualReconnectTimeoutTest()");
+    }
+
+    /**
+     * In virtual-thread mode, only a release with something to reset hands the connection to a client thread,
+     * and the next client gets it reset either way.
+     */
+    @Test(timeout = 10000)
+    public void virtualReleaseTest() throws Exception {
+        log.info("Starting virtualReleaseTest()");
+        ConnectionPoolManager pool = this.virtualPool(500);
+        try {
+            Connection conn = pool.getConnection();
+            PooledConnection pooled = ConnectionProxy.getHandler(conn).getPooledConnection();
+            assertFalse(pooled.needsReset());
+            Statement stmt = conn.createStatement();
+            assertTrue(pooled.needsReset());
+            stmt.close();
+            assertFalse(pooled.needsReset());
+            conn.close();
+            assertEquals(1, pool.getAvailableSize());
+
+            conn = pool.getConnection();
+            assertTrue(ConnectionProxy.getHandler(conn).getPooledConnection() == pooled);
+            conn.setReadOnly(true);
+            conn.createStatement();
+            assertTrue(pooled.needsReset());
+            conn.close();
+            assertFalse(pooled.needsReset());
+            assertEquals(1, pool.getAvailableSize());
+            conn = pool.getConnection();
+            assertFalse(conn.isReadOnly());
+            conn.close();
+        } finally {
+            pool.close();
+        }
+        log.info("Finished virtualReleaseTest()");
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Properties;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.After;
+import org.junit.BeforeClass;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertEquals;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Unit tests for ConnectionEvictor.
+ */
+public class ConnectionEvictorTest
+{
+    private static final String URL = SimulatedDriver.URL_PREFIX + "evictor_test";
+    private ConnectionPoolManager poolManager;
+    private SimulatedServer server;
+    public static final Logger log = Logger.getLogger(ConnectionEvictorTest.class);
+
+    @BeforeClass
+    public static void testSetup() throws SQLException, IOException {
+        log.info("-----------------------------------");
+        log.info("-      POOL EVICTOR TEST          -");
+        log.info("-----------------------------------");
+        SetupHelper.getProperties();
+    }
+
+    @Before
+    public void setup() throws SQLException {
+        this.server = SimulatedDriver.getServer("evictor_test");
+        this.server.reset();
+        Properties props = new Properties();
+        props.putAll(SetupHelper.setupProperties);
+        props.setProperty("POOL_INITIAL_SIZE", "4");
+        props.setProperty("POOL_MAX_CONNECTIONS", "4");
+        props.setProperty("POOL_MAX_LIFETIME", "100000");
+        props.setProperty("POOL_RUN_RELEASER", "false");
+        props.setProperty("POOL_JMX", "false");
+        this.poolManager = new ConnectionPoolManager(props, URL, SetupHelper.testUser, SetupHelper.testPass);
+    }
+
+    @After
+    public void teardown() throws SQLException {
+        this.poolManager.close();
+        this.server.reset();
+    }
+
+    /**
+     * Old connections are renewed in the background, without the evictor waiting for the connect
+     * and without idle connections dipping meanwhile.
+     */
+    @Test
+    public void renewInBackgroundTest() throws Exception {
+        log.info("Starting renewInBackgroundTest()");
+        PooledConnection first = this.poolManager.getPooledConnection(0);
+        Connection old = first.getConnection();
+        long connects = this.server.getConnectCount();
+        this.server.setConnectLatency(300);
+        // every connection is past its maximum lifetime
+        this.poolManager.getProps().setMaxLifetime(1);
+        Thread.sleep(5);
+        long start = System.currentTimeMillis();
+        new ConnectionEvictor(this.poolManager).run();
+        assertTrue(System.currentTimeMillis() - start < 250);
+        assertEquals(4, this.poolManager.getAvailableSize());
+        // a client can use an old connection while it is being renewed
+        Connection conn = this.poolManager.getConnection();
+        conn.close();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (this.server.getConnectCount() < connects + 4 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            assertEquals(4, this.poolManager.getAvailableSize() + this.poolManager.getBusySize());
+        }
+        this.poolManager.getProps().setMaxLifetime(100000);
+        Thread.sleep(100);
+        assertEquals(connects + 4, this.server.getConnectCount());
+        assertEquals(4, this.poolManager.getSize());
+        assertEquals(4, this.poolManager.getAvailableSize());
+        assertEquals(4, this.server.getOpenConnections());
+        assertTrue(old.isClosed());
+        assertTrue(first.getConnection() != old);
+        log.info("Finished renewInBackgroundTest()");
+    }
+
+    /**
+     * Idle connections are closed in the background, without the evictor waiting for the disconnect.
+     */
+    @Test
+    public void closeInBackgroundTest() throws Exception {
+        log.info("Starting closeInBackgroundTest()");
+        PooledConnection first = this.poolManager.getPooledConnection(0);
+        Connection old = first.getConnection();
+        this.server.setCloseLatency(300);
+        // every connection is idle for too long, and none has to be kept
+        this.poolManager.getProps().setIdleTimeout(1);
+        Thread.sleep(5);
+        long start = System.currentTimeMillis();
+        new ConnectionEvictor(this.poolManager).run();
+        assertTrue(System.currentTimeMillis() - start < 250);
+        assertEquals(0, this.poolManager.getSize());
+        this.poolManager.getProps().setIdleTimeout(0);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (this.server.getOpenConnections() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(0, this.server.getOpenConnections());
+        assertTrue(old.isClosed());
+        log.info("Finished closeInBackgroundTest()");
+    }
+}
@@ -0,0 +1,426 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.After;
+import org.junit.BeforeClass;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Pool behaviour against a slow, full or failing database, simulated by the {@link SimulatedServer}.
+ */
+public class ConnectionFailureTest
+{
+    private static final String URL = SimulatedDriver.URL_PREFIX + "failure_test";
+    private ConnectionPoolManager poolManager;
+    private SimulatedServer server;
+    public static final Logger log = Logger.getLogger(ConnectionFailureTest.class);
+
+    @BeforeClass
+    public static void testSetup() throws SQLException, IOException {
+        log.info("-----------------------------------");
+        log.info("-      CONNECTION FAILURE TEST    -");
+        log.info("-----------------------------------");
+        SetupHelper.getProperties();
+    }
+
+    @Before
+    public void setup() {
+        this.server = SimulatedDriver.getServer("failure_test");
+        this.server.reset();
+    }
+
+    @After
+    public void teardown() throws SQLException {
+        if (this.poolManager != null) {
+            this.poolManager.close();
+        }
+        this.server.reset();
+    }
+
+    private void createPool(int initialSize, int maxConnections, Properties overrides) throws SQLException {
+        Properties props = new Properties();
+        props.putAll(SetupHelper.setupProperties);
+        props.setProperty("POOL_INITIAL_SIZE", "" + initialSize);
+        props.setProperty("POOL_MAX_CONNECTIONS", "" + maxConnections);
+        props.setProperty("POOL_RUN_RELEASER", "false");
+        props.setProperty("POOL_JMX", "false");
+        props.putAll(overrides);
+        this.poolManager = new ConnectionPoolManager(props, URL, SetupHelper.testUser, SetupHelper.testPass);
+    }
+
+    private void select(Connection conn) throws SQLException {
+        Statement stmt = conn.createStatement();
+        try {
+            ResultSet rs = stmt.executeQuery("SELECT 1");
+            assertTrue(rs.next());
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Idle connections are handed out without connecting, new ones take the connect latency of the database.
+     */
+    @Test
+    public void connectLatencyTest() throws SQLException {
+        log.info("Starting connectLatencyTest()");
+        this.createPool(1, 2, new Properties());
+        this.server.setConnectLatency(200);
+        long start = System.currentTimeMillis();
+        Connection first = this.poolManager.getConnection();
+        assertTrue(System.currentTimeMillis() - start < 150);
+        start = System.currentTimeMillis();
+        Connection second = this.poolManager.getConnection();
+        assertTrue(System.currentTimeMillis() - start >= 200);
+        assertEquals(2, this.poolManager.getSize());
+        first.close();
+        second.close();
+        log.info("Finished connectLatencyTest()");
+    }
+
+    /**
+     * A database refusing connections fails the client, without the pool losing count of its connections.
+     */
+    @Test
+    public void connectionLimitTest() throws SQLException {
+        log.info("Starting connectionLimitTest()");
+        this.createPool(2, 4, new Properties());
+        this.server.setMaxConnections(2);
+        Connection first = this.poolManager.getConnection();
+        Connection second = this.poolManager.getConnection();
+        try {
+            this.poolManager.getConnection();
+            fail("Connected past the limit of the database");
+        } catch (SQLException e) {
+            assertTrue(e.getMessage().contains("Too many connections"));
+        }
+        assertEquals(2, this.poolManager.getSize());
+        assertEquals(2, this.server.getOpenConnections());
+        first.close();
+        // a released connection is handed out again
+        Connection third = this.poolManager.getConnection();
+        this.select(third);
+        third.close();
+        second.close();
+        log.info("Finished connectionLimitTest()");
+    }
+
+    /**
+     * Connections closed by the database are reconnected when borrowed again, broken ones once they fail validation.
+     */
+    @Test
+    public void droppedConnectionTest() throws SQLException {
+        log.info("Starting droppedConnectionTest()");
+        Properties overrides = new Properties();
+        overrides.setProperty("POOL_VALIDATION", PoolProperties.VALIDATION_IS_VALID);
+        overrides.setProperty("POOL_VALIDATION_IDLE_THRESHOLD", "0");
+        this.createPool(1, 1, overrides);
+        long connects = this.server.getConnectCount();
+        // the socket drops under a statement
+        this.server.setDropRate(1);
+        Connection conn = this.poolManager.getConnection();
+        try {
+            this.select(conn);
+            fail("Statement ran on a dropped connection");
+        } catch (SQLException e) {
+            assertEquals("08S01", e.getSQLState());
+        }
+        conn.close();
+        this.server.setDropRate(0);
+        conn = this.poolManager.getConnection();
+        this.select(conn);
+        conn.close();
+        assertEquals(connects + 1, this.server.getConnectCount());
+        // the socket breaks while idle
+        assertEquals(1, this.server.breakConnections());
+        conn = this.poolManager.getConnection();
+        this.select(conn);
+        conn.close();
+        assertEquals(connects + 2, this.server.getConnectCount());
+        assertEquals(1, this.poolManager.getSize());
+        assertEquals(1, this.server.getOpenConnections());
+        log.info("Finished droppedConnectionTest()");
+    }
+
+    /**
+     * A probe failing with a runtime exception opens the breaker again, rather than leaving it probing for good.
+     */
+    @Test(timeout = 10000)
+    public void crashingProbeTest() throws Exception {
+        log.info("Starting crashingProbeTest()");
+        Properties overrides = new Properties();
+        overrides.setProperty("POOL_BREAKER_THRESHOLD", "2");
+        overrides.setProperty("POOL_BREAKER_BACKOFF", "100");
+        overrides.setProperty("POOL_BREAKER_MAX_BACKOFF", "1000");
+        this.createPool(1, 3, overrides);
+        CircuitBreaker breaker = this.poolManager.getBreaker();
+        Connection first = this.poolManager.getConnection();
+        this.server.setDown(true);
+        for (int i = 0; i < 2; i++) {
+            try {
+                this.poolManager.getConnection();
+                fail("Connected to a database that is down");
+            } catch (CircuitOpenException e) {
+                fail("Circuit breaker open before the threshold");
+            } catch (SQLException e) {
+            }
+        }
+        assertTrue(breaker.isOpen());
+        try {
+            this.poolManager.getConnection();
+            fail("Connected through an open circuit breaker");
+        } catch (CircuitOpenException e) {
+        }
+        Thread.sleep(150);
+        this.server.setCrashing(true);
+        try {
+            this.poolManager.getConnection();
+            fail("Connected through a crashing driver");
+        } catch (IllegalStateException e) {
+        }
+        assertTrue(breaker.isOpen());
+        assertTrue(breaker.getLastFailure().getCause() instanceof IllegalStateException);
+        // open again for twice as long, then probing again
+        Thread.sleep(150);
+        try {
+            this.poolManager.getConnection();
+            fail("Connected through an open circuit breaker");
+        } catch (CircuitOpenException e) {
+        }
+        Thread.sleep(100);
+        this.server.reset();
+        Connection second = this.poolManager.getConnection();
+        this.select(second);
+        assertFalse(breaker.isOpen());
+        assertEquals(2, this.poolManager.getSize());
+        second.close();
+        first.close();
+        log.info("Finished crashingProbeTest()");
+    }
+
+    /**
+     * Waiting for a connect permit to reconnect a connection counts towards the maximum wait of the client.
+     */
+    @Test(timeout = 10000)
+    public void reconnectWithinMaxWaitTest() throws Exception {
+        log.info("Starting reconnectWithinMaxWaitTest()");
+        Properties overrides = new Properties();
+        overrides.setProperty("POOL_VALIDATION", PoolProperties.VALIDATION_IS_VALID);
+        overrides.setProperty("POOL_VALIDATION_IDLE_THRESHOLD", "0");
+        overrides.setProperty("POOL_CONNECT_RATE", "2");
+        overrides.setProperty("POOL_CONNECT_BURST", "1");
+        overrides.setProperty("POOL_MAX_WAIT", "400");
+        this.createPool(1, 1, overrides);
+        ConnectRateLimiter limiter = this.poolManager.getConnectLimiter();
+        Thread.sleep(600);
+        // the next permit is 500 ms away: within the wait, but not within what is left of it once released
+        assertTrue(limiter.tryAcquire());
+        long refused = limiter.getRefusedCount();
+        final Connection conn = this.poolManager.getConnection();
+        this.server.breakConnections();
+        Thread releaser = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                    conn.close();
+                } catch (Exception e) {
+                    log.error(e);
+                }
+            }
+        };
+        releaser.start();
+        long start = System.currentTimeMillis();
+        try {
+            this.poolManager.getConnection();
+            fail("Reconnected without a connect permit");
+        } catch (SQLException e) {
+            assertTrue(e.getMessage().startsWith("Timed out"));
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("waited " + elapsed, elapsed >= 390 && elapsed < 490);
+        releaser.join();
+        assertEquals(refused + 1, limiter.getRefusedCount());
+        assertEquals(0, this.poolManager.getSize());
+        assertEquals(0, this.server.getOpenConnections());
+        log.info("Finished reconnectWithinMaxWaitTest()");
+    }
+
+    /**
+     * A client not getting a connect permit in time waits for a released connection for the rest of its
+     * maximum wait only.
+     */
+    @Test(timeout = 10000)
+    public void createWithinMaxWaitTest() throws Exception {
+        log.info("Starting createWithinMaxWaitTest()");
+        Properties overrides = new Properties();
+        overrides.setProperty("POOL_CONNECT_RATE", "2");
+        overrides.setProperty("POOL_CONNECT_BURST", "1");
+        overrides.setProperty("POOL_MAX_WAIT", "300");
+        this.createPool(1, 2, overrides);
+        Connection first = this.poolManager.getConnection();
+        // 200 ms to the next permit, within the wait
+        Thread.sleep(600);
+        assertTrue(this.poolManager.getConnectLimiter().tryAcquire());
+        Thread.sleep(300);
+        long start = System.currentTimeMillis();
+        Connection second = this.poolManager.getConnection();
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("waited " + elapsed, elapsed >= 150 && elapsed < 300);
+        second.close();
+        // the pool is full, so the next client waits the whole wait for a released connection
+        Connection third = this.poolManager.getConnection();
+        start = System.currentTimeMillis();
+        try {
+            this.poolManager.getConnection();
+            fail("Borrowed past the maximum connections");
+        } catch (SQLException e) {
+            assertTrue(e.getMessage().startsWith("Timed out"));
+        }
+        elapsed = System.currentTimeMillis() - start;
+        assertTrue("waited " + elapsed, elapsed >= 290 && elapsed < 450);
+        third.close();
+        first.close();
+        log.info("Finished createWithinMaxWaitTest()");
+    }
+
+    /**
+     * Validation strategy named by its class, counting the connections it checks
+     */
+    public static class CountingValidationStrategy implements ValidationStrategy {
+        static final AtomicInteger checked = new AtomicInteger(0);
+
+        @Override
+        public boolean isValid(Connection conn, int timeout) throws SQLException {
+            checked.incrementAndGet();
+            return conn.isValid(timeout);
+        }
+    }
+
+    private Properties validation(String strategy, long idleThreshold) {
+        Properties overrides = new Properties();
+        overrides.setProperty("POOL_VALIDATION", strategy);
+        overrides.setProperty("POOL_VALIDATION_IDLE_THRESHOLD", "" + idleThreshold);
+        return overrides;
+    }
+
+    /**
+     * Every built in strategy catches a broken connection, which is reconnected before it is handed out.
+     * The ping and the query strategies check a healthy one with a statement, isValid without.
+     */
+    @Test
+    public void validationStrategiesTest() throws SQLException {
+        log.info("Starting validationStrategiesTest()");
+        String[] strategies = { PoolProperties.VALIDATION_IS_VALID, PoolProperties.VALIDATION_PING,
+                                PoolProperties.VALIDATION_QUERY };
+        for (String strategy : strategies) {
+            Properties overrides = this.validation(strategy, 0);
+            overrides.setProperty("POOL_VALIDATION_QUERY", "SELECT 2");
+            this.createPool(1, 1, overrides);
+            long statements = this.server.getStatementCount();
+            Connection conn = this.poolManager.getConnection();
+            conn.close();
+            long checks = this.server.getStatementCount() - statements;
+            assertEquals(strategy, strategy.equals(PoolProperties.VALIDATION_IS_VALID) ? 0 : 1, checks);
+            long connects = this.server.getConnectCount();
+            assertEquals(1, this.server.breakConnections());
+            conn = this.poolManager.getConnection();
+            this.select(conn);
+            conn.close();
+            assertEquals(strategy, connects + 1, this.server.getConnectCount());
+            assertEquals(1, this.server.getOpenConnections());
+            this.poolManager.close();
+            this.poolManager = null;
+        }
+        log.info("Finished validationStrategiesTest()");
+    }
+
+    /**
+     * Connections released within the idle threshold are handed out without validation,
+     * connections idle for longer are validated.
+     */
+    @Test
+    public void validationIdleThresholdTest() throws Exception {
+        log.info("Starting validationIdleThresholdTest()");
+        this.createPool(1, 1, this.validation(PoolProperties.VALIDATION_IS_VALID, 300));
+        Connection conn = this.poolManager.getConnection();
+        conn.close();
+        long connects = this.server.getConnectCount();
+        assertEquals(1, this.server.breakConnections());
+        // released just now, so taken as valid
+        conn = this.poolManager.getConnection();
+        try {
+            this.select(conn);
+            fail("Statement ran on a broken connection");
+        } catch (SQLException e) {
+            assertEquals("08S01", e.getSQLState());
+        }
+        conn.close();
+        assertEquals(connects, this.server.getConnectCount());
+        // idle for longer than the threshold
+        Thread.sleep(350);
+        conn = this.poolManager.getConnection();
+        this.select(conn);
+        conn.close();
+        assertEquals(connects + 1, this.server.getConnectCount());
+        log.info("Finished validationIdleThresholdTest()");
+    }
+
+    /**
+     * A validation strategy can be named by its class, a class that cannot be loaded fails the pool.
+     */
+    @Test
+    public void customValidationStrategyTest() throws SQLException {
+        log.info("Starting customValidationStrategyTest()");
+        int checked = CountingValidationStrategy.checked.get();
+        this.createPool(1, 1, this.validation(CountingValidationStrategy.class.getName(), 0));
+        Connection conn = this.poolManager.getConnection();
+        this.select(conn);
+        conn.close();
+        assertEquals(checked + 1, CountingValidationStrategy.checked.get());
+        this.poolManager.close();
+        this.poolManager = null;
+        try {
+            this.createPool(1, 1, this.validation("com.grooveshark.connxonpool.NoSuchStrategy", 0));
+            fail("Pool created with a validation strategy that does not exist");
+        } catch (SQLException e) {
+            assertTrue(e.getCause() instanceof PoolConfigurationException);
+            assertTrue(e.getCause().getMessage().contains("cannot be loaded"));
+        }
+        log.info("Finished customValidationStrategyTest()");
+    }
+}
@@ -0,0 +1,199 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.After;
+import org.junit.BeforeClass;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Unit tests for ConnectionFuture.
+ */
+public class ConnectionFutureTest
+{
+    private static final String URL = SimulatedDriver.URL_PREFIX + "future_test";
+    private ConnectionPoolManager poolManager;
+    public static final Logger log = Logger.getLogger(ConnectionFutureTest.class);
+
+    @BeforeClass
+    public static void testSetup() throws SQLException, IOException {
+        log.info("-----------------------------------");
+        log.info("-      CONNECTION FUTURE TEST     -");
+        log.info("-----------------------------------");
+        SetupHelper.getProperties();
+    }
+
+    @Before
+    public void setup() throws SQLException {
+        Properties props = new Properties();
+        props.putAll(SetupHelper.setupProperties);
+        props.setProperty("POOL_INITIAL_SIZE", "1");
+        props.setProperty("POOL_MAX_CONNECTIONS", "1");
+        props.setProperty("POOL_RUN_RELEASER", "false");
+        props.setProperty("POOL_JMX", "false");
+        this.poolManager = new ConnectionPoolManager(props, URL, SetupHelper.testUser, SetupHelper.testPass);
+    }
+
+    @After
+    public void teardown() throws SQLException {
+        this.poolManager.close();
+        SimulatedDriver.getServer("future_test").reset();
+    }
+
+    /**
+     * A client releasing a connection to a waiting future is not held up by its listener.
+     */
+    @Test(timeout = 10000)
+    public void listenerOffReleasingThreadTest() throws Exception {
+        log.info("Starting listenerOffReleasingThreadTest()");
+        final Connection conn = this.poolManager.getConnection();
+        final CountDownLatch blocker = new CountDownLatch(1);
+        final AtomicReference<Thread> listenerThread = new AtomicReference<Thread>();
+        ConnectionFuture future = this.poolManager.acquireAsync();
+        assertTrue(!future.isDone());
+        future.addListener(new AcquireListener() {
+            @Override
+            public void acquired(Connection acquired) {
+                listenerThread.set(Thread.currentThread());
+                try {
+                    blocker.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void failed(SQLException e) {
+                listenerThread.set(Thread.currentThread());
+            }
+        });
+        Thread releaser = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    conn.close();
+                } catch (SQLException e) {
+                    log.error(e);
+                }
+            }
+        });
+        releaser.start();
+        releaser.join(1000);
+        assertTrue(!releaser.isAlive());
+        Connection acquired = future.get(5, TimeUnit.SECONDS);
+        blocker.countDown();
+        assertTrue(listenerThread.get() != null);
+        assertTrue(listenerThread.get() != releaser);
+        acquired.close();
+        log.info("Finished listenerOffReleasingThreadTest()");
+    }
+
+    /**
+     * Closing the pool fails the pending futures and wakes up the threads waiting in getConnection().
+     */
+    @Test(timeout = 10000)
+    public void closeWakesWaitersTest() throws Exception {
+        log.info("Starting closeWakesWaitersTest()");
+        Connection conn = this.poolManager.getConnection();
+        ConnectionFuture future = this.poolManager.acquireAsync();
+        final AtomicReference<SQLException> failure = new AtomicReference<SQLException>();
+        Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ConnectionFutureTest.this.poolManager.getConnection();
+                } catch (SQLException e) {
+                    failure.set(e);
+                }
+            }
+        });
+        waiter.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (this.poolManager.getWaiterCount() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, this.poolManager.getWaiterCount());
+        this.poolManager.close();
+        // far less than the 30 seconds of POOL_MAX_WAIT
+        waiter.join(2000);
+        assertTrue(!waiter.isAlive());
+        assertTrue(failure.get().getMessage().contains("closed"));
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            fail("Future completed by a closed pool");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().getMessage().contains("closed"));
+        }
+        conn.close();
+        log.info("Finished closeWakesWaitersTest()");
+    }
+
+    /**
+     * The time outs of completed futures do not pile up in the housekeeping schedule until their deadline.
+     */
+    @Test(timeout = 30000)
+    public void completedTimeoutsPurgedTest() throws Exception {
+        log.info("Starting completedTimeoutsPurgedTest()");
+        this.poolManager.close();
+        Properties props = new Properties();
+        props.putAll(SetupHelper.setupProperties);
+        props.setProperty("POOL_INITIAL_SIZE", "1");
+        props.setProperty("POOL_MAX_CONNECTIONS", "1");
+        props.setProperty("POOL_MAX_WAIT", "600000");
+        props.setProperty("POOL_RUN_RELEASER", "false");
+        props.setProperty("POOL_JMX", "false");
+        this.poolManager = new ConnectionPoolManager(props, URL, SetupHelper.testUser, SetupHelper.testPass);
+        HousekeepingScheduler scheduler = HousekeepingScheduler.getInstance();
+        int before = scheduler.getTaskCount();
+        Connection conn = this.poolManager.getConnection();
+        for (int i = 0; i < 3 * HousekeepingScheduler.PURGE_THRESHOLD; i++) {
+            ConnectionFuture future = this.poolManager.acquireAsync();
+            assertTrue(!future.isDone());
+            conn.close();
+            conn = future.get(5, TimeUnit.SECONDS);
+        }
+        conn.close();
+        // the last purge runs on the housekeeping thread
+        long deadline = System.currentTimeMillis() + 5000;
+        while (scheduler.getTaskCount() >= before + HousekeepingScheduler.PURGE_THRESHOLD
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue("tasks " + scheduler.getTaskCount(),
+                   scheduler.getTaskCount() < before + HousekeepingScheduler.PURGE_THRESHOLD);
+        log.info("Finished completedTimeoutsPurgedTest()");
+    }
+}
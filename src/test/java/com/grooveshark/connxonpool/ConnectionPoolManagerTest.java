@@ -33,6 +33,8 @@ import java.util.Random;
 import java.util.LinkedList;
 import java.util.Properties;
 import java.util.Enumeration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -41,6 +43,7 @@ import java.io.IOException;
 
 import static org.junit.Assert.fail;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertEquals;
 
 import org.apache.log4j.Logger;
@@ -173,6 +176,30 @@ public class ConnectionPoolManagerTest
         }
     }
 
+    @Test (expected=SQLException.class)
+    public void closeReleasesToPoolTest() throws SQLException {
+        log.info("Starting closeReleasesToPoolTest()");
+        Connection conn = this.poolHelper.getConnxFromPool();
+        assertEquals(1, this.poolManager.getBusySize());
+        this.poolHelper.closeConnxon(conn);
+        assertTrue(conn.isClosed());
+        // physical connection is back in the pool, still open
+        assertEquals(0, this.poolManager.getBusySize());
+        assertEquals(this.poolProps.getInitialSize(), this.poolManager.getAvailableSize());
+        assertEquals(this.poolProps.getInitialSize(), this.poolManager.getSize());
+        // closing twice does nothing
+        this.poolHelper.closeConnxon(conn);
+        assertEquals(this.poolProps.getInitialSize(), this.poolManager.getAvailableSize());
+        this.poolHelper.setFail(false);
+        try {
+            this.poolHelper.sqlTest(conn, SetupHelper.testQuery, SetupHelper.checkRowValues);
+        } catch (SQLException e) {
+            assertTrue(e.getMessage().contains("already been closed"));
+            log.info("Finished closeReleasesToPoolTest()");
+            throw e;
+        }
+    }
+
     @Test (expected=SQLException.class)
     public void closeTest() throws SQLException {
         log.info("Starting closeTest()");
@@ -189,6 +216,273 @@ public class ConnectionPoolManagerTest
         }
     }
 
+    @Test
+    public void releaseResetsConnectionTest() throws SQLException {
+        log.info("Starting releaseResetsConnectionTest()");
+        SimulatedServer server = SimulatedDriver.getServer(SetupHelper.testURL.substring(SimulatedDriver.URL_PREFIX.length()));
+        long rollbacks = server.getRollbackCount();
+        Connection conn = this.poolHelper.getConnxFromPool();
+        PooledConnection pooled = ConnectionProxy.getHandler(conn).getPooledConnection();
+        conn.setAutoCommit(false);
+        conn.setReadOnly(true);
+        conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+        Statement stmt = conn.createStatement();
+        try {
+            conn.unwrap(String.class);
+            fail("Physical connection handed out by unwrap");
+        } catch (SQLException e) {
+            assertTrue(e.getMessage().contains("does not unwrap"));
+        }
+        assertTrue(conn.unwrap(Connection.class) == conn);
+        this.poolHelper.closeConnxon(conn);
+        // the open transaction is rolled back and the statement closed
+        assertEquals(rollbacks + 1, server.getRollbackCount());
+        assertTrue(stmt.isClosed());
+        Connection physical = pooled.getConnection();
+        assertTrue(physical.getAutoCommit());
+        assertTrue(!physical.isReadOnly());
+        assertEquals(Connection.TRANSACTION_REPEATABLE_READ, physical.getTransactionIsolation());
+        // the next client gets it as it was made
+        conn = this.poolHelper.getConnxFromPool();
+        assertTrue(ConnectionProxy.getHandler(conn).getPooledConnection() == pooled);
+        assertTrue(conn.getAutoCommit());
+        assertTrue(!conn.isReadOnly());
+        assertEquals(Connection.TRANSACTION_REPEATABLE_READ, conn.getTransactionIsolation());
+        this.poolHelper.sqlTest(conn, SetupHelper.testQuery, SetupHelper.checkRowValues);
+        this.poolHelper.closeConnxon(conn);
+        // nothing changed, nothing to roll back
+        assertEquals(rollbacks + 1, server.getRollbackCount());
+        log.info("Finished releaseResetsConnectionTest()");
+    }
+
+    /**
+     * Opens a pool of the given number of connections on its own simulated server
+     */
+    private ConnectionPoolManager simulatedPool(String name, int size, Properties overrides) throws SQLException {
+        SimulatedDriver.getServer(name).reset();
+        Properties props = new Properties();
+        props.putAll(SetupHelper.setupProperties);
+        props.setProperty("POOL_INITIAL_SIZE", "" + size);
+        props.setProperty("POOL_MAX_CONNECTIONS", "" + size);
+        props.setProperty("POOL_RUN_RELEASER", "false");
+        props.setProperty("POOL_JMX", "false");
+        props.putAll(overrides);
+        return new ConnectionPoolManager(props, SimulatedDriver.URL_PREFIX + name,
+                                         SetupHelper.testUser, SetupHelper.testPass);
+    }
+
+    /**
+     * Opens a pool of two connections on its own simulated server, with thread affinity on
+     */
+    private ConnectionPoolManager affinityPool(String name) throws SQLException {
+        Properties overrides = new Properties();
+        overrides.setProperty("POOL_THREAD_AFFINITY", "true");
+        return this.simulatedPool(name, 2, overrides);
+    }
+
+    /**
+     * With thread affinity, a thread gets back the connection it released last, even if another thread
+     * released one after it.
+     */
+    @Test
+    public void threadAffinityTest() throws Exception {
+        log.info("Starting threadAffinityTest()");
+        final ConnectionPoolManager pool = this.affinityPool("affinity_test");
+        try {
+            final Connection conn = pool.getConnection();
+            PooledConnection mine = ConnectionProxy.getHandler(conn).getPooledConnection();
+            // another thread borrows the other connection and releases it after this thread
+            final PooledConnection[] borrowed = new PooledConnection[1];
+            final CountDownLatch holding = new CountDownLatch(1);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Connection held = pool.getConnection();
+                        borrowed[0] = ConnectionProxy.getHandler(held).getPooledConnection();
+                        holding.countDown();
+                        while (!conn.isClosed()) {
+                            Thread.sleep(5);
+                        }
+                        held.close();
+                    } catch (Exception e) {
+                        log.error("Failed to borrow on another thread", e);
+                    }
+                }
+            });
+            thread.start();
+            assertTrue(holding.await(5, TimeUnit.SECONDS));
+            conn.close();
+            thread.join(5000);
+            PooledConnection other = borrowed[0];
+            assertTrue(other != null && other != mine);
+            // the other one is on top of the idle connections, this thread still gets its own
+            for (int i = 0; i < 3; i++) {
+                Connection again = pool.getConnection();
+                assertTrue(ConnectionProxy.getHandler(again).getPooledConnection() == mine);
+                again.close();
+            }
+            assertEquals(2, pool.getAvailableSize());
+        } finally {
+            pool.close();
+        }
+        log.info("Finished threadAffinityTest()");
+    }
+
+    /**
+     * A connection released last by a thread, but borrowed again meanwhile, is not handed out twice:
+     * the thread gets some other connection.
+     */
+    @Test
+    public void threadAffinityTakenTest() throws Exception {
+        log.info("Starting threadAffinityTakenTest()");
+        ConnectionPoolManager pool = this.affinityPool("affinity_taken_test");
+        try {
+            Connection conn = pool.getConnection();
+            PooledConnection mine = ConnectionProxy.getHandler(conn).getPooledConnection();
+            conn.close();
+            // borrowed again and still held when asking for another one
+            Connection taken = pool.getConnection();
+            assertTrue(ConnectionProxy.getHandler(taken).getPooledConnection() == mine);
+            conn = pool.getConnection(1000);
+            assertTrue(ConnectionProxy.getHandler(conn).getPooledConnection() != mine);
+            assertEquals(0, pool.getAvailableSize());
+            conn.close();
+            taken.close();
+        } finally {
+            pool.close();
+        }
+        log.info("Finished threadAffinityTakenTest()");
+    }
+
+    /**
+     * Shrinking closes idle connections over the new maximum right away and busy ones once released,
+     * growing lets more clients in.
+     */
+    @Test
+    public void resizeTest() throws SQLException {
+        log.info("Starting resizeTest()");
+        ConnectionPoolManager pool = this.simulatedPool("resize_test", 4, new Properties());
+        SimulatedServer server = SimulatedDriver.getServer("resize_test");
+        try {
+            Connection first = pool.getConnection();
+            Connection second = pool.getConnection();
+            Connection third = pool.getConnection();
+            pool.resize(2);
+            assertEquals(2, pool.getMaxConnections());
+            assertEquals(3, pool.getSize());
+            assertEquals(0, pool.getAvailableSize());
+            assertEquals(3, server.getOpenConnections());
+            first.close();
+            assertEquals(2, pool.getSize());
+            assertEquals(2, server.getOpenConnections());
+            second.close();
+            assertEquals(2, pool.getSize());
+            assertEquals(1, pool.getAvailableSize());
+            third.close();
+            pool.resize(6);
+            LinkedList<Connection> borrowed = new LinkedList<Connection>();
+            for (int i = 0; i < 6; i++) {
+                borrowed.add(pool.getConnection());
+            }
+            assertEquals(6, pool.getSize());
+            for (Connection conn : borrowed) {
+                conn.close();
+            }
+            assertEquals(6, pool.getAvailableSize());
+            try {
+                pool.resize(0);
+                fail("Resized to no connections");
+            } catch (PoolConfigurationException e) {
+                assertEquals(6, pool.getMaxConnections());
+            }
+        } finally {
+            pool.close();
+        }
+        log.info("Finished resizeTest()");
+    }
+
+    /**
+     * Evicting closes the idle connections only, busy ones stay with their clients.
+     */
+    @Test
+    public void evictIdleTest() throws SQLException {
+        log.info("Starting evictIdleTest()");
+        ConnectionPoolManager pool = this.simulatedPool("evict_idle_test", 4, new Properties());
+        SimulatedServer server = SimulatedDriver.getServer("evict_idle_test");
+        try {
+            Connection conn = pool.getConnection();
+            assertEquals(3, pool.evictIdle());
+            assertEquals(1, pool.getSize());
+            assertEquals(0, pool.getAvailableSize());
+            assertEquals(1, server.getOpenConnections());
+            this.poolHelper.sqlTest(conn, "SELECT 1", false);
+            conn.close();
+            assertEquals(1, pool.getAvailableSize());
+            assertEquals(1, pool.evictIdle());
+            assertEquals(0, pool.getSize());
+            // the next client opens a new one
+            conn = pool.getConnection();
+            conn.close();
+            assertEquals(1, pool.getSize());
+            assertEquals(1, server.getOpenConnections());
+        } finally {
+            pool.close();
+        }
+        log.info("Finished evictIdleTest()");
+    }
+
+    /**
+     * A suspended pool holds clients off for up to the maximum wait, takes releases back meanwhile
+     * and lets the waiting clients in once resumed.
+     */
+    @Test
+    public void suspendResumeTest() throws Exception {
+        log.info("Starting suspendResumeTest()");
+        Properties overrides = new Properties();
+        overrides.setProperty("POOL_MAX_WAIT", "300");
+        final ConnectionPoolManager pool = this.simulatedPool("suspend_test", 2, overrides);
+        try {
+            Connection held = pool.getConnection();
+            pool.suspend();
+            assertTrue(pool.isSuspended());
+            held.close();
+            assertEquals(2, pool.getAvailableSize());
+            long start = System.currentTimeMillis();
+            try {
+                pool.getConnection();
+                fail("Borrowed from a suspended pool");
+            } catch (SQLException e) {
+                assertTrue(e.getMessage().contains("suspended"));
+            }
+            assertTrue(System.currentTimeMillis() - start >= 290);
+            // a client waiting when the pool is resumed gets a connection
+            final long[] waited = { -1 };
+            Thread client = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long start = System.currentTimeMillis();
+                    try {
+                        pool.getConnection().close();
+                        waited[0] = System.currentTimeMillis() - start;
+                    } catch (SQLException e) {
+                        log.error("Failed to borrow once resumed", e);
+                    }
+                }
+            });
+            client.start();
+            Thread.sleep(100);
+            pool.resume();
+            client.join(5000);
+            assertFalse(pool.isSuspended());
+            assertTrue("waited " + waited[0], waited[0] >= 90 && waited[0] < 290);
+            assertEquals(2, pool.getAvailableSize());
+        } finally {
+            pool.close();
+        }
+        log.info("Finished suspendResumeTest()");
+    }
+
     private Connection createAForiegnConnection() {
         Connection conn = null;
         try {
@@ -0,0 +1,148 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool;
+
+import java.sql.SQLException;
+import org.junit.Test;
+import org.junit.BeforeClass;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertEquals;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Unit tests for Histogram.
+ */
+public class HistogramTest
+{
+    public static final Logger log = Logger.getLogger(HistogramTest.class);
+
+    @BeforeClass
+    public static void testSetup() throws SQLException, IOException {
+        log.info("-----------------------------------");
+        log.info("-          HISTOGRAM TEST         -");
+        log.info("-----------------------------------");
+        SetupHelper.getProperties();
+    }
+
+    private static void assertWithin(long expected, long actual, double error) {
+        assertTrue("expected " + expected + " but was " + actual,
+                   Math.abs(actual - expected) <= expected * error);
+    }
+
+    /**
+     * Buckets follow each other without gaps, small values get a bucket each and every bucket
+     * is narrower than 1/{@link Histogram#SUB_BUCKETS} of its values.
+     */
+    @Test
+    public void bucketTest() {
+        log.info("Starting bucketTest()");
+        for (int i = 0; i < Histogram.SUB_BUCKETS; i++) {
+            assertEquals(i, Histogram.bucketOf(i));
+            assertEquals(i, Histogram.highestOf(i));
+        }
+        long lowest = 0;
+        for (int bucket = 0; bucket < Histogram.BUCKETS - 1; bucket++) {
+            long highest = Histogram.highestOf(bucket);
+            assertEquals(bucket, Histogram.bucketOf(lowest));
+            assertEquals(bucket, Histogram.bucketOf(highest));
+            assertEquals(bucket + 1, Histogram.bucketOf(highest + 1));
+            assertTrue(highest - lowest <= lowest / Histogram.SUB_BUCKETS);
+            lowest = highest + 1;
+        }
+        assertEquals(Histogram.BUCKETS - 1, Histogram.bucketOf(Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE, Histogram.highestOf(Histogram.BUCKETS - 1));
+        log.info("Finished bucketTest()");
+    }
+
+    /**
+     * Percentiles of a uniform distribution are reported within the width of a bucket,
+     * count, sum, mean and max exactly.
+     */
+    @Test
+    public void percentileTest() {
+        log.info("Starting percentileTest()");
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.snapshot().getP99());
+        assertEquals(0, histogram.snapshot().getMean());
+        // 1 to 10000 microseconds
+        long sum = 0;
+        for (long micros = 1; micros <= 10000; micros++) {
+            histogram.record(micros * 1000);
+            sum += micros * 1000;
+        }
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(10000, snapshot.getCount());
+        assertEquals(sum, snapshot.getSum());
+        assertEquals(sum / 10000, snapshot.getMean());
+        assertEquals(10000000, snapshot.getMax());
+        double error = 1.0 / Histogram.SUB_BUCKETS;
+        assertWithin(5000000, snapshot.getP50(), error);
+        assertWithin(9900000, snapshot.getP99(), error);
+        assertWithin(9990000, snapshot.getP999(), error);
+        assertWithin(1000, snapshot.getValueAtPercentile(0), error);
+        // never more than the longest duration recorded
+        assertEquals(10000000, snapshot.getValueAtPercentile(100));
+        assertEquals(10000000, snapshot.getValueAtPercentile(150));
+        // negative durations count as 0
+        histogram.record(-5);
+        assertEquals(10001, histogram.getCount());
+        assertEquals(0, histogram.snapshot().getValueAtPercentile(0));
+        log.info("Finished percentileTest()");
+    }
+
+    /**
+     * The difference of two snapshots only holds the durations recorded in between.
+     */
+    @Test
+    public void sinceTest() {
+        log.info("Starting sinceTest()");
+        Histogram histogram = new Histogram();
+        for (int i = 0; i < 1000; i++) {
+            histogram.record(1000000);
+        }
+        histogram.record(50000000);
+        Histogram.Snapshot earlier = histogram.snapshot();
+        for (int i = 0; i < 100; i++) {
+            histogram.record(10000000);
+        }
+        Histogram.Snapshot later = histogram.snapshot();
+        Histogram.Snapshot window = later.since(earlier);
+        assertEquals(100, window.getCount());
+        assertEquals(100L * 10000000, window.getSum());
+        assertEquals(10000000, window.getMean());
+        double error = 1.0 / Histogram.SUB_BUCKETS;
+        assertWithin(10000000, window.getP50(), error);
+        assertWithin(10000000, window.getP999(), error);
+        // the longest duration of the window, not the one recorded before it
+        assertTrue(window.getMax() >= 10000000);
+        assertWithin(10000000, window.getMax(), error);
+        assertEquals(50000000, later.getMax());
+        // nothing recorded in between
+        Histogram.Snapshot empty = later.since(later);
+        assertEquals(0, empty.getCount());
+        assertEquals(0, empty.getMax());
+        assertEquals(0, empty.getP99());
+        log.info("Finished sinceTest()");
+    }
+}
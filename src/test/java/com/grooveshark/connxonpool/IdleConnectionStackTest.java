@@ -0,0 +1,384 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.After;
+import org.junit.BeforeClass;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Unit tests for IdleConnectionStack.
+ */
+public class IdleConnectionStackTest
+{
+    private static final String URL = SimulatedDriver.URL_PREFIX + "stack_test";
+    private ConnectionPoolManager poolManager;
+    public static final Logger log = Logger.getLogger(IdleConnectionStackTest.class);
+
+    @BeforeClass
+    public static void testSetup() throws SQLException, IOException {
+        log.info("-----------------------------------");
+        log.info("-      IDLE CONNECTION STACK TEST -");
+        log.info("-----------------------------------");
+        SetupHelper.getProperties();
+    }
+
+    @Before
+    public void setup() throws SQLException {
+        Properties props = new Properties();
+        props.putAll(SetupHelper.setupProperties);
+        props.setProperty("POOL_INITIAL_SIZE", "1");
+        props.setProperty("POOL_MAX_CONNECTIONS", "1");
+        props.setProperty("POOL_RUN_RELEASER", "false");
+        props.setProperty("POOL_JMX", "false");
+        this.poolManager = new ConnectionPoolManager(props, URL, SetupHelper.testUser, SetupHelper.testPass);
+    }
+
+    @After
+    public void teardown() throws SQLException {
+        this.poolManager.close();
+        SimulatedDriver.getServer("stack_test").reset();
+    }
+
+    /**
+     * Idle connection, not backed by a physical connection: the stack only looks at its state
+     */
+    private PooledConnection newIdle() {
+        PooledConnection pooled = new PooledConnection(this.poolManager, null);
+        pooled.setState(PooledConnection.STATE_IDLE);
+        return pooled;
+    }
+
+    /**
+     * Thread polling the stack, keeping the connection it got
+     */
+    private static class Poller extends Thread {
+        private final IdleConnectionStack stack;
+        private final long timeout;
+        private volatile PooledConnection polled;
+
+        Poller(IdleConnectionStack stack, long timeout) {
+            this.stack = stack;
+            this.timeout = timeout;
+        }
+
+        @Override
+        public void run() {
+            try {
+                this.polled = this.stack.poll(this.timeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                log.error(e);
+            }
+        }
+    }
+
+    /**
+     * Starts a poller and waits until it is queued up
+     */
+    private static Poller startPoller(IdleConnectionStack stack, long timeout) throws InterruptedException {
+        int waiting = stack.getWaiterCount();
+        Poller poller = new Poller(stack, timeout);
+        poller.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (stack.getWaiterCount() <= waiting && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(waiting + 1, stack.getWaiterCount());
+        return poller;
+    }
+
+    /**
+     * {@link IdleConnectionStack.Waiter} recording the connections it took
+     */
+    private static class RecordingWaiter implements IdleConnectionStack.Waiter {
+        private final List<PooledConnection> taken = new ArrayList<PooledConnection>();
+
+        @Override
+        public boolean isWaiting() {
+            return this.taken.isEmpty();
+        }
+
+        @Override
+        public synchronized boolean take(PooledConnection pooled) {
+            if (!this.taken.isEmpty()) {
+                return false;
+            }
+            this.taken.add(pooled);
+            return true;
+        }
+    }
+
+    /**
+     * A released connection goes straight to the client waiting the longest, in arrival order.
+     */
+    @Test(timeout = 10000)
+    public void handOffToLongestWaiterTest() throws Exception {
+        log.info("Starting handOffToLongestWaiterTest()");
+        IdleConnectionStack stack = new IdleConnectionStack();
+        Poller first = startPoller(stack, 5000);
+        RecordingWaiter second = new RecordingWaiter();
+        stack.addWaiter(second);
+        Poller third = startPoller(stack, 5000);
+        PooledConnection a = this.newIdle();
+        PooledConnection b = this.newIdle();
+        PooledConnection c = this.newIdle();
+        assertTrue(stack.offer(a));
+        first.join(1000);
+        assertTrue(first.polled == a);
+        assertTrue(stack.offer(b));
+        assertEquals(1, second.taken.size());
+        assertTrue(second.taken.get(0) == b);
+        assertTrue(third.isAlive());
+        assertTrue(stack.offer(c));
+        third.join(1000);
+        assertTrue(third.polled == c);
+        // handed over busy, never through the stack
+        assertEquals(PooledConnection.STATE_BUSY, a.getState());
+        assertEquals(PooledConnection.STATE_BUSY, b.getState());
+        assertEquals(PooledConnection.STATE_BUSY, c.getState());
+        assertTrue(stack.poll() == null);
+        assertEquals(0, stack.getWaiterCount());
+        log.info("Finished handOffToLongestWaiterTest()");
+    }
+
+    /**
+     * A connection released while a client waits cannot be taken by a client arriving later.
+     */
+    @Test(timeout = 10000)
+    public void noBargingTest() throws Exception {
+        log.info("Starting noBargingTest()");
+        IdleConnectionStack stack = new IdleConnectionStack();
+        Poller waiting = startPoller(stack, 5000);
+        PooledConnection pooled = this.newIdle();
+        stack.offer(pooled);
+        // a client arriving right after the release finds nothing idle
+        assertTrue(stack.poll() == null);
+        assertTrue(stack.poll(0, TimeUnit.MILLISECONDS) == null);
+        waiting.join(1000);
+        assertTrue(waiting.polled == pooled);
+        log.info("Finished noBargingTest()");
+    }
+
+    /**
+     * Without anybody waiting, the most recently released connection is handed out first.
+     */
+    @Test
+    public void lastInFirstOutTest() throws Exception {
+        log.info("Starting lastInFirstOutTest()");
+        IdleConnectionStack stack = new IdleConnectionStack();
+        PooledConnection a = this.newIdle();
+        PooledConnection b = this.newIdle();
+        assertTrue(stack.offer(a));
+        assertTrue(stack.offer(b));
+        // offered twice, queued once
+        assertTrue(!stack.offer(b));
+        assertTrue(stack.poll() == b);
+        assertTrue(stack.poll() == a);
+        assertTrue(stack.poll() == null);
+        log.info("Finished lastInFirstOutTest()");
+    }
+
+    /**
+     * In a fair stack, a client arriving while others wait queues up behind them, even without waiting,
+     * and clients are served in arrival order.
+     */
+    @Test(timeout = 10000)
+    public void fairTest() throws Exception {
+        log.info("Starting fairTest()");
+        IdleConnectionStack stack = new IdleConnectionStack(true);
+        assertTrue(stack.isFair());
+        Poller first = startPoller(stack, 5000);
+        assertTrue(stack.tryPoll() == null);
+        assertTrue(stack.poll(0, TimeUnit.MILLISECONDS) == null);
+        Poller second = startPoller(stack, 5000);
+        PooledConnection a = this.newIdle();
+        PooledConnection b = this.newIdle();
+        stack.offer(a);
+        first.join(1000);
+        assertTrue(first.polled == a);
+        assertTrue(second.isAlive());
+        stack.offer(b);
+        second.join(1000);
+        assertTrue(second.polled == b);
+        // nobody waiting, a fair stack hands out right away too
+        a.setState(PooledConnection.STATE_IDLE);
+        stack.offer(a);
+        assertTrue(stack.tryPoll() == a);
+        log.info("Finished fairTest()");
+    }
+
+    /**
+     * A waiting client gives up after its timeout and leaves the queue.
+     */
+    @Test(timeout = 10000)
+    public void waitTimeoutTest() throws Exception {
+        log.info("Starting waitTimeoutTest()");
+        IdleConnectionStack stack = new IdleConnectionStack();
+        long start = System.currentTimeMillis();
+        assertTrue(stack.poll(100, TimeUnit.MILLISECONDS) == null);
+        assertTrue(System.currentTimeMillis() - start >= 100);
+        assertEquals(0, stack.getWaiterCount());
+        PooledConnection pooled = this.newIdle();
+        stack.offer(pooled);
+        assertTrue(stack.poll() == pooled);
+        log.info("Finished waitTimeoutTest()");
+    }
+
+    /**
+     * Runs a task on a thread whose home stripe differs from the calling thread's, in a stack of 2 stripes
+     */
+    private static void runOnOtherStripe(Runnable task) throws InterruptedException {
+        long home = Thread.currentThread().getId() % 2;
+        Thread thread;
+        do {
+            thread = new Thread(task);
+        } while (thread.getId() % 2 == home);
+        thread.start();
+        thread.join(5000);
+    }
+
+    /**
+     * A thread whose stripe is empty takes a connection from another stripe before waiting.
+     */
+    @Test(timeout = 10000)
+    public void stripedStealTest() throws Exception {
+        log.info("Starting stripedStealTest()");
+        final IdleConnectionStack stack = new IdleConnectionStack(false, 2);
+        assertEquals(2, stack.getStripeCount());
+        final PooledConnection pooled = this.newIdle();
+        runOnOtherStripe(new Runnable() {
+            @Override
+            public void run() {
+                stack.offer(pooled);
+            }
+        });
+        long start = System.currentTimeMillis();
+        assertTrue(stack.poll(1000, TimeUnit.MILLISECONDS) == pooled);
+        assertTrue(System.currentTimeMillis() - start < 500);
+        assertTrue(stack.poll() == null);
+        log.info("Finished stripedStealTest()");
+    }
+
+    /**
+     * A thread takes from its own stripe first, even if another stripe has a more recent connection.
+     */
+    @Test(timeout = 10000)
+    public void stripedHomeFirstTest() throws Exception {
+        log.info("Starting stripedHomeFirstTest()");
+        final IdleConnectionStack stack = new IdleConnectionStack(false, 2);
+        PooledConnection own = this.newIdle();
+        final PooledConnection other = this.newIdle();
+        stack.offer(own);
+        runOnOtherStripe(new Runnable() {
+            @Override
+            public void run() {
+                stack.offer(other);
+            }
+        });
+        assertTrue(stack.poll() == own);
+        assertTrue(stack.poll() == other);
+        // and the other thread finds the connection released here
+        own.setState(PooledConnection.STATE_IDLE);
+        stack.offer(own);
+        final AtomicReference<PooledConnection> stolen = new AtomicReference<PooledConnection>();
+        runOnOtherStripe(new Runnable() {
+            @Override
+            public void run() {
+                stolen.set(stack.poll());
+            }
+        });
+        assertTrue(stolen.get() == own);
+        log.info("Finished stripedHomeFirstTest()");
+    }
+
+    /**
+     * A striped pool has the capacity and the maximum wait of an unstriped one.
+     */
+    @Test(timeout = 10000)
+    public void stripedPoolCapacityTest() throws Exception {
+        log.info("Starting stripedPoolCapacityTest()");
+        Properties props = new Properties();
+        props.putAll(SetupHelper.setupProperties);
+        props.setProperty("POOL_INITIAL_SIZE", "2");
+        props.setProperty("POOL_MAX_CONNECTIONS", "4");
+        props.setProperty("POOL_STRIPES", "4");
+        props.setProperty("POOL_MAX_WAIT", "300");
+        props.setProperty("POOL_RUN_RELEASER", "false");
+        props.setProperty("POOL_JMX", "false");
+        final ConnectionPoolManager striped =
+            new ConnectionPoolManager(props, URL, SetupHelper.testUser, SetupHelper.testPass);
+        try {
+            final java.sql.Connection[] borrowed = new java.sql.Connection[4];
+            for (int i = 0; i < borrowed.length; i++) {
+                borrowed[i] = striped.getConnection();
+            }
+            assertEquals(4, striped.getSize());
+            long start = System.currentTimeMillis();
+            try {
+                striped.getConnection();
+                fail("Borrowed past the maximum connections");
+            } catch (SQLException e) {
+                assertTrue(e.getMessage().startsWith("Timed out"));
+                assertTrue(e.getMessage().contains("300 milliseconds"));
+            }
+            assertTrue(System.currentTimeMillis() - start >= 300);
+            // released on other stripes, all found again by this thread
+            for (int i = 0; i < borrowed.length; i++) {
+                final java.sql.Connection conn = borrowed[i];
+                runOnOtherStripe(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            conn.close();
+                        } catch (SQLException e) {
+                            log.error(e);
+                        }
+                    }
+                });
+            }
+            for (int i = 0; i < borrowed.length; i++) {
+                borrowed[i] = striped.getConnection();
+            }
+            assertEquals(4, striped.getSize());
+            for (java.sql.Connection conn : borrowed) {
+                conn.close();
+            }
+            assertEquals(4, striped.getAvailableSize());
+        } finally {
+            striped.close();
+        }
+        log.info("Finished stripedPoolCapacityTest()");
+    }
+}
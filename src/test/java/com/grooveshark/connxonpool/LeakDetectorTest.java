@@ -0,0 +1,204 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.After;
+import org.junit.BeforeClass;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertEquals;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Unit tests for LeakDetector.
+ */
+public class LeakDetectorTest
+{
+    private static final String URL = SimulatedDriver.URL_PREFIX + "leak_test";
+    private ConnectionPoolManager poolManager;
+    private SimulatedServer server;
+    private EventCollector events;
+    public static final Logger log = Logger.getLogger(LeakDetectorTest.class);
+
+    /**
+     * Keeps the events logged by the detector
+     */
+    private static class EventCollector extends AppenderSkeleton {
+        final List<LoggingEvent> events = Collections.synchronizedList(new ArrayList<LoggingEvent>());
+
+        @Override
+        protected void append(LoggingEvent event) {
+            this.events.add(event);
+        }
+
+        @Override
+        public boolean requiresLayout() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        /**
+         * Events at the given level whose message contains the given text
+         */
+        List<LoggingEvent> find(Level level, String text) {
+            List<LoggingEvent> found = new ArrayList<LoggingEvent>();
+            synchronized (this.events) {
+                for (LoggingEvent event : this.events) {
+                    if (event.getLevel().equals(level) && event.getRenderedMessage().contains(text)) {
+                        found.add(event);
+                    }
+                }
+            }
+            return found;
+        }
+    }
+
+    @BeforeClass
+    public static void testSetup() throws SQLException, IOException {
+        log.info("-----------------------------------");
+        log.info("-       LEAK DETECTOR TEST        -");
+        log.info("-----------------------------------");
+        SetupHelper.getProperties();
+    }
+
+    @Before
+    public void setup() throws SQLException {
+        this.server = SimulatedDriver.getServer("leak_test");
+        this.server.reset();
+        this.events = new EventCollector();
+        LeakDetector.log.addAppender(this.events);
+    }
+
+    @After
+    public void teardown() throws SQLException {
+        LeakDetector.log.removeAppender(this.events);
+        if (this.poolManager != null) {
+            this.poolManager.close();
+        }
+        this.server.reset();
+    }
+
+    private void createPool(long threshold, int sampling) throws SQLException {
+        Properties props = new Properties();
+        props.putAll(SetupHelper.setupProperties);
+        props.setProperty("POOL_INITIAL_SIZE", "1");
+        props.setProperty("POOL_MAX_CONNECTIONS", "1");
+        props.setProperty("POOL_LEAK_DETECTION_THRESHOLD", "" + threshold);
+        props.setProperty("POOL_LEAK_STACK_SAMPLING", "" + sampling);
+        props.setProperty("POOL_RUN_RELEASER", "false");
+        props.setProperty("POOL_JMX", "false");
+        this.poolManager = new ConnectionPoolManager(props, URL, SetupHelper.testUser, SetupHelper.testPass);
+    }
+
+    /**
+     * One borrow in the sampling rate records its call site, whatever the first borrow of the connection.
+     */
+    @Test
+    public void samplingTest() throws SQLException {
+        log.info("Starting samplingTest()");
+        this.createPool(100000, 4);
+        PooledConnection pooled = this.poolManager.getPooledConnection(0);
+        int sampled = 0;
+        for (int i = 0; i < 8; i++) {
+            Connection conn = this.poolManager.getConnection();
+            if (pooled.getBorrowSite() != null) {
+                sampled++;
+            }
+            conn.close();
+        }
+        assertEquals(2, sampled);
+        assertFalse(this.poolManager.getLeakDetector().isCapturingAll());
+        log.info("Finished samplingTest()");
+    }
+
+    /**
+     * A borrow held past the threshold is reported once. Without a sampled call site, the report holds
+     * the current stack of the borrowing thread and every later borrow records its call site, so the
+     * next leak is reported with it. The release of a leaked connection is logged too.
+     */
+    @Test
+    public void reportTest() throws Exception {
+        log.info("Starting reportTest()");
+        this.createPool(100, 1000000);
+        LeakDetector detector = this.poolManager.getLeakDetector();
+        PooledConnection pooled = this.poolManager.getPooledConnection(0);
+        Connection conn = this.poolManager.getConnection();
+        // not held long enough yet
+        detector.run();
+        assertEquals(0, detector.getLeakCount());
+        Thread.sleep(150);
+        detector.run();
+        detector.run();
+        assertEquals(1, detector.getLeakCount());
+        assertEquals(1, this.poolManager.getLeakCount());
+        List<LoggingEvent> leaks = this.events.find(Level.WARN, "Connection leak detected");
+        assertEquals(1, leaks.size());
+        assertTrue(leaks.get(0).getRenderedMessage().contains(Thread.currentThread().getName()));
+        assertEquals("Borrowing thread is currently here",
+                     leaks.get(0).getThrowableInformation().getThrowable().getMessage());
+        assertTrue(detector.isCapturingAll());
+        conn.close();
+        assertEquals(1, this.events.find(Level.INFO, "reported as leaked released").size());
+        // leaked again, with its call site this time
+        conn = this.poolManager.getConnection();
+        assertTrue(pooled.getBorrowSite() != null);
+        Thread.sleep(150);
+        detector.run();
+        assertEquals(2, detector.getLeakCount());
+        leaks = this.events.find(Level.WARN, "Connection leak detected");
+        assertEquals(2, leaks.size());
+        Throwable site = leaks.get(1).getThrowableInformation().getThrowable();
+        assertEquals("Connection borrowed here", site.getMessage());
+        assertEquals("reportTest", site.getStackTrace()[findTest(site)].getMethodName());
+        conn.close();
+        log.info("Finished reportTest()");
+    }
+
+    /**
+     * Index of the frame of this test class in a stack trace
+     */
+    private static int findTest(Throwable t) {
+        StackTraceElement[] stack = t.getStackTrace();
+        for (int i = 0; i < stack.length; i++) {
+            if (stack[i].getClassName().equals(LeakDetectorTest.class.getName())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,243 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.After;
+import org.junit.BeforeClass;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertEquals;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Unit tests for PoolRegistry.
+ */
+public class PoolRegistryTest
+{
+    private static final String URL = SimulatedDriver.URL_PREFIX + "registry_test";
+    private PoolRegistry registry;
+    private SimulatedServer server;
+    public static final Logger log = Logger.getLogger(PoolRegistryTest.class);
+
+    @BeforeClass
+    public static void testSetup() throws SQLException, IOException {
+        log.info("-----------------------------------");
+        log.info("-      POOL REGISTRY TEST         -");
+        log.info("-----------------------------------");
+        SetupHelper.getProperties();
+    }
+
+    @Before
+    public void setup() throws SQLException {
+        this.server = SimulatedDriver.getServer("registry_test");
+        this.server.reset();
+        // the database takes no more connections than the budget
+        this.server.setMaxConnections(4);
+        this.registry = new PoolRegistry(4);
+    }
+
+    @After
+    public void teardown() throws SQLException {
+        this.registry.close();
+        this.server.reset();
+    }
+
+    private ConnectionPoolManager getPool(String user, int initialSize, int maxConnections, int creatorThreads)
+            throws SQLException {
+        Properties props = new Properties();
+        props.putAll(SetupHelper.setupProperties);
+        props.setProperty("POOL_INITIAL_SIZE", "" + initialSize);
+        props.setProperty("POOL_MAX_CONNECTIONS", "" + maxConnections);
+        props.setProperty("POOL_CREATOR_THREADS", "" + creatorThreads);
+        props.setProperty("POOL_MAX_WAIT", "2000");
+        props.setProperty("POOL_RUN_RELEASER", "false");
+        props.setProperty("POOL_JMX", "false");
+        return this.registry.getPool(URL, user, SetupHelper.testPass, props);
+    }
+
+    /**
+     * Pools busy at the same time stay within the budget together, each pool getting connections.
+     */
+    @Test(timeout = 20000)
+    public void budgetAcrossPoolsTest() throws Exception {
+        log.info("Starting budgetAcrossPoolsTest()");
+        final ConnectionPoolManager first = this.getPool("first", 2, 4, 1);
+        final ConnectionPoolManager second = this.getPool("second", 2, 4, 1);
+        assertEquals(4, this.registry.getUsedConnections());
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicReference<SQLException> failure = new AtomicReference<SQLException>();
+        final AtomicInteger[] borrows = new AtomicInteger[] { new AtomicInteger(), new AtomicInteger() };
+        List<Thread> clients = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            final int pool = i % 2;
+            Thread client = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ConnectionPoolManager manager = pool == 0 ? first : second;
+                    try {
+                        while (running.get()) {
+                            Connection conn = manager.getConnection();
+                            borrows[pool].incrementAndGet();
+                            Thread.sleep(2);
+                            conn.close();
+                        }
+                    } catch (SQLException e) {
+                        failure.compareAndSet(null, e);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            clients.add(client);
+            client.start();
+        }
+        long end = System.currentTimeMillis() + 1000;
+        while (System.currentTimeMillis() < end) {
+            assertTrue(this.registry.getUsedConnections() <= 4);
+            assertTrue(this.server.getOpenConnections() <= 4);
+            Thread.sleep(5);
+        }
+        running.set(false);
+        for (Thread client : clients) {
+            client.join(5000);
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        assertTrue(borrows[0].get() > 0);
+        assertTrue(borrows[1].get() > 0);
+        assertTrue(first.getSize() + second.getSize() <= 4);
+        assertEquals(first.getSize() + second.getSize(), this.registry.getUsedConnections());
+        log.info("Finished budgetAcrossPoolsTest()");
+    }
+
+    /**
+     * Connections borrowed from a closed pool count against the budget until they are closed,
+     * and their room goes to the clients waiting on another pool then.
+     */
+    @Test(timeout = 20000)
+    public void closeGivesBackBudgetPerConnectionTest() throws Exception {
+        log.info("Starting closeGivesBackBudgetPerConnectionTest()");
+        ConnectionPoolManager first = this.getPool("first", 2, 2, 0);
+        final ConnectionPoolManager second = this.getPool("second", 2, 4, 1);
+        Connection a = first.getConnection();
+        Connection b = first.getConnection();
+        Connection c = second.getConnection();
+        Connection d = second.getConnection();
+        first.close();
+        assertTrue(this.registry.getPool(URL, "first") == null);
+        assertEquals(4, this.registry.getUsedConnections());
+        final AtomicReference<Connection> waited = new AtomicReference<Connection>();
+        Thread client = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    waited.set(second.getConnection());
+                } catch (SQLException e) {
+                    log.error(e);
+                }
+            }
+        });
+        client.start();
+        Thread.sleep(100);
+        assertTrue(waited.get() == null);
+        a.close();
+        client.join(2000);
+        assertTrue(waited.get() != null);
+        assertEquals(3, second.getSize());
+        assertEquals(4, this.registry.getUsedConnections());
+        b.close();
+        assertEquals(3, this.registry.getUsedConnections());
+        assertEquals(3, this.server.getOpenConnections());
+        waited.get().close();
+        c.close();
+        d.close();
+        log.info("Finished closeGivesBackBudgetPerConnectionTest()");
+    }
+
+    /**
+     * A pool configured without creator threads does not get one started by a rebalance, nor idle connections
+     * of other pools closed for it: its waiting clients get the connections released to it.
+     */
+    @Test(timeout = 20000)
+    public void noCreatorStartedTest() throws Exception {
+        log.info("Starting noCreatorStartedTest()");
+        final ConnectionPoolManager first = this.getPool("first", 2, 4, 0);
+        ConnectionPoolManager second = this.getPool("second", 2, 2, 0);
+        Connection a = first.getConnection();
+        Connection b = first.getConnection();
+        final AtomicReference<Connection> waited = new AtomicReference<Connection>();
+        Thread client = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    waited.set(first.getConnection());
+                } catch (SQLException e) {
+                    log.error(e);
+                }
+            }
+        });
+        client.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (first.getWaiterCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, first.getWaiterCount());
+        this.registry.rebalance();
+        assertTrue(!first.createsInBackground());
+        assertTrue(!first.createForWaiters());
+        assertEquals(2, second.getAvailableSize());
+        assertEquals(4, this.registry.getUsedConnections());
+        a.close();
+        client.join(2000);
+        assertTrue(waited.get() != null);
+        waited.get().close();
+        b.close();
+        log.info("Finished noCreatorStartedTest()");
+    }
+
+    /**
+     * Pools are looked up by url and user, either of which may be null.
+     */
+    @Test
+    public void nullKeyTest() throws Exception {
+        log.info("Starting nullKeyTest()");
+        assertTrue(this.registry.getPool(null, "first") == null);
+        assertTrue(this.registry.getPool(URL, null) == null);
+        assertTrue(!this.registry.closePool(null, null));
+        ConnectionPoolManager pool = this.getPool(null, 1, 1, 0);
+        assertTrue(this.registry.getPool(URL, null) == pool);
+        assertTrue(this.getPool(null, 1, 1, 0) == pool);
+        log.info("Finished nullKeyTest()");
+    }
+}
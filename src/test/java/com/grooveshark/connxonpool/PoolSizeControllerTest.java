@@ -0,0 +1,202 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.After;
+import org.junit.BeforeClass;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Unit tests for PoolSizeController, driven sample by sample instead of on the {@link HousekeepingScheduler}.
+ */
+public class PoolSizeControllerTest
+{
+    private static final String URL = SimulatedDriver.URL_PREFIX + "size_controller_test";
+    private ConnectionPoolManager poolManager;
+    private PoolSizeController controller;
+    private final List<Connection> borrowed = new ArrayList<Connection>();
+    public static final Logger log = Logger.getLogger(PoolSizeControllerTest.class);
+
+    @BeforeClass
+    public static void testSetup() throws SQLException, IOException {
+        log.info("-----------------------------------");
+        log.info("-      POOL SIZE CONTROLLER TEST  -");
+        log.info("-----------------------------------");
+        SetupHelper.getProperties();
+    }
+
+    @Before
+    public void setup() throws SQLException {
+        Properties props = new Properties();
+        props.putAll(SetupHelper.setupProperties);
+        props.setProperty("POOL_INITIAL_SIZE", "4");
+        props.setProperty("POOL_MAX_CONNECTIONS", "8");
+        props.setProperty("POOL_MIN_CONNECTIONS", "2");
+        props.setProperty("POOL_ACQUIRE_WAIT_SLO", "10");
+        props.setProperty("POOL_RUN_RELEASER", "false");
+        props.setProperty("POOL_JMX", "false");
+        this.poolManager = new ConnectionPoolManager(props, URL, SetupHelper.testUser, SetupHelper.testPass);
+        this.controller = new PoolSizeController(this.poolManager);
+    }
+
+    @After
+    public void teardown() throws SQLException {
+        for (Connection conn : this.borrowed) {
+            conn.close();
+        }
+        this.borrowed.clear();
+        this.poolManager.close();
+        SimulatedDriver.getServer("size_controller_test").reset();
+    }
+
+    private void borrow(int count) throws SQLException {
+        for (int i = 0; i < count; i++) {
+            this.borrowed.add(this.poolManager.getConnection());
+        }
+    }
+
+    /**
+     * Records acquire waits for the next sample
+     */
+    private void waited(long millis, int count) {
+        for (int i = 0; i < count; i++) {
+            this.poolManager.getMetrics().recordAcquire(TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+    }
+
+    private int getMax() {
+        return this.poolManager.getProps().getMaxConnections();
+    }
+
+    /**
+     * A full pool with waits over the target grows by half, up to its ceiling.
+     */
+    @Test
+    public void growTest() throws SQLException {
+        log.info("Starting growTest()");
+        assertEquals(8, this.controller.getCeiling());
+        assertEquals(2, this.controller.getFloor());
+        this.poolManager.setMaxConnections(4);
+        this.borrow(4);
+        this.controller.adjust();
+        this.waited(50, 20);
+        this.controller.adjust();
+        assertEquals(6, this.getMax());
+        assertEquals(1, this.controller.getGrowCount());
+        // full again
+        this.borrow(2);
+        this.waited(50, 20);
+        this.controller.adjust();
+        assertEquals(8, this.getMax());
+        // at the ceiling
+        this.borrow(2);
+        this.waited(50, 20);
+        this.controller.adjust();
+        assertEquals(8, this.getMax());
+        assertEquals(2, this.controller.getGrowCount());
+        log.info("Finished growTest()");
+    }
+
+    /**
+     * Waits while the pool is not full come from slow connects, more connections would not help.
+     */
+    @Test
+    public void noGrowWhenNotFullTest() throws SQLException {
+        log.info("Starting noGrowWhenNotFullTest()");
+        this.poolManager.setMaxConnections(6);
+        this.borrow(2);
+        this.controller.adjust();
+        this.waited(50, 20);
+        this.controller.adjust();
+        assertEquals(6, this.getMax());
+        assertEquals(0, this.controller.getGrowCount());
+        log.info("Finished noGrowWhenNotFullTest()");
+    }
+
+    /**
+     * A quiet pool shrinks by a quarter at most once the waits stayed under half the target for a window,
+     * not below its busy connections nor its floor, and waits a window again before shrinking further.
+     */
+    @Test
+    public void shrinkTest() throws SQLException {
+        log.info("Starting shrinkTest()");
+        this.borrow(1);
+        // the first sample, then a window of quiet intervals but the last
+        for (int i = 0; i < PoolSizeController.WINDOW; i++) {
+            this.controller.adjust();
+        }
+        assertEquals(8, this.getMax());
+        this.controller.adjust();
+        assertEquals(6, this.getMax());
+        assertEquals(1, this.controller.getShrinkCount());
+        // hysteresis: another window before the next shrink
+        for (int i = 0; i < PoolSizeController.WINDOW - 1; i++) {
+            this.controller.adjust();
+        }
+        assertEquals(6, this.getMax());
+        this.controller.adjust();
+        assertEquals(5, this.getMax());
+        // not below the floor
+        for (int i = 0; i < 10 * PoolSizeController.WINDOW; i++) {
+            this.controller.adjust();
+        }
+        assertEquals(2, this.getMax());
+        log.info("Finished shrinkTest()");
+    }
+
+    /**
+     * Waits between half the target and the target start the quiet window over, and the peak of busy
+     * connections in the window is kept.
+     */
+    @Test
+    public void shrinkHysteresisTest() throws SQLException {
+        log.info("Starting shrinkHysteresisTest()");
+        this.borrow(7);
+        this.controller.adjust();
+        for (int i = 0; i < PoolSizeController.WINDOW - 1; i++) {
+            this.controller.adjust();
+        }
+        // p99 of 7 ms, under the 10 ms target but not quiet
+        this.waited(7, 20);
+        this.controller.adjust();
+        for (int i = 0; i < PoolSizeController.WINDOW - 1; i++) {
+            this.controller.adjust();
+        }
+        assertEquals(8, this.getMax());
+        assertEquals(0, this.controller.getShrinkCount());
+        this.controller.adjust();
+        // 7 connections busy at the peak
+        assertEquals(7, this.getMax());
+        log.info("Finished shrinkHysteresisTest()");
+    }
+}
@@ -0,0 +1,224 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.After;
+import org.junit.BeforeClass;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Unit tests for PoolWarmup.
+ */
+public class PoolWarmupTest
+{
+    private static final String URL = SimulatedDriver.URL_PREFIX + "warmup_test";
+    private ConnectionPoolManager poolManager;
+    private SimulatedServer server;
+    public static final Logger log = Logger.getLogger(PoolWarmupTest.class);
+
+    @BeforeClass
+    public static void testSetup() throws SQLException, IOException {
+        log.info("-----------------------------------");
+        log.info("-        POOL WARMUP TEST         -");
+        log.info("-----------------------------------");
+        SetupHelper.getProperties();
+    }
+
+    @Before
+    public void setup() {
+        this.server = SimulatedDriver.getServer("warmup_test");
+        this.server.reset();
+    }
+
+    @After
+    public void teardown() throws SQLException {
+        if (this.poolManager != null) {
+            this.poolManager.close();
+        }
+        this.server.reset();
+    }
+
+    /**
+     * Opens a pool of 4 initial connections
+     */
+    private ConnectionPoolManager newPool(int warmupThreads, boolean async) throws SQLException {
+        Properties props = new Properties();
+        props.putAll(SetupHelper.setupProperties);
+        props.setProperty("POOL_INITIAL_SIZE", "4");
+        props.setProperty("POOL_MAX_CONNECTIONS", "4");
+        props.setProperty("POOL_WARMUP_THREADS", "" + warmupThreads);
+        props.setProperty("POOL_ASYNC_WARMUP", async ? "true" : "false");
+        props.setProperty("POOL_RUN_RELEASER", "false");
+        props.setProperty("POOL_JMX", "false");
+        this.poolManager = new ConnectionPoolManager(props, URL, SetupHelper.testUser, SetupHelper.testPass);
+        return this.poolManager;
+    }
+
+    /**
+     * Counts the callbacks of a warm up
+     */
+    private static class CountingListener implements WarmupListener {
+        final AtomicInteger readyCalls = new AtomicInteger(0);
+        final AtomicInteger lastTarget = new AtomicInteger(-1);
+        final AtomicInteger doneCalls = new AtomicInteger(0);
+        volatile int doneReady = -1;
+        volatile int doneFailed = -1;
+
+        @Override
+        public void connectionReady(ConnectionPoolManager pool, int ready, int target) {
+            this.readyCalls.incrementAndGet();
+            this.lastTarget.set(target);
+        }
+
+        @Override
+        public void warmupDone(ConnectionPoolManager pool, int ready, int failed) {
+            this.doneCalls.incrementAndGet();
+            this.doneReady = ready;
+            this.doneFailed = failed;
+        }
+    }
+
+    /**
+     * Initial connections opened by several threads take about one connect, not one per connection.
+     */
+    @Test
+    public void parallelWarmupTest() throws Exception {
+        log.info("Starting parallelWarmupTest()");
+        this.server.setConnectLatency(200);
+        long start = System.currentTimeMillis();
+        ConnectionPoolManager pool = this.newPool(4, false);
+        long elapsed = System.currentTimeMillis() - start;
+        // one after another, it would take 800 milliseconds
+        assertTrue("Warm up took " + elapsed + " milliseconds", elapsed < 600);
+        assertTrue(pool.getWarmup().isDone());
+        assertEquals(4, pool.getWarmup().getReadyCount());
+        assertEquals(4, pool.getAvailableSize());
+        assertEquals(4, this.server.getOpenConnections());
+        log.info("Finished parallelWarmupTest()");
+    }
+
+    /**
+     * An asynchronous warm up lets the constructor return right away, and tells its listeners
+     * and the threads waiting for it about the connections as they are opened.
+     */
+    @Test
+    public void asyncWarmupTest() throws Exception {
+        log.info("Starting asyncWarmupTest()");
+        this.server.setConnectLatency(200);
+        long start = System.currentTimeMillis();
+        ConnectionPoolManager pool = this.newPool(2, true);
+        assertTrue(System.currentTimeMillis() - start < 150);
+        PoolWarmup warmup = pool.getWarmup();
+        CountingListener listener = new CountingListener();
+        warmup.addListener(listener);
+        assertFalse(warmup.isDone());
+        assertEquals(4, warmup.getTarget());
+        // two threads open the first two connections together
+        assertTrue(warmup.awaitReady(2, 5, TimeUnit.SECONDS));
+        assertTrue(warmup.getReadyCount() >= 2);
+        // clients can use the pool meanwhile
+        Connection conn = pool.getConnection();
+        conn.close();
+        assertTrue(warmup.awaitDone(5, TimeUnit.SECONDS));
+        assertEquals(4, warmup.getReadyCount());
+        assertEquals(0, warmup.getFailedCount());
+        // listeners are called once the counters are updated
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((listener.readyCalls.get() < 4 || listener.doneCalls.get() < 1)
+               && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(4, listener.readyCalls.get());
+        assertEquals(4, listener.lastTarget.get());
+        assertEquals(1, listener.doneCalls.get());
+        assertEquals(4, listener.doneReady);
+        assertEquals(0, listener.doneFailed);
+        assertEquals(4, pool.getSize());
+        // a listener added once it is done is told so right away
+        CountingListener late = new CountingListener();
+        warmup.addListener(late);
+        assertEquals(0, late.readyCalls.get());
+        assertEquals(1, late.doneCalls.get());
+        assertEquals(4, late.doneReady);
+        log.info("Finished asyncWarmupTest()");
+    }
+
+    /**
+     * An asynchronous warm up against a server that is down is done once every connect failed,
+     * and does not leave threads waiting for it.
+     */
+    @Test
+    public void asyncWarmupFailureTest() throws Exception {
+        log.info("Starting asyncWarmupFailureTest()");
+        this.server.setDown(true);
+        ConnectionPoolManager pool = this.newPool(2, true);
+        PoolWarmup warmup = pool.getWarmup();
+        CountingListener listener = new CountingListener();
+        warmup.addListener(listener);
+        // gives up as soon as the warm up is done, well before the timeout
+        long start = System.currentTimeMillis();
+        assertFalse(warmup.awaitReady(1, 5, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - start < 4000);
+        assertTrue(warmup.isDone());
+        assertEquals(0, warmup.getReadyCount());
+        assertEquals(4, warmup.getFailedCount());
+        assertTrue(warmup.getFirstFailure() != null);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (listener.doneCalls.get() < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, listener.doneCalls.get());
+        assertEquals(0, listener.doneReady);
+        assertEquals(4, listener.doneFailed);
+        assertEquals(0, pool.getSize());
+        log.info("Finished asyncWarmupFailureTest()");
+    }
+
+    /**
+     * A synchronous warm up on a single thread stops at the first failure and fails the constructor.
+     */
+    @Test
+    public void serialWarmupFailureTest() throws Exception {
+        log.info("Starting serialWarmupFailureTest()");
+        this.server.setDown(true);
+        try {
+            this.newPool(1, false);
+            fail("Pool created against a server that is down");
+        } catch (SQLException e) {
+            assertEquals("08S01", e.getSQLState());
+        }
+        log.info("Finished serialWarmupFailureTest()");
+    }
+}
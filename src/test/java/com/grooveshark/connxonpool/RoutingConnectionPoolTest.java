@@ -0,0 +1,161 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Properties;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.After;
+import org.junit.BeforeClass;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertEquals;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Unit tests for RoutingConnectionPool.
+ */
+public class RoutingConnectionPoolTest
+{
+    private ConnectionPoolManager primary;
+    private ConnectionPoolManager first;
+    private ConnectionPoolManager second;
+    private RoutingConnectionPool routing;
+    public static final Logger log = Logger.getLogger(RoutingConnectionPoolTest.class);
+
+    @BeforeClass
+    public static void testSetup() throws SQLException, IOException {
+        log.info("-----------------------------------");
+        log.info("-      ROUTING CONNECTION POOL TEST");
+        log.info("-----------------------------------");
+        SetupHelper.getProperties();
+    }
+
+    private static ConnectionPoolManager createPool(String server, int maxConnections) throws SQLException {
+        SimulatedDriver.getServer(server).reset();
+        Properties props = new Properties();
+        props.putAll(SetupHelper.setupProperties);
+        props.setProperty("POOL_INITIAL_SIZE", "" + maxConnections);
+        props.setProperty("POOL_MAX_CONNECTIONS", "" + maxConnections);
+        // far longer than the slow threshold
+        props.setProperty("POOL_MAX_WAIT", "30000");
+        props.setProperty("POOL_RUN_RELEASER", "false");
+        props.setProperty("POOL_JMX", "false");
+        return new ConnectionPoolManager(props, SimulatedDriver.URL_PREFIX + server,
+                                         SetupHelper.testUser, SetupHelper.testPass);
+    }
+
+    @Before
+    public void setup() throws SQLException {
+        this.primary = createPool("routing_primary", 2);
+        this.first = createPool("routing_first", 1);
+        this.second = createPool("routing_second", 1);
+        this.routing = new RoutingConnectionPool(this.primary, this.first, this.second);
+        this.routing.setSlowThreshold(200);
+    }
+
+    @After
+    public void teardown() throws SQLException {
+        this.routing.close();
+    }
+
+    /**
+     * A replica unable to hand out a connection within the slow threshold is taken out of rotation and the read
+     * goes to the next one, without waiting for the maximum wait of the replica's pool.
+     */
+    @Test(timeout = 10000)
+    public void failoverTest() throws SQLException {
+        log.info("Starting failoverTest()");
+        // whichever replica is tried first, exhaust the first one
+        Connection held = this.first.getConnection();
+        long start = System.currentTimeMillis();
+        Connection read = this.routing.getReadConnection();
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue(elapsed < 1000);
+        assertTrue(RoutingConnection.getHandler(read).isOnReplica());
+        assertEquals(1, this.second.getBusySize());
+        assertEquals(1, this.routing.getReplicaReads());
+        read.close();
+        held.close();
+        log.info("Finished failoverTest()");
+    }
+
+    /**
+     * With no replica able to hand out a connection, reads fall back to the primary, after about
+     * the slow threshold per replica.
+     */
+    @Test(timeout = 10000)
+    public void fallbackToPrimaryTest() throws SQLException {
+        log.info("Starting fallbackToPrimaryTest()");
+        Connection firstHeld = this.first.getConnection();
+        Connection secondHeld = this.second.getConnection();
+        long start = System.currentTimeMillis();
+        Connection read = this.routing.getReadConnection();
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue(elapsed < 2000);
+        assertTrue(!RoutingConnection.getHandler(read).isOnReplica());
+        assertEquals(0, this.routing.getReplicasInRotation());
+        assertEquals(1, this.routing.getPrimaryReads());
+        // out of rotation, the next read goes to the primary right away
+        start = System.currentTimeMillis();
+        Connection again = this.routing.getReadConnection();
+        assertTrue(System.currentTimeMillis() - start < 100);
+        assertTrue(!RoutingConnection.getHandler(again).isOnReplica());
+        again.close();
+        read.close();
+        firstHeld.close();
+        secondHeld.close();
+        log.info("Finished fallbackToPrimaryTest()");
+    }
+
+    /**
+     * A read served by the primary leaves the primary connection as it was for the next writer.
+     */
+    @Test(timeout = 10000)
+    public void primaryReadIsResetTest() throws SQLException {
+        log.info("Starting primaryReadIsResetTest()");
+        RoutingConnectionPool primaryOnly = new RoutingConnectionPool(this.primary);
+        Connection read = primaryOnly.getConnection();
+        read.setReadOnly(true);
+        read.setAutoCommit(false);
+        read.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+        // borrows on first use
+        assertTrue(read.isReadOnly());
+        assertTrue(!RoutingConnection.getHandler(read).isOnReplica());
+        read.close();
+        assertEquals(2, this.primary.getAvailableSize());
+        // whichever idle connection served the read, both are as they were made
+        Connection[] writes = new Connection[] { this.primary.getConnection(), this.primary.getConnection() };
+        for (Connection write : writes) {
+            assertTrue(!write.isReadOnly());
+            assertTrue(write.getAutoCommit());
+            assertEquals(Connection.TRANSACTION_REPEATABLE_READ, write.getTransactionIsolation());
+        }
+        for (Connection write : writes) {
+            write.close();
+        }
+        log.info("Finished primaryReadIsResetTest()");
+    }
+}
@@ -0,0 +1,376 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Connection to a {@link SimulatedServer}, handed out by the {@link SimulatedDriver} as a
+ * {@link java.sql.Connection} proxy.
+ *
+ * <p>
+ * Statements and prepared statements run their SQL on the server, ignoring parameters, batches included, and return
+ * forward only result sets read by column index. Auto-commit, read only and isolation are kept per connection
+ * and rollbacks are counted by the server, without any transaction behind them. Other methods not needed to run
+ * queries do nothing and return <code>null</code>, <code>0</code> or <code>false</code>.
+ * </p>
+ * <p>
+ * A connection closed by the client, or from the server side, fails like a Connector/J one, with
+ * <code>No operations allowed after connection closed.</code> A connection whose socket is broken
+ * (see {@link SimulatedServer#breakConnections()}) does not look closed, but every statement on it fails
+ * with <code>Communications link failure</code> and {@link java.sql.Connection#isValid(int)} returns false.
+ * A statement finding its socket dropped (see {@link SimulatedServer#getDropRate()}) fails the same way and
+ * closes the connection, as Connector/J does.
+ * </p>
+ *
+ * @author andy.compeer@gmail.com
+ */
+public class SimulatedConnection implements InvocationHandler {
+
+    private final SimulatedServer server;
+
+    private final Connection proxy;
+
+    private volatile boolean closed = false;
+
+    private volatile boolean broken = false;
+
+    /**
+     * Session settings, MySQL's defaults until changed by the client
+     */
+    private volatile boolean autoCommit = true;
+    private volatile boolean readOnly = false;
+    private volatile int isolation = Connection.TRANSACTION_REPEATABLE_READ;
+
+    /**
+     * Constructor with the {@link SimulatedServer} being connected to
+     *
+     * @param server - server of the connection
+     */
+    SimulatedConnection(SimulatedServer server) {
+        this.server = server;
+        this.proxy = (Connection) Proxy.newProxyInstance(SimulatedConnection.class.getClassLoader(),
+                new Class<?>[] { Connection.class }, this);
+    }
+
+    /**
+     * {@link java.sql.Connection} proxy of this connection
+     *
+     * @return {@link java.sql.Connection}
+     */
+    Connection getProxy() {
+        return this.proxy;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        if (method.getDeclaringClass() == Object.class) {
+            return this.objectMethod(proxy, method, args);
+        } else if (name.equals("close")) {
+            SimulatedServer.pause(this.server.getCloseLatency());
+            this.close();
+            return null;
+        } else if (name.equals("isClosed")) {
+            return Boolean.valueOf(this.closed);
+        } else if (name.equals("isValid")) {
+            return Boolean.valueOf(!this.closed && !this.broken);
+        }
+        this.checkOpen();
+        if (name.equals("createStatement")) {
+            return new StatementHandler(null).proxy;
+        } else if (name.equals("prepareStatement")) {
+            return new StatementHandler((String) args[0]).proxy;
+        } else if (name.equals("getAutoCommit")) {
+            return Boolean.valueOf(this.autoCommit);
+        } else if (name.equals("setAutoCommit")) {
+            this.autoCommit = ((Boolean) args[0]).booleanValue();
+            return null;
+        } else if (name.equals("isReadOnly")) {
+            return Boolean.valueOf(this.readOnly);
+        } else if (name.equals("setReadOnly")) {
+            this.readOnly = ((Boolean) args[0]).booleanValue();
+            return null;
+        } else if (name.equals("getTransactionIsolation")) {
+            return Integer.valueOf(this.isolation);
+        } else if (name.equals("setTransactionIsolation")) {
+            this.isolation = ((Integer) args[0]).intValue();
+            return null;
+        } else if (name.equals("rollback") && (args == null || args.length == 0)) {
+            if (this.autoCommit) {
+                throw new SQLException("Can't call rollback when autocommit=true", "08003");
+            }
+            this.server.rolledBack();
+            return null;
+        } else if (name.equals("unwrap")) {
+            throw new SQLException("Not a wrapper for " + args[0]);
+        }
+        return defaultValue(method.getReturnType());
+    }
+
+    /**
+     * Closes the connection from the client side
+     */
+    private void close() {
+        this.closed = true;
+        this.server.disconnected(this);
+    }
+
+    /**
+     * Leaves the connection half dead, see {@link SimulatedServer#breakConnections()}
+     */
+    void breakSocket() {
+        this.broken = true;
+    }
+
+    /**
+     * Closes the connection from the server side, see {@link SimulatedServer#closeConnections()}
+     */
+    void closeSocket() {
+        this.close();
+    }
+
+    private void checkOpen() throws SQLException {
+        if (this.closed) {
+            throw new SQLException("No operations allowed after connection closed.", "08003");
+        }
+    }
+
+    /**
+     * Runs SQL on the server, on behalf of a statement
+     */
+    private List<Object[]> execute(String sql) throws SQLException {
+        this.checkOpen();
+        if (this.broken) {
+            throw SimulatedServer.communicationsFailure();
+        }
+        if (this.server.nextDrop()) {
+            // Connector/J closes a connection once its socket fails
+            this.close();
+            throw SimulatedServer.communicationsFailure();
+        }
+        return this.server.execute(sql);
+    }
+
+    private Object objectMethod(Object proxy, Method method, Object[] args) {
+        String name = method.getName();
+        if (name.equals("equals")) {
+            return Boolean.valueOf(proxy == args[0]);
+        } else if (name.equals("hashCode")) {
+            return Integer.valueOf(System.identityHashCode(proxy));
+        }
+        return "SimulatedConnection@" + Integer.toHexString(System.identityHashCode(proxy))
+            + " to " + this.server.getName();
+    }
+
+    /**
+     * Value returned by methods doing nothing
+     */
+    private static Object defaultValue(Class<?> type) {
+        if (type == Boolean.TYPE) {
+            return Boolean.FALSE;
+        } else if (type == Integer.TYPE) {
+            return Integer.valueOf(0);
+        } else if (type == Long.TYPE) {
+            return Long.valueOf(0);
+        } else if (type == Short.TYPE) {
+            return Short.valueOf((short) 0);
+        } else if (type == Byte.TYPE) {
+            return Byte.valueOf((byte) 0);
+        } else if (type == Float.TYPE) {
+            return Float.valueOf(0);
+        } else if (type == Double.TYPE) {
+            return Double.valueOf(0);
+        } else if (type == Character.TYPE) {
+            return Character.valueOf((char) 0);
+        }
+        return null;
+    }
+
+    /**
+     * {@link java.sql.Statement} and {@link java.sql.PreparedStatement} of this connection
+     */
+    private class StatementHandler implements InvocationHandler {
+
+        private final String sql;
+        private final Statement proxy;
+        private ResultSet resultSet;
+        private int updateCount = -1;
+        private int maxRows = 0;
+        private int fetchSize = 0;
+        private final List<String> batch = new ArrayList<String>();
+        private boolean closed = false;
+
+        StatementHandler(String sql) {
+            this.sql = sql;
+            Class<?> type = sql == null ? Statement.class : PreparedStatement.class;
+            this.proxy = (Statement) Proxy.newProxyInstance(SimulatedConnection.class.getClassLoader(),
+                    new Class<?>[] { type }, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (method.getDeclaringClass() == Object.class) {
+                return SimulatedConnection.this.objectMethod(proxy, method, args);
+            } else if (name.equals("close")) {
+                this.closed = true;
+                return null;
+            } else if (name.equals("isClosed")) {
+                return Boolean.valueOf(this.closed);
+            }
+            if (this.closed) {
+                throw new SQLException("No operations allowed after statement closed.", "S1009");
+            }
+            if (name.equals("getConnection")) {
+                return SimulatedConnection.this.proxy;
+            } else if (name.equals("executeQuery") || name.equals("execute") || name.equals("executeUpdate")) {
+                String statement = args != null && args.length > 0 ? (String) args[0] : this.sql;
+                List<Object[]> rows = SimulatedConnection.this.execute(statement);
+                this.resultSet = rows == null ? null : new ResultSetHandler(rows).proxy;
+                this.updateCount = rows == null ? 0 : -1;
+                if (name.equals("executeQuery")) {
+                    return this.resultSet != null
+                        ? this.resultSet : new ResultSetHandler(Collections.<Object[]>emptyList()).proxy;
+                } else if (name.equals("execute")) {
+                    return Boolean.valueOf(this.resultSet != null);
+                }
+                return Integer.valueOf(this.updateCount);
+            } else if (name.equals("setMaxRows")) {
+                this.maxRows = ((Integer) args[0]).intValue();
+                return null;
+            } else if (name.equals("getMaxRows")) {
+                return Integer.valueOf(this.maxRows);
+            } else if (name.equals("setFetchSize")) {
+                this.fetchSize = ((Integer) args[0]).intValue();
+                return null;
+            } else if (name.equals("getFetchSize")) {
+                return Integer.valueOf(this.fetchSize);
+            } else if (name.equals("addBatch")) {
+                this.batch.add(args != null && args.length > 0 ? (String) args[0] : this.sql);
+                return null;
+            } else if (name.equals("clearBatch")) {
+                this.batch.clear();
+                return null;
+            } else if (name.equals("executeBatch")) {
+                int[] counts = new int[this.batch.size()];
+                for (int i = 0; i < counts.length; i++) {
+                    List<Object[]> rows = SimulatedConnection.this.execute(this.batch.get(i));
+                    counts[i] = rows == null ? 0 : -1;
+                }
+                this.batch.clear();
+                return counts;
+            } else if (name.equals("getResultSet")) {
+                return this.resultSet;
+            } else if (name.equals("getUpdateCount")) {
+                return Integer.valueOf(this.updateCount);
+            } else if (name.equals("getMoreResults")) {
+                this.resultSet = null;
+                this.updateCount = -1;
+                return Boolean.FALSE;
+            }
+            return defaultValue(method.getReturnType());
+        }
+    }
+
+    /**
+     * Forward only {@link java.sql.ResultSet} over rows returned by the server
+     */
+    private class ResultSetHandler implements InvocationHandler {
+
+        private final List<Object[]> rows;
+        private final ResultSet proxy;
+        private int row = -1;
+        private boolean wasNull = false;
+        private boolean closed = false;
+
+        ResultSetHandler(List<Object[]> rows) {
+            this.rows = rows;
+            this.proxy = (ResultSet) Proxy.newProxyInstance(SimulatedConnection.class.getClassLoader(),
+                    new Class<?>[] { ResultSet.class }, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (method.getDeclaringClass() == Object.class) {
+                return SimulatedConnection.this.objectMethod(proxy, method, args);
+            } else if (name.equals("close")) {
+                this.closed = true;
+                return null;
+            } else if (name.equals("isClosed")) {
+                return Boolean.valueOf(this.closed);
+            }
+            if (this.closed) {
+                throw new SQLException("Operation not allowed after ResultSet closed", "S1000");
+            }
+            if (name.equals("next")) {
+                if (this.row < this.rows.size()) {
+                    this.row++;
+                }
+                return Boolean.valueOf(this.row < this.rows.size());
+            } else if (name.equals("wasNull")) {
+                return Boolean.valueOf(this.wasNull);
+            } else if (name.startsWith("get") && args != null && args.length == 1 && args[0] instanceof Integer) {
+                return this.column(name, ((Integer) args[0]).intValue());
+            }
+            return defaultValue(method.getReturnType());
+        }
+
+        private Object column(String getter, int index) throws SQLException {
+            if (this.row < 0 || this.row >= this.rows.size()) {
+                throw new SQLException("Before start of result set", "S1000");
+            }
+            Object[] values = this.rows.get(this.row);
+            if (index < 1 || index > values.length) {
+                throw new SQLException("Column Index out of range, " + index + " > " + values.length + ".", "S1009");
+            }
+            Object value = values[index - 1];
+            this.wasNull = value == null;
+            if (getter.equals("getString")) {
+                return value == null ? null : value.toString();
+            } else if (getter.equals("getInt")) {
+                return Integer.valueOf(value == null ? 0 : ((Number) value).intValue());
+            } else if (getter.equals("getLong")) {
+                return Long.valueOf(value == null ? 0 : ((Number) value).longValue());
+            } else if (getter.equals("getDouble")) {
+                return Double.valueOf(value == null ? 0 : ((Number) value).doubleValue());
+            } else if (getter.equals("getBoolean")) {
+                return Boolean.valueOf(value != null && ((Number) value).intValue() != 0);
+            } else if (getter.equals("getObject")) {
+                return value;
+            }
+            throw new SQLException("Not supported by the simulated driver: " + getter, "S1C00");
+        }
+    }
+}
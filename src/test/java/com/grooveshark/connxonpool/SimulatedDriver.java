@@ -0,0 +1,170 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool;
+
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * In-process stand-in for a MySQL {@link java.sql.Driver}, to run the pool without a database server.
+ *
+ * <p>
+ * Set {@link PoolConfiguration#getDriverName()} (<code>POOL_DRIVER_NAME</code>) to this class and use urls like
+ * </p>
+ * <pre>
+ * jdbc:sim:gshark?connectLatency=20&amp;queryLatency=1&amp;maxConnections=50&amp;dropRate=0.001&amp;seed=42
+ * </pre>
+ * <p>
+ * The name after <code>jdbc:sim:</code> picks a {@link SimulatedServer}, shared by all connections made with that name
+ * in the JVM, see {@link #getServer(String)}. Url parameters configure the server, all are optional:
+ * </p>
+ * <ul>
+ * <li><code>connectLatency</code>: milliseconds a connect takes, 0 by default</li>
+ * <li><code>queryLatency</code>: milliseconds a statement takes, 0 by default</li>
+ * <li><code>maxConnections</code>: open connections the server accepts, like MySQL's <code>max_connections</code>, 0 for no limit</li>
+ * <li><code>dropRate</code>: probability a statement finds its socket closed by the server, 0 by default</li>
+ * <li><code>seed</code>: seed of the random numbers of the server, so dropped sockets are reproducible</li>
+ * </ul>
+ * <p>
+ * Failures are reported with the messages and SQL states of MySQL Connector/J.
+ * </p>
+ *
+ * @author andy.compeer@gmail.com
+ */
+public class SimulatedDriver implements Driver {
+
+    /**
+     * Prefix of the urls accepted by this driver
+     */
+    public static final String URL_PREFIX = "jdbc:sim:";
+
+    private static final ConcurrentMap<String, SimulatedServer> SERVERS = new ConcurrentHashMap<String, SimulatedServer>();
+
+    static {
+        try {
+            DriverManager.registerDriver(new SimulatedDriver());
+        } catch (SQLException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * Returns the simulated server of the given name, creating it if needed
+     *
+     * @param name - name of the server, as in <code>jdbc:sim:name</code>
+     * @return {@link SimulatedServer}
+     */
+    public static SimulatedServer getServer(String name) {
+        SimulatedServer server = SERVERS.get(name);
+        if (server == null) {
+            SimulatedServer created = new SimulatedServer(name);
+            server = SERVERS.putIfAbsent(name, created);
+            if (server == null) {
+                server = created;
+            }
+        }
+        return server;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Connection connect(String url, Properties info) throws SQLException {
+        if (!this.acceptsURL(url)) {
+            return null;
+        }
+        String rest = url.substring(URL_PREFIX.length());
+        int query = rest.indexOf('?');
+        String name = query < 0 ? rest : rest.substring(0, query);
+        SimulatedServer server = getServer(name);
+        if (query >= 0) {
+            server.configure(parseParameters(rest.substring(query + 1)));
+        }
+        return server.connect();
+    }
+
+    /**
+     * Parses <code>key=value&amp;key=value</code> url parameters
+     */
+    private static Properties parseParameters(String query) {
+        Properties params = new Properties();
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                params.setProperty(pair.substring(0, eq).trim(), pair.substring(eq + 1).trim());
+            }
+        }
+        return params;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean acceptsURL(String url) {
+        return url != null && url.startsWith(URL_PREFIX);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+        return new DriverPropertyInfo[0];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getMajorVersion() {
+        return 1;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getMinorVersion() {
+        return 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean jdbcCompliant() {
+        return false;
+    }
+
+    /**
+     * JDBC 4.1 method, not supported
+     */
+    public java.util.logging.Logger getParentLogger() throws java.sql.SQLFeatureNotSupportedException {
+        throw new java.sql.SQLFeatureNotSupportedException();
+    }
+}
@@ -0,0 +1,535 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Database server simulated by the {@link SimulatedDriver}.
+ *
+ * <p>
+ * The server keeps tables of rows in memory and understands just enough SQL for tests:
+ * <code>CREATE TABLE</code>, <code>DROP TABLE</code>, <code>DROP DATABASE</code>, <code>INSERT INTO t VALUES (..), (..)</code>,
+ * <code>SELECT * FROM t</code> and <code>SELECT</code> without a table, which returns a single row with 1.
+ * Other statements succeed without doing anything. Statements can be separated by semicolons.
+ * </p>
+ * <p>
+ * Besides the url parameters (see {@link SimulatedDriver}), tests can change the behaviour of the server at any time:
+ * {@link #setDown(boolean)} refuses connects, {@link #breakConnections()} leaves open connections half dead, as after a
+ * network failure, and {@link #closeConnections()} closes them, as after a server restart.
+ * </p>
+ *
+ * @author andy.compeer@gmail.com
+ */
+public class SimulatedServer {
+
+    private static final Pattern INSERT =
+        Pattern.compile("insert\\s+into\\s+`?(\\w+)`?\\s*(?:\\([^)]*\\))?\\s*values\\s*(.*)", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern SELECT_FROM =
+        Pattern.compile("select\\s+.*?\\s+from\\s+`?(\\w+)`?.*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern CREATE_TABLE =
+        Pattern.compile("create\\s+table\\s+(?:if\\s+not\\s+exists\\s+)?`?(\\w+)`?.*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern DROP_TABLE =
+        Pattern.compile("drop\\s+table\\s+(?:if\\s+exists\\s+)?`?(\\w+)`?.*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern DROP_DATABASE =
+        Pattern.compile("drop\\s+(?:database|schema)\\b.*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    private final String name;
+
+    /**
+     * Rows of the tables, by lower case table name. Guarded by this server.
+     */
+    private final Map<String, List<Object[]>> tables = new HashMap<String, List<Object[]>>();
+
+    /**
+     * Open connections
+     */
+    private final Set<SimulatedConnection> connections =
+        Collections.newSetFromMap(new ConcurrentHashMap<SimulatedConnection, Boolean>());
+
+    private final AtomicInteger openCount = new AtomicInteger(0);
+    private final AtomicLong connectCount = new AtomicLong(0);
+    private final AtomicLong statementCount = new AtomicLong(0);
+    private final AtomicLong rollbackCount = new AtomicLong(0);
+
+    /**
+     * Random numbers deciding dropped sockets. Guarded by itself.
+     */
+    private Random random = new Random(0);
+
+    private volatile long connectLatency = 0;
+    private volatile long queryLatency = 0;
+    private volatile long closeLatency = 0;
+    private volatile int maxConnections = 0;
+    private volatile double dropRate = 0;
+    private volatile boolean down = false;
+    private volatile boolean crashing = false;
+
+    /**
+     * Constructor with the name of the server
+     *
+     * @param name - name in the <code>jdbc:sim:name</code> urls
+     */
+    public SimulatedServer(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Applies url parameters, see {@link SimulatedDriver}
+     *
+     * @param params - parameters by name
+     */
+    public void configure(Properties params) throws SQLException {
+        try {
+            if (params.getProperty("connectLatency") != null) {
+                this.connectLatency = Long.parseLong(params.getProperty("connectLatency"));
+            }
+            if (params.getProperty("queryLatency") != null) {
+                this.queryLatency = Long.parseLong(params.getProperty("queryLatency"));
+            }
+            if (params.getProperty("maxConnections") != null) {
+                this.maxConnections = Integer.parseInt(params.getProperty("maxConnections"));
+            }
+            if (params.getProperty("dropRate") != null) {
+                this.dropRate = Double.parseDouble(params.getProperty("dropRate"));
+            }
+            if (params.getProperty("seed") != null) {
+                this.setSeed(Long.parseLong(params.getProperty("seed")));
+            }
+        } catch (NumberFormatException e) {
+            throw new SQLException("Malformed simulated driver url parameter: " + e.getMessage(), "01S00", e);
+        }
+    }
+
+    /**
+     * Opens a connection, after {@link #getConnectLatency()} milliseconds.
+     *
+     * @return a new {@link java.sql.Connection}
+     * @throws SQLException - if the server is down or has {@link #getMaxConnections()} open connections
+     */
+    public Connection connect() throws SQLException {
+        pause(this.connectLatency);
+        if (this.crashing) {
+            throw new IllegalStateException("Simulated driver crashed while connecting to " + this.name);
+        }
+        if (this.down) {
+            throw communicationsFailure();
+        }
+        int open;
+        do {
+            open = this.openCount.get();
+            if (this.maxConnections > 0 && open >= this.maxConnections) {
+                throw new SQLException("Too many connections", "08004", 1040);
+            }
+        } while (!this.openCount.compareAndSet(open, open + 1));
+        this.connectCount.incrementAndGet();
+        SimulatedConnection conn = new SimulatedConnection(this);
+        this.connections.add(conn);
+        return conn.getProxy();
+    }
+
+    /**
+     * Called by a connection once it is closed
+     */
+    void disconnected(SimulatedConnection conn) {
+        if (this.connections.remove(conn)) {
+            this.openCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Called by a connection rolling back
+     */
+    void rolledBack() {
+        this.rollbackCount.incrementAndGet();
+    }
+
+    /**
+     * Runs statements separated by semicolons, after {@link #getQueryLatency()} milliseconds.
+     *
+     * @param sql - statements to run
+     * @return rows of the last statement returning rows, null if none does
+     * @throws SQLException - if a statement fails
+     */
+    List<Object[]> execute(String sql) throws SQLException {
+        this.statementCount.incrementAndGet();
+        pause(this.queryLatency);
+        List<Object[]> result = null;
+        for (String statement : split(sql)) {
+            List<Object[]> rows = this.executeOne(statement);
+            if (rows != null) {
+                result = rows;
+            }
+        }
+        return result;
+    }
+
+    private List<Object[]> executeOne(String statement) throws SQLException {
+        Matcher m;
+        String lower = statement.toLowerCase(Locale.ENGLISH);
+        synchronized (this) {
+            if ((m = INSERT.matcher(statement)).matches()) {
+                List<Object[]> table = this.table(m.group(1));
+                for (List<Object> row : parseTuples(m.group(2))) {
+                    table.add(row.toArray());
+                }
+                return null;
+            } else if ((m = SELECT_FROM.matcher(statement)).matches()) {
+                return new ArrayList<Object[]>(this.table(m.group(1)));
+            } else if (lower.startsWith("select")) {
+                List<Object[]> rows = new ArrayList<Object[]>();
+                rows.add(new Object[] { Integer.valueOf(1) });
+                return rows;
+            } else if ((m = CREATE_TABLE.matcher(statement)).matches()) {
+                String table = m.group(1).toLowerCase(Locale.ENGLISH);
+                if (!this.tables.containsKey(table)) {
+                    this.tables.put(table, new ArrayList<Object[]>());
+                }
+            } else if ((m = DROP_TABLE.matcher(statement)).matches()) {
+                this.tables.remove(m.group(1).toLowerCase(Locale.ENGLISH));
+            } else if (DROP_DATABASE.matcher(statement).matches()) {
+                this.tables.clear();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Rows of a table, guarded by this server
+     */
+    private List<Object[]> table(String name) throws SQLException {
+        List<Object[]> table = this.tables.get(name.toLowerCase(Locale.ENGLISH));
+        if (table == null) {
+            throw new SQLException("Table '" + name + "' doesn't exist", "42S02", 1146);
+        }
+        return table;
+    }
+
+    /**
+     * Splits statements on semicolons outside quotes and drops leading comments
+     */
+    private static List<String> split(String sql) {
+        List<String> statements = new ArrayList<String>();
+        StringBuilder current = new StringBuilder();
+        char quote = 0;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            } else if (c == ';') {
+                addStatement(statements, current.toString());
+                current.setLength(0);
+                continue;
+            }
+            current.append(c);
+        }
+        addStatement(statements, current.toString());
+        return statements;
+    }
+
+    private static void addStatement(List<String> statements, String statement) {
+        statement = statement.trim();
+        while (statement.startsWith("/*") && statement.indexOf("*/") > 0) {
+            statement = statement.substring(statement.indexOf("*/") + 2).trim();
+        }
+        if (statement.length() > 0) {
+            statements.add(statement);
+        }
+    }
+
+    /**
+     * Parses <code>(1, 'a'), (2, 'b')</code> into rows of Integer, Long, Double, String or null values
+     */
+    private static List<List<Object>> parseTuples(String values) throws SQLException {
+        List<List<Object>> rows = new ArrayList<List<Object>>();
+        List<Object> row = null;
+        StringBuilder value = null;
+        boolean quoted = false;
+        boolean string = false;
+        for (int i = 0; i < values.length(); i++) {
+            char c = values.charAt(i);
+            if (value != null && quoted) {
+                if (c == '\'' && i + 1 < values.length() && values.charAt(i + 1) == '\'') {
+                    value.append(c);
+                    i++;
+                } else if (c == '\'') {
+                    quoted = false;
+                } else {
+                    value.append(c);
+                }
+            } else if (c == '(' && row == null) {
+                row = new ArrayList<Object>();
+                value = new StringBuilder();
+            } else if (row != null && (c == ',' || c == ')')) {
+                row.add(toValue(value.toString(), string, values));
+                value = new StringBuilder();
+                string = false;
+                if (c == ')') {
+                    rows.add(row);
+                    row = null;
+                    value = null;
+                }
+            } else if (row != null && c == '\'') {
+                quoted = true;
+                string = true;
+            } else if (row != null && !Character.isWhitespace(c)) {
+                value.append(c);
+            }
+        }
+        if (row != null) {
+            throw new SQLException("You have an error in your SQL syntax near '" + values + "'", "42000", 1064);
+        }
+        return rows;
+    }
+
+    private static Object toValue(String text, boolean string, String values) throws SQLException {
+        if (string) {
+            return text;
+        }
+        if (text.equalsIgnoreCase("null")) {
+            return null;
+        }
+        try {
+            long number = Long.parseLong(text);
+            if (number >= Integer.MIN_VALUE && number <= Integer.MAX_VALUE) {
+                return Integer.valueOf((int) number);
+            }
+            return Long.valueOf(number);
+        } catch (NumberFormatException e) {
+            try {
+                return Double.valueOf(text);
+            } catch (NumberFormatException e2) {
+                throw new SQLException("You have an error in your SQL syntax near '" + values + "'", "42000", 1064);
+            }
+        }
+    }
+
+    /**
+     * Decides whether a statement finds its socket closed, with probability {@link #getDropRate()}
+     *
+     * @return true if the socket is dropped
+     */
+    boolean nextDrop() {
+        double rate = this.dropRate;
+        if (rate <= 0) {
+            return false;
+        }
+        synchronized (this.random) {
+            return this.random.nextDouble() < rate;
+        }
+    }
+
+    /**
+     * Exception of a connection whose socket is gone, as reported by Connector/J
+     */
+    static SQLException communicationsFailure() {
+        return new SQLException("Communications link failure", "08S01");
+    }
+
+    /**
+     * Sleeps for a simulated latency
+     */
+    static void pause(long millis) throws SQLException {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Simulated latency interrupted", "08S01", e);
+        }
+    }
+
+    /**
+     * Makes the server refuse connects, as if it was down, or accept them again.
+     * Open connections are not affected, see {@link #breakConnections()}.
+     *
+     * @param down - true to refuse connects
+     */
+    public void setDown(boolean down) {
+        this.down = down;
+    }
+
+    /**
+     * Makes connects fail with a {@link RuntimeException} instead of a {@link SQLException}, as a buggy driver would.
+     *
+     * @param crashing - true to fail connects with a runtime exception
+     */
+    public void setCrashing(boolean crashing) {
+        this.crashing = crashing;
+    }
+
+    /**
+     * Leaves all open connections half dead, as after a network failure: they do not look closed,
+     * but every statement on them fails.
+     *
+     * @return int - number of connections broken
+     */
+    public int breakConnections() {
+        int count = 0;
+        for (SimulatedConnection conn : this.connections) {
+            conn.breakSocket();
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Closes all open connections from the server side, as after a server restart
+     *
+     * @return int - number of connections closed
+     */
+    public int closeConnections() {
+        int count = 0;
+        for (SimulatedConnection conn : this.connections) {
+            conn.closeSocket();
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Drops all tables and restores the default behaviour. Open connections are left alone.
+     */
+    public synchronized void reset() {
+        this.tables.clear();
+        this.connectLatency = 0;
+        this.queryLatency = 0;
+        this.closeLatency = 0;
+        this.maxConnections = 0;
+        this.dropRate = 0;
+        this.down = false;
+        this.crashing = false;
+        this.setSeed(0);
+    }
+
+    public void setSeed(long seed) {
+        this.random = new Random(seed);
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public long getConnectLatency() {
+        return this.connectLatency;
+    }
+
+    public void setConnectLatency(long connectLatency) {
+        this.connectLatency = connectLatency;
+    }
+
+    public long getQueryLatency() {
+        return this.queryLatency;
+    }
+
+    public void setQueryLatency(long queryLatency) {
+        this.queryLatency = queryLatency;
+    }
+
+    /**
+     * Milliseconds a client waits for closing a connection
+     *
+     * @return long - close latency
+     */
+    public long getCloseLatency() {
+        return this.closeLatency;
+    }
+
+    public void setCloseLatency(long closeLatency) {
+        this.closeLatency = closeLatency;
+    }
+
+    public int getMaxConnections() {
+        return this.maxConnections;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public double getDropRate() {
+        return this.dropRate;
+    }
+
+    public void setDropRate(double dropRate) {
+        this.dropRate = dropRate;
+    }
+
+    public boolean isDown() {
+        return this.down;
+    }
+
+    /**
+     * Number of open connections
+     *
+     * @return int - open connections
+     */
+    public int getOpenConnections() {
+        return this.openCount.get();
+    }
+
+    /**
+     * Number of connects accepted since the server was created
+     *
+     * @return long - connects
+     */
+    public long getConnectCount() {
+        return this.connectCount.get();
+    }
+
+    /**
+     * Number of statements run since the server was created
+     *
+     * @return long - statements
+     */
+    public long getStatementCount() {
+        return this.statementCount.get();
+    }
+
+    /**
+     * Number of rollbacks since the server was created
+     *
+     * @return long - rollbacks
+     */
+    public long getRollbackCount() {
+        return this.rollbackCount.get();
+    }
+}
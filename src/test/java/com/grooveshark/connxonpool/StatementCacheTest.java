@@ -0,0 +1,133 @@
+/**
+ *                  GNU GENERAL PUBLIC LICENSE
+ *
+ *  Copyright (C) 2012 Anandan.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.grooveshark.connxonpool;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.After;
+import org.junit.BeforeClass;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Unit tests for StatementCache.
+ */
+public class StatementCacheTest
+{
+    private static final String URL = SimulatedDriver.URL_PREFIX + "statement_cache_test";
+    private ConnectionPoolManager poolManager;
+    private SimulatedServer server;
+    public static final Logger log = Logger.getLogger(StatementCacheTest.class);
+
+    @BeforeClass
+    public static void testSetup() throws SQLException, IOException {
+        log.info("-----------------------------------");
+        log.info("-      STATEMENT CACHE TEST       -");
+        log.info("-----------------------------------");
+        SetupHelper.getProperties();
+    }
+
+    @Before
+    public void setup() throws SQLException {
+        this.server = SimulatedDriver.getServer("statement_cache_test");
+        this.server.reset();
+        Properties props = new Properties();
+        props.putAll(SetupHelper.setupProperties);
+        props.setProperty("POOL_INITIAL_SIZE", "1");
+        props.setProperty("POOL_MAX_CONNECTIONS", "1");
+        props.setProperty("POOL_STATEMENT_CACHE_SIZE", "4");
+        props.setProperty("POOL_RUN_RELEASER", "false");
+        props.setProperty("POOL_JMX", "false");
+        this.poolManager = new ConnectionPoolManager(props, URL, SetupHelper.testUser, SetupHelper.testPass);
+    }
+
+    @After
+    public void teardown() throws SQLException {
+        this.poolManager.close();
+        this.server.reset();
+    }
+
+    /**
+     * Settings changed by a client are not seen by the next client preparing the same statement.
+     */
+    @Test
+    public void giveBackRestoresSettingsTest() throws SQLException {
+        log.info("Starting giveBackRestoresSettingsTest()");
+        Connection conn = this.poolManager.getConnection();
+        PreparedStatement stmt = conn.prepareStatement(SetupHelper.testQuery);
+        stmt.setMaxRows(5);
+        stmt.setFetchSize(100);
+        stmt.close();
+        conn.close();
+        conn = this.poolManager.getConnection();
+        stmt = conn.prepareStatement(SetupHelper.testQuery);
+        assertEquals(1, this.poolManager.getStatementCacheStats().getHits());
+        assertEquals(0, stmt.getMaxRows());
+        assertEquals(0, stmt.getFetchSize());
+        stmt.close();
+        conn.close();
+        log.info("Finished giveBackRestoresSettingsTest()");
+    }
+
+    /**
+     * A batch added by a client that closed the statement without executing it is not run by the next client.
+     */
+    @Test
+    public void giveBackClearsBatchTest() throws SQLException {
+        log.info("Starting giveBackClearsBatchTest()");
+        Connection conn = this.poolManager.getConnection();
+        Statement create = conn.createStatement();
+        create.executeUpdate("CREATE TABLE batch_test (id INT)");
+        create.close();
+        String insert = "INSERT INTO batch_test VALUES (1)";
+        PreparedStatement stmt = conn.prepareStatement(insert);
+        stmt.addBatch();
+        stmt.addBatch();
+        stmt.close();
+        conn.close();
+        conn = this.poolManager.getConnection();
+        stmt = conn.prepareStatement(insert);
+        assertEquals(1, this.poolManager.getStatementCacheStats().getHits());
+        assertEquals(0, stmt.executeBatch().length);
+        stmt.addBatch();
+        assertEquals(1, stmt.executeBatch().length);
+        stmt.close();
+        Statement count = conn.createStatement();
+        ResultSet rs = count.executeQuery("SELECT id FROM batch_test");
+        int rows = 0;
+        while (rs.next()) {
+            rows++;
+        }
+        assertEquals(1, rows);
+        count.close();
+        conn.close();
+        log.info("Finished giveBackClearsBatchTest()");
+    }
+}